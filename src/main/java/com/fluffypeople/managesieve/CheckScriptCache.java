@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of CHECKSCRIPT verdicts.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the script body together with a
+ * fingerprint of the server capabilities (implementation name, version and
+ * the advertised Sieve extensions), so an identical script checked against an
+ * identically configured server is only sent to the server once. Only
+ * verdicts that depend on the script alone are cached: OK (with or without
+ * WARNINGS) and a plain NO. Responses such as NO (TRYLATER) or BYE always go
+ * back to the caller without being stored.
+ * <p>
+ * The cache can optionally be backed by a file, which is read when the cache
+ * is created and written by {@link #save()} or {@link #close()}.
+ */
+public class CheckScriptCache implements Closeable {
+
+    private static final Logger log = Logger.getLogger(CheckScriptCache.class.getName());
+    private static final String SEPARATOR = "\t";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path file;
+    private final Map<String, ManageSieveResponse> verdicts = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create an in-memory cache.
+     */
+    public CheckScriptCache() {
+        this.file = null;
+    }
+
+    /**
+     * Create a cache backed by the given file. If the file exists its
+     * contents are loaded; unreadable entries are skipped.
+     *
+     * @param file Path to load from and save to
+     * @throws IOException if the file exists but can't be read
+     */
+    public CheckScriptCache(final Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * Check a script, using a cached verdict if there is one for this script
+     * and the client's current server capabilities.
+     *
+     * @param client ManageSieveClient, connected and authenticated
+     * @param script String body of the script to check
+     * @return the (possibly cached) response to CHECKSCRIPT
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public ManageSieveResponse checkscript(final ManageSieveClient client, final String script) throws IOException, ParseException {
+        ServerCapabilities cap = client.getCapabilities();
+        if (cap != null) {
+            ManageSieveResponse cached = get(cap, script);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ManageSieveResponse resp = client.checkscript(script);
+        if (cap != null) {
+            put(cap, script, resp);
+        }
+        return resp;
+    }
+
+    /**
+     * Look up a cached verdict.
+     *
+     * @param cap    ServerCapabilities the script would be checked against
+     * @param script String body of the script
+     * @return the cached response, or null if there isn't one
+     */
+    public ManageSieveResponse get(final ServerCapabilities cap, final String script) {
+        ManageSieveResponse resp = verdicts.get(key(cap, script));
+        synchronized (this) {
+            if (resp != null) {
+                hits += 1;
+            } else {
+                misses += 1;
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * Store a verdict, if it is one that only depends on the script.
+     *
+     * @param cap      ServerCapabilities the script was checked against
+     * @param script   String body of the script
+     * @param response ManageSieveResponse from CHECKSCRIPT
+     * @return true if the verdict was stored
+     */
+    public boolean put(final ServerCapabilities cap, final String script, final ManageSieveResponse response) {
+        if (!isCacheable(response)) {
+            return false;
+        }
+        verdicts.put(key(cap, script), response);
+        dirty = true;
+        return true;
+    }
+
+    public int size() {
+        return verdicts.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public void clear() {
+        verdicts.clear();
+        dirty = true;
+    }
+
+    /**
+     * Write the cache to its backing file, if it has one. The file is
+     * replaced atomically where the file system allows it.
+     *
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Properties props = new Properties();
+        for (Map.Entry<String, ManageSieveResponse> e : verdicts.entrySet()) {
+            props.setProperty(e.getKey(), encode(e.getValue()));
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            props.store(w, "ManageSieveJ CHECKSCRIPT verdicts");
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Save the cache if anything has changed since it was loaded or last
+     * saved.
+     */
+    @Override
+    public void close() throws IOException {
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Build a stable fingerprint of the parts of the server capabilities that
+     * affect script validation.
+     *
+     * @param cap ServerCapabilities to fingerprint
+     * @return String fingerprint
+     */
+    public static String fingerprint(final ServerCapabilities cap) {
+        StringBuilder result = new StringBuilder();
+        result.append(cap.getImplementationName()).append('\n');
+        result.append(cap.getVersion()).append('\n');
+        for (String ext : cap.getSieveExtensions()) {
+            result.append(ext).append(' ');
+        }
+        return result.toString();
+    }
+
+    private static boolean isCacheable(final ManageSieveResponse response) {
+        if (response.isOk()) {
+            return true;
+        }
+        return response.isNo() && response.getCode() == null;
+    }
+
+    private static String key(final ServerCapabilities cap, final String script) {
+        return sha256(fingerprint(cap)).substring(0, 16) + "-" + sha256(script);
+    }
+
+    private static String sha256(final String raw) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HEX.formatHex(digest.digest(raw.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private static String encode(final ManageSieveResponse response) {
+        StringBuilder result = new StringBuilder();
+        result.append(response.getType());
+        result.append(SEPARATOR);
+        if (response.getCode() != null) {
+            result.append(String.join("/", response.getSubCodes()));
+        }
+        result.append(SEPARATOR);
+        if (response.getMessage() != null) {
+            result.append(response.getMessage());
+        }
+        return result.toString();
+    }
+
+    private static ManageSieveResponse decode(final String raw) throws ParseException {
+        String[] parts = raw.split(SEPARATOR, 3);
+        if (parts.length != 3) {
+            throw new ParseException("Expecting 3 fields, got " + parts.length);
+        }
+        ManageSieveResponse resp = new ManageSieveResponse();
+        resp.setType(parts[0]);
+        if (!parts[1].isEmpty()) {
+            resp.setCode(parts[1]);
+        }
+        if (!parts[2].isEmpty()) {
+            resp.setMessage(parts[2]);
+        }
+        return resp;
+    }
+
+    private void load() throws IOException {
+        Properties props = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(r);
+        }
+        for (String key : props.stringPropertyNames()) {
+            try {
+                verdicts.put(key, decode(props.getProperty(key)));
+            } catch (ParseException ex) {
+                log.log(Level.WARNING, "Skipping unreadable cache entry: " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared keepalive service for idle connections.
+ * <p>
+ * Servers drop sessions that have been idle for too long, and reconnecting
+ * means a new TLS handshake and SASL exchange. Clients registered with this
+ * scheduler are sent a NOOP shortly before the server's idle cutoff, unless
+ * they have sent something else in the meantime.
+ * <p>
+ * Deadlines are kept in a hashed timer wheel driven by a single ticker
+ * thread, so registering, rescheduling and expiring a session are all
+ * constant time and tens of thousands of sessions can be managed with a
+ * handful of threads. The NOOPs themselves are sent from a small worker pool.
+ * Each keepalive is moved forward by a random amount so that sessions opened
+ * together don't all send their NOOPs in the same tick.
+ * <p>
+ * The idle cutoff starts at the default given to the constructor, and is
+ * learnt per server: if a keepalive finds that the server has already closed
+ * the session, or the application reports a disconnect through
+ * {@link #disconnected(ManageSieveClient)}, the idle time at that point
+ * lowers the estimate for that server. A single observation can at most
+ * halve the estimate, so one transient failure can't collapse it, and the
+ * estimate creeps back up towards the default as time passes without
+ * further losses.
+ * <p>
+ * The ticker thread starts when the first client is registered.
+ */
+public class KeepaliveScheduler implements Closeable {
+
+    private static final Logger log = Logger.getLogger(KeepaliveScheduler.class.getName());
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // Keepalives go out between LEAD and LEAD + JITTER (as fractions of the
+    // idle timeout) before the cutoff.
+    private static final double LEAD = 0.10;
+    private static final double JITTER = 0.10;
+    // One observation can lower the estimate to no less than 1/MAX_CUT of
+    // what it was, and the estimate then regains 1/RECOVERY of the time
+    // that passes, up to the default
+    private static final int MAX_CUT = 2;
+    private static final int RECOVERY = 10;
+
+    /**
+     * Told about sessions that the server has closed.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a keepalive finds a session is no longer usable. The
+         * session has already been unregistered.
+         *
+         * @param client ManageSieveClient that was lost
+         * @param server String server key it was registered with
+         * @param cause  Exception from the NOOP, or null if the server replied
+         *               BYE
+         */
+        void sessionLost(ManageSieveClient client, String server, Exception cause);
+    }
+
+    private static final class Session {
+
+        private final ManageSieveClient client;
+        private final String server;
+        private volatile long deadline;
+        private long deadlineTick;
+        private volatile boolean cancelled = false;
+
+        private Session(final ManageSieveClient client, final String server) {
+            this.client = client;
+            this.server = server;
+        }
+    }
+
+    private static final class Learnt {
+
+        private final long timeout;
+        private final long at;
+
+        private Learnt(final long timeout, final long at) {
+            this.timeout = timeout;
+            this.at = at;
+        }
+    }
+
+    private final long defaultTimeout;
+    private final long tickNanos;
+    private final long start = System.nanoTime();
+    private final Map<ManageSieveClient, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Learnt> learntTimeouts = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Queue<Session> incoming = new ConcurrentLinkedQueue<>();
+    // Only touched by the ticker thread
+    private final List<Queue<Session>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long processedTick = 0;
+    private boolean started = false;
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService workers;
+
+    /**
+     * Create a scheduler with a 100ms tick and two worker threads.
+     *
+     * @param idleTimeout default idle cutoff to assume for servers we haven't
+     *                    learnt about yet
+     * @param unit        TimeUnit of idleTimeout
+     */
+    public KeepaliveScheduler(final long idleTimeout, final TimeUnit unit) {
+        this(idleTimeout, unit, 100, TimeUnit.MILLISECONDS, 2);
+    }
+
+    /**
+     * Create a scheduler.
+     *
+     * @param idleTimeout default idle cutoff to assume for servers we haven't
+     *                    learnt about yet
+     * @param unit        TimeUnit of idleTimeout
+     * @param tick        resolution of the timer wheel
+     * @param tickUnit    TimeUnit of tick
+     * @param workers     number of threads sending NOOPs
+     */
+    public KeepaliveScheduler(final long idleTimeout, final TimeUnit unit, final long tick, final TimeUnit tickUnit, final int workers) {
+        if (idleTimeout <= 0 || tick <= 0 || workers <= 0) {
+            throw new IllegalArgumentException("Timeout, tick and workers must all be positive");
+        }
+        this.defaultTimeout = unit.toNanos(idleTimeout);
+        this.tickNanos = tickUnit.toNanos(tick);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(daemonThreads("sieve-keepalive-tick"));
+        this.workers = Executors.newFixedThreadPool(workers, daemonThreads("sieve-keepalive"));
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start sending keepalives for a client. Registering a client that is
+     * already registered moves it to the new server key.
+     *
+     * @param client ManageSieveClient, connected and authenticated
+     * @param server String identifying the server, used to share the learnt
+     *               idle timeout between sessions. Usually host:port.
+     */
+    public void register(final ManageSieveClient client, final String server) {
+        Session session = new Session(client, server);
+        Session old = sessions.put(client, session);
+        if (old != null) {
+            old.cancelled = true;
+        }
+        start();
+        schedule(session);
+    }
+
+    /**
+     * Stop sending keepalives for a client.
+     *
+     * @param client ManageSieveClient to forget
+     */
+    public void unregister(final ManageSieveClient client) {
+        Session session = sessions.remove(client);
+        if (session != null) {
+            session.cancelled = true;
+        }
+    }
+
+    /**
+     * Tell the scheduler that the server closed this client's connection,
+     * for example because a command failed with an IOException. The longer of
+     * the idle time before the last command and the idle time since is used
+     * to refine the estimate for the server, and the client is unregistered.
+     *
+     * @param client ManageSieveClient that was disconnected
+     */
+    public void disconnected(final ManageSieveClient client) {
+        Session session = sessions.remove(client);
+        if (session != null) {
+            session.cancelled = true;
+            long idle = Math.max(client.getIdleBeforeLastNanos(), System.nanoTime() - client.getLastActivityNanos());
+            learn(session.server, idle);
+        }
+    }
+
+    /**
+     * @return number of registered clients
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Get the idle cutoff currently assumed for a server.
+     *
+     * @param server String server key
+     * @param unit   TimeUnit for the result
+     * @return the learnt timeout, or the default if nothing has been learnt
+     */
+    public long getIdleTimeout(final String server, final TimeUnit unit) {
+        return unit.convert(idleTimeout(server), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop the ticker and worker threads. Registered clients are left
+     * connected.
+     */
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+        workers.shutdownNow();
+        sessions.clear();
+    }
+
+    private synchronized void start() {
+        if (!started) {
+            started = true;
+            try {
+                ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Already closed
+            }
+        }
+    }
+
+    private long idleTimeout(final String server) {
+        return idleTimeout(learntTimeouts.get(server), System.nanoTime());
+    }
+
+    private long idleTimeout(final Learnt learnt, final long now) {
+        if (learnt == null) {
+            return defaultTimeout;
+        }
+        return Math.min(defaultTimeout, learnt.timeout + (now - learnt.at) / RECOVERY);
+    }
+
+    private void learn(final String server, final long observedIdle) {
+        long now = System.nanoTime();
+        // Never go below a couple of ticks, or we'd be sending NOOPs flat out
+        long floor = 4 * tickNanos;
+        learntTimeouts.compute(server, (k, old) -> {
+            long current = idleTimeout(old, now);
+            long estimate = Math.max(current / MAX_CUT, Math.min(current, observedIdle));
+            return new Learnt(Math.max(floor, estimate), now);
+        });
+        log.log(Level.FINE, "Idle timeout for {0} now {1}ms",
+                new Object[]{server, TimeUnit.NANOSECONDS.toMillis(idleTimeout(server))});
+    }
+
+    /**
+     * How long after the last activity the next keepalive should go out.
+     * Package visible for testing.
+     */
+    long keepaliveDelay(final String server) {
+        double fraction = 1.0 - LEAD - ThreadLocalRandom.current().nextDouble() * JITTER;
+        return (long) (idleTimeout(server) * fraction);
+    }
+
+    private void schedule(final Session session) {
+        session.deadline = session.client.getLastActivityNanos() + keepaliveDelay(session.server);
+        incoming.add(session);
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            long currentTick = (now - start) / tickNanos;
+
+            Session s;
+            while ((s = incoming.poll()) != null) {
+                if (s.cancelled) {
+                    continue;
+                }
+                long t = (s.deadline - start + tickNanos - 1) / tickNanos;
+                s.deadlineTick = Math.max(t, processedTick + 1);
+                wheel.get((int) (s.deadlineTick & WHEEL_MASK)).add(s);
+            }
+
+            while (processedTick < currentTick) {
+                processedTick += 1;
+                Queue<Session> bucket = wheel.get((int) (processedTick & WHEEL_MASK));
+                for (int n = bucket.size(); n > 0; n--) {
+                    s = bucket.poll();
+                    if (s == null) {
+                        break;
+                    }
+                    if (s.cancelled) {
+                        continue;
+                    }
+                    if (s.deadlineTick > processedTick) {
+                        // Not due until a later turn of the wheel
+                        bucket.add(s);
+                    } else {
+                        expire(s, now);
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Don't let one bad session stop the ticker
+            log.log(Level.WARNING, "Keepalive tick failed", ex);
+        }
+    }
+
+    private void expire(final Session session, final long now) {
+        long due = session.client.getLastActivityNanos() + keepaliveDelay(session.server);
+        if (due - now > tickNanos) {
+            // The client has been used since this deadline was set
+            session.deadline = due;
+            incoming.add(session);
+            return;
+        }
+        try {
+            workers.execute(() -> sendKeepalive(session));
+        } catch (RejectedExecutionException ex) {
+            // Shutting down
+        }
+    }
+
+    private void sendKeepalive(final Session session) {
+        if (session.cancelled) {
+            return;
+        }
+        long idle = System.nanoTime() - session.client.getLastActivityNanos();
+        Exception cause = null;
+        try {
+            ManageSieveResponse resp = session.client.noop(null);
+            if (!resp.isBye()) {
+                schedule(session);
+                return;
+            }
+        } catch (IOException | ParseException | RuntimeException ex) {
+            cause = ex;
+        }
+        if (sessions.remove(session.client, session)) {
+            session.cancelled = true;
+            learn(session.server, idle);
+            for (Listener l : listeners) {
+                l.sessionLost(session.client, session.server, cause);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
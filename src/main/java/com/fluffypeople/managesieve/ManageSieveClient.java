@@ -35,7 +35,9 @@ import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -89,6 +91,8 @@ public class ManageSieveClient {
     private PrintWriter out;
     private String hostname;
     private int socketTimeout = 0; // Default socket timeout is zero, or don't time out.
+    private volatile long lastActivity = System.nanoTime(); // System.nanoTime() of the last line sent
+    private volatile long idleBeforeLast = 0; // how long the connection was idle before that line
 
     /**
      * Public constructor.
@@ -444,6 +448,28 @@ public class ManageSieveClient {
         return parseResponse();
     }
 
+    /**
+     * Pipelined version of {@link #havespace(String, long)}. All the HAVESPACE
+     * commands are sent before any of the responses are read, so checking a
+     * batch of scripts costs a single round trip.
+     *
+     * @param sizes Map&lt;String, Long&gt; of script name to size in bytes
+     * @return Map&lt;String, ManageSieveResponse&gt; of script name to response,
+     * in the same iteration order as sizes
+     * @throws IOException
+     * @throws ParseException
+     */
+    public synchronized Map<String, ManageSieveResponse> havespace(final Map<String, Long> sizes) throws IOException, ParseException {
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            sendCommand("HAVESPACE", escapeString(e.getKey()), Long.toString(e.getValue(), 10));
+        }
+        Map<String, ManageSieveResponse> result = new LinkedHashMap<>();
+        for (String name : sizes.keySet()) {
+            result.put(name, parseResponse());
+        }
+        return result;
+    }
+
     /**
      * "The PUTSCRIPT command is used by the client to submit a Sieve script to
      * the server". This will overwrite any existing script with the same name.
@@ -898,6 +924,9 @@ public class ManageSieveClient {
         out.print(line);
         out.print(CRLF);
         out.flush();
+        long now = System.nanoTime();
+        idleBeforeLast = now - lastActivity;
+        lastActivity = now;
 
         if (out.checkError()) {
             throw new IOException("Unknown error writing to server");
@@ -920,6 +949,29 @@ public class ManageSieveClient {
         out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), UTF8));
     }
 
+    /**
+     * Get the time the last line was sent to the server, used to decide when
+     * an idle connection needs a keepalive.
+     *
+     * @return long value of System.nanoTime() when the last line was sent, or
+     * when this client was created if nothing has been sent yet
+     */
+    long getLastActivityNanos() {
+        return lastActivity;
+    }
+
+    /**
+     * Get how long the connection had been idle when the last line was sent.
+     * If a command fails because the server has dropped the connection, this
+     * is the idle time the server didn't tolerate.
+     *
+     * @return long nanoseconds between the last two lines sent, or between
+     * creating this client and the first line
+     */
+    long getIdleBeforeLastNanos() {
+        return idleBeforeLast;
+    }
+
     void setupForTesting(Reader from, Writer to) {
         in = new StreamTokenizer(from);
         out = new PrintWriter(to);
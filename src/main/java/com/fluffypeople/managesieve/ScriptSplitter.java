@@ -0,0 +1,352 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.ScriptNode;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import com.fluffypeople.managesieve.sieve.SieveWriter;
+import com.fluffypeople.managesieve.sieve.StringListNode;
+import com.fluffypeople.managesieve.sieve.StringNode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Split a large script into a small main script and a number of parts that
+ * it includes (RFC 6609), so that an edit only has to upload the parts that
+ * changed.
+ * <p>
+ * The script is cut between top-level rules (an if with its elsif and else
+ * counts as one rule). Where to cut is decided by a hash of the rule text,
+ * not by position, so inserting or changing a rule only moves the cuts next
+ * to it and the other parts come out exactly the same. Each part is named
+ * after the main script and a hash of its body, so a part that already
+ * exists on the server never needs uploading again.
+ * <p>
+ * Every part repeats the main script's require commands, since included
+ * scripts are compiled on their own. Scripts that use variables (which
+ * aren't shared with included scripts unless declared global) or return
+ * (which would only leave the part) can't be split safely, and come back as
+ * a single main script with no parts.
+ */
+public class ScriptSplitter {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final int HASH_LENGTH = 12;
+
+    private final SieveWriter writer = new SieveWriter();
+    private long targetSize = 8 * 1024;
+    private long maxSize = 32 * 1024;
+
+    /**
+     * A main script and the parts it includes.
+     */
+    public static final class Split {
+
+        private final SieveScript main;
+        private final List<SieveScript> parts;
+        private final ScriptNode script;
+
+        Split(final SieveScript main, final List<SieveScript> parts, final ScriptNode script) {
+            this.main = main;
+            this.parts = Collections.unmodifiableList(parts);
+            this.script = script;
+        }
+
+        /**
+         * @return the script to store under the original name
+         */
+        public SieveScript getMain() {
+            return main;
+        }
+
+        /**
+         * @return the included scripts, in the order they are included.
+         * Empty if the script couldn't be split.
+         */
+        public List<SieveScript> getParts() {
+            return parts;
+        }
+    }
+
+    /**
+     * Outcome of an upload.
+     */
+    public static final class Result {
+
+        private final Map<String, ManageSieveResponse> stored = new LinkedHashMap<>();
+        private final Map<String, ManageSieveResponse> deleted = new LinkedHashMap<>();
+        private final List<String> unchanged = new ArrayList<>();
+        private ManageSieveResponse activated = null;
+        private boolean failed = false;
+        private long bytesUploaded = 0;
+
+        /**
+         * @return true if every command was answered with OK
+         */
+        public boolean isComplete() {
+            return !failed
+                    && stored.values().stream().allMatch(ManageSieveResponse::isOk)
+                    && deleted.values().stream().allMatch(ManageSieveResponse::isOk)
+                    && (activated == null || activated.isOk());
+        }
+
+        /**
+         * @return PUTSCRIPT responses, by script name
+         */
+        public Map<String, ManageSieveResponse> getStored() {
+            return Collections.unmodifiableMap(stored);
+        }
+
+        /**
+         * @return DELETESCRIPT responses for parts no longer used, by script
+         * name
+         */
+        public Map<String, ManageSieveResponse> getDeleted() {
+            return Collections.unmodifiableMap(deleted);
+        }
+
+        /**
+         * @return names of parts that were already on the server
+         */
+        public List<String> getUnchanged() {
+            return Collections.unmodifiableList(unchanged);
+        }
+
+        /**
+         * @return total size of the script bodies sent with PUTSCRIPT
+         */
+        public long getBytesUploaded() {
+            return bytesUploaded;
+        }
+    }
+
+    /**
+     * @return the writer used for the main script and the parts
+     */
+    public SieveWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @param targetSize average size of a part in bytes. Defaults to 8k.
+     */
+    public void setTargetSize(final long targetSize) {
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * @param maxSize size in bytes a part won't grow past, unless a single
+     * rule is bigger. Defaults to 32k.
+     */
+    public void setMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param name   name of the main script
+     * @param script Sieve text
+     * @return the split
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public Split split(final String name, final String script) throws ParseException {
+        return split(name, new SieveParser().parse(script));
+    }
+
+    /**
+     * @param name   name of the main script
+     * @param script parsed script
+     * @return the split
+     */
+    public Split split(final String name, final ScriptNode script) {
+        List<CommandNode> requires = new ArrayList<>();
+        List<List<CommandNode>> rules = new ArrayList<>();
+        boolean safe = true;
+        for (CommandNode command : script.getCommands()) {
+            if (command.getName().equals("require")) {
+                requires.add(command);
+                safe &= !requires(command, "variables");
+            } else if (!rules.isEmpty() && (command.getName().equals("elsif") || command.getName().equals("else"))) {
+                rules.get(rules.size() - 1).add(command);
+            } else {
+                List<CommandNode> rule = new ArrayList<>();
+                rule.add(command);
+                rules.add(rule);
+            }
+            safe &= !uses(command, "return");
+        }
+        if (!safe || rules.size() < 2) {
+            return new Split(new SieveScript(name, writer.write(script), false), new ArrayList<>(), script);
+        }
+
+        String header = writer.write(new ScriptNode(requires));
+        long headerSize = UploadPlanner.utf8Length(header);
+        List<SieveScript> parts = new ArrayList<>();
+        List<CommandNode> includes = new ArrayList<>();
+        includes.add(new CommandNode("require", List.of(new StringNode("include")), List.of(), false, null));
+        StringBuilder body = new StringBuilder(header);
+        long size = headerSize;
+        for (List<CommandNode> rule : rules) {
+            String text = writer.write(new ScriptNode(rule));
+            long length = UploadPlanner.utf8Length(text);
+            if (size > headerSize && size + length > maxSize) {
+                includes.add(part(name, body, parts));
+                body.setLength(0);
+                body.append(header);
+                size = headerSize;
+            }
+            body.append(text);
+            size += length;
+            // Cut with a chance proportional to the rule's size, which gives
+            // parts of about targetSize whatever the rules look like
+            if (Integer.toUnsignedLong(text.hashCode()) % Math.max(1, targetSize) < length) {
+                includes.add(part(name, body, parts));
+                body.setLength(0);
+                body.append(header);
+                size = headerSize;
+            }
+        }
+        if (size > headerSize) {
+            includes.add(part(name, body, parts));
+        }
+        return new Split(new SieveScript(name, writer.write(new ScriptNode(includes)), false), parts, script);
+    }
+
+    /**
+     * Store a split, skipping parts that are already on the server. Parts go
+     * first, then the main script, and only then are parts that the main
+     * script no longer includes deleted, so the stored script is never left
+     * including something that isn't there. If a part is refused, the main
+     * script is left as it was.
+     * <p>
+     * If the server doesn't advertise the include extension the split can't
+     * be used, so the whole script is stored under the main name instead and
+     * no parts are sent.
+     *
+     * @param client   ManageSieveClient, connected and authenticated
+     * @param split    Split to store
+     * @param activate true to make the main script active
+     * @return Result of the upload
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public Result upload(final ManageSieveClient client, final Split split, final boolean activate) throws IOException, ParseException {
+        SieveScript main = split.getMain();
+        List<SieveScript> parts = split.getParts();
+        ServerCapabilities cap = client.getCapabilities();
+        if (!parts.isEmpty() && (cap == null || !cap.hasSieveExtension("include"))) {
+            main = new SieveScript(main.getName(), writer.write(split.script), false);
+            parts = List.of();
+        }
+
+        Result result = new Result();
+        List<SieveScript> existing = new ArrayList<>();
+        ManageSieveResponse list = client.listscripts(existing);
+        if (!list.isOk()) {
+            result.failed = true;
+            return result;
+        }
+        Set<String> present = new HashSet<>();
+        for (SieveScript script : existing) {
+            present.add(script.getName());
+        }
+
+        Set<String> wanted = new HashSet<>();
+        for (SieveScript part : parts) {
+            wanted.add(part.getName());
+            if (present.contains(part.getName())) {
+                result.unchanged.add(part.getName());
+            } else if (!put(client, part, result)) {
+                return result;
+            }
+        }
+        if (!put(client, main, result)) {
+            return result;
+        }
+        if (activate) {
+            result.activated = client.setactive(main.getName());
+        }
+
+        Pattern ours = Pattern.compile(Pattern.quote(main.getName() + "-") + "[0-9a-f]{" + HASH_LENGTH + "}");
+        for (String name : present) {
+            if (!wanted.contains(name) && ours.matcher(name).matches()) {
+                result.deleted.put(name, client.deletescript(name));
+            }
+        }
+        return result;
+    }
+
+    private static boolean put(final ManageSieveClient client, final SieveScript script, final Result result) throws IOException, ParseException {
+        ManageSieveResponse resp = client.putscript(script.getName(), script.getBody());
+        result.stored.put(script.getName(), resp);
+        result.bytesUploaded += UploadPlanner.utf8Length(script.getBody());
+        return resp.isOk();
+    }
+
+    private static CommandNode part(final String name, final CharSequence body, final List<SieveScript> parts) {
+        String text = body.toString();
+        String partName = name + "-" + sha256(text).substring(0, HASH_LENGTH);
+        parts.add(new SieveScript(partName, text, false));
+        return new CommandNode("include", List.of(new StringNode(partName)), List.of(), false, null);
+    }
+
+    private static boolean requires(final CommandNode require, final String extension) {
+        return require.getArguments().stream().anyMatch(arg -> arg instanceof StringNode
+                ? ((StringNode) arg).getValue().equals(extension)
+                : arg instanceof StringListNode && ((StringListNode) arg).getValues().contains(extension));
+    }
+
+    private static boolean uses(final CommandNode command, final String name) {
+        if (command.getName().equals(name)) {
+            return true;
+        }
+        for (CommandNode child : command.getBlock()) {
+            if (uses(child, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String sha256(final String raw) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HEX.formatHex(digest.digest(raw.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+}
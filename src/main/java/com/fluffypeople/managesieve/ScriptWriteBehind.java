@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalescing write-behind queue in front of
+ * {@link ManageSieveClient#putscript(String, String)}.
+ * <p>
+ * Editors that save on every change can call {@link #putscript} as often as
+ * they like. Only the latest body for each script name is kept, and it is
+ * uploaded once no further edits to that script have arrived for the debounce
+ * window. The final server response (including any WARNINGS) is passed to the
+ * registered {@link Listener}s.
+ * <p>
+ * Pending edits are never dropped silently: {@link #flush()} uploads
+ * everything that is still queued and {@link #close()} flushes before shutting
+ * down. If an upload fails with an IO or protocol error the body stays queued
+ * (unless a newer edit has replaced it) so the next flush retries it.
+ */
+public class ScriptWriteBehind implements Closeable {
+
+    private static final Logger log = Logger.getLogger(ScriptWriteBehind.class.getName());
+
+    /**
+     * Receives the outcome of each upload.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the server has answered a PUTSCRIPT. The response may be
+         * OK, OK (WARNINGS) or NO if the server rejected the script.
+         *
+         * @param name     String name of the script
+         * @param body     String body that was uploaded
+         * @param response ManageSieveResponse from the server
+         */
+        void stored(String name, String body, ManageSieveResponse response);
+
+        /**
+         * Called when an upload could not be completed. The body is still
+         * queued unless a newer edit has replaced it.
+         *
+         * @param name  String name of the script
+         * @param body  String body that could not be uploaded
+         * @param cause IOException or ParseException from the client
+         */
+        void failed(String name, String body, Exception cause);
+    }
+
+    private static final class Pending {
+
+        private final String body;
+        private ScheduledFuture<?> future;
+
+        private Pending(final String body) {
+            this.body = body;
+        }
+    }
+
+    private final ManageSieveClient client;
+    private final long debounceMillis;
+    private final ScheduledExecutorService executor;
+    private final boolean ownExecutor;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Guarded by this
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Map<String, String> lastStored = new HashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private boolean closed = false;
+    // Held while taking a body from the queue and uploading it, so that
+    // uploads for the same name reach the server in the order they were made
+    private final Object uploadLock = new Object();
+
+    /**
+     * Create a write-behind queue with its own (daemon) timer thread.
+     *
+     * @param client   ManageSieveClient to upload through. Must already be
+     *                 connected and authenticated.
+     * @param debounce how long a script must be left alone before it is
+     *                 uploaded
+     * @param unit     TimeUnit of debounce
+     */
+    public ScriptWriteBehind(final ManageSieveClient client, final long debounce, final TimeUnit unit) {
+        this(client, debounce, unit, Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sieve-write-behind");
+            t.setDaemon(true);
+            return t;
+        }), true);
+    }
+
+    /**
+     * Create a write-behind queue that schedules uploads on the given
+     * executor. The executor is not shut down by {@link #close()}.
+     *
+     * @param client   ManageSieveClient to upload through
+     * @param debounce how long a script must be left alone before it is
+     *                 uploaded
+     * @param unit     TimeUnit of debounce
+     * @param executor ScheduledExecutorService to run uploads on
+     */
+    public ScriptWriteBehind(final ManageSieveClient client, final long debounce, final TimeUnit unit, final ScheduledExecutorService executor) {
+        this(client, debounce, unit, executor, false);
+    }
+
+    private ScriptWriteBehind(final ManageSieveClient client, final long debounce, final TimeUnit unit, final ScheduledExecutorService executor, final boolean ownExecutor) {
+        if (debounce < 0) {
+            throw new IllegalArgumentException("Debounce must not be negative, got " + debounce);
+        }
+        this.client = client;
+        this.debounceMillis = unit.toMillis(debounce);
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    /**
+     * Queue a new body for the named script. Any body already queued for that
+     * name is replaced and the debounce window starts again.
+     *
+     * @param name String name of the script
+     * @param body String body of the script
+     * @throws IllegalStateException if this queue has been closed
+     */
+    public synchronized void putscript(final String name, final String body) {
+        if (closed) {
+            throw new IllegalStateException("Write-behind queue is closed");
+        }
+        Pending previous = pending.get(name);
+        if (previous != null && previous.future != null) {
+            previous.future.cancel(false);
+        }
+        if (!inFlight.contains(name) && body.equals(lastStored.get(name))) {
+            // Edited back to what the server already has
+            pending.remove(name);
+            return;
+        }
+        Pending next = new Pending(body);
+        next.future = executor.schedule(() -> scheduledUpload(name), debounceMillis, TimeUnit.MILLISECONDS);
+        pending.put(name, next);
+    }
+
+    /**
+     * Check if an edit to the named script is waiting to be uploaded.
+     *
+     * @param name String name of the script
+     * @return true if there is a queued body for this script
+     */
+    public synchronized boolean isPending(final String name) {
+        return pending.containsKey(name);
+    }
+
+    /**
+     * @return the number of scripts with edits waiting to be uploaded
+     */
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Upload every queued edit now, in the calling thread, without waiting
+     * for the debounce window.
+     *
+     * @throws IOException    if an upload failed with an IO error. Remaining
+     *                        scripts are still attempted, and the failed body
+     *                        stays queued.
+     * @throws ParseException if the server response to an upload could not be
+     *                        parsed
+     */
+    public void flush() throws IOException, ParseException {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(pending.keySet());
+        }
+        Exception first = null;
+        for (String name : names) {
+            try {
+                upload(name);
+            } catch (IOException | ParseException ex) {
+                if (first == null) {
+                    first = ex;
+                }
+            }
+        }
+        if (first instanceof IOException) {
+            throw (IOException) first;
+        } else if (first instanceof ParseException) {
+            throw (ParseException) first;
+        }
+    }
+
+    /**
+     * Flush any queued edits and stop accepting new ones. If this queue
+     * created its own timer thread, that thread is shut down.
+     *
+     * @throws IOException if the final flush failed. The failed bodies are
+     *                     reported to the listeners.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+        } catch (ParseException ex) {
+            throw new IOException("Can't parse server response while flushing", ex);
+        } finally {
+            if (ownExecutor) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void scheduledUpload(final String name) {
+        try {
+            upload(name);
+        } catch (IOException | ParseException ex) {
+            // Already reported to listeners, body left queued for the next flush
+            log.log(Level.WARNING, "Write-behind upload failed", ex);
+        }
+    }
+
+    private void upload(final String name) throws IOException, ParseException {
+        synchronized (uploadLock) {
+            Pending p;
+            synchronized (this) {
+                p = pending.remove(name);
+                if (p == null) {
+                    return;
+                }
+                if (p.future != null) {
+                    p.future.cancel(false);
+                }
+                inFlight.add(name);
+            }
+
+            ManageSieveResponse response;
+            try {
+                response = client.putscript(name, p.body);
+            } catch (IOException | ParseException ex) {
+                synchronized (this) {
+                    inFlight.remove(name);
+                    // Keep the edit unless something newer has arrived
+                    if (!pending.containsKey(name)) {
+                        p.future = null;
+                        pending.put(name, p);
+                    }
+                }
+                for (Listener l : listeners) {
+                    l.failed(name, p.body, ex);
+                }
+                throw ex;
+            }
+
+            synchronized (this) {
+                inFlight.remove(name);
+                if (response.isOk()) {
+                    lastStored.put(name, p.body);
+                } else {
+                    lastStored.remove(name);
+                }
+            }
+            for (Listener l : listeners) {
+                l.stored(name, p.body, response);
+            }
+        }
+    }
+}
@@ -82,6 +82,18 @@ public class ServerCapabilities {
         return sieveExtensions.contains(extension);
     }
 
+    /**
+     * Get the Sieve extensions advertised by the server, sorted so that the
+     * result is stable between connections.
+     *
+     * @return String[] of extension names, may be empty
+     */
+    public String[] getSieveExtensions() {
+        String[] result = sieveExtensions.toArray(new String[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
     public void setHasTLS(final boolean tls) {
         this.tls = tls;
     }
@@ -0,0 +1,451 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Quota aware deployment of a batch of scripts.
+ * <p>
+ * Before anything is changed on the server, the batch is checked with
+ * pipelined HAVESPACE commands: one for each script, which catches per
+ * script limits, and one for the total size of the batch under a name
+ * that isn't in use ({@link #BATCH_NAME}), which checks the account as a
+ * whole. If the total doesn't fit, the planner works out how much the
+ * batch frees (the scripts it deletes, and the old versions of the scripts
+ * it replaces) and asks again for the difference. If that doesn't fit
+ * either, nothing is deleted or uploaded. Otherwise the deletes go first,
+ * then the puts, with the ones that shrink an existing script ahead of the
+ * ones that grow the account. The puts stop at the first NO (QUOTA) so
+ * that a batch that runs out of space part way through (because something
+ * else used the space in the meantime) doesn't keep sending bytes the
+ * server will refuse.
+ * <p>
+ * The planner remembers what it learns about each account (the largest
+ * batch the server has said will fit, the smallest it has said won't, and
+ * the largest single script it has accepted) so that later deploys to the
+ * same account can skip the HAVESPACE commands that are already answered.
+ * Only answers about the whole account are used for the account bounds. A
+ * single planner is safe to share between threads and connections.
+ */
+public class UploadPlanner {
+
+    /**
+     * Script name used to ask HAVESPACE about the total size of a batch.
+     * HAVESPACE for a name that already exists only checks the change in
+     * size, so the total is asked for under a name that scripts aren't
+     * expected to use.
+     */
+    public static final String BATCH_NAME = "upload-planner-batch-check";
+
+    /**
+     * What is known about the free space in one account. All values are in
+     * bytes, and -1 means unknown.
+     */
+    public static final class Headroom {
+
+        private long fits = -1;
+        private long doesNotFit = -1;
+        private long scriptFits = -1;
+
+        /**
+         * @return the most the server has agreed can be added to the account,
+         * less what has been added since, or -1
+         */
+        public synchronized long getFits() {
+            return fits;
+        }
+
+        /**
+         * @return the smallest amount the server has refused to add to the
+         * account, or -1
+         */
+        public synchronized long getDoesNotFit() {
+            return doesNotFit;
+        }
+
+        /**
+         * @return the largest single script the server has agreed to store,
+         * or -1
+         */
+        public synchronized long getScriptFits() {
+            return scriptFits;
+        }
+
+        synchronized boolean knownToFit(final long size) {
+            return size <= fits;
+        }
+
+        synchronized boolean knownNotToFit(final long size) {
+            return doesNotFit >= 0 && size >= doesNotFit;
+        }
+
+        synchronized boolean scriptKnownToFit(final long size) {
+            return size <= scriptFits;
+        }
+
+        synchronized void fits(final long size) {
+            fits = Math.max(fits, size);
+        }
+
+        synchronized void doesNotFit(final long size) {
+            doesNotFit = doesNotFit < 0 ? size : Math.min(doesNotFit, size);
+            if (fits >= doesNotFit) {
+                fits = doesNotFit - 1;
+            }
+        }
+
+        synchronized void scriptFits(final long size) {
+            scriptFits = Math.max(scriptFits, size);
+        }
+
+        /**
+         * @param growth bytes the account grew by. An upper bound is fine:
+         * it only makes the lower bound on free space more cautious.
+         */
+        synchronized void consumed(final long growth) {
+            if (fits >= 0) {
+                fits = Math.max(-1, fits - growth);
+            }
+            // Replacing a script may free as much as it uses, so an upper
+            // bound can't be carried forward
+            doesNotFit = -1;
+        }
+
+        synchronized void freed() {
+            doesNotFit = -1;
+        }
+    }
+
+    /**
+     * Outcome of a deploy.
+     */
+    public static final class Result {
+
+        private final Map<String, ManageSieveResponse> precheck = new LinkedHashMap<>();
+        private final Map<String, ManageSieveResponse> deleted = new LinkedHashMap<>();
+        private final Map<String, ManageSieveResponse> stored = new LinkedHashMap<>();
+        private final List<String> skipped = new ArrayList<>();
+        private boolean abandoned = false;
+        private long bytesUploaded = 0;
+
+        /**
+         * @return true if every delete and every put was answered with OK
+         */
+        public boolean isComplete() {
+            return !abandoned
+                    && skipped.isEmpty()
+                    && deleted.values().stream().allMatch(ManageSieveResponse::isOk)
+                    && stored.values().stream().allMatch(ManageSieveResponse::isOk);
+        }
+
+        /**
+         * @return true if the precheck said the batch wouldn't fit, so
+         * nothing was deleted or uploaded
+         */
+        public boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * @return HAVESPACE responses, by script name. The check of the whole
+         * batch is under {@link #BATCH_NAME}. Checks that were already
+         * answered by an earlier deploy are not included.
+         */
+        public Map<String, ManageSieveResponse> getPrecheck() {
+            return Collections.unmodifiableMap(precheck);
+        }
+
+        /**
+         * @return DELETESCRIPT responses, by script name
+         */
+        public Map<String, ManageSieveResponse> getDeleted() {
+            return Collections.unmodifiableMap(deleted);
+        }
+
+        /**
+         * @return PUTSCRIPT responses, by script name
+         */
+        public Map<String, ManageSieveResponse> getStored() {
+            return Collections.unmodifiableMap(stored);
+        }
+
+        /**
+         * @return names of scripts that were not uploaded
+         */
+        public List<String> getSkipped() {
+            return Collections.unmodifiableList(skipped);
+        }
+
+        /**
+         * @return total size of the script bodies sent with PUTSCRIPT
+         */
+        public long getBytesUploaded() {
+            return bytesUploaded;
+        }
+    }
+
+    private final Map<String, Headroom> headroom = new ConcurrentHashMap<>();
+
+    /**
+     * Count the bytes a string takes when encoded as UTF-8, which is the size
+     * the server counts against the quota. Doesn't allocate.
+     *
+     * @param s CharSequence to measure
+     * @return length in bytes
+     */
+    public static long utf8Length(final CharSequence s) {
+        long count = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                count += 1;
+            } else if (c < 0x800) {
+                count += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                count += 4;
+                i += 1;
+            } else {
+                // Includes unpaired surrogates, which the encoder replaces with '?'
+                count += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get what is known about the free space in an account.
+     *
+     * @param account String identifying the account, for example
+     *                user@host
+     * @return Headroom, never null
+     */
+    public Headroom getHeadroom(final String account) {
+        return headroom.computeIfAbsent(account, k -> new Headroom());
+    }
+
+    /**
+     * Forget what has been learnt about an account, for example after its
+     * quota has been changed.
+     *
+     * @param account String identifying the account
+     */
+    public void forget(final String account) {
+        headroom.remove(account);
+    }
+
+    /**
+     * Deploy a batch of changes to one account.
+     *
+     * @param client  ManageSieveClient, connected and authenticated as the
+     *                account
+     * @param account String identifying the account for the headroom cache
+     * @param puts    Collection of SieveScript to upload. They are stored in
+     *                this order unless the batch only fits by reusing the
+     *                space of the scripts it replaces.
+     * @param deletes Collection of script names to delete. May be empty.
+     * @return Result of the deploy
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public Result deploy(final ManageSieveClient client, final String account, final Collection<SieveScript> puts, final Collection<String> deletes) throws IOException, ParseException {
+        Headroom room = getHeadroom(account);
+        Result result = new Result();
+
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        long total = 0;
+        for (SieveScript script : puts) {
+            long size = utf8Length(script.getBody());
+            sizes.put(script.getName(), size);
+            total += size;
+        }
+
+        List<SieveScript> order = new ArrayList<>(puts);
+        Map<String, Long> old = Collections.emptyMap();
+        if (!precheck(client, room, sizes, total, result)) {
+            if (result.abandoned) {
+                abandon(puts, result);
+                return result;
+            }
+            // The batch only fits if the space it frees is counted
+            old = existingSizes(client, sizes.keySet(), deletes);
+            long freed = 0;
+            for (long size : old.values()) {
+                freed += size;
+            }
+            if (!check(client, room, total - freed, result)) {
+                abandon(puts, result);
+                return result;
+            }
+            // Shrinking scripts first, so the account never goes over on the
+            // way there
+            Map<String, Long> before = old;
+            order.sort(Comparator.comparingLong(s -> sizes.get(s.getName()) - before.getOrDefault(s.getName(), 0L)));
+        }
+
+        delete(client, room, deletes, result);
+
+        boolean stopped = false;
+        for (SieveScript script : order) {
+            String name = script.getName();
+            if (stopped) {
+                result.skipped.add(name);
+                continue;
+            }
+            long size = sizes.get(name);
+            ManageSieveResponse resp = client.putscript(name, script.getBody());
+            result.stored.put(name, resp);
+            result.bytesUploaded += size;
+            if (resp.isOk()) {
+                // Where the old size isn't known, the full size is an upper
+                // bound on the growth
+                room.consumed(size - old.getOrDefault(name, 0L));
+            } else if (resp.getCode() == ManageSieveResponse.Code.QUOTA) {
+                stopped = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ask about each script, and about the batch as a whole, in one round
+     * trip. Sets abandoned if the batch can't fit whatever is freed.
+     *
+     * @return true if everything is known to fit
+     */
+    private static boolean precheck(final ManageSieveClient client, final Headroom room, final Map<String, Long> sizes, final long total, final Result result) throws IOException, ParseException {
+        Map<String, Long> ask = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e : sizes.entrySet()) {
+            if (!room.scriptKnownToFit(e.getValue())) {
+                ask.put(e.getKey(), e.getValue());
+            }
+        }
+        boolean totalFits = room.knownToFit(total);
+        if (!totalFits && !room.knownNotToFit(total)) {
+            ask.put(BATCH_NAME, total);
+        }
+        if (ask.isEmpty()) {
+            return totalFits;
+        }
+        boolean fits = totalFits;
+        boolean needRoom = !totalFits && !ask.containsKey(BATCH_NAME);
+        Map<String, ManageSieveResponse> answers = client.havespace(ask);
+        for (Map.Entry<String, ManageSieveResponse> e : answers.entrySet()) {
+            String name = e.getKey();
+            ManageSieveResponse resp = e.getValue();
+            result.precheck.put(name, resp);
+            boolean quota = resp.getCode() == ManageSieveResponse.Code.QUOTA;
+            if (name.equals(BATCH_NAME)) {
+                if (resp.isOk()) {
+                    room.fits(total);
+                    fits = true;
+                } else if (quota) {
+                    room.doesNotFit(total);
+                    needRoom = true;
+                } else {
+                    result.abandoned = true;
+                }
+            } else if (resp.isOk()) {
+                room.scriptFits(ask.get(name));
+            } else if (quota) {
+                // Might be the account rather than the script, so freeing
+                // space could still help
+                needRoom = true;
+            } else {
+                result.abandoned = true;
+            }
+        }
+        return fits && !needRoom && !result.abandoned;
+    }
+
+    /**
+     * Ask about adding a number of bytes to the account.
+     */
+    private static boolean check(final ManageSieveClient client, final Headroom room, final long size, final Result result) throws IOException, ParseException {
+        if (size <= 0 || room.knownToFit(size)) {
+            return true;
+        }
+        if (room.knownNotToFit(size)) {
+            return false;
+        }
+        ManageSieveResponse resp = client.havespace(BATCH_NAME, size);
+        result.precheck.put(BATCH_NAME, resp);
+        if (resp.isOk()) {
+            room.fits(size);
+            return true;
+        }
+        if (resp.getCode() == ManageSieveResponse.Code.QUOTA) {
+            room.doesNotFit(size);
+        }
+        return false;
+    }
+
+    /**
+     * Find the current sizes of the scripts a batch deletes or replaces.
+     */
+    private static Map<String, Long> existingSizes(final ManageSieveClient client, final Collection<String> puts, final Collection<String> deletes) throws IOException, ParseException {
+        Set<String> wanted = new LinkedHashSet<>(deletes);
+        wanted.addAll(puts);
+        List<SieveScript> listed = new ArrayList<>();
+        Map<String, Long> result = new HashMap<>();
+        if (!client.listscripts(listed).isOk()) {
+            return result;
+        }
+        for (SieveScript script : listed) {
+            if (wanted.contains(script.getName()) && client.getScript(script).isOk()) {
+                result.put(script.getName(), utf8Length(script.getBody()));
+            }
+        }
+        return result;
+    }
+
+    private static void abandon(final Collection<SieveScript> puts, final Result result) {
+        result.abandoned = true;
+        for (SieveScript script : puts) {
+            result.skipped.add(script.getName());
+        }
+    }
+
+    private static void delete(final ManageSieveClient client, final Headroom room, final Collection<String> deletes, final Result result) throws IOException, ParseException {
+        for (String name : deletes) {
+            ManageSieveResponse resp = client.deletescript(name);
+            result.deleted.put(name, resp);
+            if (resp.isOk()) {
+                room.freed();
+            }
+        }
+    }
+}
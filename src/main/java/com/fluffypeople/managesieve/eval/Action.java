@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One action that a script would take on a message.
+ */
+public final class Action {
+
+    /**
+     * Kinds of action.
+     */
+    public enum Type {
+        /**
+         * File into the default mailbox, explicitly or implicitly.
+         */
+        KEEP,
+        /**
+         * Throw the message away.
+         */
+        DISCARD,
+        /**
+         * File into the mailbox given by {@link #getValue()}.
+         */
+        FILEINTO,
+        /**
+         * Send the message on to the address given by {@link #getValue()}.
+         */
+        REDIRECT,
+        /**
+         * Refuse the message, with the reason given by {@link #getValue()}.
+         */
+        REJECT,
+        /**
+         * Send an auto reply, with the reason given by {@link #getValue()}.
+         */
+        VACATION
+    }
+
+    private final Type type;
+    private final String value;
+    private final boolean copy;
+    private final int days;
+    private final String subject;
+    private final String from;
+    private final List<String> addresses;
+    private final boolean mime;
+    private final String handle;
+
+    private Action(final Type type, final String value, final boolean copy, final int days, final String subject,
+            final String from, final List<String> addresses, final boolean mime, final String handle) {
+        this.type = type;
+        this.value = value;
+        this.copy = copy;
+        this.days = days;
+        this.subject = subject;
+        this.from = from;
+        this.addresses = addresses;
+        this.mime = mime;
+        this.handle = handle;
+    }
+
+    public static Action keep() {
+        return new Action(Type.KEEP, null, false, 0, null, null, Collections.emptyList(), false, null);
+    }
+
+    public static Action discard() {
+        return new Action(Type.DISCARD, null, false, 0, null, null, Collections.emptyList(), false, null);
+    }
+
+    public static Action fileinto(final String mailbox, final boolean copy) {
+        return new Action(Type.FILEINTO, mailbox, copy, 0, null, null, Collections.emptyList(), false, null);
+    }
+
+    public static Action redirect(final String address, final boolean copy) {
+        return new Action(Type.REDIRECT, address, copy, 0, null, null, Collections.emptyList(), false, null);
+    }
+
+    public static Action reject(final String reason) {
+        return new Action(Type.REJECT, reason, false, 0, null, null, Collections.emptyList(), false, null);
+    }
+
+    /**
+     * @param reason body of the reply
+     * @param days minimum days between replies to one sender
+     * @param subject subject of the reply, or null for the default
+     * @param from From address of the reply, or null for the default
+     * @param addresses extra addresses of the recipient
+     * @param mime true if the reason is a MIME entity
+     * @param handle handle identifying this reply, or null
+     * @return a vacation action
+     */
+    public static Action vacation(final String reason, final int days, final String subject, final String from,
+            final List<String> addresses, final boolean mime, final String handle) {
+        return new Action(Type.VACATION, reason, false, days, subject, from, List.copyOf(addresses), mime, handle);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return mailbox, address or reason, depending on the type, or null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return true if :copy was given, so the implicit keep still happens
+     */
+    public boolean isCopy() {
+        return copy;
+    }
+
+    /**
+     * @return vacation :days
+     */
+    public int getDays() {
+        return days;
+    }
+
+    /**
+     * @return vacation :subject, or null
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return vacation :from, or null
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return vacation :addresses
+     */
+    public List<String> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * @return vacation :mime
+     */
+    public boolean isMime() {
+        return mime;
+    }
+
+    /**
+     * @return vacation :handle, or null
+     */
+    public String getHandle() {
+        return handle;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Action)) {
+            return false;
+        }
+        Action other = (Action) o;
+        return type == other.type && copy == other.copy && days == other.days && mime == other.mime
+                && Objects.equals(value, other.value) && Objects.equals(subject, other.subject)
+                && Objects.equals(from, other.from) && addresses.equals(other.addresses)
+                && Objects.equals(handle, other.handle);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, value, copy, days, subject, from, addresses, mime, handle);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type.name().toLowerCase(java.util.Locale.ROOT));
+        if (copy) {
+            sb.append(" :copy");
+        }
+        if (value != null) {
+            sb.append(" \"").append(value).append('"');
+        }
+        return sb.toString();
+    }
+}
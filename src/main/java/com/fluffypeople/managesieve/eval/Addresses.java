@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pull addr-specs out of RFC 5322 address header values, and split them
+ * into the parts used by :localpart and :domain.
+ */
+final class Addresses {
+
+    private Addresses() {
+    }
+
+    /**
+     * @param value value of an address header such as To or From
+     * @return each address, without display names, comments or group
+     * syntax. Empty groups give nothing.
+     */
+    static List<String> parse(final String value) {
+        List<String> result = new ArrayList<>(2);
+        StringBuilder plain = new StringBuilder();
+        StringBuilder angle = null;
+        boolean hadAngle = false;
+        boolean quoted = false;
+        int comment = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (quoted) {
+                if (c == '\\' && i + 1 < value.length()) {
+                    c = value.charAt(++i);
+                } else if (c == '"') {
+                    quoted = false;
+                    continue;
+                }
+                (angle != null ? angle : plain).append(c);
+            } else if (comment > 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '(') {
+                    comment++;
+                } else if (c == ')') {
+                    comment--;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '(') {
+                comment++;
+            } else if (c == '<') {
+                angle = new StringBuilder();
+            } else if (c == '>' && angle != null) {
+                add(result, route(angle));
+                angle = null;
+                hadAngle = true;
+            } else if (angle != null) {
+                angle.append(c);
+            } else if (c == ',' || c == ';') {
+                if (!hadAngle) {
+                    add(result, plain);
+                }
+                plain.setLength(0);
+                hadAngle = false;
+            } else if (c == ':') {
+                // Group display name
+                plain.setLength(0);
+            } else {
+                plain.append(c);
+            }
+        }
+        if (angle != null) {
+            add(result, route(angle));
+        } else if (!hadAngle) {
+            add(result, plain);
+        }
+        return result;
+    }
+
+    /**
+     * Drop an obsolete source route ("@a,@b:") from an angle address.
+     */
+    private static CharSequence route(final StringBuilder angle) {
+        int colon = angle.lastIndexOf(":");
+        return colon == -1 ? angle : angle.substring(colon + 1);
+    }
+
+    private static void add(final List<String> result, final CharSequence address) {
+        String trimmed = address.toString().trim();
+        if (!trimmed.isEmpty()) {
+            result.add(trimmed);
+        }
+    }
+
+    /**
+     * @return everything before the last "@", or the whole address
+     */
+    static String localPart(final String address) {
+        int at = address.lastIndexOf('@');
+        return at == -1 ? address : address.substring(0, at);
+    }
+
+    /**
+     * @return everything after the last "@", or ""
+     */
+    static String domain(final String address) {
+        int at = address.lastIndexOf('@');
+        return at == -1 ? "" : address.substring(at + 1);
+    }
+}
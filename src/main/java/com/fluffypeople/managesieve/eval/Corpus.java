@@ -0,0 +1,291 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read a mail corpus as a stream of {@link Message}s, for
+ * {@link SieveInterpreter#evaluateAll(Stream)}.
+ * <p>
+ * Files are read on the calling thread, but messages are only parsed when
+ * the stream gets to them, so a parallel stream parses on all its
+ * workers. Envelopes are rebuilt as far as the corpus allows: the sender
+ * comes from the mbox "From " line or the Return-Path header, and the
+ * recipients from Delivered-To or X-Original-To headers.
+ * <p>
+ * The streams hold files open, so close them when done. Read errors are
+ * thrown as UncheckedIOException.
+ */
+public final class Corpus {
+
+    private static final byte[] FROM = { 'F', 'r', 'o', 'm', ' ' };
+
+    private Corpus() {
+    }
+
+    /**
+     * @param file mbox file, in mboxo or mboxrd format
+     * @return the messages in the file, in order
+     * @throws IOException if the file can't be opened
+     */
+    public static Stream<Message> mbox(final Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        MboxIterator iterator = new MboxIterator(in);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(entry -> withEnvelope(Message.parse(entry.message), entry.sender))
+                .onClose(() -> {
+                    try {
+                        in.close();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+    }
+
+    /**
+     * @param dir Maildir, holding cur and new directories
+     * @return the messages in cur and new, in file name order
+     * @throws IOException if the directories can't be listed
+     */
+    public static Stream<Message> maildir(final Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String sub : new String[]{ "cur", "new" }) {
+            Path path = dir.resolve(sub);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> list = Files.list(path)) {
+                    files.addAll(list.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            }
+        }
+        return files.stream().map(path -> {
+            try {
+                return withEnvelope(Message.parse(Files.readAllBytes(path)), null);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    private static Message withEnvelope(final Message message, final String sender) {
+        String from = sender;
+        if (from == null) {
+            List<String> returnPath = message.getHeaders("return-path");
+            if (!returnPath.isEmpty()) {
+                List<String> addresses = Addresses.parse(returnPath.get(0));
+                from = addresses.isEmpty() ? "" : addresses.get(0);
+            }
+        }
+        List<String> to = new ArrayList<>();
+        for (String header : message.getHeaders("delivered-to")) {
+            to.addAll(Addresses.parse(header));
+        }
+        if (to.isEmpty()) {
+            for (String header : message.getHeaders("x-original-to")) {
+                to.addAll(Addresses.parse(header));
+            }
+        }
+        if (from == null && to.isEmpty()) {
+            return message;
+        }
+        return message.withEnvelope(from, to.isEmpty() ? Collections.emptyList() : to);
+    }
+
+    /**
+     * Raw message and "From " line sender.
+     */
+    private static final class Entry {
+
+        private final byte[] message;
+        private final String sender;
+
+        Entry(final byte[] message, final String sender) {
+            this.message = message;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * Split an mbox into messages, a line at a time, undoing ">From "
+     * quoting.
+     */
+    private static final class MboxIterator implements Iterator<Entry> {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int pos = 0;
+        private int limit = 0;
+        private boolean eof = false;
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        private String sender = null;
+        private Entry next = null;
+
+        MboxIterator(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = read();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry result = next;
+            next = null;
+            return result;
+        }
+
+        private Entry read() throws IOException {
+            // Skip anything before the first "From " line
+            while (sender == null) {
+                if (!readLine()) {
+                    return null;
+                }
+                if (isFrom(0)) {
+                    sender = sender();
+                }
+            }
+            byte[] message = new byte[4096];
+            int length = 0;
+            String thisSender = sender;
+            sender = null;
+            while (readLine()) {
+                if (isFrom(0)) {
+                    sender = sender();
+                    break;
+                }
+                int skip = 0;
+                while (skip < lineLength && line[skip] == '>') {
+                    skip++;
+                }
+                skip = skip > 0 && isFrom(skip) ? 1 : 0;
+                if (length + lineLength - skip > message.length) {
+                    message = Arrays.copyOf(message, Math.max(message.length * 2, length + lineLength));
+                }
+                System.arraycopy(line, skip, message, length, lineLength - skip);
+                length += lineLength - skip;
+            }
+            // The blank line before the next "From " belongs to the separator
+            if (length > 0 && message[length - 1] == '\n') {
+                length--;
+                if (length > 0 && message[length - 1] == '\r') {
+                    length--;
+                }
+            }
+            return new Entry(Arrays.copyOf(message, length), thisSender);
+        }
+
+        private boolean isFrom(final int offset) {
+            if (lineLength - offset < FROM.length) {
+                return false;
+            }
+            for (int i = 0; i < FROM.length; i++) {
+                if (line[offset + i] != FROM[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the address after "From ", "" for MAILER-DAEMON
+         */
+        private String sender() {
+            int end = FROM.length;
+            while (end < lineLength && line[end] > ' ') {
+                end++;
+            }
+            String s = new String(line, FROM.length, end - FROM.length, StandardCharsets.ISO_8859_1);
+            return s.equals("MAILER-DAEMON") ? "" : s;
+        }
+
+        /**
+         * Read one line, including its line ending, into line.
+         *
+         * @return false at end of file
+         */
+        private boolean readLine() throws IOException {
+            lineLength = 0;
+            while (true) {
+                if (pos == limit) {
+                    if (eof) {
+                        return lineLength > 0;
+                    }
+                    limit = in.read(buffer);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        eof = true;
+                        continue;
+                    }
+                }
+                int start = pos;
+                while (pos < limit && buffer[pos] != '\n') {
+                    pos++;
+                }
+                boolean done = pos < limit;
+                if (done) {
+                    pos++;
+                }
+                int n = pos - start;
+                if (lineLength + n > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+                }
+                System.arraycopy(buffer, start, line, lineLength, n);
+                lineLength += n;
+                if (done) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * State of running a compiled script against one message.
+ */
+final class Evaluation {
+
+    final Message message;
+    final List<Action> actions = new ArrayList<>(2);
+    List<String> matches = Collections.emptyList();
+    boolean implicitKeep = true;
+    boolean stopped = false;
+    private Map<String, String> values = null;
+    private boolean vacation = false;
+    private final HeaderIndex[] indexes;
+    private final boolean[][] hits;
+
+    Evaluation(final Message message, final HeaderIndex[] indexes) {
+        this.message = message;
+        this.indexes = indexes;
+        this.hits = new boolean[indexes.length][];
+    }
+
+    /**
+     * Result of an indexed header test. The whole index is matched the
+     * first time any of its tests is asked for.
+     *
+     * @param index index number
+     * @param test test number within the index
+     * @return result of the test
+     */
+    boolean hit(final int index, final int test) {
+        return hits(index)[test];
+    }
+
+    /**
+     * @param index index number
+     * @return result of every test in the index, matched on first use
+     */
+    boolean[] hits(final int index) {
+        boolean[] result = hits[index];
+        if (result == null) {
+            result = indexes[index].match(message);
+            hits[index] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Add an action, dropping duplicates as RFC 5228 section 2.10.3
+     * allows. Only the first vacation counts.
+     */
+    void add(final Action action) {
+        if (action.getType() == Action.Type.VACATION) {
+            if (!vacation) {
+                vacation = true;
+                actions.add(action);
+            }
+            return;
+        }
+        for (Action a : actions) {
+            if (a.getType() == action.getType() && Objects.equals(a.getValue(), action.getValue())) {
+                return;
+            }
+        }
+        actions.add(action);
+    }
+
+    /**
+     * @param name lower case variable name
+     * @param value new value
+     */
+    void set(final String name, final String value) {
+        if (values == null) {
+            values = new HashMap<>();
+        }
+        values.put(name, value);
+    }
+
+    /**
+     * @param name lower case variable name
+     * @return value, or "" if it isn't set
+     */
+    String get(final String name) {
+        String value = values != null ? values.get(name) : null;
+        return value != null ? value : "";
+    }
+
+    /**
+     * @param index match variable number
+     * @return value from the last successful :matches, or ""
+     */
+    String match(final int index) {
+        return index < matches.size() ? matches.get(index) : "";
+    }
+}
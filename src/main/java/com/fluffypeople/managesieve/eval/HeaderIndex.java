@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Answers many <code>header :is</code> and <code>header :contains</code>
+ * tests on the same headers, with the same comparator, in one pass over
+ * the header values.
+ * <p>
+ * :is keys go into a hash table, and :contains keys into an Aho-Corasick
+ * automaton, so the cost of matching depends on the length of the header
+ * values and the number of hits, not on the number of tests. Under
+ * i;ascii-casemap keys and values are folded to upper case first, which
+ * is exactly what the comparator does.
+ */
+final class HeaderIndex {
+
+    private final String[] headers;
+    private final boolean casemap;
+    private final int size;
+    private final Map<String, int[]> exact;
+    private final int[] anyValue;
+
+    // Automaton: edges of each state sorted by label
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] fail;
+    private final int[][] outputs;
+    // Nearest state on the failure chain with outputs, or -1
+    private final int[] dictionary;
+
+    /**
+     * Collects tests, then builds the index.
+     */
+    static final class Builder {
+
+        private final String[] headers;
+        private final boolean casemap;
+        private int size = 0;
+        private final Map<String, List<Integer>> exact = new HashMap<>();
+        private final List<Integer> anyValue = new ArrayList<>();
+        private final List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        private final List<List<Integer>> outputs = new ArrayList<>();
+
+        /**
+         * @param headers lower case header names the tests look at
+         * @param casemap true for i;ascii-casemap, false for i;octet
+         */
+        Builder(final String[] headers, final boolean casemap) {
+            this.headers = headers;
+            this.casemap = casemap;
+            newState();
+        }
+
+        /**
+         * @return number the next test will get
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param type IS or CONTAINS
+         * @param keys key list of the test
+         * @return number of the test, to look up in the result of
+         * {@link HeaderIndex#match(Message)}
+         */
+        int add(final MatchType type, final List<String> keys) {
+            int test = size++;
+            for (String key : keys) {
+                String k = casemap ? fold(key) : key;
+                if (type == MatchType.IS) {
+                    exact.computeIfAbsent(k, x -> new ArrayList<>(1)).add(test);
+                } else if (k.isEmpty()) {
+                    anyValue.add(test);
+                } else {
+                    int state = 0;
+                    for (int i = 0; i < k.length(); i++) {
+                        Integer next = trie.get(state).get(k.charAt(i));
+                        if (next == null) {
+                            next = newState();
+                            trie.get(state).put(k.charAt(i), next);
+                        }
+                        state = next;
+                    }
+                    outputs.get(state).add(test);
+                }
+            }
+            return test;
+        }
+
+        private int newState() {
+            trie.add(new TreeMap<>());
+            outputs.add(new ArrayList<>(0));
+            return trie.size() - 1;
+        }
+
+        HeaderIndex build() {
+            return new HeaderIndex(this);
+        }
+    }
+
+    private HeaderIndex(final Builder builder) {
+        headers = builder.headers;
+        casemap = builder.casemap;
+        size = builder.size;
+        exact = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : builder.exact.entrySet()) {
+            exact.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        anyValue = toArray(builder.anyValue);
+
+        int states = builder.trie.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            TreeMap<Character, Integer> edges = builder.trie.get(s);
+            labels[s] = new char[edges.size()];
+            targets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                labels[s][i] = edge.getKey();
+                targets[s][i] = edge.getValue();
+                i++;
+            }
+            outputs[s] = toArray(builder.outputs.get(s));
+        }
+
+        // Failure and dictionary links, breadth first from the root
+        fail = new int[states];
+        dictionary = new int[states];
+        dictionary[0] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            dictionary[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int i = 0; i < labels[s].length; i++) {
+                int child = targets[s][i];
+                int f = fail[s];
+                int next;
+                while ((next = step(f, labels[s][i])) == -1 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next == -1 ? 0 : next;
+                int d = fail[child];
+                dictionary[child] = outputs[d].length > 0 ? d : dictionary[d];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return number of tests in the index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param message message to look at
+     * @return result of each test, by number
+     */
+    boolean[] match(final Message message) {
+        boolean[] hits = new boolean[size];
+        for (String header : headers) {
+            for (String value : message.getHeaders(header)) {
+                String v = casemap ? fold(value) : value;
+                mark(hits, anyValue);
+                mark(hits, exact.get(v));
+                scan(v, hits);
+            }
+        }
+        return hits;
+    }
+
+    private void scan(final String value, final boolean[] hits) {
+        if (labels[0].length == 0) {
+            return;
+        }
+        int state = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int next;
+            while ((next = step(state, c)) == -1 && state != 0) {
+                state = fail[state];
+            }
+            state = next == -1 ? 0 : next;
+            mark(hits, outputs[state]);
+            for (int d = dictionary[state]; d != -1; d = dictionary[d]) {
+                mark(hits, outputs[d]);
+            }
+        }
+    }
+
+    private int step(final int state, final char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return i >= 0 ? targets[state][i] : -1;
+    }
+
+    private static void mark(final boolean[] hits, final int[] tests) {
+        if (tests != null) {
+            for (int t : tests) {
+                hits[t] = true;
+            }
+        }
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    private static String fold(final String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = SieveComparator.fold(chars[i]);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.List;
+
+/**
+ * Match types of RFC 5228 section 2.7.1.
+ */
+public enum MatchType {
+
+    IS("is"),
+    CONTAINS("contains"),
+    MATCHES("matches");
+
+    private final String tag;
+
+    MatchType(final String tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * @return tag name, without the colon
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * @param tag tag name, without the colon
+     * @return the match type, or null if the tag isn't one
+     */
+    public static MatchType forTag(final String tag) {
+        for (MatchType m : values()) {
+            if (m.tag.equals(tag)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param comparator comparator to use
+     * @param value value from the message
+     * @param key key from the script
+     * @param captures filled with match variables by a successful
+     * :matches, or null if they aren't wanted
+     * @return true if the value matches the key
+     */
+    public boolean match(final SieveComparator comparator, final String value, final String key, final List<String> captures) {
+        switch (this) {
+            case IS:
+                return comparator.isEqual(value, key);
+            case CONTAINS:
+                return comparator.contains(value, key);
+            default:
+                return comparator.matches(value, key, captures);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An RFC 5322 message, with its envelope, as seen by a Sieve script.
+ * <p>
+ * Headers are unfolded, decoded from UTF-8 (RFC 6532) and have RFC 2047
+ * encoded words decoded, once, when the message is parsed. The MIME
+ * structure of the body is only worked out if a body test asks for it.
+ * Messages are immutable, and safe to share between threads.
+ */
+public final class Message {
+
+    private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?\\s]+)\\?([BbQq])\\?([^?\\s]*)\\?=");
+    private static final Pattern BETWEEN_WORDS = Pattern.compile("(\\?=)[ \\t\\r\\n]+(=\\?)");
+
+    private final byte[] raw;
+    private final int bodyStart;
+    private final Map<String, List<String>> headers;
+    private final String envelopeFrom;
+    private final List<String> envelopeTo;
+    private volatile List<Part> parts = null;
+
+    /**
+     * One leaf part of the MIME structure.
+     */
+    public static final class Part {
+
+        private final String contentType;
+        private final String text;
+
+        Part(final String contentType, final String text) {
+            this.contentType = contentType;
+            this.text = text;
+        }
+
+        /**
+         * @return lower case "type/subtype"
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return decoded content if the part is text/*, otherwise null
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    private Message(final byte[] raw, final int bodyStart, final Map<String, List<String>> headers,
+            final String envelopeFrom, final List<String> envelopeTo) {
+        this.raw = raw;
+        this.bodyStart = bodyStart;
+        this.headers = headers;
+        this.envelopeFrom = envelopeFrom;
+        this.envelopeTo = envelopeTo;
+    }
+
+    /**
+     * Parse a message. There is no envelope until one is added with
+     * {@link #withEnvelope(String, List)}.
+     *
+     * @param raw the message, with CRLF or LF line endings. Not copied, so
+     * mustn't be changed afterwards.
+     * @return the parsed message
+     */
+    public static Message parse(final byte[] raw) {
+        Map<String, List<String>> headers = new HashMap<>();
+        int bodyStart = parseHeaders(raw, 0, raw.length, headers);
+        return new Message(raw, bodyStart, headers, null, Collections.emptyList());
+    }
+
+    /**
+     * @param message the message as text, which is encoded as UTF-8
+     * @return the parsed message
+     */
+    public static Message parse(final String message) {
+        return parse(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param from envelope sender (MAIL FROM), "" for the null sender
+     * @param to envelope recipients (RCPT TO)
+     * @return a copy of this message with the given envelope
+     */
+    public Message withEnvelope(final String from, final List<String> to) {
+        return new Message(raw, bodyStart, headers, from, List.copyOf(to));
+    }
+
+    /**
+     * @param name header field name, in any case
+     * @return decoded values of every field with that name, in message
+     * order, or an empty list
+     */
+    public List<String> getHeaders(final String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return values != null ? values : Collections.emptyList();
+    }
+
+    /**
+     * @return size of the message in octets
+     */
+    public int getSize() {
+        return raw.length;
+    }
+
+    /**
+     * @return the body as it was sent, decoded as UTF-8 but otherwise
+     * untouched
+     */
+    public String getRawBody() {
+        return new String(raw, bodyStart, raw.length - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return leaf MIME parts of the body, in order. A message that isn't
+     * multipart has one.
+     */
+    public List<Part> getParts() {
+        List<Part> result = parts;
+        if (result == null) {
+            result = new ArrayList<>();
+            addParts(raw, bodyStart, raw.length, getHeaders("content-type"), getHeaders("content-transfer-encoding"), result, 0);
+            result = Collections.unmodifiableList(result);
+            parts = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return envelope sender, "" for the null sender, or null if there's
+     * no envelope
+     */
+    public String getEnvelopeFrom() {
+        return envelopeFrom;
+    }
+
+    /**
+     * @return envelope recipients, empty if there's no envelope
+     */
+    public List<String> getEnvelopeTo() {
+        return envelopeTo;
+    }
+
+    /**
+     * Read a header block into a map of lower case name to values.
+     *
+     * @return offset of the body, after the blank line
+     */
+    private static int parseHeaders(final byte[] raw, final int from, final int to, final Map<String, List<String>> headers) {
+        int pos = from;
+        String name = null;
+        StringBuilder value = new StringBuilder();
+        while (pos < to) {
+            int eol = pos;
+            while (eol < to && raw[eol] != '\n') {
+                eol++;
+            }
+            int next = eol < to ? eol + 1 : eol;
+            int end = eol > pos && raw[eol - 1] == '\r' ? eol - 1 : eol;
+            if (end == pos) {
+                pos = next;
+                break;
+            }
+            if (raw[pos] == ' ' || raw[pos] == '\t') {
+                if (name != null) {
+                    value.append(new String(raw, pos, end - pos, StandardCharsets.UTF_8));
+                }
+            } else {
+                if (name != null) {
+                    addHeader(headers, name, value);
+                    name = null;
+                }
+                int colon = pos;
+                while (colon < end && raw[colon] != ':') {
+                    colon++;
+                }
+                if (colon < end) {
+                    name = new String(raw, pos, colon - pos, StandardCharsets.US_ASCII).trim().toLowerCase(Locale.ROOT);
+                    value.setLength(0);
+                    value.append(new String(raw, colon + 1, end - colon - 1, StandardCharsets.UTF_8));
+                }
+            }
+            pos = next;
+        }
+        if (name != null) {
+            addHeader(headers, name, value);
+        }
+        return pos;
+    }
+
+    private static void addHeader(final Map<String, List<String>> headers, final String name, final CharSequence value) {
+        String v = value.toString().trim();
+        if (v.contains("=?")) {
+            v = decodeWords(v);
+        }
+        headers.computeIfAbsent(name, k -> new ArrayList<>(1)).add(v);
+    }
+
+    /**
+     * Decode RFC 2047 encoded words. Words that can't be decoded are left
+     * as they are.
+     */
+    static String decodeWords(final String value) {
+        String joined = BETWEEN_WORDS.matcher(value).replaceAll("$1$2");
+        Matcher m = ENCODED_WORD.matcher(joined);
+        StringBuilder result = new StringBuilder(joined.length());
+        while (m.find()) {
+            String decoded;
+            try {
+                Charset charset = Charset.forName(stripLanguage(m.group(1)));
+                byte[] bytes = m.group(2).equalsIgnoreCase("B")
+                        ? Base64.getMimeDecoder().decode(m.group(3))
+                        : decodeQuotedPrintable(m.group(3).getBytes(StandardCharsets.US_ASCII), true);
+                decoded = new String(bytes, charset);
+            } catch (IllegalArgumentException ex) {
+                decoded = m.group();
+            }
+            m.appendReplacement(result, Matcher.quoteReplacement(decoded));
+        }
+        m.appendTail(result);
+        return result.toString();
+    }
+
+    private static String stripLanguage(final String charset) {
+        int star = charset.indexOf('*');
+        return star == -1 ? charset : charset.substring(0, star);
+    }
+
+    /**
+     * @param header true for the RFC 2047 "Q" form, where "_" is a space
+     */
+    static byte[] decodeQuotedPrintable(final byte[] in, final boolean header) {
+        byte[] out = new byte[in.length];
+        int n = 0;
+        for (int i = 0; i < in.length; i++) {
+            byte b = in[i];
+            if (b == '=') {
+                int hi = i + 1 < in.length ? Character.digit(in[i + 1], 16) : -1;
+                int lo = i + 2 < in.length ? Character.digit(in[i + 2], 16) : -1;
+                if (hi >= 0 && lo >= 0) {
+                    out[n++] = (byte) (hi << 4 | lo);
+                    i += 2;
+                    continue;
+                }
+                // Soft line break
+                int j = i + 1;
+                while (j < in.length && (in[j] == ' ' || in[j] == '\t')) {
+                    j++;
+                }
+                if (j < in.length && in[j] == '\r') {
+                    j++;
+                }
+                if (j < in.length && in[j] == '\n') {
+                    i = j;
+                    continue;
+                }
+                out[n++] = b;
+            } else if (b == '_' && header) {
+                out[n++] = ' ';
+            } else {
+                out[n++] = b;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static void addParts(final byte[] raw, final int from, final int to, final List<String> contentType,
+            final List<String> encoding, final List<Part> result, final int depth) {
+        String type = contentType.isEmpty() ? "text/plain" : contentType.get(0);
+        String mimeType = mimeType(type);
+        String boundary = parameter(type, "boundary");
+        if (mimeType.startsWith("multipart/") && boundary != null && depth < 32) {
+            byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            int partStart = -1;
+            int pos = from;
+            while (pos < to) {
+                int eol = pos;
+                while (eol < to && raw[eol] != '\n') {
+                    eol++;
+                }
+                if (startsWith(raw, pos, eol, delimiter)) {
+                    if (partStart != -1) {
+                        // The line break before the delimiter belongs to it
+                        int partEnd = pos;
+                        if (partEnd > partStart && raw[partEnd - 1] == '\n') {
+                            partEnd--;
+                            if (partEnd > partStart && raw[partEnd - 1] == '\r') {
+                                partEnd--;
+                            }
+                        }
+                        addPart(raw, partStart, partEnd, result, depth);
+                    }
+                    int after = pos + delimiter.length;
+                    if (after + 1 < eol && raw[after] == '-' && raw[after + 1] == '-') {
+                        return;
+                    }
+                    partStart = eol < to ? eol + 1 : eol;
+                }
+                pos = eol + 1;
+            }
+            if (partStart != -1 && partStart < to) {
+                addPart(raw, partStart, to, result, depth);
+            }
+            return;
+        }
+        String text = null;
+        if (mimeType.startsWith("text/")) {
+            byte[] content = Arrays.copyOfRange(raw, from, to);
+            String cte = encoding.isEmpty() ? "" : encoding.get(0).trim().toLowerCase(Locale.ROOT);
+            try {
+                if (cte.equals("base64")) {
+                    content = Base64.getMimeDecoder().decode(content);
+                } else if (cte.equals("quoted-printable")) {
+                    content = decodeQuotedPrintable(content, false);
+                }
+            } catch (IllegalArgumentException ex) {
+                // Leave badly encoded content as it is
+            }
+            text = new String(content, charset(parameter(type, "charset")));
+        }
+        result.add(new Part(mimeType, text));
+    }
+
+    private static void addPart(final byte[] raw, final int from, final int to, final List<Part> result, final int depth) {
+        Map<String, List<String>> partHeaders = new HashMap<>();
+        int body = parseHeaders(raw, from, to, partHeaders);
+        List<String> type = partHeaders.getOrDefault("content-type", Collections.emptyList());
+        List<String> encoding = partHeaders.getOrDefault("content-transfer-encoding", Collections.emptyList());
+        addParts(raw, Math.min(body, to), to, type, encoding, result, depth + 1);
+    }
+
+    private static boolean startsWith(final byte[] raw, final int from, final int to, final byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (raw[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Charset charset(final String name) {
+        if (name != null) {
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException ex) {
+                // Unknown or badly formed, fall through
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * @return lower case type/subtype from a Content-Type value
+     */
+    static String mimeType(final String contentType) {
+        int semi = contentType.indexOf(';');
+        String type = (semi == -1 ? contentType : contentType.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+        return type.indexOf('/') == -1 ? "text/plain" : type;
+    }
+
+    /**
+     * @return value of a Content-Type parameter, unquoted, or null
+     */
+    static String parameter(final String contentType, final String name) {
+        int pos = contentType.indexOf(';');
+        while (pos != -1) {
+            int eq = contentType.indexOf('=', pos);
+            if (eq == -1) {
+                return null;
+            }
+            String key = contentType.substring(pos + 1, eq).trim();
+            int start = eq + 1;
+            while (start < contentType.length() && Character.isWhitespace(contentType.charAt(start))) {
+                start++;
+            }
+            String value;
+            int next;
+            if (start < contentType.length() && contentType.charAt(start) == '"') {
+                int close = contentType.indexOf('"', start + 1);
+                if (close == -1) {
+                    close = contentType.length();
+                }
+                value = contentType.substring(start + 1, close);
+                next = contentType.indexOf(';', close);
+            } else {
+                next = contentType.indexOf(';', start);
+                value = contentType.substring(start, next == -1 ? contentType.length() : next).trim();
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value;
+            }
+            pos = next;
+        }
+        return null;
+    }
+}
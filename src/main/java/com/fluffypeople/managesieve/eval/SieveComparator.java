@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import java.util.List;
+
+/**
+ * The comparators of RFC 4790 that Sieve implementations must (or
+ * commonly) support.
+ */
+public enum SieveComparator {
+
+    OCTET("i;octet"),
+    ASCII_CASEMAP("i;ascii-casemap"),
+    ASCII_NUMERIC("i;ascii-numeric");
+
+    private final String name;
+
+    SieveComparator(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return registered name, as used with :comparator
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name comparator name, in any case
+     * @return the comparator, or null if it isn't supported
+     */
+    public static SieveComparator forName(final String name) {
+        for (SieveComparator c : values()) {
+            if (c.name.equalsIgnoreCase(name)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if :contains and :matches can be used with this
+     * comparator
+     */
+    public boolean isSubstring() {
+        return this != ASCII_NUMERIC;
+    }
+
+    /**
+     * @param value value from the message
+     * @param key key from the script
+     * @return true if the two are equal under this comparator
+     */
+    public boolean isEqual(final String value, final String key) {
+        switch (this) {
+            case OCTET:
+                return value.equals(key);
+            case ASCII_CASEMAP:
+                return value.length() == key.length() && regionMatches(value, 0, key, 0, key.length());
+            default:
+                return compareNumeric(value, key) == 0;
+        }
+    }
+
+    /**
+     * @param value value from the message
+     * @param key key from the script
+     * @return true if key is a substring of value. The empty key is a
+     * substring of everything.
+     */
+    public boolean contains(final String value, final String key) {
+        if (this == OCTET) {
+            return value.contains(key);
+        }
+        int last = value.length() - key.length();
+        for (int i = 0; i <= last; i++) {
+            if (regionMatches(value, i, key, 0, key.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match a value against a wildcard pattern, where "*" matches any
+     * number of characters, "?" exactly one, and "\" quotes the next
+     * character. When there's more than one way to match, the leftmost
+     * wildcards match as little as possible (RFC 5229 section 3.2).
+     *
+     * @param value value from the message
+     * @param pattern wildcard pattern from the script
+     * @param captures if not null, cleared and filled with the whole value
+     * followed by the text matched by each wildcard, when the match succeeds
+     * @return true if the value matches
+     */
+    public boolean matches(final String value, final String pattern, final List<String> captures) {
+        return matches(value, glob(pattern), captures);
+    }
+
+    /**
+     * A wildcard pattern with quoting resolved, so that it can be matched
+     * many times.
+     */
+    static final class Glob {
+
+        // Pattern characters; wild[i] is '*', '?' or 0
+        private final char[] chars;
+        private final char[] wild;
+        private final int length;
+        private final int wildcards;
+
+        Glob(final char[] chars, final char[] wild, final int length, final int wildcards) {
+            this.chars = chars;
+            this.wild = wild;
+            this.length = length;
+            this.wildcards = wildcards;
+        }
+    }
+
+    static Glob glob(final String pattern) {
+        int length = pattern.length();
+        char[] chars = new char[length];
+        char[] wild = new char[length];
+        int n = 0;
+        int wildcards = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                chars[n++] = pattern.charAt(++i);
+            } else {
+                if (c == '*' || c == '?') {
+                    wild[n] = c;
+                    wildcards++;
+                }
+                chars[n++] = c;
+            }
+        }
+        return new Glob(chars, wild, n, wildcards);
+    }
+
+    boolean matches(final String value, final Glob glob, final List<String> captures) {
+        char[] chars = glob.chars;
+        char[] wild = glob.wild;
+        int n = glob.length;
+        int wildcards = glob.wildcards;
+        int[] capStart = captures != null ? new int[wildcards] : null;
+        int[] capEnd = captures != null ? new int[wildcards] : null;
+
+        int p = 0;
+        int v = 0;
+        int w = 0;
+        int backP = -1;
+        int backV = -1;
+        int backW = -1;
+        while (v < value.length() || p < n) {
+            if (p < n && wild[p] == '*') {
+                if (capStart != null) {
+                    capStart[w] = v;
+                    capEnd[w] = v;
+                }
+                backP = p;
+                backV = v;
+                backW = w;
+                p++;
+                w++;
+                continue;
+            }
+            if (p < n && v < value.length()) {
+                if (wild[p] == '?') {
+                    if (capStart != null) {
+                        capStart[w] = v;
+                        capEnd[w] = v + 1;
+                    }
+                    p++;
+                    v++;
+                    w++;
+                    continue;
+                }
+                if (charEquals(value.charAt(v), chars[p])) {
+                    p++;
+                    v++;
+                    continue;
+                }
+            }
+            if (backP == -1 || backV >= value.length()) {
+                return false;
+            }
+            // Let the last "*" take one more character and try again
+            backV++;
+            p = backP + 1;
+            v = backV;
+            w = backW + 1;
+            if (capStart != null) {
+                capEnd[backW] = backV;
+            }
+        }
+        if (captures != null) {
+            captures.clear();
+            captures.add(value);
+            for (int i = 0; i < wildcards; i++) {
+                captures.add(value.substring(capStart[i], capEnd[i]));
+            }
+        }
+        return true;
+    }
+
+    private boolean charEquals(final char a, final char b) {
+        return this == OCTET ? a == b : fold(a) == fold(b);
+    }
+
+    private static boolean regionMatches(final String a, final int aFrom, final String b, final int bFrom, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (fold(a.charAt(aFrom + i)) != fold(b.charAt(bFrom + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static char fold(final char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - 32) : c;
+    }
+
+    /**
+     * Compare the leading digits of two strings as numbers. A string that
+     * doesn't start with a digit is positive infinity (RFC 4790 section
+     * 9.1.1).
+     */
+    static int compareNumeric(final String a, final String b) {
+        int aEnd = digits(a);
+        int bEnd = digits(b);
+        if (aEnd == 0 || bEnd == 0) {
+            return Boolean.compare(aEnd == 0, bEnd == 0);
+        }
+        int aStart = 0;
+        while (aStart < aEnd - 1 && a.charAt(aStart) == '0') {
+            aStart++;
+        }
+        int bStart = 0;
+        while (bStart < bEnd - 1 && b.charAt(bStart) == '0') {
+            bStart++;
+        }
+        int aLength = aEnd - aStart;
+        int bLength = bEnd - bStart;
+        if (aLength != bLength) {
+            return Integer.compare(aLength, bLength);
+        }
+        for (int i = 0; i < aLength; i++) {
+            int d = Character.compare(a.charAt(aStart + i), b.charAt(bStart + i));
+            if (d != 0) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    private static int digits(final String s) {
+        int i = 0;
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.TestNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.UnaryOperator;
+
+/**
+ * Turn a checked script into a tree of closures, so that everything that
+ * doesn't depend on the message is worked out once: tags, comparators,
+ * match types, :matches patterns, address parts, and strings and lists
+ * that don't refer to variables.
+ * <p>
+ * Before compiling, the script is searched for header :is and :contains
+ * tests with constant header names and keys. Wherever there are at least
+ * {@link #INDEX_MIN_TESTS} of them on the same headers with the same
+ * comparator, anywhere in the script, they are answered together by a
+ * {@link HeaderIndex}. Those tests depend only on the message, so looking
+ * them all up at once, the first time any of them is reached, gives the
+ * same results as running them one by one.
+ */
+final class SieveCompiler {
+
+    /**
+     * A compiled command, or block of commands.
+     */
+    interface Step {
+
+        void run(Evaluation e);
+    }
+
+    /**
+     * A compiled test.
+     */
+    interface Condition {
+
+        boolean test(Evaluation e);
+    }
+
+    /**
+     * A compiled string argument.
+     */
+    interface Text {
+
+        String get(Evaluation e);
+    }
+
+    /**
+     * A compiled string list argument.
+     */
+    interface Texts {
+
+        List<String> get(Evaluation e);
+    }
+
+    private static final Step NOTHING = e -> {
+    };
+    private static final Action KEEP = Action.keep();
+    private static final Action DISCARD = Action.discard();
+
+    /**
+     * Smallest group of similar header tests worth indexing.
+     */
+    static final int INDEX_MIN_TESTS = 8;
+
+    private final boolean variables;
+    private final Map<TestNode, int[]> indexed = new IdentityHashMap<>();
+    private final List<HeaderIndex> indexes = new ArrayList<>();
+    private final Step root;
+
+    /**
+     * @param commands commands that passed {@link SieveInterpreter}'s checks
+     * @param variables true if the script requires "variables"
+     * @param index true to index groups of header tests
+     */
+    SieveCompiler(final List<CommandNode> commands, final boolean variables, final boolean index) {
+        this.variables = variables;
+        if (index) {
+            analyse(commands);
+        }
+        this.root = block(commands);
+    }
+
+    /**
+     * @return the script as one Step
+     */
+    Step getRoot() {
+        return root;
+    }
+
+    /**
+     * @return header indexes, numbered as in {@link Evaluation#hit(int, int)}
+     */
+    HeaderIndex[] getIndexes() {
+        return indexes.toArray(new HeaderIndex[0]);
+    }
+
+    /**
+     * @return number of tests answered by an index
+     */
+    int getIndexedTests() {
+        return indexed.size();
+    }
+
+    private void analyse(final List<CommandNode> commands) {
+        Map<String, List<TestNode>> groups = new LinkedHashMap<>();
+        collect(commands, groups);
+        for (List<TestNode> group : groups.values()) {
+            if (group.size() < INDEX_MIN_TESTS) {
+                continue;
+            }
+            SieveInterpreter.Args first = new SieveInterpreter.Args(group.get(0));
+            HeaderIndex.Builder builder = new HeaderIndex.Builder(headerSet(first.strings(0)),
+                    first.comparator() == SieveComparator.ASCII_CASEMAP);
+            for (TestNode test : group) {
+                SieveInterpreter.Args args = new SieveInterpreter.Args(test);
+                indexed.put(test, new int[]{ indexes.size(), builder.add(args.matchType(), args.strings(1)) });
+            }
+            indexes.add(builder.build());
+        }
+    }
+
+    private void collect(final List<CommandNode> commands, final Map<String, List<TestNode>> groups) {
+        for (CommandNode command : commands) {
+            collectTests(command.getTests(), groups);
+            collect(command.getBlock(), groups);
+        }
+    }
+
+    private void collectTests(final List<TestNode> tests, final Map<String, List<TestNode>> groups) {
+        for (TestNode test : tests) {
+            if (test.getName().equals("header")) {
+                SieveInterpreter.Args args = new SieveInterpreter.Args(test);
+                SieveComparator comparator = args.comparator();
+                if (args.matchType() != MatchType.MATCHES && comparator != SieveComparator.ASCII_NUMERIC
+                        && constants(args.strings(0)) != null && constants(args.strings(1)) != null) {
+                    String key = comparator.getName() + "\n" + String.join("\n", headerSet(args.strings(0)));
+                    groups.computeIfAbsent(key, k -> new ArrayList<>()).add(test);
+                }
+            }
+            collectTests(test.getTests(), groups);
+        }
+    }
+
+    /**
+     * @return distinct lower case names, sorted
+     */
+    private static String[] headerSet(final List<String> names) {
+        TreeSet<String> set = new TreeSet<>();
+        for (String name : names) {
+            set.add(name.toLowerCase(Locale.ROOT));
+        }
+        return set.toArray(new String[0]);
+    }
+
+    private Step block(final List<CommandNode> commands) {
+        List<Step> steps = new ArrayList<>(commands.size());
+        List<CommandNode> run = new ArrayList<>();
+        int i = 0;
+        while (i < commands.size()) {
+            CommandNode command = commands.get(i);
+            if (command.getName().equals("if")) {
+                int end = i + 1;
+                while (end < commands.size() && (commands.get(end).getName().equals("elsif") || commands.get(end).getName().equals("else"))) {
+                    end++;
+                }
+                int[] slot = end == i + 1 ? indexed.get(command.getTests().get(0)) : null;
+                if (slot == null || (!run.isEmpty() && indexed.get(run.get(0).getTests().get(0))[0] != slot[0])) {
+                    flush(run, steps);
+                }
+                if (slot != null) {
+                    run.add(command);
+                } else {
+                    steps.add(chain(commands.subList(i, end)));
+                }
+                i = end;
+            } else {
+                flush(run, steps);
+                if (!command.getName().equals("require")) {
+                    steps.add(action(command));
+                }
+                i++;
+            }
+        }
+        flush(run, steps);
+        if (steps.isEmpty()) {
+            return NOTHING;
+        } else if (steps.size() == 1) {
+            return steps.get(0);
+        }
+        Step[] array = steps.toArray(new Step[0]);
+        return e -> {
+            for (Step step : array) {
+                if (e.stopped) {
+                    return;
+                }
+                step.run(e);
+            }
+        };
+    }
+
+    /**
+     * Compile consecutive plain ifs whose tests all come from one index as
+     * a single loop over the index result, so the rules that don't match
+     * cost an array read each.
+     */
+    private void flush(final List<CommandNode> run, final List<Step> steps) {
+        if (run.size() == 1) {
+            steps.add(chain(run));
+        } else if (!run.isEmpty()) {
+            int index = indexed.get(run.get(0).getTests().get(0))[0];
+            int[] ids = new int[run.size()];
+            Step[] blocks = new Step[run.size()];
+            for (int k = 0; k < ids.length; k++) {
+                ids[k] = indexed.get(run.get(k).getTests().get(0))[1];
+                blocks[k] = block(run.get(k).getBlock());
+            }
+            steps.add(e -> {
+                boolean[] hits = e.hits(index);
+                for (int k = 0; k < ids.length; k++) {
+                    if (hits[ids[k]]) {
+                        blocks[k].run(e);
+                        if (e.stopped) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        run.clear();
+    }
+
+    /**
+     * if, any elsifs, and maybe an else, as one Step.
+     */
+    private Step chain(final List<CommandNode> commands) {
+        int n = commands.size();
+        Step otherwise = null;
+        if (commands.get(n - 1).getName().equals("else")) {
+            otherwise = block(commands.get(n - 1).getBlock());
+            n--;
+        }
+        Condition[] conditions = new Condition[n];
+        Step[] blocks = new Step[n];
+        for (int i = 0; i < n; i++) {
+            conditions[i] = test(commands.get(i).getTests().get(0));
+            blocks[i] = block(commands.get(i).getBlock());
+        }
+        if (n == 1) {
+            Condition condition = conditions[0];
+            Step then = blocks[0];
+            Step orElse = otherwise != null ? otherwise : NOTHING;
+            return e -> {
+                if (condition.test(e)) {
+                    then.run(e);
+                } else {
+                    orElse.run(e);
+                }
+            };
+        }
+        Step orElse = otherwise;
+        return e -> {
+            for (int i = 0; i < conditions.length; i++) {
+                if (conditions[i].test(e)) {
+                    blocks[i].run(e);
+                    return;
+                }
+            }
+            if (orElse != null) {
+                orElse.run(e);
+            }
+        };
+    }
+
+    private Step action(final CommandNode command) {
+        SieveInterpreter.Args args = new SieveInterpreter.Args(command);
+        switch (command.getName()) {
+            case "stop":
+                return e -> e.stopped = true;
+            case "keep":
+                return e -> e.add(KEEP);
+            case "discard":
+                return e -> {
+                    e.add(DISCARD);
+                    e.implicitKeep = false;
+                };
+            case "fileinto":
+            case "redirect": {
+                boolean copy = args.has("copy");
+                boolean fileinto = command.getName().equals("fileinto");
+                String constant = constant(args.string(0));
+                if (constant != null) {
+                    Action action = fileinto ? Action.fileinto(constant, copy) : Action.redirect(constant, copy);
+                    return copy ? e -> e.add(action) : e -> {
+                        e.add(action);
+                        e.implicitKeep = false;
+                    };
+                }
+                Text target = text(args.string(0));
+                return e -> {
+                    String value = target.get(e);
+                    e.add(fileinto ? Action.fileinto(value, copy) : Action.redirect(value, copy));
+                    if (!copy) {
+                        e.implicitKeep = false;
+                    }
+                };
+            }
+            case "reject": {
+                Text reason = text(args.string(0));
+                return e -> {
+                    e.add(Action.reject(reason.get(e)));
+                    e.implicitKeep = false;
+                };
+            }
+            case "vacation": {
+                Text reason = text(args.string(0));
+                int days = args.has("days") ? (int) Math.min(args.number("days"), Integer.MAX_VALUE) : 7;
+                Text subject = args.has("subject") ? text(args.string("subject")) : e -> null;
+                Text from = args.has("from") ? text(args.string("from")) : e -> null;
+                Texts addresses = args.has("addresses") ? texts(args.strings("addresses")) : e -> Collections.emptyList();
+                boolean mime = args.has("mime");
+                Text handle = args.has("handle") ? text(args.string("handle")) : e -> null;
+                return e -> e.add(Action.vacation(reason.get(e), days, subject.get(e), from.get(e), addresses.get(e), mime, handle.get(e)));
+            }
+            case "set": {
+                String name = args.string(0).toLowerCase(Locale.ROOT);
+                Text value = text(args.string(1));
+                UnaryOperator<String> modifier = modifier(args);
+                return e -> e.set(name, modifier.apply(value.get(e)));
+            }
+            default:
+                throw new IllegalStateException("Unchecked command " + command.getName());
+        }
+    }
+
+    /**
+     * set modifiers, applied in RFC 5229 precedence order.
+     */
+    private static UnaryOperator<String> modifier(final SieveInterpreter.Args args) {
+        UnaryOperator<String> result = UnaryOperator.identity();
+        if (args.has("lower")) {
+            result = then(result, s -> s.toLowerCase(Locale.ROOT));
+        } else if (args.has("upper")) {
+            result = then(result, s -> s.toUpperCase(Locale.ROOT));
+        }
+        if (args.has("lowerfirst")) {
+            result = then(result, s -> s.isEmpty() ? s : s.substring(0, 1).toLowerCase(Locale.ROOT) + s.substring(1));
+        } else if (args.has("upperfirst")) {
+            result = then(result, s -> s.isEmpty() ? s : s.substring(0, 1).toUpperCase(Locale.ROOT) + s.substring(1));
+        }
+        if (args.has("quotewildcard")) {
+            result = then(result, s -> {
+                StringBuilder sb = new StringBuilder(s.length() + 4);
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '*' || c == '?' || c == '\\') {
+                        sb.append('\\');
+                    }
+                    sb.append(c);
+                }
+                return sb.toString();
+            });
+        }
+        if (args.has("length")) {
+            result = then(result, s -> Integer.toString(s.codePointCount(0, s.length())));
+        }
+        return result;
+    }
+
+    private static UnaryOperator<String> then(final UnaryOperator<String> first, final UnaryOperator<String> next) {
+        return s -> next.apply(first.apply(s));
+    }
+
+    private Condition test(final TestNode test) {
+        switch (test.getName()) {
+            case "true":
+                return e -> true;
+            case "false":
+                return e -> false;
+            case "not": {
+                Condition inner = test(test.getTests().get(0));
+                return e -> !inner.test(e);
+            }
+            case "anyof":
+            case "allof": {
+                Condition[] tests = new Condition[test.getTests().size()];
+                for (int i = 0; i < tests.length; i++) {
+                    tests[i] = test(test.getTests().get(i));
+                }
+                boolean any = test.getName().equals("anyof");
+                return e -> {
+                    for (Condition t : tests) {
+                        if (t.test(e) == any) {
+                            return any;
+                        }
+                    }
+                    return !any;
+                };
+            }
+            case "exists": {
+                Texts names = texts(new SieveInterpreter.Args(test).strings(0));
+                return e -> {
+                    for (String name : names.get(e)) {
+                        if (e.message.getHeaders(name).isEmpty()) {
+                            return false;
+                        }
+                    }
+                    return true;
+                };
+            }
+            case "size": {
+                SieveInterpreter.Args args = new SieveInterpreter.Args(test);
+                long limit = args.number(0);
+                return args.has("over") ? e -> e.message.getSize() > limit : e -> e.message.getSize() < limit;
+            }
+            default:
+                return match(test);
+        }
+    }
+
+    /**
+     * Tests that compare values from the message with a key list.
+     */
+    private Condition match(final TestNode test) {
+        SieveInterpreter.Args args = new SieveInterpreter.Args(test);
+        Matcher matcher = new Matcher(args.matchType(), args.comparator(),
+                args.strings(test.getName().equals("body") ? 0 : 1));
+        switch (test.getName()) {
+            case "header": {
+                int[] slot = indexed.get(test);
+                if (slot != null) {
+                    int index = slot[0];
+                    int id = slot[1];
+                    return e -> e.hit(index, id);
+                }
+                Texts names = texts(args.strings(0));
+                return e -> {
+                    List<String> keys = matcher.keys(e);
+                    for (String name : names.get(e)) {
+                        if (matcher.any(e, keys, e.message.getHeaders(name))) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            }
+            case "address": {
+                Texts names = texts(args.strings(0));
+                UnaryOperator<String> part = part(args);
+                return e -> {
+                    List<String> keys = matcher.keys(e);
+                    List<String> values = new ArrayList<>();
+                    for (String name : names.get(e)) {
+                        for (String header : e.message.getHeaders(name)) {
+                            for (String address : Addresses.parse(header)) {
+                                values.add(part.apply(address));
+                            }
+                        }
+                    }
+                    return matcher.any(e, keys, values);
+                };
+            }
+            case "envelope": {
+                Texts names = texts(args.strings(0));
+                UnaryOperator<String> part = part(args);
+                return e -> {
+                    List<String> keys = matcher.keys(e);
+                    List<String> values = new ArrayList<>();
+                    for (String name : names.get(e)) {
+                        String lower = name.toLowerCase(Locale.ROOT);
+                        if (lower.equals("from") && e.message.getEnvelopeFrom() != null) {
+                            values.add(part.apply(e.message.getEnvelopeFrom()));
+                        } else if (lower.equals("to")) {
+                            for (String address : e.message.getEnvelopeTo()) {
+                                values.add(part.apply(address));
+                            }
+                        }
+                    }
+                    return matcher.any(e, keys, values);
+                };
+            }
+            case "string": {
+                Texts source = texts(args.strings(0));
+                return e -> matcher.any(e, matcher.keys(e), source.get(e));
+            }
+            case "body": {
+                if (args.has("raw")) {
+                    return e -> matcher.any(e, matcher.keys(e), Collections.singletonList(e.message.getRawBody()));
+                }
+                Texts types = args.has("content") ? texts(args.strings("content")) : e -> Collections.singletonList("text");
+                return e -> {
+                    List<String> keys = matcher.keys(e);
+                    List<String> contentTypes = types.get(e);
+                    List<String> values = new ArrayList<>();
+                    for (Message.Part p : e.message.getParts()) {
+                        if (p.getText() != null && contentMatches(p.getContentType(), contentTypes)) {
+                            values.add(p.getText());
+                        }
+                    }
+                    return matcher.any(e, keys, values);
+                };
+            }
+            default:
+                throw new IllegalStateException("Unchecked test " + test.getName());
+        }
+    }
+
+    private static boolean contentMatches(final String contentType, final List<String> types) {
+        for (String type : types) {
+            String t = type.toLowerCase(Locale.ROOT);
+            if (t.isEmpty() || t.equals(contentType)
+                    || (t.indexOf('/') == -1 && contentType.startsWith(t) && contentType.charAt(t.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static UnaryOperator<String> part(final SieveInterpreter.Args args) {
+        if (args.has("localpart")) {
+            return Addresses::localPart;
+        } else if (args.has("domain")) {
+            return Addresses::domain;
+        }
+        return UnaryOperator.identity();
+    }
+
+    /**
+     * A key list with its match type and comparator. Constant keys are
+     * prepared once, including :matches patterns.
+     */
+    private final class Matcher {
+
+        private final MatchType type;
+        private final SieveComparator comparator;
+        private final boolean capture;
+        private final List<String> constant;
+        private final SieveComparator.Glob[] globs;
+        private final Texts dynamic;
+
+        Matcher(final MatchType type, final SieveComparator comparator, final List<String> keys) {
+            this.type = type;
+            this.comparator = comparator;
+            this.capture = type == MatchType.MATCHES && variables;
+            List<String> c = constants(keys);
+            this.constant = c;
+            this.dynamic = c == null ? texts(keys) : null;
+            if (c != null && type == MatchType.MATCHES) {
+                globs = new SieveComparator.Glob[c.size()];
+                for (int i = 0; i < globs.length; i++) {
+                    globs[i] = SieveComparator.glob(c.get(i));
+                }
+            } else {
+                globs = null;
+            }
+        }
+
+        List<String> keys(final Evaluation e) {
+            return constant != null ? constant : dynamic.get(e);
+        }
+
+        boolean any(final Evaluation e, final List<String> keys, final List<String> values) {
+            if (values.isEmpty()) {
+                return false;
+            }
+            if (type == MatchType.MATCHES) {
+                List<String> captures = capture ? new ArrayList<>() : null;
+                for (String value : values) {
+                    for (int i = 0; i < keys.size(); i++) {
+                        SieveComparator.Glob glob = globs != null ? globs[i] : SieveComparator.glob(keys.get(i));
+                        if (comparator.matches(value, glob, captures)) {
+                            if (capture) {
+                                e.matches = captures;
+                            }
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+            for (String value : values) {
+                for (String key : keys) {
+                    if (type.match(comparator, value, key, null)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private Texts texts(final List<String> strings) {
+        List<String> c = constants(strings);
+        if (c != null) {
+            return e -> c;
+        }
+        Text[] parts = new Text[strings.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = text(strings.get(i));
+        }
+        return e -> {
+            List<String> result = new ArrayList<>(parts.length);
+            for (Text part : parts) {
+                result.add(part.get(e));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * @return the strings if none of them refer to variables, otherwise null
+     */
+    private List<String> constants(final List<String> strings) {
+        for (String s : strings) {
+            if (constant(s) == null) {
+                return null;
+            }
+        }
+        return List.copyOf(strings);
+    }
+
+    /**
+     * @return the string if it doesn't refer to variables, otherwise null
+     */
+    private String constant(final String s) {
+        if (!variables) {
+            return s;
+        }
+        List<Object> template = template(s);
+        return template.size() == 1 && template.get(0) instanceof String ? s : null;
+    }
+
+    private Text text(final String s) {
+        List<Object> template = variables ? template(s) : List.of(s);
+        if (template.size() == 1 && template.get(0) instanceof String) {
+            return e -> s;
+        }
+        Text[] parts = new Text[template.size()];
+        for (int i = 0; i < parts.length; i++) {
+            Object part = template.get(i);
+            if (part instanceof String) {
+                String literal = (String) part;
+                parts[i] = e -> literal;
+            } else if (part instanceof Integer) {
+                int index = (Integer) part;
+                parts[i] = e -> e.match(index);
+            } else {
+                String name = ((Variable) part).name;
+                parts[i] = e -> e.get(name);
+            }
+        }
+        return e -> {
+            StringBuilder sb = new StringBuilder();
+            for (Text part : parts) {
+                sb.append(part.get(e));
+            }
+            return sb.toString();
+        };
+    }
+
+    /**
+     * Named variable reference in a template.
+     */
+    private static final class Variable {
+
+        private final String name;
+
+        Variable(final String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Split a string into literal text (String), match variables (Integer)
+     * and named variables (Variable). Anything that doesn't look like a
+     * reference stays literal.
+     */
+    static List<Object> template(final String s) {
+        List<Object> result = new ArrayList<>(1);
+        StringBuilder literal = new StringBuilder();
+        int from = 0;
+        int open = s.indexOf("${");
+        while (open != -1) {
+            int close = s.indexOf('}', open + 2);
+            if (close == -1) {
+                break;
+            }
+            Object reference = reference(s.substring(open + 2, close));
+            if (reference != null) {
+                literal.append(s, from, open);
+                if (literal.length() > 0) {
+                    result.add(literal.toString());
+                    literal.setLength(0);
+                }
+                result.add(reference);
+                from = close + 1;
+                open = s.indexOf("${", from);
+            } else {
+                open = s.indexOf("${", open + 2);
+            }
+        }
+        literal.append(s, from, s.length());
+        if (literal.length() > 0 || result.isEmpty()) {
+            result.add(literal.toString());
+        }
+        return result;
+    }
+
+    /**
+     * @return Integer for a match variable, Variable for a name, or null if
+     * it isn't a valid reference
+     */
+    private static Object reference(final String name) {
+        if (name.isEmpty()) {
+            return null;
+        }
+        if (isDigit(name.charAt(0))) {
+            for (int i = 0; i < name.length(); i++) {
+                if (!isDigit(name.charAt(i))) {
+                    return null;
+                }
+            }
+            return name.length() > 9 ? Integer.MAX_VALUE : Integer.parseInt(name);
+        }
+        for (String part : name.split("\\.", -1)) {
+            if (!SieveInterpreter.isIdentifier(part)) {
+                return null;
+            }
+        }
+        return new Variable(name.toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.eval;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.ArgumentNode;
+import com.fluffypeople.managesieve.sieve.CallNode;
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.NumberNode;
+import com.fluffypeople.managesieve.sieve.ScriptNode;
+import com.fluffypeople.managesieve.sieve.StringListNode;
+import com.fluffypeople.managesieve.sieve.StringNode;
+import com.fluffypeople.managesieve.sieve.TagNode;
+import com.fluffypeople.managesieve.sieve.TestNode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Run a parsed script against messages locally, to see what it would do
+ * without installing it on a server.
+ * <p>
+ * Supports RFC 5228 plus fileinto, envelope, reject (RFC 5429), body
+ * (RFC 5173), variables (RFC 5229), vacation (RFC 5230), copy (RFC 3894)
+ * and the i;octet, i;ascii-casemap and i;ascii-numeric comparators. The
+ * script is checked and compiled once, when the interpreter is created, so
+ * evaluating a message can't fail and doesn't look at the parse tree:
+ * tags, comparators, match types, :matches patterns and constant strings
+ * are all resolved up front. Vacation is reported as an action; deciding
+ * whether a reply would actually be sent (response history, list mail)
+ * is left to the caller.
+ * <p>
+ * An interpreter keeps no per-message state, so one can evaluate any
+ * number of messages at once from different threads.
+ * {@link #evaluateAll(Stream)} does that for a whole corpus.
+ */
+public class SieveInterpreter {
+
+    private static final Set<String> EXTENSIONS = Set.of("fileinto", "envelope", "reject", "body", "variables",
+            "vacation", "copy", "comparator-i;octet", "comparator-i;ascii-casemap", "comparator-i;ascii-numeric");
+
+    private static final Map<String, Spec> COMMANDS = new HashMap<>();
+    private static final Map<String, Spec> TESTS = new HashMap<>();
+
+    private static final String[] MATCH = { "comparator=", "is", "contains", "matches" };
+    private static final String[] ADDRESS = { "comparator=", "is", "contains", "matches", "all", "localpart", "domain" };
+
+    static {
+        command("require", null, 1, 0, false);
+        command("if", null, 0, 1, true);
+        command("elsif", null, 0, 1, true);
+        command("else", null, 0, 0, true);
+        command("stop", null, 0, 0, false);
+        command("keep", null, 0, 0, false);
+        command("discard", null, 0, 0, false);
+        command("redirect", null, 1, 0, false, "copy");
+        command("fileinto", "fileinto", 1, 0, false, "copy");
+        command("reject", "reject", 1, 0, false);
+        command("vacation", "vacation", 1, 0, false, "days#", "subject=", "from=", "addresses=", "mime", "handle=");
+        command("set", "variables", 2, 0, false, "lower", "upper", "lowerfirst", "upperfirst", "quotewildcard", "length");
+
+        test("true", null, 0, 0);
+        test("false", null, 0, 0);
+        test("not", null, 0, 1);
+        test("anyof", null, 0, -1);
+        test("allof", null, 0, -1);
+        test("exists", null, 1, 0);
+        test("size", null, 1, 0, "over", "under");
+        test("header", null, 2, 0, MATCH);
+        test("address", null, 2, 0, ADDRESS);
+        test("envelope", "envelope", 2, 0, ADDRESS);
+        test("string", "variables", 2, 0, MATCH);
+        test("body", "body", 1, 0, "comparator=", "is", "contains", "matches", "raw", "content=", "text");
+    }
+
+    private final SieveCompiler.Step compiled;
+    private final HeaderIndex[] indexes;
+    private final int indexedTests;
+
+    /**
+     * What a script did with one message.
+     */
+    public static final class Result {
+
+        private final List<Action> actions;
+        private final boolean implicitKeep;
+
+        Result(final List<Action> actions, final boolean implicitKeep) {
+            this.actions = Collections.unmodifiableList(actions);
+            this.implicitKeep = implicitKeep;
+        }
+
+        /**
+         * @return actions in the order the script took them, including the
+         * implicit keep at the end if there was one
+         */
+        public List<Action> getActions() {
+            return actions;
+        }
+
+        /**
+         * @return true if nothing cancelled the implicit keep
+         */
+        public boolean isImplicitKeep() {
+            return implicitKeep;
+        }
+    }
+
+    /**
+     * @param script parsed script
+     * @throws ParseException if the script uses a command, test, tag or
+     * extension that isn't supported, or uses one wrongly
+     */
+    public SieveInterpreter(final ScriptNode script) throws ParseException {
+        this(script, true);
+    }
+
+    /**
+     * @param script parsed script
+     * @param indexHeaders true to answer large groups of header :is and
+     * :contains tests from an index (the default). Results are the same
+     * either way.
+     * @throws ParseException if the script uses a command, test, tag or
+     * extension that isn't supported, or uses one wrongly
+     */
+    public SieveInterpreter(final ScriptNode script, final boolean indexHeaders) throws ParseException {
+        Set<String> required = new HashSet<>();
+        boolean preamble = true;
+        for (CommandNode command : script.getCommands()) {
+            if (command.getName().equals("require")) {
+                if (!preamble) {
+                    throw error("require must come before other commands", command);
+                }
+                for (String extension : strings(command.getArguments().get(0))) {
+                    if (!EXTENSIONS.contains(extension)) {
+                        throw error("Unsupported extension \"" + extension + "\"", command);
+                    }
+                    required.add(extension);
+                }
+            } else {
+                preamble = false;
+            }
+        }
+        check(script.getCommands(), required);
+        SieveCompiler compiler = new SieveCompiler(script.getCommands(), required.contains("variables"), indexHeaders);
+        this.compiled = compiler.getRoot();
+        this.indexes = compiler.getIndexes();
+        this.indexedTests = compiler.getIndexedTests();
+    }
+
+    /**
+     * @return number of header tests in the script that are answered from
+     * an index rather than one at a time
+     */
+    public int getIndexedTests() {
+        return indexedTests;
+    }
+
+    /**
+     * @return capabilities that scripts may require
+     */
+    public static Set<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    /**
+     * @param message message to run the script against
+     * @return what the script did
+     */
+    public Result evaluate(final Message message) {
+        Evaluation e = new Evaluation(message, indexes);
+        compiled.run(e);
+        if (e.implicitKeep) {
+            e.add(Action.keep());
+        }
+        return new Result(e.actions, e.implicitKeep);
+    }
+
+    /**
+     * Evaluate a stream of messages in parallel. The returned stream is
+     * lazy and keeps the order of the input, so a corpus can be processed
+     * without holding all of it in memory.
+     *
+     * @param messages messages to evaluate
+     * @return Stream of Results, one per message
+     */
+    public Stream<Result> evaluateAll(final Stream<Message> messages) {
+        return messages.parallel().map(this::evaluate);
+    }
+
+    /**
+     * Check every command and test against the supported set, once.
+     */
+    private static void check(final List<CommandNode> commands, final Set<String> required) throws ParseException {
+        String previous = null;
+        for (CommandNode command : commands) {
+            String name = command.getName();
+            Spec spec = COMMANDS.get(name);
+            if (spec == null) {
+                throw error("Unknown command " + name, command);
+            }
+            spec.check(command, required);
+            if ((name.equals("elsif") || name.equals("else")) && !"if".equals(previous) && !"elsif".equals(previous)) {
+                throw error(name + " must follow if or elsif", command);
+            }
+            if (spec.block && !command.hasBlock()) {
+                throw error(name + " needs a block", command);
+            } else if (!spec.block && command.hasBlock()) {
+                throw error(name + " can't have a block", command);
+            }
+            if (name.equals("set")) {
+                String variable = strings(command.getArguments().get(command.getArguments().size() - 2)).get(0);
+                if (!isIdentifier(variable)) {
+                    throw error("Invalid variable name \"" + variable + "\"", command);
+                }
+            }
+            checkTests(command.getTests(), required);
+            check(command.getBlock(), required);
+            previous = name;
+        }
+    }
+
+    private static void checkTests(final List<TestNode> tests, final Set<String> required) throws ParseException {
+        for (TestNode test : tests) {
+            Spec spec = TESTS.get(test.getName());
+            if (spec == null) {
+                throw error("Unknown test " + test.getName(), test);
+            }
+            spec.check(test, required);
+            checkTests(test.getTests(), required);
+        }
+    }
+
+    static boolean isIdentifier(final String s) {
+        if (s.isEmpty() || Character.isDigit(s.charAt(0))) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static ParseException error(final String message, final CallNode call) {
+        return new ParseException(call.getLine() >= 0 ? message + " at line " + call.getLine() : message);
+    }
+
+    private static List<String> strings(final ArgumentNode argument) {
+        if (argument instanceof StringListNode) {
+            return ((StringListNode) argument).getValues();
+        }
+        return Collections.singletonList(((StringNode) argument).getValue());
+    }
+
+    private static void command(final String name, final String extension, final int positional, final int tests,
+            final boolean block, final String... tags) {
+        COMMANDS.put(name, new Spec(extension, positional, tests, block, tags));
+    }
+
+    private static void test(final String name, final String extension, final int positional, final int tests, final String... tags) {
+        TESTS.put(name, new Spec(extension, positional, tests, false, tags));
+    }
+
+    /**
+     * Shape of a command or test. Tags are named without the colon; a
+     * trailing "=" means the tag takes a string or list, "#" a number.
+     */
+    private static final class Spec {
+
+        private final String extension;
+        private final int positional;
+        private final int tests;
+        private final boolean block;
+        private final Map<String, Character> tags = new HashMap<>();
+
+        Spec(final String extension, final int positional, final int tests, final boolean block, final String... tags) {
+            this.extension = extension;
+            this.positional = positional;
+            this.tests = tests;
+            this.block = block;
+            for (String tag : tags) {
+                char last = tag.charAt(tag.length() - 1);
+                if (last == '=' || last == '#') {
+                    this.tags.put(tag.substring(0, tag.length() - 1), last);
+                } else {
+                    this.tags.put(tag, ' ');
+                }
+            }
+        }
+
+        void check(final CallNode call, final Set<String> required) throws ParseException {
+            String name = call.getName();
+            if (extension != null && !required.contains(extension)) {
+                throw error(name + " needs require \"" + extension + "\"", call);
+            }
+            List<ArgumentNode> arguments = call.getArguments();
+            int count = 0;
+            MatchType matchType = null;
+            SieveComparator comparator = SieveComparator.ASCII_CASEMAP;
+            for (int i = 0; i < arguments.size(); i++) {
+                ArgumentNode argument = arguments.get(i);
+                if (!(argument instanceof TagNode)) {
+                    if (count == positional || !positionalOk(name, argument)) {
+                        throw error("Unexpected argument to " + name, call);
+                    }
+                    count++;
+                    continue;
+                }
+                if (count > 0) {
+                    throw error("Tags must come before other arguments to " + name, call);
+                }
+                String tag = ((TagNode) argument).getName();
+                Character kind = tags.get(tag);
+                if (kind == null || (tag.equals("copy") && !required.contains("copy"))) {
+                    throw error("Unexpected tag :" + tag + " for " + name, call);
+                }
+                if (MatchType.forTag(tag) != null) {
+                    matchType = MatchType.forTag(tag);
+                }
+                if (kind != ' ') {
+                    ArgumentNode value = i + 1 < arguments.size() ? arguments.get(++i) : null;
+                    if (kind == '#' ? !(value instanceof NumberNode)
+                            : !(value instanceof StringNode || value instanceof StringListNode)) {
+                        throw error("Tag :" + tag + " for " + name + " needs a value", call);
+                    }
+                    if (tag.equals("comparator")) {
+                        String comparatorName = strings(value).get(0);
+                        comparator = SieveComparator.forName(comparatorName);
+                        if (comparator == null || (comparator == SieveComparator.ASCII_NUMERIC
+                                && !required.contains("comparator-" + comparator.getName()))) {
+                            throw error("Unsupported comparator \"" + comparatorName + "\"", call);
+                        }
+                    }
+                }
+            }
+            if (count != positional) {
+                throw error(name + " needs " + positional + " argument" + (positional == 1 ? "" : "s"), call);
+            }
+            if (matchType != null && matchType != MatchType.IS && !comparator.isSubstring()) {
+                throw error(comparator.getName() + " can't be used with :" + matchType.getTag(), call);
+            }
+            int size = call.getTests().size();
+            if (tests == -1 ? size == 0 : size != tests) {
+                throw error(name + " needs " + (tests == -1 ? "at least one test" : tests == 0 ? "no tests" : tests + " test"), call);
+            }
+        }
+
+        private static boolean positionalOk(final String name, final ArgumentNode argument) {
+            if (name.equals("size")) {
+                return argument instanceof NumberNode;
+            }
+            return argument instanceof StringNode || argument instanceof StringListNode;
+        }
+    }
+
+    /**
+     * Arguments of one call, split into tags and positional arguments.
+     * Only ever built for calls that passed {@link Spec#check}.
+     */
+    static final class Args {
+
+        private final Map<String, ArgumentNode> tags = new HashMap<>(4);
+        private final List<ArgumentNode> positional = new ArrayList<>(2);
+
+        Args(final CallNode call) {
+            Spec spec = (call instanceof CommandNode ? COMMANDS : TESTS).get(call.getName());
+            List<ArgumentNode> arguments = call.getArguments();
+            for (int i = 0; i < arguments.size(); i++) {
+                ArgumentNode argument = arguments.get(i);
+                if (argument instanceof TagNode) {
+                    String tag = ((TagNode) argument).getName();
+                    tags.put(tag, spec.tags.get(tag) != ' ' ? arguments.get(++i) : argument);
+                } else {
+                    positional.add(argument);
+                }
+            }
+        }
+
+        boolean has(final String tag) {
+            return tags.containsKey(tag);
+        }
+
+        String string(final int index) {
+            return SieveInterpreter.strings(positional.get(index)).get(0);
+        }
+
+        List<String> strings(final int index) {
+            return SieveInterpreter.strings(positional.get(index));
+        }
+
+        String string(final String tag) {
+            return SieveInterpreter.strings(tags.get(tag)).get(0);
+        }
+
+        List<String> strings(final String tag) {
+            return SieveInterpreter.strings(tags.get(tag));
+        }
+
+        long number(final int index) {
+            return ((NumberNode) positional.get(index)).getValue();
+        }
+
+        long number(final String tag) {
+            return ((NumberNode) tags.get(tag)).getValue();
+        }
+
+        MatchType matchType() {
+            for (MatchType m : MatchType.values()) {
+                if (tags.containsKey(m.getTag())) {
+                    return m;
+                }
+            }
+            return MatchType.IS;
+        }
+
+        SieveComparator comparator() {
+            return has("comparator") ? SieveComparator.forName(string("comparator")) : SieveComparator.ASCII_CASEMAP;
+        }
+    }
+}
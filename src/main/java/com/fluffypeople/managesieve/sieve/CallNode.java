@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Shared shape of commands and tests: an identifier followed by arguments and
+ * then either nothing, a single test, or a parenthesised test list.
+ */
+public abstract class CallNode extends SieveNode {
+
+    private final String name;
+    private final List<ArgumentNode> arguments;
+    private final List<TestNode> tests;
+    private final boolean testList;
+
+    protected CallNode(final String name, final List<ArgumentNode> arguments, final List<TestNode> tests, final boolean testList,
+            final int start, final int end, final int line, final int column) {
+        super(start, end, line, column);
+        this.name = Objects.requireNonNull(name);
+        this.arguments = List.copyOf(arguments);
+        this.tests = List.copyOf(tests);
+        this.testList = testList || this.tests.size() > 1;
+    }
+
+    /**
+     * @return the identifier, as written in the script
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return unmodifiable List of arguments, in order
+     */
+    public List<ArgumentNode> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return unmodifiable List of tests, empty if there are none
+     */
+    public List<TestNode> getTests() {
+        return tests;
+    }
+
+    /**
+     * @return true if the tests were written as a parenthesised list, even
+     * if that list has only one entry
+     */
+    public boolean isTestList() {
+        return testList;
+    }
+
+    /**
+     * Check whether any argument is a tag with the given name, ignoring
+     * case.
+     *
+     * @param tag name of the tag, without the colon
+     * @return true if this call has the tag
+     */
+    public boolean hasTag(final String tag) {
+        for (ArgumentNode a : arguments) {
+            if (a instanceof TagNode && ((TagNode) a).getName().equalsIgnoreCase(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == null || obj.getClass() != getClass()) {
+            return false;
+        }
+        CallNode other = (CallNode) obj;
+        return name.equals(other.name)
+                && arguments.equals(other.arguments)
+                && tests.equals(other.tests)
+                && testList == other.testList;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, arguments, tests, testList);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A command, terminated either by a semicolon or by a block of further
+ * commands.
+ */
+public final class CommandNode extends CallNode {
+
+    private static final List<String> CONTROLS = List.of("if", "elsif", "else", "stop", "require");
+
+    private final List<CommandNode> block;
+
+    public CommandNode(final String name, final List<ArgumentNode> arguments, final List<TestNode> tests, final boolean testList, final List<CommandNode> block) {
+        this(name, arguments, tests, testList, block, -1, -1, -1, -1);
+    }
+
+    /**
+     * @param block commands inside the braces, or null if the command ends
+     * with a semicolon
+     */
+    public CommandNode(final String name, final List<ArgumentNode> arguments, final List<TestNode> tests, final boolean testList, final List<CommandNode> block,
+            final int start, final int end, final int line, final int column) {
+        super(name, arguments, tests, testList, start, end, line, column);
+        this.block = block == null ? null : List.copyOf(block);
+    }
+
+    /**
+     * @return true if this command has a block (even an empty one)
+     */
+    public boolean hasBlock() {
+        return block != null;
+    }
+
+    /**
+     * @return unmodifiable List of the commands in the block, empty if there
+     * is no block
+     */
+    public List<CommandNode> getBlock() {
+        return block == null ? List.of() : block;
+    }
+
+    /**
+     * Control commands are the ones RFC 5228 section 3 defines (if, elsif,
+     * else, stop and require). Everything else is an action.
+     *
+     * @return true if this is a control command
+     */
+    public boolean isControl() {
+        return CONTROLS.contains(getName());
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return super.equals(obj) && Objects.equals(block, ((CommandNode) obj).block);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Objects.hashCode(block);
+    }
+
+    @Override
+    public String toString() {
+        return "command " + getName();
+    }
+}
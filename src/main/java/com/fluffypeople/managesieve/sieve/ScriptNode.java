@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.List;
+
+/**
+ * Root of a parsed Sieve script: the top level list of commands.
+ */
+public final class ScriptNode extends SieveNode {
+
+    private final List<CommandNode> commands;
+    private final String source;
+
+    public ScriptNode(final List<CommandNode> commands) {
+        super(-1, -1, -1, -1);
+        this.commands = List.copyOf(commands);
+        this.source = null;
+    }
+
+    /**
+     * @param commands top level commands
+     * @param source the text the commands were parsed from
+     */
+    public ScriptNode(final List<CommandNode> commands, final String source) {
+        super(0, source.length(), 1, 1);
+        this.commands = List.copyOf(commands);
+        this.source = source;
+    }
+
+    /**
+     * @return unmodifiable List of top level commands
+     */
+    public List<CommandNode> getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return the text this script was parsed from, or null if it was
+     * built in code
+     */
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof ScriptNode && commands.equals(((ScriptNode) obj).commands);
+    }
+
+    @Override
+    public int hashCode() {
+        return commands.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "script " + commands;
+    }
+}
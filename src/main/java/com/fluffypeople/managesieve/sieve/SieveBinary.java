@@ -0,0 +1,522 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of a parsed script, for storing large numbers of
+ * parse results and loading them again without parsing.
+ * <p>
+ * Layout (all integers are unsigned LEB128 varints unless noted):
+ * <pre>
+ * script   = magic version length body        ; length is of body in bytes
+ * magic    = 'S' 'V' 'B'                      ; three bytes
+ * version  = %x02                             ; one byte
+ * body     = flags strings [source] commands
+ * flags    = varint                           ; bit 0: source included
+ * strings  = count *(bytes-length utf-8-bytes) ; every name and value, once
+ * source   = bytes-length utf-8-bytes
+ * commands = count *command
+ * command  = %x01 name span call-flags arguments tests [commands]
+ *                                             ; commands if call-flags bit 1
+ * test     = %x02 name span call-flags arguments tests
+ * call-flags = varint                         ; bit 0: test list, bit 1: block
+ * arguments = count *argument
+ * tests    = count *test
+ * argument = %x03 string-index span           ; quoted string
+ *          / %x04 string-index span           ; text: string
+ *          / %x05 span count *((%x03 / %x04) string-index span)
+ *                                             ; string list
+ *          / %x06 number span
+ *          / %x07 string-index span           ; tag
+ * span     = zigzag(start - previous start) (end - start)
+ *            zigzag(line - previous line) (column + 1)
+ * </pre>
+ * Nodes are written in source order, so span deltas are small. Spans of
+ * nodes built in code are all -1 and survive the round trip unchanged.
+ * Scripts can be written back to back in one buffer or file; each one
+ * records its own length. {@link #load(Path)} maps a file into memory and
+ * decodes every script in it.
+ */
+public final class SieveBinary {
+
+    /**
+     * Format version written by this class. Version 1, which didn't record
+     * whether the strings in a list were text: strings, can still be read.
+     */
+    public static final int VERSION = 2;
+
+    private static final byte[] MAGIC = { 'S', 'V', 'B' };
+    private static final int FLAG_SOURCE = 1;
+    private static final int CALL_TEST_LIST = 1;
+    private static final int CALL_BLOCK = 2;
+
+    private static final int COMMAND = 1;
+    private static final int TEST = 2;
+    private static final int STRING = 3;
+    private static final int MULTILINE = 4;
+    private static final int STRING_LIST = 5;
+    private static final int NUMBER = 6;
+    private static final int TAG = 7;
+
+    private SieveBinary() {
+    }
+
+    /**
+     * @param script parsed script
+     * @param includeSource true to store the script text too, so that the
+     * decoded tree can be used with
+     * {@link SieveParser#reparse(ScriptNode, int, int, String)}
+     * @return buffer holding the encoded script, ready to read
+     */
+    public static ByteBuffer encode(final ScriptNode script, final boolean includeSource) {
+        Encoder body = new Encoder();
+        String source = includeSource ? script.getSource() : null;
+        body.varint(source != null ? FLAG_SOURCE : 0);
+        body.strings(script.getCommands());
+        if (source != null) {
+            body.utf8(source);
+        }
+        body.commands(script.getCommands());
+
+        Encoder out = new Encoder();
+        out.bytes(MAGIC, MAGIC.length);
+        out.raw(VERSION);
+        out.varint(body.size());
+        out.bytes(body.array(), body.size());
+        return ByteBuffer.wrap(out.array(), 0, out.size());
+    }
+
+    /**
+     * Encode a script into an existing buffer, at its current position.
+     *
+     * @param script parsed script
+     * @param includeSource true to store the script text too
+     * @param out buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(final ScriptNode script, final boolean includeSource, final ByteBuffer out) {
+        out.put(encode(script, includeSource));
+    }
+
+    /**
+     * Decode one script starting at the buffer's position, and move the
+     * position past it.
+     *
+     * @param in buffer to read from
+     * @return the decoded script
+     * @throws ParseException if the data isn't a script in a known version
+     */
+    public static ScriptNode decode(final ByteBuffer in) throws ParseException {
+        try {
+            for (byte b : MAGIC) {
+                if (in.get() != b) {
+                    throw new ParseException("Not an encoded Sieve script");
+                }
+            }
+            int version = in.get() & 0xff;
+            if (version != VERSION && version != 1) {
+                throw new ParseException("Unsupported encoding version " + version);
+            }
+            int length = (int) varint(in);
+            if (length > in.remaining()) {
+                throw new ParseException("Encoded script truncated");
+            }
+            int end = in.position() + length;
+            Decoder decoder = new Decoder(in, version);
+            ScriptNode result = decoder.script();
+            if (in.position() != end) {
+                throw new ParseException("Encoded script length mismatch");
+            }
+            return result;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException ex) {
+            throw new ParseException("Encoded script truncated or corrupt");
+        }
+    }
+
+    /**
+     * Map a file into memory and decode every script in it.
+     *
+     * @param file file of scripts written back to back
+     * @return the scripts, in file order
+     * @throws IOException if the file can't be read
+     * @throws ParseException if the file holds anything else
+     */
+    public static List<ScriptNode> load(final Path file) throws IOException, ParseException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<ScriptNode> result = new ArrayList<>();
+            while (buffer.hasRemaining()) {
+                result.add(decode(buffer));
+            }
+            return result;
+        }
+    }
+
+    private static long varint(final ByteBuffer in) throws ParseException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new ParseException("Malformed varint");
+    }
+
+    /**
+     * Growable byte array with the write side of the format.
+     */
+    private static final class Encoder {
+
+        private byte[] buf = new byte[256];
+        private int size = 0;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int previousStart = 0;
+        private int previousLine = 0;
+
+        int size() {
+            return size;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        void raw(final int b) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[size++] = (byte) b;
+        }
+
+        void bytes(final byte[] bytes, final int length) {
+            if (size + length > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + length));
+            }
+            System.arraycopy(bytes, 0, buf, size, length);
+            size += length;
+        }
+
+        void varint(final long value) {
+            long v = value;
+            while ((v & ~0x7fL) != 0) {
+                raw((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            raw((int) v);
+        }
+
+        void utf8(final String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            bytes(bytes, bytes.length);
+        }
+
+        void strings(final List<CommandNode> commands) {
+            List<String> table = new ArrayList<>();
+            collect(commands, table);
+            varint(table.size());
+            for (String s : table) {
+                utf8(s);
+            }
+        }
+
+        private void collect(final List<CommandNode> commands, final List<String> table) {
+            for (CommandNode command : commands) {
+                collectCall(command, table);
+                collect(command.getBlock(), table);
+            }
+        }
+
+        private void collectCall(final CallNode call, final List<String> table) {
+            intern(call.getName(), table);
+            for (ArgumentNode argument : call.getArguments()) {
+                if (argument instanceof StringNode) {
+                    intern(((StringNode) argument).getValue(), table);
+                } else if (argument instanceof StringListNode) {
+                    for (StringNode s : ((StringListNode) argument).getStrings()) {
+                        intern(s.getValue(), table);
+                    }
+                } else if (argument instanceof TagNode) {
+                    intern(((TagNode) argument).getName(), table);
+                }
+            }
+            for (TestNode test : call.getTests()) {
+                collectCall(test, table);
+            }
+        }
+
+        private void intern(final String s, final List<String> table) {
+            if (!strings.containsKey(s)) {
+                strings.put(s, table.size());
+                table.add(s);
+            }
+        }
+
+        void commands(final List<CommandNode> commands) {
+            varint(commands.size());
+            for (CommandNode command : commands) {
+                raw(COMMAND);
+                call(command, command.hasBlock());
+                if (command.hasBlock()) {
+                    commands(command.getBlock());
+                }
+            }
+        }
+
+        private void call(final CallNode call, final boolean block) {
+            varint(strings.get(call.getName()));
+            span(call);
+            varint((call.isTestList() ? CALL_TEST_LIST : 0) | (block ? CALL_BLOCK : 0));
+            varint(call.getArguments().size());
+            for (ArgumentNode argument : call.getArguments()) {
+                if (argument instanceof StringNode) {
+                    StringNode s = (StringNode) argument;
+                    raw(s.isMultiline() ? MULTILINE : STRING);
+                    varint(strings.get(s.getValue()));
+                    span(s);
+                } else if (argument instanceof StringListNode) {
+                    raw(STRING_LIST);
+                    span(argument);
+                    List<StringNode> list = ((StringListNode) argument).getStrings();
+                    varint(list.size());
+                    for (StringNode s : list) {
+                        raw(s.isMultiline() ? MULTILINE : STRING);
+                        varint(strings.get(s.getValue()));
+                        span(s);
+                    }
+                } else if (argument instanceof NumberNode) {
+                    raw(NUMBER);
+                    varint(((NumberNode) argument).getValue());
+                    span(argument);
+                } else if (argument instanceof TagNode) {
+                    raw(TAG);
+                    varint(strings.get(((TagNode) argument).getName()));
+                    span(argument);
+                }
+            }
+            varint(call.getTests().size());
+            for (TestNode test : call.getTests()) {
+                raw(TEST);
+                call(test, false);
+            }
+        }
+
+        private void span(final SieveNode node) {
+            varint(zigzag(node.getStart() - previousStart));
+            varint(node.getEnd() - node.getStart());
+            varint(zigzag(node.getLine() - previousLine));
+            varint(node.getColumn() + 1);
+            previousStart = node.getStart();
+            previousLine = node.getLine();
+        }
+
+        private static long zigzag(final int value) {
+            return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Read side of the format, over a ByteBuffer positioned after the
+     * length.
+     */
+    private static final class Decoder {
+
+        private final ByteBuffer in;
+        private final boolean entryKinds;
+        private String[] strings;
+        // Span of the node being read, filled in by span()
+        private int start = 0;
+        private int end;
+        private int line = 0;
+        private int column;
+
+        Decoder(final ByteBuffer in, final int version) {
+            this.in = in;
+            this.entryKinds = version >= 2;
+        }
+
+        ScriptNode script() throws ParseException {
+            int flags = count();
+            strings = new String[count()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = utf8();
+            }
+            String source = (flags & FLAG_SOURCE) != 0 ? utf8() : null;
+            List<CommandNode> commands = commands();
+            return source != null ? new ScriptNode(commands, source) : new ScriptNode(commands);
+        }
+
+        private List<CommandNode> commands() throws ParseException {
+            int count = count();
+            List<CommandNode> result = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                expect(COMMAND);
+                String name = string();
+                span();
+                int s = start;
+                int e = end;
+                int l = line;
+                int c = column;
+                int flags = count();
+                List<ArgumentNode> arguments = arguments();
+                List<TestNode> tests = tests();
+                List<CommandNode> block = (flags & CALL_BLOCK) != 0 ? commands() : null;
+                result.add(new CommandNode(name, arguments, tests, (flags & CALL_TEST_LIST) != 0, block, s, e, l, c));
+            }
+            return result;
+        }
+
+        private List<TestNode> tests() throws ParseException {
+            int count = count();
+            List<TestNode> result = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                expect(TEST);
+                String name = string();
+                span();
+                int s = start;
+                int e = end;
+                int l = line;
+                int c = column;
+                int flags = count();
+                List<ArgumentNode> arguments = arguments();
+                List<TestNode> tests = tests();
+                result.add(new TestNode(name, arguments, tests, (flags & CALL_TEST_LIST) != 0, s, e, l, c));
+            }
+            return result;
+        }
+
+        private List<ArgumentNode> arguments() throws ParseException {
+            int count = count();
+            List<ArgumentNode> result = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                int kind = in.get();
+                switch (kind) {
+                    case STRING:
+                    case MULTILINE: {
+                        String value = string();
+                        span();
+                        result.add(new StringNode(value, kind == MULTILINE, start, end, line, column));
+                        break;
+                    }
+                    case STRING_LIST: {
+                        span();
+                        int s = start;
+                        int e = end;
+                        int l = line;
+                        int c = column;
+                        int size = count();
+                        List<StringNode> list = new ArrayList<>(Math.min(size, 1024));
+                        for (int j = 0; j < size; j++) {
+                            boolean multiline = entryKinds && in.get() == MULTILINE;
+                            String value = string();
+                            span();
+                            list.add(new StringNode(value, multiline, start, end, line, column));
+                        }
+                        result.add(new StringListNode(list, s, e, l, c));
+                        break;
+                    }
+                    case NUMBER: {
+                        long value = varint(in);
+                        span();
+                        result.add(new NumberNode(value, start, end, line, column));
+                        break;
+                    }
+                    case TAG: {
+                        String name = string();
+                        span();
+                        result.add(new TagNode(name, start, end, line, column));
+                        break;
+                    }
+                    default:
+                        throw new ParseException("Unknown argument kind " + kind);
+                }
+            }
+            return result;
+        }
+
+        private void expect(final int kind) throws ParseException {
+            int got = in.get();
+            if (got != kind) {
+                throw new ParseException("Expecting node kind " + kind + " but got " + got);
+            }
+        }
+
+        private void span() throws ParseException {
+            start += delta();
+            end = start + count();
+            line += delta();
+            column = count() - 1;
+        }
+
+        private int delta() throws ParseException {
+            int value = (int) varint(in);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String string() throws ParseException {
+            int index = count();
+            if (index >= strings.length) {
+                throw new ParseException("String index " + index + " out of range");
+            }
+            return strings[index];
+        }
+
+        private String utf8() throws ParseException {
+            int length = count();
+            if (in.hasArray()) {
+                String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                in.position(in.position() + length);
+                return s;
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int count() throws ParseException {
+            long value = varint(in);
+            if (value > Integer.MAX_VALUE) {
+                throw new ParseException("Count " + value + " out of range");
+            }
+            return (int) value;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimate how much work a script makes for each message it is run
+ * against, without running it, so that expensive scripts can be flagged or
+ * refused before they are installed.
+ * <p>
+ * The estimate is an upper bound: every test is counted as if it were
+ * evaluated. A test costs its base cost, plus, for tests that compare
+ * values with keys, the cost of one comparison under its match type times
+ * the number of keys, the number of headers or other sources, and the
+ * test's value weight (how many values one source usually yields; body
+ * tests are heavy). Commands have a cost of their own, and every block a
+ * command is nested inside adds the depth cost.
+ * <p>
+ * All costs can be changed with the setters. An estimator can be shared
+ * between threads once configured. Estimating is a single walk of the
+ * tree.
+ */
+public class SieveCostEstimator {
+
+    private static final String[] MATCH_TAGS = { "is", "contains", "matches", "regex", "value", "count" };
+    private static final Set<String> TAGS_WITH_VALUES = Set.of("comparator", "content", "value", "count");
+
+    private final Map<String, Double> testCosts = new HashMap<>();
+    private final Map<String, Double> matchCosts = new HashMap<>();
+    private final Map<String, Double> valueWeights = new HashMap<>();
+    private final Map<String, Double> commandCosts = new HashMap<>();
+    private double defaultTestCost = 1;
+    private double defaultCommandCost = 1;
+    private double depthCost = 1;
+
+    /**
+     * Cost of one top-level command, including everything inside it.
+     */
+    public static final class Rule {
+
+        private final String name;
+        private final int line;
+        private final double cost;
+
+        Rule(final String name, final int line, final double cost) {
+            this.name = name;
+            this.line = line;
+            this.cost = cost;
+        }
+
+        /**
+         * @return command name, such as "if"
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return line of the command, or -1 if the tree has no spans
+         */
+        public int getLine() {
+            return line;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return name + (line >= 0 ? " at line " + line : "") + ": " + cost;
+        }
+    }
+
+    /**
+     * Result of estimating one script.
+     */
+    public static final class Estimate {
+
+        private final double total;
+        private final List<Rule> rules;
+        private final int regexTests;
+        private final int bodyTests;
+        private final int maxDepth;
+        private final int largestList;
+
+        Estimate(final double total, final List<Rule> rules, final int regexTests, final int bodyTests,
+                final int maxDepth, final int largestList) {
+            this.total = total;
+            this.rules = Collections.unmodifiableList(rules);
+            this.regexTests = regexTests;
+            this.bodyTests = bodyTests;
+            this.maxDepth = maxDepth;
+            this.largestList = largestList;
+        }
+
+        /**
+         * @return estimated cost per message of the whole script
+         */
+        public double getTotal() {
+            return total;
+        }
+
+        /**
+         * @return cost of each top-level command, in script order
+         */
+        public List<Rule> getRules() {
+            return rules;
+        }
+
+        /**
+         * @return number of tests using :regex
+         */
+        public int getRegexTests() {
+            return regexTests;
+        }
+
+        /**
+         * @return number of body tests
+         */
+        public int getBodyTests() {
+            return bodyTests;
+        }
+
+        /**
+         * @return deepest nesting of blocks and tests, where a top-level
+         * command with a single test is 1
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * @return number of strings in the longest string list
+         */
+        public int getLargestList() {
+            return largestList;
+        }
+    }
+
+    public SieveCostEstimator() {
+        testCosts.put("true", 0.0);
+        testCosts.put("false", 0.0);
+        testCosts.put("not", 0.0);
+        testCosts.put("anyof", 0.0);
+        testCosts.put("allof", 0.0);
+        testCosts.put("size", 0.5);
+        testCosts.put("exists", 1.0);
+        testCosts.put("header", 1.0);
+        testCosts.put("address", 2.0);
+        testCosts.put("envelope", 1.0);
+        testCosts.put("string", 0.5);
+        testCosts.put("body", 20.0);
+
+        matchCosts.put("is", 1.0);
+        matchCosts.put("contains", 2.0);
+        matchCosts.put("matches", 3.0);
+        matchCosts.put("regex", 25.0);
+        matchCosts.put("value", 1.0);
+        matchCosts.put("count", 1.0);
+
+        valueWeights.put("body", 10.0);
+
+        commandCosts.put("require", 0.0);
+        commandCosts.put("if", 0.0);
+        commandCosts.put("elsif", 0.0);
+        commandCosts.put("else", 0.0);
+        commandCosts.put("stop", 0.0);
+        commandCosts.put("set", 0.5);
+    }
+
+    /**
+     * @param test test name, such as "header"
+     * @param cost fixed cost of running the test
+     */
+    public void setTestCost(final String test, final double cost) {
+        testCosts.put(test, cost);
+    }
+
+    /**
+     * @param cost fixed cost of tests without their own cost
+     */
+    public void setDefaultTestCost(final double cost) {
+        this.defaultTestCost = cost;
+    }
+
+    /**
+     * @param matchType match type tag without the colon, such as "regex"
+     * @param cost cost of one comparison
+     */
+    public void setMatchCost(final String matchType, final double cost) {
+        matchCosts.put(matchType, cost);
+    }
+
+    /**
+     * @param test test name
+     * @param weight number of values each source yields, 1 by default
+     */
+    public void setValueWeight(final String test, final double weight) {
+        valueWeights.put(test, weight);
+    }
+
+    /**
+     * @param command command name
+     * @param cost cost of running the command itself
+     */
+    public void setCommandCost(final String command, final double cost) {
+        commandCosts.put(command, cost);
+    }
+
+    /**
+     * @param cost cost of commands without their own cost
+     */
+    public void setDefaultCommandCost(final double cost) {
+        this.defaultCommandCost = cost;
+    }
+
+    /**
+     * @param cost cost added to a command for each block it is inside
+     */
+    public void setDepthCost(final double cost) {
+        this.depthCost = cost;
+    }
+
+    /**
+     * @param script Sieve text
+     * @return the estimate
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public Estimate estimate(final String script) throws ParseException {
+        return estimate(new SieveParser().parse(script));
+    }
+
+    /**
+     * @param script parsed script
+     * @return the estimate
+     */
+    public Estimate estimate(final ScriptNode script) {
+        Walk walk = new Walk();
+        List<Rule> rules = new ArrayList<>(script.getCommands().size());
+        double total = 0;
+        for (CommandNode command : script.getCommands()) {
+            double cost = walk.command(command, 0);
+            rules.add(new Rule(command.getName(), command.getLine(), cost));
+            total += cost;
+        }
+        return new Estimate(total, rules, walk.regexTests, walk.bodyTests, walk.maxDepth, walk.largestList);
+    }
+
+    /**
+     * Counters for one estimate.
+     */
+    private final class Walk {
+
+        private int regexTests = 0;
+        private int bodyTests = 0;
+        private int maxDepth = 0;
+        private int largestList = 0;
+
+        double command(final CommandNode command, final int depth) {
+            double cost = commandCosts.getOrDefault(command.getName(), defaultCommandCost) + depth * depthCost;
+            maxDepth = Math.max(maxDepth, depth);
+            lists(command);
+            for (TestNode test : command.getTests()) {
+                cost += test(test, depth + 1);
+            }
+            for (CommandNode child : command.getBlock()) {
+                cost += command(child, depth + 1);
+            }
+            return cost;
+        }
+
+        double test(final TestNode test, final int depth) {
+            String name = test.getName();
+            maxDepth = Math.max(maxDepth, depth);
+            if (name.equals("body")) {
+                bodyTests++;
+            }
+            if (test.hasTag("regex")) {
+                regexTests++;
+            }
+            List<Integer> sizes = lists(test);
+            double cost = testCosts.getOrDefault(name, defaultTestCost);
+            String matchType = null;
+            for (String tag : MATCH_TAGS) {
+                if (test.hasTag(tag)) {
+                    matchType = tag;
+                }
+            }
+            if (matchType != null || isMatchTest(name)) {
+                // Keys are the last list; sources, if any, the one before
+                int keys = sizes.isEmpty() ? 1 : sizes.get(sizes.size() - 1);
+                int sources = sizes.size() >= 2 ? sizes.get(sizes.size() - 2) : 1;
+                cost += matchCosts.getOrDefault(matchType != null ? matchType : "is", 1.0)
+                        * keys * sources * valueWeights.getOrDefault(name, 1.0);
+            } else if (!sizes.isEmpty()) {
+                // exists and the like: one check per string
+                cost *= sizes.get(0);
+            }
+            for (TestNode child : test.getTests()) {
+                cost += test(child, depth + 1);
+            }
+            return cost;
+        }
+
+        /**
+         * @return sizes of the string and string list arguments, in order,
+         * after noting the largest
+         */
+        private List<Integer> lists(final CallNode call) {
+            List<Integer> sizes = new ArrayList<>(2);
+            boolean tagValue = false;
+            for (ArgumentNode argument : call.getArguments()) {
+                int size = argument instanceof StringListNode ? ((StringListNode) argument).getStrings().size()
+                        : argument instanceof StringNode ? 1 : -1;
+                if (size >= 0) {
+                    largestList = Math.max(largestList, size);
+                    // Tag values, such as the comparator name, aren't sources or keys
+                    if (!tagValue) {
+                        sizes.add(size);
+                    }
+                }
+                tagValue = argument instanceof TagNode && TAGS_WITH_VALUES.contains(((TagNode) argument).getName());
+            }
+            return sizes;
+        }
+    }
+
+    private static boolean isMatchTest(final String name) {
+        switch (name) {
+            case "header":
+            case "address":
+            case "envelope":
+            case "string":
+            case "body":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.io.Serializable;
+
+/**
+ * A problem found while lexing or parsing a script, with the span of text it
+ * applies to.
+ */
+public final class SieveDiagnostic implements Serializable {
+
+    private static final long serialVersionUID = 3071563392482264810L;
+
+    private final String message;
+    private final int start;
+    private final int end;
+    private final int line;
+    private final int column;
+
+    public SieveDiagnostic(final String message, final int start, final int end, final int line, final int column) {
+        this.message = message;
+        this.start = start;
+        this.end = end;
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * @return description of the problem, without position
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return offset of the first character of the problem
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return offset just past the last character of the problem
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return line (starting at 1) of the first character
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return column (starting at 1) of the first character
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        return "line " + line + " column " + column + ": " + message;
+    }
+}
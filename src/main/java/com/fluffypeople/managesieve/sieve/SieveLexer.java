@@ -0,0 +1,426 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveToken.Kind;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single pass lexer for Sieve scripts, following the lexical rules of <a
+ * href="http://tools.ietf.org/html/rfc5228#section-8.1">rfc5228 section
+ * 8.1</a>.
+ * <p>
+ * Works directly over a CharSequence. Comments (both <code>#</code> and
+ * <code>/* ... *&#47;</code>) and white space are skipped, quoted strings
+ * are unescaped, <code>text:</code> strings are read to their terminating
+ * dot and un-stuffed, and number quantifiers (K, M, G) are applied, all
+ * without backtracking.
+ */
+public final class SieveLexer {
+
+    // Largest number that can still take a G quantifier without overflowing
+    private static final long MAX_NUMBER = Long.MAX_VALUE >> 30;
+
+    private final CharSequence input;
+    private final int length;
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0;
+    private SieveToken peeked = null;
+    private int previousEnd = 0;
+
+    public SieveLexer(final CharSequence input) {
+        this.input = input;
+        this.length = input.length();
+    }
+
+    /**
+     * Start lexing part way through the input.
+     *
+     * @param input text to lex
+     * @param offset position to start from
+     * @param line line number of <code>offset</code>, starting at 1
+     */
+    public SieveLexer(final CharSequence input, final int offset, final int line) {
+        this(input);
+        this.pos = offset;
+        this.previousEnd = offset;
+        this.line = line;
+        int start = offset;
+        while (start > 0 && input.charAt(start - 1) != '\n') {
+            start -= 1;
+        }
+        this.lineStart = start;
+    }
+
+    /**
+     * Read the whole of a Reader into memory so it can be lexed.
+     *
+     * @param in Reader to read. Not closed.
+     * @return the contents of the Reader
+     * @throws IOException if the Reader throws
+     */
+    public static CharSequence readFully(final Reader in) throws IOException {
+        StringBuilder result = new StringBuilder();
+        char[] buff = new char[8192];
+        int count;
+        while ((count = in.read(buff)) != -1) {
+            result.append(buff, 0, count);
+        }
+        return result;
+    }
+
+    /**
+     * @return the text being lexed
+     */
+    public CharSequence getInput() {
+        return input;
+    }
+
+    /**
+     * Look at the next token without consuming it.
+     *
+     * @return the next token, EOF at the end of input
+     * @throws ParseException if the input isn't valid Sieve
+     */
+    public SieveToken peek() throws ParseException {
+        if (peeked == null) {
+            peeked = lex();
+        }
+        return peeked;
+    }
+
+    /**
+     * Consume the next token.
+     *
+     * @return the next token, EOF at the end of input
+     * @throws ParseException if the input isn't valid Sieve
+     */
+    public SieveToken next() throws ParseException {
+        SieveToken result = peek();
+        peeked = null;
+        previousEnd = result.getEnd();
+        return result;
+    }
+
+    /**
+     * @return offset just past the last token returned by {@link #next()},
+     * or 0 if nothing has been consumed yet
+     */
+    public int previousEnd() {
+        return previousEnd;
+    }
+
+    private SieveToken lex() throws ParseException {
+        skipWhitespaceAndComments();
+        if (pos >= length) {
+            return token(Kind.EOF, pos, pos, line, pos - lineStart + 1, null, 0);
+        }
+        int start = pos;
+        int startLine = line;
+        int startColumn = pos - lineStart + 1;
+        char c = input.charAt(pos);
+        switch (c) {
+            case '[':
+                pos += 1;
+                return token(Kind.LEFT_BRACKET, start, pos, startLine, startColumn, null, 0);
+            case ']':
+                pos += 1;
+                return token(Kind.RIGHT_BRACKET, start, pos, startLine, startColumn, null, 0);
+            case '(':
+                pos += 1;
+                return token(Kind.LEFT_PAREN, start, pos, startLine, startColumn, null, 0);
+            case ')':
+                pos += 1;
+                return token(Kind.RIGHT_PAREN, start, pos, startLine, startColumn, null, 0);
+            case '{':
+                pos += 1;
+                return token(Kind.LEFT_BRACE, start, pos, startLine, startColumn, null, 0);
+            case '}':
+                pos += 1;
+                return token(Kind.RIGHT_BRACE, start, pos, startLine, startColumn, null, 0);
+            case ',':
+                pos += 1;
+                return token(Kind.COMMA, start, pos, startLine, startColumn, null, 0);
+            case ';':
+                pos += 1;
+                return token(Kind.SEMICOLON, start, pos, startLine, startColumn, null, 0);
+            case '"':
+                return quotedString(start, startLine, startColumn);
+            case ':':
+                pos += 1;
+                if (pos >= length || !isIdentifierStart(input.charAt(pos))) {
+                    throw error("Expecting identifier after : but got " + describe(pos), pos, line, pos - lineStart + 1);
+                }
+                return token(Kind.TAG, start, scanIdentifier(), startLine, startColumn, input.subSequence(start + 1, pos).toString(), 0);
+            default:
+                if (isDigit(c)) {
+                    return number(start, startLine, startColumn);
+                } else if (isIdentifierStart(c)) {
+                    scanIdentifier();
+                    String name = input.subSequence(start, pos).toString();
+                    if (pos < length && input.charAt(pos) == ':' && name.equalsIgnoreCase("text")) {
+                        pos += 1;
+                        return multiline(start, startLine, startColumn);
+                    }
+                    return token(Kind.IDENTIFIER, start, pos, startLine, startColumn, name, 0);
+                }
+                String unexpected = describe(pos);
+                pos += 1;
+                throw error("Unexpected character " + unexpected, start, startLine, startColumn);
+        }
+    }
+
+    private void skipWhitespaceAndComments() throws ParseException {
+        while (pos < length) {
+            char c = input.charAt(pos);
+            if (c == ' ' || c == '\t' || c == '\r') {
+                pos += 1;
+            } else if (c == '\n') {
+                newline();
+            } else if (c == '#') {
+                skipToEndOfLine();
+            } else if (c == '/' && pos + 1 < length && input.charAt(pos + 1) == '*') {
+                int commentStart = pos;
+                int startLine = line;
+                int startColumn = pos - lineStart + 1;
+                pos += 2;
+                while (true) {
+                    if (pos >= length) {
+                        throw error("Unterminated comment", commentStart, startLine, startColumn);
+                    }
+                    c = input.charAt(pos);
+                    if (c == '*' && pos + 1 < length && input.charAt(pos + 1) == '/') {
+                        pos += 2;
+                        break;
+                    } else if (c == '\n') {
+                        newline();
+                    } else {
+                        pos += 1;
+                    }
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void skipToEndOfLine() {
+        while (pos < length && input.charAt(pos) != '\n') {
+            pos += 1;
+        }
+        if (pos < length) {
+            newline();
+        }
+    }
+
+    private void newline() {
+        pos += 1;
+        line += 1;
+        lineStart = pos;
+    }
+
+    private int scanIdentifier() {
+        while (pos < length && isIdentifierPart(input.charAt(pos))) {
+            pos += 1;
+        }
+        return pos;
+    }
+
+    private SieveToken number(final int start, final int startLine, final int startColumn) throws ParseException {
+        long value = 0;
+        while (pos < length && isDigit(input.charAt(pos))) {
+            value = value * 10 + (input.charAt(pos) - '0');
+            if (value > MAX_NUMBER) {
+                scanIdentifier();
+                throw error("Number too large", start, startLine, startColumn);
+            }
+            pos += 1;
+        }
+        if (pos < length) {
+            long multiplier;
+            switch (input.charAt(pos)) {
+                case 'K':
+                case 'k':
+                    multiplier = 1024L;
+                    break;
+                case 'M':
+                case 'm':
+                    multiplier = 1024L * 1024;
+                    break;
+                case 'G':
+                case 'g':
+                    multiplier = 1024L * 1024 * 1024;
+                    break;
+                default:
+                    multiplier = 0;
+            }
+            if (multiplier != 0 && (pos + 1 >= length || !isIdentifierPart(input.charAt(pos + 1)))) {
+                value *= multiplier;
+                pos += 1;
+            }
+        }
+        return token(Kind.NUMBER, start, pos, startLine, startColumn, null, value);
+    }
+
+    private SieveToken quotedString(final int start, final int startLine, final int startColumn) throws ParseException {
+        pos += 1;
+        int contentStart = pos;
+        StringBuilder unescaped = null;
+        while (true) {
+            if (pos >= length) {
+                throw error("Unterminated string", start, startLine, startColumn);
+            }
+            char c = input.charAt(pos);
+            if (c == '"') {
+                String text = unescaped == null
+                        ? input.subSequence(contentStart, pos).toString()
+                        : unescaped.toString();
+                pos += 1;
+                return token(Kind.STRING, start, pos, startLine, startColumn, text, 0);
+            } else if (c == '\\') {
+                if (unescaped == null) {
+                    unescaped = new StringBuilder(pos - contentStart + 16);
+                    unescaped.append(input, contentStart, pos);
+                }
+                pos += 1;
+                if (pos >= length) {
+                    throw error("Unterminated string", start, startLine, startColumn);
+                }
+                // rfc5228 2.4.2: unknown escapes are taken as if the
+                // backslash wasn't there
+                c = input.charAt(pos);
+                unescaped.append(c);
+                if (c == '\n') {
+                    newline();
+                } else {
+                    pos += 1;
+                }
+            } else {
+                if (unescaped != null) {
+                    unescaped.append(c);
+                }
+                if (c == '\n') {
+                    newline();
+                } else {
+                    pos += 1;
+                }
+            }
+        }
+    }
+
+    private SieveToken multiline(final int start, final int startLine, final int startColumn) throws ParseException {
+        // Rest of the "text:" line may only be white space or a comment
+        while (pos < length && (input.charAt(pos) == ' ' || input.charAt(pos) == '\t')) {
+            pos += 1;
+        }
+        if (pos < length && input.charAt(pos) == '#') {
+            skipToEndOfLine();
+        } else {
+            if (pos < length && input.charAt(pos) == '\r') {
+                pos += 1;
+            }
+            if (pos >= length || input.charAt(pos) != '\n') {
+                throw error("Expecting EOL after text: but got " + describe(pos), pos, line, pos - lineStart + 1);
+            }
+            newline();
+        }
+
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            if (pos >= length) {
+                throw error("Unterminated multi-line string", start, startLine, startColumn);
+            }
+            int lineBegin = pos;
+            while (pos < length && input.charAt(pos) != '\n') {
+                pos += 1;
+            }
+            int lineEnd = pos;
+            if (lineEnd > lineBegin && input.charAt(lineEnd - 1) == '\r') {
+                lineEnd -= 1;
+            }
+            if (pos < length) {
+                newline();
+            }
+            if (lineEnd - lineBegin == 1 && input.charAt(lineBegin) == '.') {
+                return token(Kind.MULTILINE, start, pos, startLine, startColumn, text.toString(), 0);
+            }
+            if (lineEnd - lineBegin > 1 && input.charAt(lineBegin) == '.' && input.charAt(lineBegin + 1) == '.') {
+                // Dot stuffed
+                lineBegin += 1;
+            }
+            text.append(input, lineBegin, lineEnd).append("\r\n");
+            if (pos >= length) {
+                throw error("Unterminated multi-line string", start, startLine, startColumn);
+            }
+        }
+    }
+
+    private String describe(final int at) {
+        if (at >= length) {
+            return "EOF";
+        }
+        char c = input.charAt(at);
+        switch (c) {
+            case '\n':
+                return "EOL";
+            case '\r':
+                return "CR";
+            case ' ':
+                return "space";
+            case '\t':
+                return "tab";
+            default:
+                return "'" + c + "'";
+        }
+    }
+
+    private static SieveToken token(final Kind kind, final int start, final int end, final int line, final int column, final String text, final long number) {
+        return new SieveToken(kind, start, end, line, column, text, number);
+    }
+
+    /**
+     * Build an error for the text from <code>start</code> up to the current
+     * position. Callers make sure the position has moved past the bad input,
+     * so lexing can carry on after an error.
+     */
+    private SieveParseException error(final String message, final int start, final int line, final int column) {
+        SieveDiagnostic diagnostic = new SieveDiagnostic(message, start, Math.max(pos, start), line, column);
+        return new SieveParseException(message + " at line " + line + " column " + column, diagnostic);
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(final char c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+}
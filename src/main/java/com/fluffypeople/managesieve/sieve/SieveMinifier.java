@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrite a script in as few bytes as possible without changing what it
+ * does.
+ * <p>
+ * Comments and layout are dropped, leaving a space only where two tokens
+ * would otherwise run together. Each string is written in whichever of the
+ * quoted and <code>text:</code> forms is shorter, numbers use the largest
+ * K/M/G quantifier that shortens them, and a string list of one entry is
+ * written as a plain string (RFC 5228 section 2.4.2.1 allows a string
+ * wherever a string list is expected).
+ * <p>
+ * With verification turned on the output is parsed again and compared with
+ * the input tree, see {@link #isEquivalent(ScriptNode, ScriptNode)}.
+ */
+public class SieveMinifier {
+
+    private final SieveParser parser = new SieveParser();
+    private boolean verify = false;
+
+    /**
+     * @param verify true to re-parse every result and check it against the
+     * original
+     */
+    public void setVerify(final boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @param script Sieve text
+     * @return the minified script
+     * @throws ParseException if the script isn't valid Sieve
+     * @throws IllegalStateException if verification is on and fails
+     */
+    public String minify(final String script) throws ParseException {
+        return minify(parser.parse(script));
+    }
+
+    /**
+     * @param script parsed script
+     * @return the minified script
+     * @throws IllegalStateException if verification is on and fails
+     */
+    public String minify(final ScriptNode script) {
+        Output out = new Output();
+        commands(script.getCommands(), out);
+        String result = out.text.toString();
+        if (verify) {
+            try {
+                if (!isEquivalent(script, parser.parse(result))) {
+                    throw new IllegalStateException("Minified script does not match the original");
+                }
+            } catch (ParseException ex) {
+                throw new IllegalStateException("Minified script does not parse: " + ex.getMessage(), ex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compare two trees the way the minifier sees them: layout, comments,
+     * string and number spelling are ignored, and a one entry string list is
+     * the same as a plain string.
+     *
+     * @param a first tree
+     * @param b second tree
+     * @return true if the scripts mean the same
+     */
+    public static boolean isEquivalent(final ScriptNode a, final ScriptNode b) {
+        return normalise(a.getCommands()).equals(normalise(b.getCommands()));
+    }
+
+    private static List<CommandNode> normalise(final List<CommandNode> commands) {
+        List<CommandNode> result = new ArrayList<>(commands.size());
+        for (CommandNode c : commands) {
+            result.add(new CommandNode(c.getName(), normaliseArguments(c.getArguments()), normaliseTests(c.getTests()), c.isTestList(),
+                    c.hasBlock() ? normalise(c.getBlock()) : null));
+        }
+        return result;
+    }
+
+    private static List<TestNode> normaliseTests(final List<TestNode> tests) {
+        List<TestNode> result = new ArrayList<>(tests.size());
+        for (TestNode t : tests) {
+            result.add(new TestNode(t.getName(), normaliseArguments(t.getArguments()), normaliseTests(t.getTests()), t.isTestList()));
+        }
+        return result;
+    }
+
+    private static List<ArgumentNode> normaliseArguments(final List<ArgumentNode> arguments) {
+        List<ArgumentNode> result = new ArrayList<>(arguments.size());
+        for (ArgumentNode a : arguments) {
+            if (a instanceof StringListNode && ((StringListNode) a).getStrings().size() == 1) {
+                result.add(((StringListNode) a).getStrings().get(0));
+            } else {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tracks the end of the last token so spaces are only added where they
+     * are needed.
+     */
+    private static final class Output {
+
+        final StringBuilder text = new StringBuilder();
+        boolean lastIsWord = false;
+        boolean lastIsText = false;
+
+        void token(final String token) {
+            char first = token.charAt(0);
+            if ((lastIsWord && isWordChar(first)) || (lastIsText && first == ':')) {
+                text.append(' ');
+            }
+            text.append(token);
+            lastIsWord = isWordChar(token.charAt(token.length() - 1));
+            lastIsText = token.equalsIgnoreCase("text");
+        }
+
+        void punctuation(final char c) {
+            text.append(c);
+            lastIsWord = false;
+            lastIsText = false;
+        }
+
+        private static boolean isWordChar(final char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+    }
+
+    private static void commands(final List<CommandNode> commands, final Output out) {
+        for (CommandNode command : commands) {
+            call(command, out);
+            if (command.hasBlock()) {
+                out.punctuation('{');
+                commands(command.getBlock(), out);
+                out.punctuation('}');
+            } else {
+                out.punctuation(';');
+            }
+        }
+    }
+
+    private static void call(final CallNode call, final Output out) {
+        out.token(call.getName());
+        for (ArgumentNode argument : call.getArguments()) {
+            if (argument instanceof StringNode) {
+                string(((StringNode) argument).getValue(), out);
+            } else if (argument instanceof StringListNode) {
+                List<StringNode> strings = ((StringListNode) argument).getStrings();
+                if (strings.size() == 1) {
+                    string(strings.get(0).getValue(), out);
+                } else {
+                    out.punctuation('[');
+                    for (int i = 0; i < strings.size(); i++) {
+                        if (i > 0) {
+                            out.punctuation(',');
+                        }
+                        string(strings.get(i).getValue(), out);
+                    }
+                    out.punctuation(']');
+                }
+            } else if (argument instanceof TagNode) {
+                out.token(":" + ((TagNode) argument).getName());
+            } else if (argument instanceof NumberNode) {
+                out.token(number(((NumberNode) argument).getValue()));
+            }
+        }
+        List<TestNode> tests = call.getTests();
+        if (call.isTestList()) {
+            out.punctuation('(');
+            for (int i = 0; i < tests.size(); i++) {
+                if (i > 0) {
+                    out.punctuation(',');
+                }
+                call(tests.get(i), out);
+            }
+            out.punctuation(')');
+        } else if (!tests.isEmpty()) {
+            call(tests.get(0), out);
+        }
+    }
+
+    private static void string(final String value, final Output out) {
+        String quoted = quote(value);
+        try {
+            if (SieveWriter.canBeMultiline(value) && multilineLength(value) < quoted.length()) {
+                StringBuilder multiline = new StringBuilder();
+                SieveWriter.string(value, multiline);
+                out.token(multiline.toString());
+                return;
+            }
+        } catch (IOException ex) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(ex);
+        }
+        out.token(quoted);
+    }
+
+    /**
+     * Quote a string exactly as it is. Unlike
+     * {@link SieveWriter#quote(String, Appendable)} line breaks are left
+     * alone, since writing a lone LF as CRLF would change the value.
+     */
+    private static String quote(final String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+        quoted.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static int multilineLength(final String value) {
+        // "text:" CRLF, the body with a dot added to lines starting with a
+        // dot, "." CRLF
+        int length = 7 + value.length() + 3;
+        if (value.startsWith(".")) {
+            length += 1;
+        }
+        for (int i = value.indexOf("\n."); i != -1; i = value.indexOf("\n.", i + 1)) {
+            length += 1;
+        }
+        return length;
+    }
+
+    /**
+     * @param value number to write
+     * @return shortest spelling of the number
+     */
+    static String number(final long value) {
+        String best = Long.toString(value);
+        String[] suffixes = { "K", "M", "G" };
+        for (int i = 0; i < suffixes.length; i++) {
+            int shift = 10 * (i + 1);
+            if (value != 0 && value % (1L << shift) == 0) {
+                String candidate = (value >> shift) + suffixes[i];
+                if (candidate.length() < best.length()) {
+                    best = candidate;
+                }
+            }
+        }
+        return best;
+    }
+}
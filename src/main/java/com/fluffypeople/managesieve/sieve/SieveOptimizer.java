@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrite a script so that it does the same thing for less work at
+ * delivery time.
+ * <p>
+ * The rewrites are:
+ * <ul>
+ * <li>commands after <code>stop</code> in the same block are dropped;</li>
+ * <li>anyof inside anyof, and allof inside allof, are flattened, and an
+ * anyof or allof of one test is replaced by the test;</li>
+ * <li>in an anyof, neighbouring header, address, envelope or body tests
+ * with the same tags are merged into one test, either by joining their key
+ * lists (when the rest of the arguments match) or their header lists (when
+ * the keys match);</li>
+ * <li>in an anyof or allof, cheap tests are moved ahead of body and
+ * :regex tests, so that the expensive ones are often skipped;</li>
+ * <li>neighbouring ifs with no elsif or else and identical blocks are
+ * merged into one <code>if anyof (...)</code>, when the block ends with
+ * stop or only keeps or discards, so running it twice is the same as
+ * running it once.</li>
+ * </ul>
+ * Tests have no side effects except setting match variables, so when a
+ * script requires "variables", tests that use :matches or :regex are
+ * neither merged nor moved past. Comments and layout aren't kept; the
+ * result is written with {@link SieveWriter}.
+ */
+public class SieveOptimizer {
+
+    private static final Set<String> MERGEABLE = Set.of("header", "address", "envelope", "body");
+    private static final Set<String> SAFE_TAGS = Set.of("is", "contains", "matches", "regex", "comparator",
+            "all", "localpart", "domain", "user", "detail", "raw", "text", "content");
+
+    private final SieveParser parser = new SieveParser();
+    private final SieveWriter writer = new SieveWriter();
+
+    /**
+     * @return the writer used for output, to change its layout
+     */
+    public SieveWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @param script Sieve text
+     * @return the optimized script
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public String optimize(final String script) throws ParseException {
+        return writer.write(optimize(parser.parse(script)));
+    }
+
+    /**
+     * @param script parsed script
+     * @return optimized tree, with no source spans
+     */
+    public ScriptNode optimize(final ScriptNode script) {
+        boolean variables = false;
+        for (CommandNode command : script.getCommands()) {
+            if (command.getName().equals("require") && !command.getArguments().isEmpty()
+                    && values(command.getArguments().get(0)).contains("variables")) {
+                variables = true;
+            }
+        }
+        return new ScriptNode(new Pass(variables).block(script.getCommands()));
+    }
+
+    /**
+     * One optimization run, knowing whether match variables are visible.
+     */
+    private static final class Pass {
+
+        private final boolean variables;
+
+        Pass(final boolean variables) {
+            this.variables = variables;
+        }
+
+        List<CommandNode> block(final List<CommandNode> commands) {
+            List<CommandNode> result = new ArrayList<>(commands.size());
+            for (CommandNode command : commands) {
+                List<TestNode> tests = new ArrayList<>(command.getTests().size());
+                for (TestNode test : command.getTests()) {
+                    tests.add(test(test));
+                }
+                CommandNode optimized = new CommandNode(command.getName(), command.getArguments(), tests,
+                        command.isTestList(), command.hasBlock() ? block(command.getBlock()) : null);
+                result.add(optimized);
+                if (command.getName().equals("stop")) {
+                    break;
+                }
+            }
+            return mergeIfs(result);
+        }
+
+        /**
+         * Merge runs of plain ifs with the same idempotent block.
+         */
+        private List<CommandNode> mergeIfs(final List<CommandNode> commands) {
+            List<CommandNode> result = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                CommandNode command = commands.get(i);
+                if (!isPlainIf(commands, i) || !isIdempotent(command.getBlock())) {
+                    result.add(command);
+                    continue;
+                }
+                // Without a stop, later tests run even when an earlier one
+                // matched, and can set match variables that are seen later
+                boolean stops = command.getBlock().get(command.getBlock().size() - 1).getName().equals("stop");
+                List<TestNode> tests = new ArrayList<>();
+                tests.add(command.getTests().get(0));
+                int j = i + 1;
+                while (j < commands.size() && isPlainIf(commands, j)
+                        && commands.get(j).getBlock().equals(command.getBlock())
+                        && (stops || canMoveAcross(tests.get(tests.size() - 1)) && canMoveAcross(commands.get(j).getTests().get(0)))) {
+                    tests.add(commands.get(j).getTests().get(0));
+                    j++;
+                }
+                if (tests.size() == 1) {
+                    result.add(command);
+                    continue;
+                }
+                TestNode merged = test(new TestNode("anyof", List.of(), tests, true));
+                result.add(new CommandNode("if", List.of(), List.of(merged), false, command.getBlock()));
+                i = j - 1;
+            }
+            return result;
+        }
+
+        private static boolean isPlainIf(final List<CommandNode> commands, final int i) {
+            if (!commands.get(i).getName().equals("if")) {
+                return false;
+            }
+            if (i + 1 < commands.size()) {
+                String next = commands.get(i + 1).getName();
+                return !next.equals("elsif") && !next.equals("else");
+            }
+            return true;
+        }
+
+        private static boolean isIdempotent(final List<CommandNode> block) {
+            if (block.isEmpty()) {
+                return false;
+            }
+            if (block.get(block.size() - 1).getName().equals("stop")) {
+                return true;
+            }
+            for (CommandNode command : block) {
+                if (!command.getName().equals("keep") && !command.getName().equals("discard")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        TestNode test(final TestNode test) {
+            String name = test.getName();
+            List<TestNode> children = new ArrayList<>(test.getTests().size());
+            for (TestNode child : test.getTests()) {
+                TestNode optimized = test(child);
+                if ((name.equals("anyof") || name.equals("allof")) && optimized.getName().equals(name)) {
+                    children.addAll(optimized.getTests());
+                } else {
+                    children.add(optimized);
+                }
+            }
+            if (!name.equals("anyof") && !name.equals("allof")) {
+                return new TestNode(name, test.getArguments(), children, test.isTestList());
+            }
+            children = hoist(children);
+            if (name.equals("anyof")) {
+                children = merge(children);
+            }
+            if (children.size() == 1) {
+                return children.get(0);
+            }
+            return new TestNode(name, test.getArguments(), children, true);
+        }
+
+        /**
+         * Move cheap tests ahead of expensive ones, keeping the order
+         * within each group.
+         */
+        private List<TestNode> hoist(final List<TestNode> tests) {
+            for (TestNode test : tests) {
+                if (!canMoveAcross(test)) {
+                    return tests;
+                }
+            }
+            List<TestNode> result = new ArrayList<>(tests.size());
+            for (TestNode test : tests) {
+                if (!isExpensive(test)) {
+                    result.add(test);
+                }
+            }
+            for (TestNode test : tests) {
+                if (isExpensive(test)) {
+                    result.add(test);
+                }
+            }
+            return result;
+        }
+
+        private static boolean isExpensive(final TestNode test) {
+            if (test.getName().equals("body") || test.hasTag("regex")) {
+                return true;
+            }
+            for (TestNode child : test.getTests()) {
+                if (isExpensive(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return false if reordering around the test could change match
+         * variables
+         */
+        private boolean canMoveAcross(final TestNode test) {
+            if (!variables) {
+                return true;
+            }
+            if (test.hasTag("matches") || test.hasTag("regex")) {
+                return false;
+            }
+            for (TestNode child : test.getTests()) {
+                if (!canMoveAcross(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Merge neighbouring tests in an anyof.
+         */
+        private List<TestNode> merge(final List<TestNode> tests) {
+            List<TestNode> result = new ArrayList<>(tests.size());
+            for (TestNode test : tests) {
+                if (!result.isEmpty()) {
+                    TestNode merged = merge(result.get(result.size() - 1), test);
+                    if (merged != null) {
+                        result.set(result.size() - 1, merged);
+                        continue;
+                    }
+                }
+                result.add(test);
+            }
+            return result;
+        }
+
+        /**
+         * @return one test equivalent to "anyof (a, b)", or null
+         */
+        private TestNode merge(final TestNode a, final TestNode b) {
+            if (!a.getName().equals(b.getName()) || !MERGEABLE.contains(a.getName())
+                    || !canMoveAcross(a) || !canMoveAcross(b) || !safeTags(a) || !safeTags(b)) {
+                return null;
+            }
+            List<ArgumentNode> aArgs = a.getArguments();
+            List<ArgumentNode> bArgs = b.getArguments();
+            if (aArgs.size() != bArgs.size() || aArgs.isEmpty()) {
+                return null;
+            }
+            int last = aArgs.size() - 1;
+            if (sameArguments(aArgs, bArgs, last)) {
+                return withArgument(a, last, union(aArgs.get(last), bArgs.get(last)));
+            }
+            // Same keys, different header lists
+            if (!a.getName().equals("body") && last >= 1 && sameArguments(aArgs, bArgs, last - 1)
+                    && values(aArgs.get(last)).equals(values(bArgs.get(last)))) {
+                return withArgument(a, last - 1, union(aArgs.get(last - 1), bArgs.get(last - 1)));
+            }
+            return null;
+        }
+
+        private static boolean safeTags(final TestNode test) {
+            for (ArgumentNode argument : test.getArguments()) {
+                if (argument instanceof TagNode && !SAFE_TAGS.contains(((TagNode) argument).getName())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the first count arguments are the same, taking a
+         * one entry list as equal to a string
+         */
+        private static boolean sameArguments(final List<ArgumentNode> a, final List<ArgumentNode> b, final int count) {
+            for (int i = 0; i < count; i++) {
+                ArgumentNode x = a.get(i);
+                ArgumentNode y = b.get(i);
+                if (isStrings(x) && isStrings(y)) {
+                    if (!values(x).equals(values(y))) {
+                        return false;
+                    }
+                } else if (!x.equals(y)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static TestNode withArgument(final TestNode test, final int index, final ArgumentNode argument) {
+            List<ArgumentNode> arguments = new ArrayList<>(test.getArguments());
+            arguments.set(index, argument);
+            return new TestNode(test.getName(), arguments, test.getTests(), test.isTestList());
+        }
+
+        private static ArgumentNode union(final ArgumentNode a, final ArgumentNode b) {
+            Set<String> merged = new LinkedHashSet<>(values(a));
+            merged.addAll(values(b));
+            List<StringNode> strings = new ArrayList<>(merged.size());
+            for (String value : merged) {
+                strings.add(new StringNode(value));
+            }
+            return new StringListNode(strings);
+        }
+    }
+
+    private static boolean isStrings(final ArgumentNode argument) {
+        return argument instanceof StringNode || argument instanceof StringListNode;
+    }
+
+    private static List<String> values(final ArgumentNode argument) {
+        if (argument instanceof StringListNode) {
+            return ((StringListNode) argument).getValues();
+        } else if (argument instanceof StringNode) {
+            return List.of(((StringNode) argument).getValue());
+        }
+        return List.of();
+    }
+}
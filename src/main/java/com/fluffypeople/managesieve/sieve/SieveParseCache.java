@@ -0,0 +1,248 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size bounded cache of parse results, for services that parse the same
+ * scripts over and over.
+ * <p>
+ * Entries are keyed by script text: the String hash code picks one of a
+ * fixed number of segments, and within a segment entries are kept in least
+ * recently used order and compared in full, so a hash collision can never
+ * return the wrong tree. Each segment has its own lock and an equal share
+ * of the weight limit, so threads working on different scripts rarely
+ * contend. Eviction is least recently used within a segment.
+ * <p>
+ * Weight is an estimate of retained bytes: two per character of script text
+ * plus a fixed amount per tree node. A script heavier than a segment's share
+ * is parsed but not cached. Scripts that fail to parse are not cached.
+ * <p>
+ * Cached trees are immutable and are handed out shared.
+ */
+public class SieveParseCache {
+
+    // Rough retained size of one node and its lists
+    private static final int NODE_BYTES = 64;
+    private static final int SEGMENTS = 16;
+
+    private final SieveParser parser;
+    private final long segmentLimit;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Segment {
+
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long weight = 0;
+    }
+
+    private static final class Entry {
+
+        final ScriptNode tree;
+        final long weight;
+
+        Entry(final ScriptNode tree, final long weight) {
+            this.tree = tree;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Create a cache with its own default SieveParser.
+     *
+     * @param maxWeight upper limit on the estimated bytes held, must be
+     * positive
+     */
+    public SieveParseCache(final long maxWeight) {
+        this(maxWeight, new SieveParser());
+    }
+
+    /**
+     * @param maxWeight upper limit on the estimated bytes held, must be
+     * positive
+     * @param parser SieveParser to parse misses with
+     */
+    public SieveParseCache(final long maxWeight, final SieveParser parser) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive");
+        }
+        this.parser = parser;
+        this.segmentLimit = Math.max(1, maxWeight / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Return the cached tree for a script, parsing and caching it if
+     * needed. Two threads that miss on the same script at once may both
+     * parse it.
+     *
+     * @param script the script text
+     * @return ScriptNode for the script
+     * @throws ParseException if the script is not valid Sieve
+     */
+    public ScriptNode parse(final String script) throws ParseException {
+        Segment segment = segmentFor(script);
+        synchronized (segment) {
+            Entry entry = segment.entries.get(script);
+            if (entry != null) {
+                hits.increment();
+                return entry.tree;
+            }
+        }
+        misses.increment();
+        ScriptNode tree = parser.parse(script);
+        long weight = weigh(tree, script);
+        if (weight > segmentLimit) {
+            return tree;
+        }
+        synchronized (segment) {
+            Entry old = segment.entries.put(script, new Entry(tree, weight));
+            if (old != null) {
+                segment.weight -= old.weight;
+            }
+            segment.weight += weight;
+            Iterator<Entry> it = segment.entries.values().iterator();
+            while (segment.weight > segmentLimit && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                segment.weight -= eldest.weight;
+                evictions.increment();
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Remove a script from the cache, if present.
+     *
+     * @param script the script text
+     */
+    public void invalidate(final String script) {
+        Segment segment = segmentFor(script);
+        synchronized (segment) {
+            Entry old = segment.entries.remove(script);
+            if (old != null) {
+                segment.weight -= old.weight;
+            }
+        }
+    }
+
+    /**
+     * Remove everything from the cache. Statistics are kept.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    /**
+     * @return number of cached scripts
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return estimated bytes held by cached entries
+     */
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(final String script) {
+        int h = script.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Estimate the bytes retained by a cache entry.
+     *
+     * @param tree parsed script
+     * @param script script text
+     * @return estimated weight in bytes
+     */
+    static long weigh(final ScriptNode tree, final String script) {
+        return 2L * script.length() + NODE_BYTES * (1 + countCommands(tree.getCommands()));
+    }
+
+    private static long countCommands(final List<CommandNode> commands) {
+        long count = 0;
+        for (CommandNode command : commands) {
+            count += 1 + countCall(command) + countCommands(command.getBlock());
+        }
+        return count;
+    }
+
+    private static long countCall(final CallNode call) {
+        long count = call.getArguments().size();
+        for (ArgumentNode argument : call.getArguments()) {
+            if (argument instanceof StringListNode) {
+                count += ((StringListNode) argument).getStrings().size();
+            }
+        }
+        for (TestNode test : call.getTests()) {
+            count += 1 + countCall(test);
+        }
+        return count;
+    }
+}
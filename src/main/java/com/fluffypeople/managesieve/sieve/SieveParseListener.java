@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in trace of a Sieve parse. Parsers only call a listener if one has
+ * been set, so parsing without one does no extra work.
+ * <p>
+ * All methods have empty default implementations, so implementations only
+ * need to override the events they care about.
+ */
+public interface SieveParseListener {
+
+    /**
+     * Grammar rules reported to {@link #enter} and {@link #exit}, named after
+     * the productions in rfc5228 section 8.2.
+     */
+    enum Rule {
+        COMMANDS,
+        COMMAND,
+        ARGUMENTS,
+        STRING,
+        STRING_LIST,
+        TAG,
+        NUMBER,
+        BLOCK,
+        TEST_LIST,
+        TEST
+    }
+
+    /**
+     * Called when the parser starts on a rule.
+     *
+     * @param rule Rule being started
+     * @param next SieveToken the rule will start with (not yet consumed)
+     */
+    default void enter(Rule rule, SieveToken next) {
+    }
+
+    /**
+     * Called when the parser has finished a rule successfully.
+     *
+     * @param rule Rule that has been finished
+     */
+    default void exit(Rule rule) {
+    }
+
+    /**
+     * Called for each token the parser consumes.
+     *
+     * @param token SieveToken consumed
+     */
+    default void token(SieveToken token) {
+    }
+
+    /**
+     * A listener that writes every event to the given Logger at FINEST, for
+     * debugging.
+     *
+     * @param log Logger to write to
+     * @return SieveParseListener
+     */
+    static SieveParseListener logging(final Logger log) {
+        return new SieveParseListener() {
+            @Override
+            public void enter(Rule rule, SieveToken next) {
+                log.log(Level.FINEST, "{0} start at line {1}: {2}", new Object[]{rule, next.getLine(), next});
+            }
+
+            @Override
+            public void exit(Rule rule) {
+                log.log(Level.FINEST, "{0} end", rule);
+            }
+        };
+    }
+}
@@ -0,0 +1,663 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveParseListener.Rule;
+import com.fluffypeople.managesieve.sieve.SieveToken.Kind;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recursive descent parser for the RFC 5228 grammar, producing an immutable
+ * {@link ScriptNode}.
+ * <p>
+ * All parse state lives on the stack, so one parser may be shared between
+ * threads once it has been configured.
+ * <p>
+ * {@link #reparse(ScriptNode, int, int, String)} applies a text edit to an
+ * earlier result and re-parses only the commands the edit touches.
+ */
+public class SieveParser {
+
+    private volatile SieveParseListener trace = null;
+    private volatile boolean allowTrailingInput = false;
+
+    /**
+     * Outcome of {@link #parseRecovering(CharSequence)}: the commands that
+     * could be parsed, and every problem found.
+     */
+    public static final class Result {
+
+        private final ScriptNode script;
+        private final List<SieveDiagnostic> diagnostics;
+
+        Result(final ScriptNode script, final List<SieveDiagnostic> diagnostics) {
+            this.script = script;
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+        }
+
+        /**
+         * @return the script, leaving out any command that had an error in
+         * it (other than in its block)
+         */
+        public ScriptNode getScript() {
+            return script;
+        }
+
+        /**
+         * @return problems found, in the order they appear in the script.
+         * Empty if the script is valid.
+         */
+        public List<SieveDiagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        /**
+         * @return true if no problems were found
+         */
+        public boolean isValid() {
+            return diagnostics.isEmpty();
+        }
+    }
+
+    /**
+     * Set a listener to be told about each grammar rule and token as the
+     * script is parsed. Tracing is off (and costs nothing) by default.
+     *
+     * @param listener SieveParseListener, or null to turn tracing off
+     */
+    public void setTraceListener(final SieveParseListener listener) {
+        this.trace = listener;
+    }
+
+    /**
+     * By default anything after the last top level command is an error.
+     * Historically {@link com.fluffypeople.managesieve.xml.SieveToXML} stopped
+     * at the first token that couldn't start a command and ignored the rest,
+     * and setting this to true restores that behaviour.
+     *
+     * @param allow true to ignore trailing input
+     */
+    public void setAllowTrailingInput(final boolean allow) {
+        this.allowTrailingInput = allow;
+    }
+
+    public ScriptNode parse(final CharSequence script) throws ParseException {
+        return parse(new SieveLexer(script));
+    }
+
+    public ScriptNode parse(final Reader script) throws IOException, ParseException {
+        return parse(new SieveLexer(SieveLexer.readFully(script)));
+    }
+
+    /**
+     * Parse everything remaining in the lexer.
+     *
+     * @param in SieveLexer positioned at the start of a command list
+     * @return ScriptNode holding the commands
+     * @throws ParseException if the script is not valid Sieve
+     */
+    public ScriptNode parse(final SieveLexer in) throws ParseException {
+        SieveParseListener listener = trace;
+        List<CommandNode> commands = commands(in, listener, null, false);
+        SieveToken token = in.peek();
+        if (!allowTrailingInput && !token.is(Kind.EOF)) {
+            raiseError("command", token);
+        }
+        return new ScriptNode(commands, in.getInput().toString());
+    }
+
+    /**
+     * Parse a script, carrying on past errors so that they can all be
+     * reported at once.
+     * <p>
+     * After an error the parser skips to the end of the broken command: the
+     * next semicolon, the end of the block that follows, the brace that
+     * closes the enclosing block, or an identifier at the start of a later
+     * line. Errors inside a block don't lose the
+     * command the block belongs to. Lexer errors (unterminated strings and
+     * so on) are reported the same way.
+     *
+     * @param script the script text
+     * @return Result holding what could be parsed and the diagnostics
+     */
+    public Result parseRecovering(final CharSequence script) {
+        SieveLexer in = new SieveLexer(script);
+        List<SieveDiagnostic> diagnostics = new ArrayList<>();
+        List<CommandNode> commands;
+        try {
+            commands = commands(in, trace, diagnostics, false);
+        } catch (ParseException ex) {
+            // Every parse error is caught and recorded while recovering
+            throw new IllegalStateException(ex);
+        }
+        return new Result(new ScriptNode(commands, script.toString()), diagnostics);
+    }
+
+    /**
+     * Apply an edit to the text of a previously parsed script and return the
+     * tree for the new text.
+     * <p>
+     * Only the commands that the edit touches are parsed again. Parsing
+     * restarts after the last command that ends before the edit, and stops
+     * as soon as it reaches the start of an old command that lies wholly
+     * after the edit (on a later line, so that its columns are unchanged).
+     * Edits inside a block are handled the same way within the block.
+     * Commands before the edit are reused as they are; commands after it are
+     * copied with their spans moved. If the edit can't be contained (for
+     * example it opens a comment that runs to the end of the script) the
+     * whole script is parsed again.
+     * <p>
+     * The result is always the same as parsing the new text from scratch,
+     * including spans and any ParseException.
+     *
+     * @param previous ScriptNode returned by a parse or reparse of this
+     * parser
+     * @param offset where the edit starts in the previous text
+     * @param removed number of characters removed at <code>offset</code>
+     * @param inserted text inserted at <code>offset</code>
+     * @return ScriptNode for the edited text
+     * @throws ParseException if the edited text is not valid Sieve
+     * @throws IllegalArgumentException if <code>previous</code> wasn't
+     * parsed from text
+     * @throws IndexOutOfBoundsException if the edit is outside the text
+     */
+    public ScriptNode reparse(final ScriptNode previous, final int offset, final int removed, final String inserted) throws ParseException {
+        String old = previous.getSource();
+        if (old == null) {
+            throw new IllegalArgumentException("Script has no source text");
+        }
+        if (offset < 0 || removed < 0 || offset + removed > old.length()) {
+            throw new IndexOutOfBoundsException("Edit " + offset + "+" + removed + " outside text of length " + old.length());
+        }
+        String text = old.substring(0, offset) + inserted + old.substring(offset + removed);
+        Edit edit = new Edit(old, text, offset, removed, inserted);
+        List<CommandNode> commands = reparse(previous.getCommands(), edit, -1, trace);
+        if (commands == null) {
+            return parse(text);
+        }
+        return new ScriptNode(commands, text);
+    }
+
+    /**
+     * Position of an edit, in both the old and new text.
+     */
+    private static final class Edit {
+
+        final String oldText;
+        final String newText;
+        final int offset;
+        final int oldEnd;
+        final int delta;
+        final int lineDelta;
+        final int oldEndLine;
+
+        Edit(final String oldText, final String newText, final int offset, final int removed, final String inserted) {
+            this.oldText = oldText;
+            this.newText = newText;
+            this.offset = offset;
+            this.oldEnd = offset + removed;
+            this.delta = inserted.length() - removed;
+            this.lineDelta = countLines(inserted, 0, inserted.length()) - countLines(oldText, offset, oldEnd);
+            this.oldEndLine = 1 + countLines(oldText, 0, oldEnd);
+        }
+    }
+
+    /**
+     * Re-parse the commands of one list (the top level, or a block) that
+     * are touched by an edit.
+     *
+     * @param old the commands before the edit
+     * @param edit the edit, which must lie within this list
+     * @param close for a block, the offset in the old text of its closing
+     * brace. -1 for the top level.
+     * @return the new commands, or null if the edit reaches outside the list
+     */
+    private List<CommandNode> reparse(final List<CommandNode> old, final Edit edit, final int close, final SieveParseListener trace) throws ParseException {
+        int first = 0;
+        while (first < old.size() && old.get(first).getEnd() <= edit.offset) {
+            first += 1;
+        }
+        List<CommandNode> result = new ArrayList<>(old.size() + 4);
+        result.addAll(old.subList(0, first));
+
+        // An edit that stays among the children of a single block only needs
+        // that block parsing again
+        if (first < old.size()) {
+            CommandNode command = old.get(first);
+            List<CommandNode> block = command.getBlock();
+            // The following siblings can only be copied with their columns
+            // unchanged if they start on a later line than the edit
+            boolean laterLine = first + 1 == old.size() || old.get(first + 1).getLine() > edit.oldEndLine;
+            if (laterLine && !block.isEmpty() && edit.offset >= block.get(0).getStart() && edit.oldEnd <= block.get(block.size() - 1).getEnd()) {
+                List<CommandNode> children = reparse(block, edit, closingBrace(edit.oldText, block.get(block.size() - 1)), trace);
+                if (children != null) {
+                    result.add(new CommandNode(command.getName(), command.getArguments(), command.getTests(), command.isTestList(), children,
+                            command.getStart(), command.getEnd() + edit.delta, command.getLine(), command.getColumn()));
+                    shiftAll(old.subList(first + 1, old.size()), edit, result);
+                    return result;
+                }
+            }
+        }
+
+        SieveLexer in;
+        if (first == 0) {
+            in = close == -1 ? new SieveLexer(edit.newText) : new SieveLexer(edit.newText, old.get(0).getStart(), old.get(0).getLine());
+        } else {
+            CommandNode before = old.get(first - 1);
+            in = new SieveLexer(edit.newText, before.getEnd(), before.getLine() + countLines(edit.oldText, before.getStart(), before.getEnd()));
+        }
+
+        int next = first;
+        while (true) {
+            SieveToken token = in.peek();
+            while (next < old.size() && (old.get(next).getStart() < edit.oldEnd || old.get(next).getStart() + edit.delta < token.getStart())) {
+                next += 1;
+            }
+            if (next < old.size() && old.get(next).getStart() + edit.delta == token.getStart() && old.get(next).getLine() > edit.oldEndLine) {
+                // Back in step with the old tree
+                shiftAll(old.subList(next, old.size()), edit, result);
+                return result;
+            }
+            CommandNode command = command(in, trace, null);
+            if (command == null) {
+                break;
+            }
+            result.add(command);
+        }
+
+        SieveToken token = in.peek();
+        if (close == -1) {
+            if (!allowTrailingInput && !token.is(Kind.EOF)) {
+                raiseError("command", token);
+            }
+            return result;
+        }
+        if (token.is(Kind.RIGHT_BRACE) && close >= edit.oldEnd && token.getStart() == close + edit.delta) {
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Find the closing brace of a block in the old text by lexing on from
+     * its last command.
+     */
+    private static int closingBrace(final String text, final CommandNode last) throws ParseException {
+        SieveToken token = new SieveLexer(text, last.getEnd(), last.getLine() + countLines(text, last.getStart(), last.getEnd())).peek();
+        return token.getStart();
+    }
+
+    private static int countLines(final String text, final int from, final int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == '\n') {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private static void shiftAll(final List<CommandNode> commands, final Edit edit, final List<CommandNode> result) {
+        for (CommandNode command : commands) {
+            result.add(shift(command, edit));
+        }
+    }
+
+    private static CommandNode shift(final CommandNode node, final Edit edit) {
+        if (edit.delta == 0 && edit.lineDelta == 0) {
+            return node;
+        }
+        List<CommandNode> block = null;
+        if (node.hasBlock()) {
+            block = new ArrayList<>(node.getBlock().size());
+            shiftAll(node.getBlock(), edit, block);
+        }
+        return new CommandNode(node.getName(), shiftArguments(node.getArguments(), edit), shiftTests(node.getTests(), edit), node.isTestList(), block,
+                node.getStart() + edit.delta, node.getEnd() + edit.delta, node.getLine() + edit.lineDelta, node.getColumn());
+    }
+
+    private static List<TestNode> shiftTests(final List<TestNode> tests, final Edit edit) {
+        List<TestNode> result = new ArrayList<>(tests.size());
+        for (TestNode test : tests) {
+            result.add(new TestNode(test.getName(), shiftArguments(test.getArguments(), edit), shiftTests(test.getTests(), edit), test.isTestList(),
+                    test.getStart() + edit.delta, test.getEnd() + edit.delta, test.getLine() + edit.lineDelta, test.getColumn()));
+        }
+        return result;
+    }
+
+    private static List<ArgumentNode> shiftArguments(final List<ArgumentNode> arguments, final Edit edit) {
+        List<ArgumentNode> result = new ArrayList<>(arguments.size());
+        for (ArgumentNode argument : arguments) {
+            if (argument instanceof StringListNode) {
+                List<StringNode> strings = new ArrayList<>();
+                for (StringNode s : ((StringListNode) argument).getStrings()) {
+                    strings.add(shiftString(s, edit));
+                }
+                result.add(new StringListNode(strings, argument.getStart() + edit.delta, argument.getEnd() + edit.delta,
+                        argument.getLine() + edit.lineDelta, argument.getColumn()));
+            } else if (argument instanceof StringNode) {
+                result.add(shiftString((StringNode) argument, edit));
+            } else if (argument instanceof TagNode) {
+                result.add(new TagNode(((TagNode) argument).getName(), argument.getStart() + edit.delta, argument.getEnd() + edit.delta,
+                        argument.getLine() + edit.lineDelta, argument.getColumn()));
+            } else if (argument instanceof NumberNode) {
+                result.add(new NumberNode(((NumberNode) argument).getValue(), argument.getStart() + edit.delta, argument.getEnd() + edit.delta,
+                        argument.getLine() + edit.lineDelta, argument.getColumn()));
+            }
+        }
+        return result;
+    }
+
+    private static StringNode shiftString(final StringNode s, final Edit edit) {
+        return new StringNode(s.getValue(), s.isMultiline(), s.getStart() + edit.delta, s.getEnd() + edit.delta,
+                s.getLine() + edit.lineDelta, s.getColumn());
+    }
+
+    /**
+     * Parse a list of commands.
+     *
+     * @param diagnostics null to stop at the first error, or a List to add
+     * errors to and carry on
+     * @param nested true for the contents of a block
+     */
+    private List<CommandNode> commands(final SieveLexer in, final SieveParseListener trace, final List<SieveDiagnostic> diagnostics, final boolean nested) throws ParseException {
+        while (diagnostics != null && peek(in, diagnostics) == null) {
+            // Get past any lexer errors before tracing peeks
+        }
+        enter(in, trace, Rule.COMMANDS);
+        List<CommandNode> commands = new ArrayList<>();
+        while (true) {
+            CommandNode command;
+            try {
+                command = command(in, trace, diagnostics);
+            } catch (SieveParseException ex) {
+                if (diagnostics == null) {
+                    throw ex;
+                }
+                diagnostics.add(ex.getDiagnostic());
+                resync(in, diagnostics);
+                continue;
+            }
+            if (command != null) {
+                commands.add(command);
+                continue;
+            }
+            if (diagnostics == null) {
+                break;
+            }
+            // Recovering: skip anything that can't start a command, up to the
+            // end of the list
+            SieveToken token = peek(in, diagnostics);
+            if (token == null) {
+                continue;
+            }
+            if (token.is(Kind.EOF) || (nested && token.is(Kind.RIGHT_BRACE)) || (!nested && allowTrailingInput)) {
+                break;
+            }
+            diagnostics.add(diagnostic(nested ? "}" : "command", token));
+            in.next();
+        }
+        exit(trace, Rule.COMMANDS);
+        return commands;
+    }
+
+    /**
+     * After an error in a command, skip to just after the semicolon or block
+     * that ends it, or to the brace that closes the enclosing block. An
+     * identifier at the start of a later line is also taken as the start of
+     * the next command, so a missing semicolon doesn't swallow it.
+     */
+    private static void resync(final SieveLexer in, final List<SieveDiagnostic> diagnostics) throws ParseException {
+        int depth = 0;
+        int previousLine = -1;
+        while (true) {
+            SieveToken token = peek(in, diagnostics);
+            if (token == null) {
+                continue;
+            }
+            if (depth == 0 && token.is(Kind.IDENTIFIER) && previousLine != -1 && token.getLine() > previousLine) {
+                return;
+            }
+            previousLine = token.getLine();
+            if (token.is(Kind.EOF)) {
+                return;
+            } else if (token.is(Kind.SEMICOLON) && depth == 0) {
+                in.next();
+                return;
+            } else if (token.is(Kind.LEFT_BRACE)) {
+                depth += 1;
+            } else if (token.is(Kind.RIGHT_BRACE)) {
+                if (depth == 0) {
+                    return;
+                }
+                depth -= 1;
+                if (depth == 0) {
+                    in.next();
+                    return;
+                }
+            }
+            in.next();
+        }
+    }
+
+    /**
+     * Peek while recovering. Lexer errors are recorded, and as the lexer
+     * always moves past bad input the caller can just try again.
+     *
+     * @return the next token, or null if the lexer reported an error
+     */
+    private static SieveToken peek(final SieveLexer in, final List<SieveDiagnostic> diagnostics) {
+        try {
+            return in.peek();
+        } catch (SieveParseException ex) {
+            diagnostics.add(ex.getDiagnostic());
+            return null;
+        } catch (ParseException ex) {
+            // SieveLexer only throws SieveParseException
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private CommandNode command(final SieveLexer in, final SieveParseListener trace, final List<SieveDiagnostic> diagnostics) throws ParseException {
+        // First token should be an identifier
+        if (!in.peek().is(Kind.IDENTIFIER)) {
+            return null;
+        }
+        enter(in, trace, Rule.COMMAND);
+        SieveToken name = next(in, trace);
+
+        List<ArgumentNode> arguments = new ArrayList<>();
+        List<TestNode> tests = new ArrayList<>();
+        boolean testList = arguments(in, trace, arguments, tests);
+
+        List<CommandNode> block = null;
+        SieveToken end;
+        SieveToken token = in.peek();
+        if (token.is(Kind.LEFT_BRACE)) {
+            enter(in, trace, Rule.BLOCK);
+            next(in, trace);
+            block = commands(in, trace, diagnostics, true);
+            end = next(in, trace);
+            if (diagnostics != null && end.is(Kind.EOF)) {
+                // Keep what we have of a block that runs off the end
+                diagnostics.add(diagnostic("}", end));
+            } else if (!end.is(Kind.RIGHT_BRACE)) {
+                raiseError("}", end);
+            }
+            exit(trace, Rule.BLOCK);
+        } else if (token.is(Kind.SEMICOLON)) {
+            // end of command
+            end = next(in, trace);
+        } else {
+            raiseError("{ or ;", token);
+            return null;
+        }
+        exit(trace, Rule.COMMAND);
+        return new CommandNode(name.getText(), arguments, tests, testList, block,
+                name.getStart(), end.getEnd(), name.getLine(), name.getColumn());
+    }
+
+    /**
+     * Parse arguments and any trailing test or test list into the given
+     * lists.
+     *
+     * @return true if the tests were a parenthesised test list
+     */
+    private boolean arguments(final SieveLexer in, final SieveParseListener trace, final List<ArgumentNode> arguments, final List<TestNode> tests) throws ParseException {
+        enter(in, trace, Rule.ARGUMENTS);
+        ArgumentNode argument;
+        while ((argument = argument(in, trace)) != null) {
+            arguments.add(argument);
+        }
+        boolean testList = false;
+        SieveToken token = in.peek();
+        if (token.is(Kind.LEFT_PAREN)) {
+            testList(in, trace, tests);
+            testList = true;
+        } else if (token.is(Kind.IDENTIFIER)) {
+            tests.add(test(in, trace));
+        }
+        exit(trace, Rule.ARGUMENTS);
+        return testList;
+    }
+
+    private ArgumentNode argument(final SieveLexer in, final SieveParseListener trace) throws ParseException {
+        SieveToken token = in.peek();
+        switch (token.getKind()) {
+            case LEFT_BRACKET:
+                return stringList(in, trace);
+            case STRING:
+            case MULTILINE:
+                return string(in, trace);
+            case IDENTIFIER:
+                if (token.getText().equals("text")) {
+                    // "text" without a colon isn't a multi-line string
+                    next(in, trace);
+                    raiseError(":", in.peek());
+                }
+                return null;
+            case NUMBER:
+                enter(in, trace, Rule.NUMBER);
+                next(in, trace);
+                exit(trace, Rule.NUMBER);
+                return new NumberNode(token.getNumber(), token.getStart(), token.getEnd(), token.getLine(), token.getColumn());
+            case TAG:
+                enter(in, trace, Rule.TAG);
+                next(in, trace);
+                exit(trace, Rule.TAG);
+                return new TagNode(token.getText(), token.getStart(), token.getEnd(), token.getLine(), token.getColumn());
+            default:
+                return null;
+        }
+    }
+
+    private StringNode string(final SieveLexer in, final SieveParseListener trace) throws ParseException {
+        enter(in, trace, Rule.STRING);
+        SieveToken token = next(in, trace);
+        if (!token.is(Kind.STRING) && !token.is(Kind.MULTILINE)) {
+            raiseError("\"", token);
+        }
+        exit(trace, Rule.STRING);
+        return new StringNode(token.getText(), token.is(Kind.MULTILINE), token.getStart(), token.getEnd(), token.getLine(), token.getColumn());
+    }
+
+    private StringListNode stringList(final SieveLexer in, final SieveParseListener trace) throws ParseException {
+        enter(in, trace, Rule.STRING_LIST);
+        SieveToken open = next(in, trace);
+        List<StringNode> strings = new ArrayList<>();
+        SieveToken token;
+        do {
+            strings.add(string(in, trace));
+            token = next(in, trace);
+        } while (token.is(Kind.COMMA));
+        if (!token.is(Kind.RIGHT_BRACKET)) {
+            raiseError("]", token);
+        }
+        exit(trace, Rule.STRING_LIST);
+        return new StringListNode(strings, open.getStart(), token.getEnd(), open.getLine(), open.getColumn());
+    }
+
+    private void testList(final SieveLexer in, final SieveParseListener trace, final List<TestNode> tests) throws ParseException {
+        enter(in, trace, Rule.TEST_LIST);
+        next(in, trace);
+        SieveToken token;
+        do {
+            tests.add(test(in, trace));
+            token = next(in, trace);
+        } while (token.is(Kind.COMMA));
+        if (!token.is(Kind.RIGHT_PAREN)) {
+            raiseError(")", token);
+        }
+        exit(trace, Rule.TEST_LIST);
+    }
+
+    private TestNode test(final SieveLexer in, final SieveParseListener trace) throws ParseException {
+        enter(in, trace, Rule.TEST);
+        SieveToken name = next(in, trace);
+        if (!name.is(Kind.IDENTIFIER)) {
+            raiseError("test", name);
+        }
+        List<ArgumentNode> arguments = new ArrayList<>();
+        List<TestNode> tests = new ArrayList<>();
+        boolean testList = arguments(in, trace, arguments, tests);
+        int end = in.previousEnd();
+        exit(trace, Rule.TEST);
+        return new TestNode(name.getText(), arguments, tests, testList,
+                name.getStart(), end, name.getLine(), name.getColumn());
+    }
+
+    private static SieveToken next(final SieveLexer in, final SieveParseListener trace) throws ParseException {
+        SieveToken token = in.next();
+        if (trace != null) {
+            trace.token(token);
+        }
+        return token;
+    }
+
+    private static void enter(final SieveLexer in, final SieveParseListener trace, final Rule rule) throws ParseException {
+        if (trace != null) {
+            trace.enter(rule, in.peek());
+        }
+    }
+
+    private static void exit(final SieveParseListener trace, final Rule rule) {
+        if (trace != null) {
+            trace.exit(rule);
+        }
+    }
+
+    private static void raiseError(final String expecting, final SieveToken token) throws ParseException {
+        SieveDiagnostic diagnostic = diagnostic(expecting, token);
+        throw new SieveParseException(diagnostic.getMessage() + " at line " + token.getLine(), diagnostic);
+    }
+
+    private static SieveDiagnostic diagnostic(final String expecting, final SieveToken token) {
+        return new SieveDiagnostic("Expecting " + expecting + " but got " + token, token.getStart(), token.getEnd(), token.getLine(), token.getColumn());
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Convert a Sieve script to JSON, in one pass from the parse tree to a
+ * Writer.
+ * <p>
+ * The structure follows the RFC 5784 XML format element for element:
+ * <pre>
+ * script   = {"sieve": [command, ...]}
+ * command  = {"control": name, "arguments": [...], "tests": [test, ...]
+ *             [, "commands": [command, ...]]}
+ *          / {"action": name, "arguments": [...], "tests": [test, ...]
+ *             [, "commands": [command, ...]]}
+ * test     = {"test": name, "arguments": [...], "tests": [test, ...]}
+ * argument = {"str": "value"}
+ *          / {"list": ["value", ...]}
+ *          / {"tag": "name"}           ; without the leading colon
+ *          / {"num": 1024}             ; quantifiers already applied
+ * </pre>
+ * Commands are "control" for if, elsif, else, stop and require, and
+ * "action" otherwise, as in the XML format. "commands" is present only
+ * when the command has a block (which may be empty), and "arguments" and
+ * "tests" are always present. Keys are always written in the order shown.
+ * Numbers can go up to 2^63 - 1, beyond the integers a JavaScript number
+ * holds exactly.
+ * <p>
+ * Like {@link com.fluffypeople.managesieve.xml.SieveToXML}, conversion keeps
+ * no state between calls and one converter can be shared between threads.
+ */
+public class SieveToJSON {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SieveParser parser = new SieveParser();
+
+    public SieveToJSON() {
+        // Accept the same scripts as SieveToXML
+        parser.setAllowTrailingInput(true);
+    }
+
+    /**
+     * Convert a script and write it to a Writer. The script is parsed
+     * before any output starts, so nothing is written if it isn't valid
+     * Sieve.
+     *
+     * @param script Reader to read the script from. Not closed.
+     * @param out Writer to write to. Flushed, not closed.
+     * @throws IOException if either stream throws
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public void convert(final Reader script, final Writer out) throws IOException, ParseException {
+        writeJSON(parser.parse(script), out);
+        out.flush();
+    }
+
+    /**
+     * @param script script to convert
+     * @return the script as JSON
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public String convert(final String script) throws ParseException {
+        StringWriter out = new StringWriter(script.length() * 2);
+        try {
+            writeJSON(parser.parse(script), out);
+        } catch (IOException ex) {
+            // StringWriter doesn't throw
+            throw new IllegalStateException(ex);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write an already parsed script as JSON. Output goes to the Writer in
+     * small pieces, so a buffered Writer is a good idea.
+     *
+     * @param script ScriptNode to write
+     * @param out Writer to write to. Not flushed or closed.
+     * @throws IOException if the Writer throws
+     */
+    public static void writeJSON(final ScriptNode script, final Writer out) throws IOException {
+        out.write("{\"sieve\":");
+        commands(script.getCommands(), out);
+        out.write('}');
+    }
+
+    private static void commands(final Iterable<CommandNode> commands, final Writer out) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (CommandNode command : commands) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(command.isControl() ? "{\"control\":" : "{\"action\":");
+            call(command, out);
+            if (command.hasBlock()) {
+                out.write(",\"commands\":");
+                commands(command.getBlock(), out);
+            }
+            out.write('}');
+        }
+        out.write(']');
+    }
+
+    private static void call(final CallNode call, final Writer out) throws IOException {
+        string(call.getName(), out);
+        out.write(",\"arguments\":[");
+        boolean first = true;
+        for (ArgumentNode argument : call.getArguments()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            if (argument instanceof StringNode) {
+                out.write("{\"str\":");
+                string(((StringNode) argument).getValue(), out);
+            } else if (argument instanceof StringListNode) {
+                out.write("{\"list\":[");
+                boolean firstString = true;
+                for (StringNode s : ((StringListNode) argument).getStrings()) {
+                    if (!firstString) {
+                        out.write(',');
+                    }
+                    firstString = false;
+                    string(s.getValue(), out);
+                }
+                out.write(']');
+            } else if (argument instanceof TagNode) {
+                out.write("{\"tag\":");
+                string(((TagNode) argument).getName(), out);
+            } else if (argument instanceof NumberNode) {
+                out.write("{\"num\":");
+                out.write(Long.toString(((NumberNode) argument).getValue()));
+            }
+            out.write('}');
+        }
+        out.write("],\"tests\":[");
+        first = true;
+        for (TestNode test : call.getTests()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"test\":");
+            call(test, out);
+            out.write('}');
+        }
+        out.write(']');
+    }
+
+    /**
+     * Write a JSON string literal. Control characters, U+2028 and U+2029
+     * (not allowed in JavaScript source before ES2019) and unpaired
+     * surrogates are escaped; everything else is copied in runs.
+     */
+    static void string(final String s, final Writer out) throws IOException {
+        out.write('"');
+        int from = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            String escape;
+            if (c == '"') {
+                escape = "\\\"";
+            } else if (c == '\\') {
+                escape = "\\\\";
+            } else if (c == '\n') {
+                escape = "\\n";
+            } else if (c == '\r') {
+                escape = "\\r";
+            } else if (c == '\t') {
+                escape = "\\t";
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                escape = null;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                    continue;
+                }
+                escape = null;
+            } else {
+                continue;
+            }
+            out.write(s, from, i - from);
+            if (escape != null) {
+                out.write(escape);
+            } else {
+                out.write("\\u");
+                out.write(HEX[c >> 12 & 0xf]);
+                out.write(HEX[c >> 8 & 0xf]);
+                out.write(HEX[c >> 4 & 0xf]);
+                out.write(HEX[c & 0xf]);
+            }
+            from = i + 1;
+        }
+        out.write(s, from, length - from);
+        out.write('"');
+    }
+}
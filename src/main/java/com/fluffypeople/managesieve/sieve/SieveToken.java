@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+/**
+ * A single lexical token from a Sieve script, as produced by
+ * {@link SieveLexer}.
+ * <p>
+ * Tokens record where they came from (character offsets, plus line and
+ * column of the first character) along with their decoded value: the name of
+ * an identifier or tag (without the leading colon), the unescaped contents of
+ * a string, or the value of a number with any quantifier applied.
+ */
+public final class SieveToken {
+
+    /**
+     * Kinds of token.
+     */
+    public enum Kind {
+        IDENTIFIER,
+        TAG,
+        NUMBER,
+        /**
+         * A quoted string.
+         */
+        STRING,
+        /**
+         * A <code>text:</code> multi-line string.
+         */
+        MULTILINE,
+        LEFT_BRACKET,
+        RIGHT_BRACKET,
+        LEFT_PAREN,
+        RIGHT_PAREN,
+        LEFT_BRACE,
+        RIGHT_BRACE,
+        COMMA,
+        SEMICOLON,
+        EOF
+    }
+
+    private final Kind kind;
+    private final int start;
+    private final int end;
+    private final int line;
+    private final int column;
+    private final String text;
+    private final long number;
+
+    SieveToken(final Kind kind, final int start, final int end, final int line, final int column, final String text, final long number) {
+        this.kind = kind;
+        this.start = start;
+        this.end = end;
+        this.line = line;
+        this.column = column;
+        this.text = text;
+        this.number = number;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return offset of the first character of this token
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return offset just past the last character of this token
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return line number (starting at 1) of the first character
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return column (starting at 1) of the first character
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the decoded value for identifiers, tags and strings, null for
+     * other kinds
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the value of a number, with any K, M or G quantifier applied
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    public boolean is(final Kind kind) {
+        return this.kind == kind;
+    }
+
+    /**
+     * Describe the token for error messages.
+     */
+    @Override
+    public String toString() {
+        switch (kind) {
+            case IDENTIFIER:
+                return text;
+            case TAG:
+                return ":" + text;
+            case NUMBER:
+                return Long.toString(number);
+            case STRING:
+                return "\"" + text + "\"";
+            case MULTILINE:
+                return "text:";
+            case LEFT_BRACKET:
+                return "[";
+            case RIGHT_BRACKET:
+                return "]";
+            case LEFT_PAREN:
+                return "(";
+            case RIGHT_PAREN:
+                return ")";
+            case LEFT_BRACE:
+                return "{";
+            case RIGHT_BRACE:
+                return "}";
+            case COMMA:
+                return ",";
+            case SEMICOLON:
+                return ";";
+            default:
+                return "EOF";
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.ServerCapabilities;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Check a Sieve script locally before it is sent to the server.
+ * <p>
+ * The script is parsed with {@link SieveParser}, then the <code>require</code>
+ * commands are checked against the extensions the server advertises, and
+ * commands, tests and tags that belong to a well known extension are checked
+ * to make sure that extension has been required, or is tested for with
+ * <code>ihave</code> (RFC 5463) in an enclosing <code>if</code>. Scripts that fail these
+ * checks would be rejected by CHECKSCRIPT or PUTSCRIPT anyway, so there is no
+ * need to pay for the round trip.
+ * <p>
+ * Passing the local checks does not guarantee the server will accept the
+ * script (the server knows about extensions and restrictions that we don't),
+ * so {@link #validate(ManageSieveClient, String)} will confirm with the server
+ * once the local check passes.
+ */
+public class SieveValidator {
+
+    private static final Map<String, String> COMMAND_EXTENSIONS = new HashMap<>();
+    private static final Map<String, String> TEST_EXTENSIONS = new HashMap<>();
+    private static final Map<String, String> TAG_EXTENSIONS = new HashMap<>();
+
+    static {
+        COMMAND_EXTENSIONS.put("fileinto", "fileinto");
+        COMMAND_EXTENSIONS.put("reject", "reject");
+        COMMAND_EXTENSIONS.put("ereject", "ereject");
+        COMMAND_EXTENSIONS.put("vacation", "vacation");
+        COMMAND_EXTENSIONS.put("setflag", "imap4flags");
+        COMMAND_EXTENSIONS.put("addflag", "imap4flags");
+        COMMAND_EXTENSIONS.put("removeflag", "imap4flags");
+        COMMAND_EXTENSIONS.put("set", "variables");
+        COMMAND_EXTENSIONS.put("include", "include");
+        COMMAND_EXTENSIONS.put("return", "include");
+        COMMAND_EXTENSIONS.put("global", "include");
+        COMMAND_EXTENSIONS.put("notify", "enotify");
+        COMMAND_EXTENSIONS.put("addheader", "editheader");
+        COMMAND_EXTENSIONS.put("deleteheader", "editheader");
+        COMMAND_EXTENSIONS.put("error", "ihave");
+
+        TEST_EXTENSIONS.put("envelope", "envelope");
+        TEST_EXTENSIONS.put("body", "body");
+        TEST_EXTENSIONS.put("hasflag", "imap4flags");
+        TEST_EXTENSIONS.put("string", "variables");
+        TEST_EXTENSIONS.put("date", "date");
+        TEST_EXTENSIONS.put("currentdate", "date");
+        TEST_EXTENSIONS.put("duplicate", "duplicate");
+        TEST_EXTENSIONS.put("valid_notify_method", "enotify");
+        TEST_EXTENSIONS.put("notify_method_capability", "enotify");
+        TEST_EXTENSIONS.put("ihave", "ihave");
+        TEST_EXTENSIONS.put("environment", "environment");
+        TEST_EXTENSIONS.put("spamtest", "spamtest");
+        TEST_EXTENSIONS.put("virustest", "virustest");
+
+        TAG_EXTENSIONS.put("copy", "copy");
+        TAG_EXTENSIONS.put("regex", "regex");
+        TAG_EXTENSIONS.put("count", "relational");
+        TAG_EXTENSIONS.put("value", "relational");
+        TAG_EXTENSIONS.put("flags", "imap4flags");
+        TAG_EXTENSIONS.put("mailboxid", "mailboxid");
+        TAG_EXTENSIONS.put("create", "mailbox");
+    }
+
+    /**
+     * Outcome of a validation.
+     */
+    public static class Result {
+
+        private final List<String> errors;
+        private final ManageSieveResponse serverResponse;
+
+        Result(final List<String> errors, final ManageSieveResponse serverResponse) {
+            this.errors = Collections.unmodifiableList(errors);
+            this.serverResponse = serverResponse;
+        }
+
+        /**
+         * @return true if the local checks passed and, if the server was
+         * asked, it answered OK
+         */
+        public boolean isValid() {
+            return errors.isEmpty() && (serverResponse == null || serverResponse.isOk());
+        }
+
+        /**
+         * @return true if the script was rejected without contacting the
+         * server
+         */
+        public boolean isRejectedLocally() {
+            return !errors.isEmpty();
+        }
+
+        /**
+         * @return List of problems found by the local checks, empty if none
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the CHECKSCRIPT response, or null if the server wasn't
+         * asked
+         */
+        public ManageSieveResponse getServerResponse() {
+            return serverResponse;
+        }
+    }
+
+    private final ServerCapabilities cap;
+    private final SieveParser parser = new SieveParser();
+
+    /**
+     * Create a validator for the given server.
+     *
+     * @param cap ServerCapabilities to check require commands against. If
+     *            null only syntax and missing require commands are checked.
+     */
+    public SieveValidator(final ServerCapabilities cap) {
+        this.cap = cap;
+    }
+
+    /**
+     * Check a script locally, without contacting the server.
+     *
+     * @param script String body of the script
+     * @return Result of the checks
+     */
+    public Result validate(final String script) {
+        return new Result(check(script), null);
+    }
+
+    /**
+     * Check a script locally, and if that passes confirm with the server
+     * using CHECKSCRIPT.
+     *
+     * @param client ManageSieveClient, connected and authenticated
+     * @param script String body of the script
+     * @return Result of the checks
+     * @throws IOException    if there are underlying IO issues
+     * @throws ParseException if we can't parse the response from the server
+     */
+    public Result validate(final ManageSieveClient client, final String script) throws IOException, ParseException {
+        List<String> errors = check(script);
+        if (!errors.isEmpty()) {
+            return new Result(errors, null);
+        }
+        return new Result(errors, client.checkscript(script));
+    }
+
+    private List<String> check(final String script) {
+        List<String> errors = new ArrayList<>();
+        ScriptNode root;
+        try {
+            root = parser.parse(script);
+        } catch (ParseException ex) {
+            errors.add(ex.getMessage());
+            return errors;
+        }
+
+        Set<String> required = new HashSet<>();
+        boolean seenOther = false;
+        for (CommandNode command : root.getCommands()) {
+            if (isRequire(command)) {
+                if (seenOther) {
+                    errors.add("require must come before any other command");
+                }
+                for (String ext : strings(command)) {
+                    required.add(ext);
+                    if (cap != null && !cap.hasSieveExtension(ext)) {
+                        errors.add("Extension \"" + ext + "\" is not supported by the server");
+                    }
+                }
+            } else {
+                seenOther = true;
+            }
+        }
+
+        for (CommandNode command : root.getCommands()) {
+            checkUsage(command, required, errors, true);
+        }
+        return errors;
+    }
+
+    private static void checkUsage(final CommandNode command, final Set<String> required, final List<String> errors, final boolean topLevel) {
+        if (isRequire(command) && !topLevel) {
+            errors.add("require is not allowed inside a block");
+        }
+        checkName(command.getName(), COMMAND_EXTENSIONS, required, errors);
+        checkTags(command, required, errors);
+        for (TestNode test : command.getTests()) {
+            checkUsage(test, required, errors);
+        }
+        if (command.getBlock().isEmpty()) {
+            return;
+        }
+        // Inside "if ihave ..." the named extensions can be used without
+        // being required, and needn't be supported by the server
+        Set<String> inBlock = required;
+        if (command.getName().equals("if") || command.getName().equals("elsif")) {
+            Set<String> have = new HashSet<>();
+            for (TestNode test : command.getTests()) {
+                ihave(test, have);
+            }
+            if (!have.isEmpty()) {
+                inBlock = new HashSet<>(required);
+                inBlock.addAll(have);
+            }
+        }
+        for (CommandNode child : command.getBlock()) {
+            checkUsage(child, inBlock, errors, false);
+        }
+    }
+
+    private static void checkUsage(final TestNode test, final Set<String> required, final List<String> errors) {
+        checkName(test.getName(), TEST_EXTENSIONS, required, errors);
+        checkTags(test, required, errors);
+        for (TestNode child : test.getTests()) {
+            checkUsage(child, required, errors);
+        }
+    }
+
+    private static void checkTags(final CallNode call, final Set<String> required, final List<String> errors) {
+        for (ArgumentNode arg : call.getArguments()) {
+            if (arg instanceof TagNode) {
+                checkName(((TagNode) arg).getName(), TAG_EXTENSIONS, required, errors);
+            }
+        }
+    }
+
+    private static void checkName(final String name, final Map<String, String> extensions, final Set<String> required, final List<String> errors) {
+        String ext = extensions.get(name);
+        if (ext != null && !required.contains(ext)) {
+            errors.add("\"" + name + "\" needs require \"" + ext + "\"");
+        }
+    }
+
+    /**
+     * Collect the extensions an if test guarantees, that is those named by
+     * ihave tests that must all be true for the block to run.
+     */
+    private static void ihave(final TestNode test, final Set<String> have) {
+        if (test.getName().equals("ihave")) {
+            have.addAll(strings(test));
+        } else if (test.getName().equals("allof")) {
+            for (TestNode child : test.getTests()) {
+                ihave(child, have);
+            }
+        }
+    }
+
+    private static boolean isRequire(final CommandNode command) {
+        return command.getName().equals("require");
+    }
+
+    private static List<String> strings(final CallNode call) {
+        List<String> result = new ArrayList<>();
+        for (ArgumentNode arg : call.getArguments()) {
+            if (arg instanceof StringNode) {
+                result.add(((StringNode) arg).getValue());
+            } else if (arg instanceof StringListNode) {
+                result.addAll(((StringListNode) arg).getValues());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Write a syntax tree back out as Sieve script text.
+ * <p>
+ * Output is one command per line with blocks indented, and
+ * <code>elsif</code>/<code>else</code> kept on the line that closes the
+ * previous block. Strings that end in a line break (and only use CRLF line
+ * breaks) are written as dot-stuffed <code>text:</code> strings, everything
+ * else is quoted. Parsing the output gives a tree equal to the input.
+ */
+public class SieveWriter {
+
+    private String lineSeparator = "\r\n";
+    private String indent = "    ";
+
+    /**
+     * Set the line separator used between commands. RFC 5228 requires CRLF,
+     * which is the default. Multi-line strings always use CRLF.
+     *
+     * @param lineSeparator String to end lines with
+     */
+    public void setLineSeparator(final String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+    }
+
+    /**
+     * @param indent String to indent each block level with
+     */
+    public void setIndent(final String indent) {
+        this.indent = indent;
+    }
+
+    /**
+     * @param script ScriptNode to write
+     * @return the script as Sieve text
+     */
+    public String write(final ScriptNode script) {
+        StringBuilder out = new StringBuilder();
+        try {
+            write(script, out);
+        } catch (IOException ex) {
+            // StringBuilder doesn't throw
+            throw new UncheckedIOException(ex);
+        }
+        return out.toString();
+    }
+
+    public void write(final ScriptNode script, final Appendable out) throws IOException {
+        commands(script.getCommands(), out, 0);
+    }
+
+    /**
+     * Write a single top level command and the line break after it, so a
+     * script can be written one command at a time. The line break is left
+     * off if <code>next</code> continues an if/elsif chain.
+     *
+     * @param command CommandNode to write
+     * @param next name of the command that will be written next, or null
+     * @param out Appendable to write to
+     * @throws IOException if the Appendable throws
+     */
+    public void write(final CommandNode command, final String next, final Appendable out) throws IOException {
+        command(command, out, 0);
+        if (command.hasBlock() && isChained(next)) {
+            out.append(' ');
+        } else {
+            out.append(lineSeparator);
+        }
+    }
+
+    private void commands(final List<CommandNode> commands, final Appendable out, final int depth) throws IOException {
+        for (int i = 0; i < commands.size(); i++) {
+            CommandNode command = commands.get(i);
+            if (i == 0 || !commands.get(i - 1).hasBlock() || !isChained(command.getName())) {
+                indent(out, depth);
+            }
+            command(command, out, depth);
+            if (command.hasBlock() && i + 1 < commands.size() && isChained(commands.get(i + 1).getName())) {
+                out.append(' ');
+            } else {
+                out.append(lineSeparator);
+            }
+        }
+    }
+
+    private void command(final CommandNode command, final Appendable out, final int depth) throws IOException {
+        call(command, out);
+        if (!command.hasBlock()) {
+            out.append(';');
+        } else if (command.getBlock().isEmpty()) {
+            out.append(" {}");
+        } else {
+            out.append(" {").append(lineSeparator);
+            commands(command.getBlock(), out, depth + 1);
+            indent(out, depth);
+            out.append('}');
+        }
+    }
+
+    private void call(final CallNode call, final Appendable out) throws IOException {
+        out.append(call.getName());
+        for (ArgumentNode argument : call.getArguments()) {
+            out.append(' ');
+            argument(argument, out);
+        }
+        List<TestNode> tests = call.getTests();
+        if (call.isTestList()) {
+            out.append(" (");
+            for (int i = 0; i < tests.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                call(tests.get(i), out);
+            }
+            out.append(')');
+        } else if (!tests.isEmpty()) {
+            out.append(' ');
+            call(tests.get(0), out);
+        }
+    }
+
+    private void argument(final ArgumentNode argument, final Appendable out) throws IOException {
+        if (argument instanceof StringNode) {
+            string(((StringNode) argument).getValue(), out);
+        } else if (argument instanceof StringListNode) {
+            List<StringNode> strings = ((StringListNode) argument).getStrings();
+            out.append('[');
+            for (int i = 0; i < strings.size(); i++) {
+                if (i > 0) {
+                    out.append(", ");
+                }
+                string(strings.get(i).getValue(), out);
+            }
+            out.append(']');
+        } else if (argument instanceof TagNode) {
+            out.append(':').append(((TagNode) argument).getName());
+        } else if (argument instanceof NumberNode) {
+            out.append(Long.toString(((NumberNode) argument).getValue(), 10));
+        }
+    }
+
+    /**
+     * Write a string value as either a quoted string or a
+     * <code>text:</code> string, whichever reads back as the same value.
+     * Sieve only allows line breaks as CRLF, so a lone CR or LF (for example
+     * from XML, where line ends are normalised to LF) is written as CRLF.
+     *
+     * @param value String to write
+     * @param out Appendable to write to
+     * @throws IOException if the Appendable throws
+     */
+    public static void string(final String value, final Appendable out) throws IOException {
+        String lines = value.indexOf('\r') < 0 && value.indexOf('\n') < 0 ? value : crlf(value);
+        if (canBeMultiline(lines)) {
+            out.append("text:\r\n");
+            int from = 0;
+            while (from < lines.length()) {
+                int eol = lines.indexOf("\r\n", from);
+                if (lines.charAt(from) == '.') {
+                    out.append('.');
+                }
+                out.append(lines, from, eol + 2);
+                from = eol + 2;
+            }
+            out.append(".\r\n");
+        } else {
+            quote(value, out);
+        }
+    }
+
+    /**
+     * Write a quoted string, escaping backslash and double quote, and
+     * writing a lone CR or LF as CRLF.
+     *
+     * @param value String to write
+     * @param out Appendable to write to
+     * @throws IOException if the Appendable throws
+     */
+    public static void quote(final String value, final Appendable out) throws IOException {
+        out.append('"');
+        int from = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append(value, from, i).append('\\');
+                from = i;
+            } else if (c == '\r' && i + 1 < value.length() && value.charAt(i + 1) == '\n') {
+                i++;
+            } else if (c == '\r' || c == '\n') {
+                out.append(value, from, i).append("\r\n");
+                from = i + 1;
+            }
+        }
+        out.append(value, from, value.length()).append('"');
+    }
+
+    private static String crlf(final String value) {
+        StringBuilder result = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' && i + 1 < value.length() && value.charAt(i + 1) == '\n') {
+                result.append("\r\n");
+                i++;
+            } else if (c == '\r' || c == '\n') {
+                result.append("\r\n");
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * A value survives a trip through <code>text:</code> only if every
+     * line in it ends with CRLF, since the lexer turns any line break into
+     * CRLF.
+     */
+    static boolean canBeMultiline(final String value) {
+        if (!value.endsWith("\r\n")) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' && value.charAt(i + 1) != '\n') {
+                return false;
+            } else if (c == '\n' && (i == 0 || value.charAt(i - 1) != '\r')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isChained(final String name) {
+        return "elsif".equals(name) || "else".equals(name);
+    }
+
+    private void indent(final Appendable out, final int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.append(indent);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bracketed list of strings, <code>["a", "b"]</code>.
+ */
+public final class StringListNode extends ArgumentNode {
+
+    private final List<StringNode> strings;
+
+    public StringListNode(final List<StringNode> strings) {
+        this(strings, -1, -1, -1, -1);
+    }
+
+    public StringListNode(final List<StringNode> strings, final int start, final int end, final int line, final int column) {
+        super(start, end, line, column);
+        this.strings = List.copyOf(strings);
+    }
+
+    /**
+     * @return unmodifiable List of the strings in this list
+     */
+    public List<StringNode> getStrings() {
+        return strings;
+    }
+
+    /**
+     * @return the string values, in order
+     */
+    public List<String> getValues() {
+        List<String> result = new ArrayList<>(strings.size());
+        for (StringNode s : strings) {
+            result.add(s.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof StringListNode && strings.equals(((StringListNode) obj).strings);
+    }
+
+    @Override
+    public int hashCode() {
+        return strings.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return strings.toString();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.Objects;
+
+/**
+ * A string argument. The value has already been unescaped (for quoted
+ * strings) or un-stuffed (for <code>text:</code> strings).
+ * <p>
+ * Equality compares values only. A quoted string and a <code>text:</code>
+ * string with the same value are equal, since they mean the same thing and
+ * {@link SieveWriter} chooses the form from the value.
+ */
+public final class StringNode extends ArgumentNode {
+
+    private final String value;
+    private final boolean multiline;
+
+    public StringNode(final String value) {
+        this(value, false, -1, -1, -1, -1);
+    }
+
+    public StringNode(final String value, final boolean multiline, final int start, final int end, final int line, final int column) {
+        super(start, end, line, column);
+        this.value = Objects.requireNonNull(value);
+        this.multiline = multiline;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return true if this string was written as <code>text:</code>
+     */
+    public boolean isMultiline() {
+        return multiline;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof StringNode && value.equals(((StringNode) obj).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "\"" + value + "\"";
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.sieve;
+
+import java.util.List;
+
+/**
+ * A test, such as <code>header :contains "subject" "x"</code> or
+ * <code>anyof (true, false)</code>.
+ */
+public final class TestNode extends CallNode {
+
+    public TestNode(final String name, final List<ArgumentNode> arguments, final List<TestNode> tests, final boolean testList) {
+        this(name, arguments, tests, testList, -1, -1, -1, -1);
+    }
+
+    public TestNode(final String name, final List<ArgumentNode> arguments, final List<TestNode> tests, final boolean testList,
+            final int start, final int end, final int line, final int column) {
+        super(name, arguments, tests, testList, start, end, line, column);
+    }
+
+    @Override
+    public String toString() {
+        return "test " + getName();
+    }
+}
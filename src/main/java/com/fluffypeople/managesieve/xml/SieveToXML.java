@@ -24,346 +24,374 @@
 package com.fluffypeople.managesieve.xml;
 
 import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.ArgumentNode;
+import com.fluffypeople.managesieve.sieve.CallNode;
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.NumberNode;
+import com.fluffypeople.managesieve.sieve.ScriptNode;
+import com.fluffypeople.managesieve.sieve.SieveParseCache;
+import com.fluffypeople.managesieve.sieve.SieveParseListener;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import com.fluffypeople.managesieve.sieve.StringListNode;
+import com.fluffypeople.managesieve.sieve.StringNode;
+import com.fluffypeople.managesieve.sieve.TagNode;
+import com.fluffypeople.managesieve.sieve.TestNode;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.StreamTokenizer;
-import java.io.StringReader;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.dom.DOMResult;
+import org.w3c.dom.Document;
 
 /**
  * Convert a Sieve script to its XML representation.
+ * <p>
+ * The script is parsed to a {@link ScriptNode} by {@link SieveParser}, and
+ * the tree is then written out in the format described by RFC 5784.
+ * <p>
+ * Conversion keeps no state between calls, so one converter can be shared by
+ * any number of threads. {@link #convertAll(Collection)} converts many
+ * scripts in parallel.
  *
  * @author "Osric Wilkinson" &lt;osric@fluffypeople.com&gt;
  */
 public class SieveToXML {
 
-    private static final Logger log = Logger.getLogger(SieveToXML.class.getName());
-    private StreamTokenizer in;
-    private static final String[] CONTROL_NAMES = { "if", "elsif", "else", "stop", "require" };
+    /**
+     * Namespace of the RFC 5784 XML format.
+     */
+    public static final String NAMESPACE = "urn:ietf:params:xml:ns:sieve";
 
-    public XML convert(final String script) throws IOException, ParseException {
-        return convert(new StringReader(script));
-    }
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newFactory();
 
-    public XML convert(final Reader script) throws ParseException, IOException {
-        XML xml = new XML();
-        in = new StreamTokenizer(script);
-        setupTokenizer();
+    private final SieveParser parser = new SieveParser();
+    private volatile SieveParseCache cache = null;
 
-        xml.start("sieve", "xmlns", "urn:ietf:params:xml:ns:sieve");
-        commands(xml);
-        xml.end();
+    /**
+     * Outcome of converting one script in a batch: either the XML or the
+     * exception that stopped it.
+     */
+    public static final class Result {
 
-        return xml;
-    }
+        private final int index;
+        private final XML xml;
+        private final Exception error;
 
-    private void commands(final XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "commands start");
-        while (command(xml)) {
+        Result(final int index, final XML xml, final Exception error) {
+            this.index = index;
+            this.xml = xml;
+            this.error = error;
         }
-        log.log(Level.FINEST, "commands end");
-    }
 
-    private boolean command(final XML xml) throws IOException, ParseException {
-        log.log(Level.FINEST, "command");
-        int token = in.nextToken();
-        // First token should be an identifier
-        if (token == StreamTokenizer.TT_WORD) {
-            String name = in.sval;
-            // Strictly, identifiers shouldn't start with a number
-            // TODO: Check that
-
-            String tag = nameIsControl(name) ? "control" : "action";
-            xml.start(tag, "name", name);
-
-            arguments(xml);
-
-            token = in.nextToken();
-            if (token == '{') {
-                in.pushBack();
-                block(xml);
-            } else if (token == ';') {
-                // end of command
-            } else {
-                raiseError("{ or ;", token, in.lineno());
-            }
-            xml.end();
-            return true;
-
-        } else {
-            in.pushBack();
-            return false;
+        /**
+         * @return position of the script in the batch, starting at 0
+         */
+        public int getIndex() {
+            return index;
         }
-    }
 
-    private void arguments(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "arguments");
-        while (argument(xml)) {
+        /**
+         * @return true if the script was converted
+         */
+        public boolean isOk() {
+            return error == null;
         }
-        int token = in.nextToken();
-        in.pushBack();
-        if (token == '(') {
-            test_list(xml);
-        } else if (token == StreamTokenizer.TT_WORD) {
-            test(xml);
+
+        /**
+         * @return the converted script, or null if conversion failed
+         */
+        public XML getXML() {
+            return xml;
         }
-    }
 
-    private boolean argument(XML xml) throws IOException, ParseException {
-        log.log(Level.FINEST, "argument");
-        int token = in.nextToken();
-        in.pushBack();
-        if (token == '[') {
-            string_list(xml);
-            return true;
-        } else if (token == '"') {
-            string(xml);
-            return true;
-        } else if (token == StreamTokenizer.TT_WORD && in.sval.equals("text")) {
-            in.pushBack();
-            string(xml);
-            return true;
-        } else if (token == StreamTokenizer.TT_NUMBER) {
-            number(xml);
-            return true;
-        } else if (token == ':') {
-            tag(xml);
-            return true;
-        } else {
-            return false;
+        /**
+         * @return the ParseException (or other exception) that stopped
+         * conversion, or null if it succeeded
+         */
+        public Exception getError() {
+            return error;
         }
     }
 
-    private void string(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "string");
-        int token = in.nextToken();
-        if (token == '"') {
-            xml.add("str", in.sval);
-        } else if (token == StreamTokenizer.TT_WORD) {
-            if (in.sval.equals("text")) {
-                token = in.nextToken();
-                if (token == ':') {
-                    // multi line string. Set tokenizer to ignore everything
-                    // but line endings and # comments.
-                    in.resetSyntax();
-                    in.ordinaryChars(0, 255);
-                    in.commentChar('#');
-                    in.whitespaceChars('\r', '\r');
-                    in.whitespaceChars('\n', '\n');
-                    in.eolIsSignificant(true);
-
-                    // Read to end of line we're on
-                    token = in.nextToken();
-                    if (token != StreamTokenizer.TT_EOL) {
-                        raiseError("EOL", token, in.lineno());
-                    }
+    public SieveToXML() {
+        parser.setAllowTrailingInput(true);
+    }
 
-                    // OK< start of multiline string. Comments are no longer
-                    // significant
-                    in.ordinaryChar('#');
+    /**
+     * Set a listener to be told about each grammar rule and token as the
+     * script is parsed. Tracing is off (and costs nothing) by default.
+     *
+     * @param listener SieveParseListener, or null to turn tracing off
+     */
+    public void setTraceListener(final SieveParseListener listener) {
+        parser.setTraceListener(listener);
+    }
 
-                    StringBuilder rawString = new StringBuilder();
+    /**
+     * Keep parse results for {@link #convert(String)} in a
+     * {@link SieveParseCache}, so converting the same script again skips
+     * parsing. Each call still returns a new XML document. Off by default.
+     *
+     * @param maxWeight cache size limit in (estimated) bytes, or 0 to turn
+     * caching off
+     */
+    public void setCacheSize(final long maxWeight) {
+        this.cache = maxWeight > 0 ? new SieveParseCache(maxWeight, parser) : null;
+    }
 
-                    while (true) {
-                        StringBuilder line = new StringBuilder();
-                        do {
-                            token = in.nextToken();
+    /**
+     * @return the parse cache, for statistics, or null if caching is off
+     */
+    public SieveParseCache getCache() {
+        return cache;
+    }
 
-                            if (token == StreamTokenizer.TT_WORD) {
-                                // Unicode character
-                                line.append(in.sval);
-                            } else if (token == '\r' || token == '\n') {
-                                // skip it
-                            } else {
-                                try {
-                                    line.append(Character.toChars(token));
-                                } catch (java.lang.IllegalArgumentException ex) {
-                                    log.log(Level.SEVERE, String.format("%s is not a valid char ", token), ex);
-                                    throw ex;
-                                }
-                            }
-                        } while (token != StreamTokenizer.TT_EOL);
-                        System.out.println("line: " + line.toString());
+    public XML convert(final String script) throws IOException, ParseException {
+        SieveParseCache c = cache;
+        return toXML(c != null ? c.parse(script) : parser.parse(script));
+    }
 
-                        if (line.length() == 1 && line.codePointAt(0) == '.') {
-                            // Found last line
-                            break;
-                        } else if (line.length() > 1 && line.codePointAt(0) == '.' && line.codePointAt(1) == '.') {
-                            // Dot has been doubled, so delete the extra
-                            line.deleteCharAt(0);
-                        }
-                        rawString.append(line).append("\r\n");
-                    }
+    public XML convert(final Reader script) throws ParseException, IOException {
+        return toXML(parser.parse(script));
+    }
 
-                    xml.add("str", rawString.toString());
-                    setupTokenizer();
-                } else {
-                    raiseError(":", token, in.lineno());
-                }
-            } else {
-                raiseError("'text'", token, in.lineno());
-            }
-        } else {
-            raiseError("\"", token, in.lineno());
+    /**
+     * Write an already parsed script as XML. The document is built by
+     * {@link #writeXML(ScriptNode, XMLStreamWriter)}, so it holds exactly
+     * what the streaming methods write.
+     *
+     * @param script ScriptNode to convert
+     * @return XML document with a &lt;sieve&gt; root
+     */
+    public static XML toXML(final ScriptNode script) {
+        XML xml = new XML();
+        try {
+            XMLStreamWriter out = domWriter(xml.getDocument());
+            writeXML(script, out);
+            out.close();
+            xml.getDocument().normalize();
+        } catch (XMLStreamException ex) {
+            throw new IllegalStateException("Can't build XML document: " + ex.getMessage(), ex);
         }
+        return xml;
     }
 
-    private void string_list(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "string_list");
-        int token = in.nextToken();
-        if (token == '[') {
-            xml.start("list");
-            do {
-                string(xml);
-                token = in.nextToken();
-            } while (token == ',');
-            if (token != ']') {
-                raiseError("]", token, in.lineno());
-            }
-            xml.end();
-        } else {
-            raiseError("[", token, in.lineno());
-        }
+    /**
+     * Convert a batch of scripts in parallel on the common ForkJoinPool.
+     *
+     * @param scripts scripts to convert
+     * @return one Result per script, in the same order
+     * @see #convertAll(Collection, ForkJoinPool)
+     */
+    public List<Result> convertAll(final Collection<String> scripts) {
+        return convertAll(scripts, ForkJoinPool.commonPool());
     }
 
-    private void tag(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "tag");
-        int token = in.nextToken();
-        if (token == ':') {
-            token = in.nextToken();
-            if (token == StreamTokenizer.TT_WORD) {
-                xml.add("tag", in.sval);
-            } else {
-                raiseError("WORD", token, in.lineno());
-            }
-        } else {
-            raiseError(":", token, in.lineno());
+    /**
+     * Convert a batch of scripts in parallel on the given pool. A script
+     * that fails to convert doesn't stop the rest of the batch; its Result
+     * holds the exception instead.
+     * <p>
+     * Any trace listener is called from several threads at once while a
+     * batch is running.
+     *
+     * @param scripts scripts to convert
+     * @param pool ForkJoinPool to run the conversions on
+     * @return one Result per script, in the same order
+     */
+    public List<Result> convertAll(final Collection<String> scripts, final ForkJoinPool pool) {
+        List<String> batch = new ArrayList<>(scripts);
+        ForkJoinTask<List<Result>> task = pool.submit(() -> convertAll(batch.stream()).collect(Collectors.toList()));
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while converting", ex);
+        } catch (ExecutionException ex) {
+            // convert() failures are caught per script, so this is a bug
+            throw new IllegalStateException("Batch conversion failed", ex.getCause());
         }
     }
 
-    private void number(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "number");
-        int token = in.nextToken();
-        if (token == StreamTokenizer.TT_NUMBER) {
-            long raw = (long) in.nval;
-
-            token = in.nextToken();
-            if (token == StreamTokenizer.TT_WORD) {
-                String mult = in.sval;
-                if (mult.equalsIgnoreCase("K")) {
-                    raw *= 1024;
-                } else if (mult.equalsIgnoreCase("M")) {
-                    raw *= 1024 * 1024;
-                } else if (mult.equalsIgnoreCase("G")) {
-                    raw *= 1024 * 1024 * 1024;
-                }
-            } else {
-                in.pushBack();
-            }
+    /**
+     * Convert a stream of scripts. The input is collected first so that
+     * each Result knows its index. The returned stream is parallel, and
+     * conversion happens when it is consumed, on whichever pool the
+     * terminal operation runs in.
+     *
+     * @param scripts scripts to convert
+     * @return Stream of Results
+     */
+    public Stream<Result> convertAll(final Stream<String> scripts) {
+        List<String> batch = scripts.collect(Collectors.toList());
+        return IntStream.range(0, batch.size())
+                .parallel()
+                .mapToObj(i -> convertOne(i, batch.get(i)));
+    }
 
-            xml.add("num", Long.toString(raw, 10));
-        } else {
-            raiseError("NUM", token, in.lineno());
+    private Result convertOne(final int index, final String script) {
+        try {
+            return new Result(index, convert(script), null);
+        } catch (IOException | ParseException | RuntimeException ex) {
+            return new Result(index, null, ex);
         }
     }
 
-    private void block(XML xml) throws IOException, ParseException {
-        log.log(Level.FINEST, "block");
-        int token = in.nextToken();
-        if (token == '{') {
-            commands(xml);
-            token = in.nextToken();
-            if (token != '}') {
-                raiseError("}", token, in.lineno());
-            }
-        } else {
-            raiseError("{", token, in.lineno());
+    /**
+     * Convert a script and write it straight to a Writer as an XML document,
+     * without building a DOM. The script is parsed before any output starts,
+     * so nothing is written if it isn't valid Sieve.
+     *
+     * @param script Reader to read the script from. Not closed.
+     * @param out Writer to write to. Flushed, not closed.
+     * @throws IOException if either stream throws
+     * @throws ParseException if the script isn't valid Sieve
+     */
+    public void convert(final Reader script, final Writer out) throws IOException, ParseException {
+        ScriptNode parsed = parser.parse(script);
+        try {
+            XMLStreamWriter xml = OUTPUT_FACTORY.createXMLStreamWriter(out);
+            xml.writeStartDocument("UTF-8", "1.0");
+            writeXML(parsed, xml);
+            xml.writeEndDocument();
+            xml.flush();
+            xml.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException("Can't write XML: " + ex.getMessage(), ex);
         }
-        log.log(Level.FINEST, "block end");
+        out.flush();
     }
 
-    private void test_list(XML xml) throws IOException, ParseException {
-        log.log(Level.FINEST, "test_list");
-        int token = in.nextToken();
-        if (token == '(') {
-            do {
-                test(xml);
-                token = in.nextToken();
-            } while (token == ',');
-            if (token != ')') {
-                raiseError(")", token, in.lineno());
-            }
-        } else {
-            raiseError("(", token, in.lineno());
-        }
+    /**
+     * Convert a script and write the &lt;sieve&gt; element to an existing
+     * XMLStreamWriter. The caller is responsible for starting and ending the
+     * document, which allows the element to be embedded in a larger one.
+     *
+     * @param script Reader to read the script from. Not closed.
+     * @param out XMLStreamWriter to write to. Not flushed or closed.
+     * @throws IOException if the Reader throws
+     * @throws ParseException if the script isn't valid Sieve
+     * @throws XMLStreamException if the XMLStreamWriter throws
+     */
+    public void convert(final Reader script, final XMLStreamWriter out) throws IOException, ParseException, XMLStreamException {
+        writeXML(parser.parse(script), out);
     }
 
-    private void test(XML xml) throws ParseException, IOException {
-        log.log(Level.FINEST, "test");
-        int token = in.nextToken();
-        if (token == StreamTokenizer.TT_WORD) {
-            xml.start("test", "name", in.sval);
-            arguments(xml);
-            xml.end();
+    /**
+     * Write an already parsed script as a &lt;sieve&gt; element.
+     * <p>
+     * Carriage returns in strings are written as character references so
+     * that <code>text:</code> line endings survive XML end-of-line
+     * normalisation when the document is read back.
+     *
+     * @param script ScriptNode to write
+     * @param out XMLStreamWriter to write to
+     * @throws XMLStreamException if the XMLStreamWriter throws
+     */
+    public static void writeXML(final ScriptNode script, final XMLStreamWriter out) throws XMLStreamException {
+        out.writeStartElement("sieve");
+        out.writeDefaultNamespace(NAMESPACE);
+        for (CommandNode command : script.getCommands()) {
+            command(out, command);
         }
+        out.writeEndElement();
     }
 
-    private void raiseError(final String expecting, final int token, final int line) throws ParseException {
-        StringBuilder message = new StringBuilder();
-        message.append("Expecting ");
-        message.append(expecting);
-        message.append(" but got ");
-        message.append(tokenToString(token));
-        message.append(" at line ");
-        message.append(Integer.toString(line, 10));
-        throw new ParseException(message.toString());
+    private static void command(final XMLStreamWriter out, final CommandNode command) throws XMLStreamException {
+        out.writeStartElement(command.isControl() ? "control" : "action");
+        out.writeAttribute("name", command.getName());
+        arguments(out, command);
+        for (CommandNode child : command.getBlock()) {
+            command(out, child);
+        }
+        out.writeEndElement();
     }
 
-    private void setupTokenizer() {
-        in.resetSyntax();
-
-        in.whitespaceChars(0x0D, 0x0D); // CR
-        in.whitespaceChars(0x0A, 0x0A); // LF
-        in.whitespaceChars(0x09, 0x09); // HTAB
-        in.whitespaceChars(0x20, 0x20); // SP
-
-        in.wordChars(0x41, 0x5A); // A-Z
-        in.wordChars(0x61, 0x7A); // a-z
-        in.wordChars(0x30, 0x39); // 0-9
-        in.wordChars(0x5F, 0x5F); // _
-
-        in.quoteChar(0x22); // "
-        in.commentChar('#');
-
-        in.slashStarComments(true);
-        in.eolIsSignificant(false);
-        in.parseNumbers();
+    private static void arguments(final XMLStreamWriter out, final CallNode call) throws XMLStreamException {
+        for (ArgumentNode argument : call.getArguments()) {
+            if (argument instanceof StringNode) {
+                string(out, (StringNode) argument);
+            } else if (argument instanceof StringListNode) {
+                out.writeStartElement("list");
+                for (StringNode s : ((StringListNode) argument).getStrings()) {
+                    string(out, s);
+                }
+                out.writeEndElement();
+            } else if (argument instanceof TagNode) {
+                out.writeStartElement("tag");
+                out.writeCharacters(((TagNode) argument).getName());
+                out.writeEndElement();
+            } else if (argument instanceof NumberNode) {
+                out.writeStartElement("num");
+                out.writeCharacters(Long.toString(((NumberNode) argument).getValue(), 10));
+                out.writeEndElement();
+            }
+        }
+        for (TestNode test : call.getTests()) {
+            out.writeStartElement("test");
+            out.writeAttribute("name", test.getName());
+            arguments(out, test);
+            out.writeEndElement();
+        }
     }
 
-    private boolean nameIsControl(final String name) {
-        for (String c : CONTROL_NAMES) {
-            if (c.equals(name)) {
-                return true;
-            }
+    private static void string(final XMLStreamWriter out, final StringNode string) throws XMLStreamException {
+        out.writeStartElement("str");
+        String value = string.getValue();
+        int from = 0;
+        int cr;
+        while ((cr = value.indexOf('\r', from)) != -1) {
+            out.writeCharacters(value.substring(from, cr));
+            out.writeEntityRef("#13");
+            from = cr + 1;
         }
-        return false;
+        out.writeCharacters(value.substring(from));
+        out.writeEndElement();
     }
 
-    private static String tokenToString(final int c) {
-        if (c > 0) {
-            return new String(Character.toChars(c));
-        } else {
-            switch (c) {
-                case StreamTokenizer.TT_EOF:
-                    return "EOF";
-                case StreamTokenizer.TT_NUMBER:
-                    return "NUMBER";
-                case StreamTokenizer.TT_WORD:
-                    return "WORD";
+    /**
+     * An XMLStreamWriter that builds a DOM. A DOM holds characters rather
+     * than character references, so the references {@link #string} writes
+     * are added as the characters they stand for, and {@link XML} escapes
+     * them again when the document is written out. The caller should
+     * normalise the document afterwards to join the text nodes back up.
+     */
+    private static XMLStreamWriter domWriter(final Document document) throws XMLStreamException {
+        XMLStreamWriter dom = OUTPUT_FACTORY.createXMLStreamWriter(new DOMResult(document));
+        InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "writeEntityRef":
+                    dom.writeCharacters(Character.toString(Integer.parseInt(((String) args[0]).substring(1), 10)));
+                    return null;
+                case "writeDefaultNamespace":
+                    // As a plain attribute, the way XML and a parser
+                    // that isn't namespace aware both make it
+                    dom.writeAttribute("xmlns", (String) args[0]);
+                    return null;
                 default:
-                    return "UNKNOWN";
+                    break;
             }
-        }
+            try {
+                return method.invoke(dom, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        };
+        return (XMLStreamWriter) Proxy.newProxyInstance(XMLStreamWriter.class.getClassLoader(), new Class<?>[]{XMLStreamWriter.class}, handler);
     }
 }
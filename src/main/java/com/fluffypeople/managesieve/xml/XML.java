@@ -24,12 +24,19 @@
 
 package com.fluffypeople.managesieve.xml;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
@@ -49,6 +56,23 @@ import org.w3c.dom.*;
 public class XML {
 
     private static final Logger log = Logger.getLogger(XML.class.getName());
+
+    // Looking up factories is slow, and builders and transformers aren't
+    // thread safe, so each thread keeps its own
+    private static final ThreadLocal<DocumentBuilder> BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException ex) {
+            throw new RuntimeException("Can't create new Document", ex);
+        }
+    });
+    private static final ThreadLocal<Transformer> IDENTITY = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerException ex) {
+            throw new RuntimeException("Can't create Transformer", ex);
+        }
+    });
     private Node current;
     private Document root;
     private final List<String> cdatas;
@@ -79,15 +103,11 @@ public class XML {
      * @return an empty Document
      */
     public static Document newDocument() {
-        try {
-            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Document doc = BUILDER.get().newDocument();
 
-            doc.setXmlStandalone(true);
+        doc.setXmlStandalone(true);
 
-            return doc;
-        } catch (ParserConfigurationException ex) {
-            throw new RuntimeException("Can't create new Document", ex);
-        }
+        return doc;
     }
 
     /**
@@ -389,7 +409,8 @@ public class XML {
 
     public String toString(boolean embed, boolean indent) {
         try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            Transformer transformer = IDENTITY.get();
+            transformer.reset();
 
             transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
             transformer.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
@@ -420,4 +441,190 @@ public class XML {
             return "<error>Can't produce xml</error>";
         }
     }
+
+    /**
+     * Write the document to a stream as UTF-8, with the same settings as
+     * {@link #toString()}.
+     *
+     * @param out OutputStream to write to. Flushed, not closed.
+     * @throws IOException if the stream throws
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeTo(writer, false, true);
+        writer.flush();
+    }
+
+    /**
+     * Write the document with the same settings as {@link #toString()}.
+     *
+     * @param out Writer to write to. Not flushed or closed.
+     * @throws IOException if the Writer throws
+     */
+    public void writeTo(final Writer out) throws IOException {
+        writeTo(out, false, true);
+    }
+
+    /**
+     * Write the document without going through a Transformer or an
+     * intermediate String.
+     * <p>
+     * For documents made of elements, attributes, text, CDATA elements and
+     * processing instructions (everything this class builds) the output is
+     * the same as {@link #toString(boolean, boolean)}: four space indents,
+     * elements that hold text kept on one line, and the text of CDATA
+     * elements wrapped in CDATA sections.
+     *
+     * @param out Writer to write to. Not flushed or closed.
+     * @param embed true to leave out the XML declaration, and write empty
+     * elements with an end tag
+     * @param indent true to put each child element on its own line
+     * @throws IOException if the Writer throws
+     */
+    public void writeTo(final Writer out, final boolean embed, final boolean indent) throws IOException {
+        if (!embed) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        }
+        boolean wroteElement = false;
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                writeElement((Element) child, out, embed, indent, 0);
+                wroteElement = true;
+            } else {
+                writeNode(child, out, false);
+            }
+        }
+        if (indent && wroteElement) {
+            out.write('\n');
+        }
+    }
+
+    private void writeElement(final Element e, final Writer out, final boolean embed, final boolean indent, final int depth) throws IOException {
+        out.write('<');
+        out.write(e.getTagName());
+        NamedNodeMap attributes = e.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            out.write(' ');
+            out.write(a.getNodeName());
+            out.write("=\"");
+            escape(a.getNodeValue(), out, true);
+            out.write('"');
+        }
+        Node first = e.getFirstChild();
+        if (first == null) {
+            out.write(embed ? "></" + e.getTagName() + ">" : "/>");
+            return;
+        }
+        out.write('>');
+        // Only indent elements that hold nothing but other elements, so
+        // that text is never changed
+        boolean elementsOnly = indent;
+        for (Node child = first; child != null && elementsOnly; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                elementsOnly = false;
+            }
+        }
+        boolean cdata = cdatas.contains(e.getTagName());
+        for (Node child = first; child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (elementsOnly) {
+                    newline(out, depth + 1);
+                }
+                writeElement((Element) child, out, embed, indent, depth + 1);
+            } else {
+                if (elementsOnly) {
+                    newline(out, depth + 1);
+                }
+                writeNode(child, out, cdata);
+            }
+        }
+        if (elementsOnly) {
+            newline(out, depth);
+        }
+        out.write("</");
+        out.write(e.getTagName());
+        out.write('>');
+    }
+
+    private static void writeNode(final Node node, final Writer out, final boolean cdata) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.TEXT_NODE:
+                if (cdata) {
+                    writeCdata(node.getNodeValue(), out);
+                } else {
+                    escape(node.getNodeValue(), out, false);
+                }
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writeCdata(node.getNodeValue(), out);
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                out.write("<?");
+                out.write(node.getNodeName());
+                out.write(' ');
+                out.write(node.getNodeValue());
+                out.write("?>");
+                break;
+            case Node.COMMENT_NODE:
+                out.write("<!--");
+                out.write(node.getNodeValue());
+                out.write("-->");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeCdata(final String text, final Writer out) throws IOException {
+        out.write("<![CDATA[");
+        out.write(text.replace("]]>", "]]]]><![CDATA[>"));
+        out.write("]]>");
+    }
+
+    private static void newline(final Writer out, final int depth) throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write("    ");
+        }
+    }
+
+    private static void escape(final String text, final Writer out, final boolean attribute) throws IOException {
+        int from = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                case '\n':
+                    replacement = attribute ? "&#10;" : null;
+                    break;
+                case '\t':
+                    replacement = attribute ? "&#9;" : null;
+                    break;
+                default:
+                    replacement = null;
+                    break;
+            }
+            if (replacement != null) {
+                out.write(text, from, i - from);
+                out.write(replacement);
+                from = i + 1;
+            }
+        }
+        out.write(text, from, text.length() - from);
+    }
 }
@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013-2015 "Osric Wilkinson" <osric@fluffypeople.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fluffypeople.managesieve.xml;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.ArgumentNode;
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.NumberNode;
+import com.fluffypeople.managesieve.sieve.SieveWriter;
+import com.fluffypeople.managesieve.sieve.StringListNode;
+import com.fluffypeople.managesieve.sieve.StringNode;
+import com.fluffypeople.managesieve.sieve.TagNode;
+import com.fluffypeople.managesieve.sieve.TestNode;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Convert the RFC 5784 XML representation of a script back to Sieve text,
+ * the reverse of {@link SieveToXML}.
+ * <p>
+ * The document is read with a StAX pull parser. Only one top level command
+ * is held in memory at a time: each is read into a {@link CommandNode} and
+ * written out by {@link SieveWriter} before the next is read.
+ * <p>
+ * The RFC 5784 section 3 display elements carry nothing the script needs:
+ * &lt;displayblock&gt; is transparent, so the commands inside it are written
+ * as if they were its parent's, while &lt;displaydata&gt;, &lt;comment&gt;,
+ * &lt;preamble&gt;, &lt;postamble&gt; and elements in other namespaces are
+ * skipped. DTDs and external entities are not processed.
+ * <p>
+ * The output is ready to hand to
+ * {@link com.fluffypeople.managesieve.ManageSieveClient#putscript(String, String)}.
+ */
+public class XMLToSieve {
+
+    private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+    private static final List<String> BLOCK_CONTROLS = List.of("if", "elsif", "else");
+    private static final List<String> TEST_LIST_TESTS = List.of("anyof", "allof");
+    private static final List<String> DISPLAY_ONLY = List.of("displaydata", "comment", "preamble", "postamble");
+
+    private final SieveWriter writer = new SieveWriter();
+
+    /**
+     * @return the SieveWriter used for output, so its layout can be
+     * changed
+     */
+    public SieveWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @param xml Reader to read the document from. Not closed.
+     * @return the script as Sieve text
+     * @throws IOException if the Reader throws
+     * @throws ParseException if the document isn't valid RFC 5784 XML
+     */
+    public String convert(final Reader xml) throws IOException, ParseException {
+        StringWriter out = new StringWriter();
+        convert(xml, out);
+        return out.toString();
+    }
+
+    /**
+     * @param xml Reader to read the document from. Not closed.
+     * @param out Writer for the Sieve text. Flushed, not closed.
+     * @throws IOException if either stream throws
+     * @throws ParseException if the document isn't valid RFC 5784 XML. Some
+     * output may already have been written.
+     */
+    public void convert(final Reader xml, final Writer out) throws IOException, ParseException {
+        XMLStreamReader in;
+        try {
+            in = INPUT_FACTORY.createXMLStreamReader(xml);
+        } catch (XMLStreamException ex) {
+            throw parseError(ex);
+        }
+        try {
+            while (in.hasNext() && in.next() != XMLStreamConstants.START_ELEMENT) {
+            }
+            convert(in, out);
+        } catch (XMLStreamException ex) {
+            throw parseError(ex);
+        } finally {
+            try {
+                in.close();
+            } catch (XMLStreamException ex) {
+                // Nothing useful to do, and the Reader is the caller's
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Convert the &lt;sieve&gt; element the reader is positioned on. On
+     * return the reader is positioned on the matching end element.
+     *
+     * @param in XMLStreamReader positioned on a &lt;sieve&gt; start element
+     * @param out Writer for the Sieve text. Not flushed.
+     * @throws IOException if the Writer throws
+     * @throws ParseException if the element isn't valid RFC 5784 XML
+     * @throws XMLStreamException if the XMLStreamReader throws
+     */
+    public void convert(final XMLStreamReader in, final Writer out) throws IOException, ParseException, XMLStreamException {
+        if (!in.isStartElement() || !isSieve(in) || !in.getLocalName().equals("sieve")) {
+            throw error(in, "Expecting <sieve>");
+        }
+        CommandNode pending = commands(in, out, null);
+        if (pending != null) {
+            writer.write(pending, null, out);
+        }
+    }
+
+    /**
+     * Write the top level commands of the current element, holding the last
+     * back so the next one can be chained to it.
+     *
+     * @return the command not yet written, or null if there isn't one
+     */
+    private CommandNode commands(final XMLStreamReader in, final Writer out, final CommandNode previous) throws IOException, ParseException, XMLStreamException {
+        CommandNode pending = previous;
+        while (nextElement(in)) {
+            if (in.getLocalName().equals("displayblock")) {
+                pending = commands(in, out, pending);
+                continue;
+            }
+            CommandNode command = command(in);
+            if (pending != null) {
+                writer.write(pending, command.getName(), out);
+            }
+            pending = command;
+        }
+        return pending;
+    }
+
+    private void displayBlock(final XMLStreamReader in, final List<CommandNode> block) throws ParseException, XMLStreamException {
+        while (nextElement(in)) {
+            String child = in.getLocalName();
+            if (child.equals("displayblock")) {
+                displayBlock(in, block);
+            } else {
+                block.add(command(in));
+            }
+        }
+    }
+
+    private CommandNode command(final XMLStreamReader in) throws ParseException, XMLStreamException {
+        String element = in.getLocalName();
+        if (!element.equals("control") && !element.equals("action")) {
+            throw error(in, "Expecting <control> or <action> but got <" + element + ">");
+        }
+        String name = name(in);
+        List<ArgumentNode> arguments = new ArrayList<>();
+        List<TestNode> tests = new ArrayList<>();
+        List<CommandNode> block = new ArrayList<>();
+        while (nextElement(in)) {
+            String child = in.getLocalName();
+            if (child.equals("control") || child.equals("action")) {
+                block.add(command(in));
+            } else if (child.equals("displayblock")) {
+                displayBlock(in, block);
+            } else if (!block.isEmpty()) {
+                throw error(in, "Expecting <control> or <action> but got <" + child + ">");
+            } else {
+                argumentOrTest(in, arguments, tests);
+            }
+        }
+        boolean hasBlock = !block.isEmpty() || (element.equals("control") && BLOCK_CONTROLS.contains(name));
+        return new CommandNode(name, arguments, tests, false, hasBlock ? block : null);
+    }
+
+    private TestNode test(final XMLStreamReader in) throws ParseException, XMLStreamException {
+        String name = name(in);
+        List<ArgumentNode> arguments = new ArrayList<>();
+        List<TestNode> tests = new ArrayList<>();
+        while (nextElement(in)) {
+            argumentOrTest(in, arguments, tests);
+        }
+        return new TestNode(name, arguments, tests, TEST_LIST_TESTS.contains(name));
+    }
+
+    private void argumentOrTest(final XMLStreamReader in, final List<ArgumentNode> arguments, final List<TestNode> tests) throws ParseException, XMLStreamException {
+        String element = in.getLocalName();
+        if (element.equals("test")) {
+            tests.add(test(in));
+            return;
+        }
+        if (!tests.isEmpty()) {
+            throw error(in, "Expecting <test> but got <" + element + ">");
+        }
+        switch (element) {
+            case "str":
+                arguments.add(new StringNode(in.getElementText()));
+                break;
+            case "list":
+                List<StringNode> strings = new ArrayList<>();
+                while (nextElement(in)) {
+                    if (!in.getLocalName().equals("str")) {
+                        throw error(in, "Expecting <str> but got <" + in.getLocalName() + ">");
+                    }
+                    strings.add(new StringNode(in.getElementText()));
+                }
+                if (strings.isEmpty()) {
+                    throw error(in, "Expecting <str> in <list>");
+                }
+                arguments.add(new StringListNode(strings));
+                break;
+            case "tag":
+                String tag = in.getElementText().trim();
+                if (!isIdentifier(tag)) {
+                    throw error(in, "Invalid tag \"" + tag + "\"");
+                }
+                arguments.add(new TagNode(tag));
+                break;
+            case "num":
+                String num = in.getElementText().trim();
+                try {
+                    long value = Long.parseLong(num, 10);
+                    if (value < 0) {
+                        throw new NumberFormatException();
+                    }
+                    arguments.add(new NumberNode(value));
+                } catch (NumberFormatException ex) {
+                    throw error(in, "Invalid number \"" + num + "\"");
+                }
+                break;
+            default:
+                throw error(in, "Unexpected element <" + element + ">");
+        }
+    }
+
+    /**
+     * Move to the next child element of the current element, skipping text,
+     * XML comments, display only elements and anything in another namespace.
+     *
+     * @return true if positioned on a child start element, false if
+     * positioned on the current element's end
+     */
+    private static boolean nextElement(final XMLStreamReader in) throws ParseException, XMLStreamException {
+        while (true) {
+            int event = in.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (isSieve(in) && !DISPLAY_ONLY.contains(in.getLocalName())) {
+                        return true;
+                    }
+                    skip(in);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!in.getText().trim().isEmpty()) {
+                        throw error(in, "Unexpected text \"" + in.getText().trim() + "\"");
+                    }
+                    break;
+                default:
+                    // comments, processing instructions
+                    break;
+            }
+        }
+    }
+
+    private static void skip(final XMLStreamReader in) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = in.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth += 1;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth -= 1;
+            }
+        }
+    }
+
+    private static boolean isSieve(final XMLStreamReader in) {
+        String ns = in.getNamespaceURI();
+        return ns == null || ns.isEmpty() || ns.equals(SieveToXML.NAMESPACE);
+    }
+
+    private static String name(final XMLStreamReader in) throws ParseException {
+        String name = in.getAttributeValue(null, "name");
+        if (name == null || !isIdentifier(name)) {
+            throw error(in, "Missing or invalid name on <" + in.getLocalName() + ">");
+        }
+        return name;
+    }
+
+    private static boolean isIdentifier(final String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+            if (!letter && !(i > 0 && c >= '0' && c <= '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ParseException error(final XMLStreamReader in, final String message) {
+        Location location = in.getLocation();
+        return new ParseException(message + " at line " + location.getLineNumber());
+    }
+
+    private static ParseException parseError(final XMLStreamException ex) {
+        ParseException result = new ParseException("Invalid XML: " + ex.getMessage());
+        result.initCause(ex);
+        return result;
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
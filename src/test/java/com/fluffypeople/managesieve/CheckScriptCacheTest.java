@@ -0,0 +1,149 @@
+package com.fluffypeople.managesieve;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CheckScriptCacheTest {
+
+    private static final String CAPABILITIES =
+            "\"IMPLEMENTATION\" \"TestSieve\"\r\n" +
+            "\"VERSION\" \"1.0\"\r\n" +
+            "\"SIEVE\" \"fileinto vacation\"\r\n" +
+            "OK\r\n" +
+            "OK\r\n";
+
+    @TempDir
+    Path tmp;
+
+    private StringWriter out;
+
+    @BeforeEach
+    void setUp() {
+        out = new StringWriter();
+    }
+
+    private ManageSieveClient client(String responses) throws Exception {
+        ManageSieveClient client = new ManageSieveClient();
+        client.setupForTesting(new StringReader(CAPABILITIES + responses), out);
+        client.capability();
+        return client;
+    }
+
+    private static int checkscriptCount(String sent) {
+        return sent.split("CHECKSCRIPT", -1).length - 1;
+    }
+
+    @Test
+    void shouldOnlyAskServerOnceForSameScript() throws Exception {
+        ManageSieveClient client = client("OK\r\n");
+        CheckScriptCache cache = new CheckScriptCache();
+
+        ManageSieveResponse first = cache.checkscript(client, "keep;");
+        ManageSieveResponse second = cache.checkscript(client, "keep;");
+
+        assertThat(first.isOk()).isTrue();
+        assertThat(second.isOk()).isTrue();
+        assertThat(checkscriptCount(out.toString())).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldCachePlainNoVerdicts() throws Exception {
+        ManageSieveClient client = client("NO \"line 1: syntax error\"\r\n");
+        CheckScriptCache cache = new CheckScriptCache();
+
+        cache.checkscript(client, "kep;");
+        ManageSieveResponse cached = cache.checkscript(client, "kep;");
+
+        assertThat(cached.isNo()).isTrue();
+        assertThat(cached.getMessage()).isEqualTo("line 1: syntax error");
+        assertThat(checkscriptCount(out.toString())).isEqualTo(1);
+    }
+
+    @Test
+    void shouldNotCacheTransientFailures() throws Exception {
+        ManageSieveClient client = client("NO (TRYLATER) \"busy\"\r\nOK\r\n");
+        CheckScriptCache cache = new CheckScriptCache();
+
+        assertThat(cache.checkscript(client, "keep;").isNo()).isTrue();
+        assertThat(cache.checkscript(client, "keep;").isOk()).isTrue();
+        assertThat(checkscriptCount(out.toString())).isEqualTo(2);
+    }
+
+    @Test
+    void shouldMissWhenCapabilitiesDiffer() {
+        CheckScriptCache cache = new CheckScriptCache();
+        ServerCapabilities a = new ServerCapabilities();
+        a.setImplementationName("TestSieve");
+        a.setVersion("1.0");
+        a.setSieveExtensions("fileinto");
+        ServerCapabilities b = new ServerCapabilities();
+        b.setImplementationName("TestSieve");
+        b.setVersion("1.0");
+        b.setSieveExtensions("fileinto vacation");
+
+        assertThat(cache.put(a, "keep;", okResponse())).isTrue();
+
+        assertThat(cache.get(a, "keep;")).isNotNull();
+        assertThat(cache.get(b, "keep;")).isNull();
+        assertThat(cache.get(a, "discard;")).isNull();
+    }
+
+    @Test
+    void shouldFingerprintIndependentOfExtensionOrder() {
+        ServerCapabilities a = new ServerCapabilities();
+        a.setSieveExtensions("fileinto vacation");
+        ServerCapabilities b = new ServerCapabilities();
+        b.setSieveExtensions("vacation fileinto");
+
+        assertThat(CheckScriptCache.fingerprint(a)).isEqualTo(CheckScriptCache.fingerprint(b));
+    }
+
+    @Test
+    void shouldPersistVerdictsToFile() throws Exception {
+        Path file = tmp.resolve("verdicts.properties");
+        try (CheckScriptCache cache = new CheckScriptCache(file)) {
+            cache.checkscript(client("OK (WARNINGS) \"unused\"\r\n"), "keep;");
+        }
+        assertThat(Files.exists(file)).isTrue();
+
+        out = new StringWriter();
+        CheckScriptCache reloaded = new CheckScriptCache(file);
+        ManageSieveResponse cached = reloaded.checkscript(client(""), "keep;");
+
+        assertThat(reloaded.size()).isEqualTo(1);
+        assertThat(cached.isOk()).isTrue();
+        assertThat(cached.getCode()).isEqualTo(ManageSieveResponse.Code.WARNINGS);
+        assertThat(cached.getMessage()).isEqualTo("unused");
+        assertThat(checkscriptCount(out.toString())).isZero();
+    }
+
+    @Test
+    void shouldSkipCorruptEntriesWhenLoading() throws Exception {
+        Path file = tmp.resolve("verdicts.properties");
+        Files.writeString(file, "abc=MAYBE\\t\\t\nbroken=OK\n");
+
+        CheckScriptCache cache = new CheckScriptCache(file);
+
+        assertThat(cache.size()).isZero();
+    }
+
+    private static ManageSieveResponse okResponse() {
+        ManageSieveResponse resp = new ManageSieveResponse();
+        try {
+            resp.setType("OK");
+        } catch (ParseException ex) {
+            throw new AssertionError(ex);
+        }
+        return resp;
+    }
+}
@@ -0,0 +1,177 @@
+package com.fluffypeople.managesieve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeepaliveSchedulerTest {
+
+    private KeepaliveScheduler scheduler;
+    private final List<ManageSieveClient> lost = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        scheduler = new KeepaliveScheduler(200, TimeUnit.MILLISECONDS, 5, TimeUnit.MILLISECONDS, 2);
+        scheduler.addListener((client, server, cause) -> lost.add(client));
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+    }
+
+    private static ManageSieveClient client(String responses, StringWriter out) {
+        ManageSieveClient client = new ManageSieveClient();
+        client.setupForTesting(new StringReader(responses), out);
+        return client;
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static String sent(ManageSieveClient client, StringWriter out) {
+        synchronized (client) {
+            return out.toString();
+        }
+    }
+
+    @Test
+    void shouldSendNoopBeforeIdleTimeout() throws Exception {
+        StringWriter out = new StringWriter();
+        ManageSieveClient client = client("OK\r\nOK\r\nOK\r\nOK\r\nOK\r\n", out);
+
+        scheduler.register(client, "server:4190");
+
+        assertThat(await(() -> sent(client, out).contains("NOOP"))).isTrue();
+        assertThat(System.nanoTime() - client.getLastActivityNanos()).isLessThan(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(lost).isEmpty();
+    }
+
+    @Test
+    void shouldKeepSendingWhileRegistered() throws Exception {
+        StringWriter out = new StringWriter();
+        ManageSieveClient client = client("OK\r\nOK\r\nOK\r\nOK\r\nOK\r\nOK\r\n", out);
+
+        scheduler.register(client, "server:4190");
+
+        assertThat(await(() -> sent(client, out).split("NOOP", -1).length > 2)).isTrue();
+    }
+
+    @Test
+    void shouldStopAfterUnregister() throws Exception {
+        StringWriter out = new StringWriter();
+        ManageSieveClient client = client("OK\r\n", out);
+
+        scheduler.register(client, "server:4190");
+        scheduler.unregister(client);
+        Thread.sleep(300);
+
+        assertThat(sent(client, out)).isEmpty();
+        assertThat(scheduler.size()).isZero();
+    }
+
+    @Test
+    void shouldLearnTimeoutFromLostSession() throws Exception {
+        StringWriter out = new StringWriter();
+        // No response - the server has gone away
+        ManageSieveClient client = client("", out);
+
+        scheduler.register(client, "server:4190");
+
+        assertThat(await(() -> !lost.isEmpty())).isTrue();
+        assertThat(lost).containsExactly(client);
+        assertThat(scheduler.size()).isZero();
+        // The NOOP went out 80-90% of the way to the 200ms default
+        assertThat(scheduler.getIdleTimeout("server:4190", TimeUnit.MILLISECONDS)).isBetween(155L, 199L);
+        assertThat(scheduler.getIdleTimeout("other:4190", TimeUnit.MILLISECONDS)).isEqualTo(200);
+    }
+
+    @Test
+    void shouldTreatByeAsLostSession() throws Exception {
+        StringWriter out = new StringWriter();
+        ManageSieveClient client = client("BYE \"idle\"\r\n", out);
+
+        scheduler.register(client, "server:4190");
+
+        assertThat(await(() -> !lost.isEmpty())).isTrue();
+    }
+
+    @Test
+    void shouldLearnFromReportedDisconnect() throws Exception {
+        ManageSieveClient client = client("OK\r\n", new StringWriter());
+        scheduler.register(client, "server:4190");
+        client.noop(null);
+        Thread.sleep(120);
+        // The command after the idle gap fails, and is reported straight away
+        assertThatThrownBy(() -> client.noop(null)).isInstanceOf(Exception.class);
+
+        scheduler.disconnected(client);
+
+        assertThat(scheduler.size()).isZero();
+        assertThat(scheduler.getIdleTimeout("server:4190", TimeUnit.MILLISECONDS)).isBetween(115L, 170L);
+    }
+
+    @Test
+    void shouldLimitHowFarOneDisconnectLowersTheEstimate() throws Exception {
+        ManageSieveClient client = client("", new StringWriter());
+        scheduler.register(client, "server:4190");
+        assertThatThrownBy(() -> client.noop(null)).isInstanceOf(Exception.class);
+
+        scheduler.disconnected(client);
+
+        assertThat(scheduler.getIdleTimeout("server:4190", TimeUnit.MILLISECONDS)).isBetween(100L, 115L);
+    }
+
+    @Test
+    void shouldRecoverEstimateOverTime() throws Exception {
+        ManageSieveClient client = client("", new StringWriter());
+        scheduler.register(client, "server:4190");
+        assertThatThrownBy(() -> client.noop(null)).isInstanceOf(Exception.class);
+        scheduler.disconnected(client);
+        long learnt = scheduler.getIdleTimeout("server:4190", TimeUnit.MILLISECONDS);
+
+        Thread.sleep(300);
+
+        assertThat(scheduler.getIdleTimeout("server:4190", TimeUnit.MILLISECONDS)).isGreaterThan(learnt + 20);
+    }
+
+    @Test
+    void shouldSpreadKeepalivesWithJitter() {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(200);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = scheduler.keepaliveDelay("server:4190");
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        assertThat(min).isGreaterThanOrEqualTo((long) (timeout * 0.8));
+        assertThat(max).isLessThanOrEqualTo((long) (timeout * 0.9));
+        assertThat(max - min).isGreaterThan(0);
+    }
+
+    @Test
+    void shouldRejectBadSettings() {
+        assertThatThrownBy(() -> new KeepaliveScheduler(0, TimeUnit.SECONDS))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
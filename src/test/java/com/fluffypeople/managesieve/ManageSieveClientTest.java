@@ -6,7 +6,9 @@ import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import static org.assertj.core.api.Assertions.*;
 
 class ManageSieveClientTest {
@@ -526,6 +528,21 @@ class ManageSieveClientTest {
             assertThat(resp.getMessage()).isEqualTo("Insufficient space");
         }
 
+        @Test
+        void shouldPipelineHavespaceCommands() throws Exception {
+            setupClientWithInput("OK\r\nNO (QUOTA/MAXSIZE) \"Too big\"\r\n");
+            Map<String, Long> sizes = new LinkedHashMap<>();
+            sizes.put("a", 10L);
+            sizes.put("b", 99999L);
+
+            Map<String, ManageSieveResponse> resp = client.havespace(sizes);
+
+            assertThat(resp.keySet()).containsExactly("a", "b");
+            assertThat(resp.get("a").isOk()).isTrue();
+            assertThat(resp.get("b").getCode()).isEqualTo(ManageSieveResponse.Code.QUOTA);
+            assertThat(out.toString()).isEqualTo("HAVESPACE \"a\" 10\r\nHAVESPACE \"b\" 99999\r\n");
+        }
+
         @Test
         void shouldSendPutscriptCommand() throws Exception {
             setupClientWithInput("OK (WARNINGS) \"script stored with warnings\"\r\n");
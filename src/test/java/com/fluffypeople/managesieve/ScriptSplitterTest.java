@@ -0,0 +1,160 @@
+package com.fluffypeople.managesieve;
+
+import com.fluffypeople.managesieve.sieve.CommandNode;
+import com.fluffypeople.managesieve.sieve.ScriptNode;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScriptSplitterTest {
+
+    private final SieveParser parser = new SieveParser();
+    private ScriptSplitter splitter;
+    private ManageSieveClient client;
+    private StringWriter out;
+
+    @BeforeEach
+    void setUp() {
+        splitter = new ScriptSplitter();
+        splitter.getWriter().setLineSeparator("\n");
+        splitter.setTargetSize(1024);
+        splitter.setMaxSize(4096);
+        client = new ManageSieveClient();
+    }
+
+    private void serverSays(String responses) throws Exception {
+        serverSays("fileinto copy include", responses);
+    }
+
+    private void serverSays(String extensions, String responses) throws Exception {
+        out = new StringWriter();
+        client.setupForTesting(new StringReader("\"SIEVE\" \"" + extensions + "\"\r\nOK\r\nOK\r\n" + responses), out);
+        client.capability();
+        out.getBuffer().setLength(0);
+    }
+
+    private static String rules(int count, int changed) {
+        StringBuilder script = new StringBuilder("require [\"fileinto\", \"copy\"];\n");
+        for (int i = 0; i < count; i++) {
+            script.append("if header :contains \"subject\" \"topic ").append(i).append(i == changed ? " edited" : "")
+                    .append("\" {\n    fileinto :copy \"Folder ").append(i).append("\";\n}\n");
+            if (i % 7 == 0) {
+                script.append("elsif exists \"x-spam\" {\n    discard;\n}\nelse {\n    keep;\n}\n");
+            }
+        }
+        return script.toString();
+    }
+
+    private List<String> names(ScriptSplitter.Split split) {
+        List<String> result = new ArrayList<>();
+        for (SieveScript part : split.getParts()) {
+            result.add(part.getName());
+        }
+        return result;
+    }
+
+    @Test
+    void shouldSplitIntoIncludedParts() throws ParseException {
+        ScriptNode original = parser.parse(rules(300, -1));
+        ScriptSplitter.Split split = splitter.split("filters", original);
+
+        assertThat(split.getParts()).hasSizeGreaterThan(3);
+        assertThat(split.getMain().getName()).isEqualTo("filters");
+        List<CommandNode> main = parser.parse(split.getMain().getBody()).getCommands();
+        assertThat(main.get(0).getName()).isEqualTo("require");
+        assertThat(main).hasSize(split.getParts().size() + 1);
+
+        List<CommandNode> rejoined = new ArrayList<>();
+        for (SieveScript part : split.getParts()) {
+            assertThat(part.getName()).matches("filters-[0-9a-f]{12}");
+            assertThat(UploadPlanner.utf8Length(part.getBody())).isLessThanOrEqualTo(4096);
+            List<CommandNode> commands = parser.parse(part.getBody()).getCommands();
+            assertThat(commands.get(0)).isEqualTo(original.getCommands().get(0));
+            rejoined.addAll(commands.subList(1, commands.size()));
+        }
+        assertThat(rejoined).isEqualTo(original.getCommands().subList(1, original.getCommands().size()));
+        for (int i = 1; i < main.size(); i++) {
+            assertThat(main.get(i).getName()).isEqualTo("include");
+        }
+    }
+
+    @Test
+    void shouldKeepUnchangedPartsOnEdit() throws ParseException {
+        List<String> before = names(splitter.split("filters", rules(300, -1)));
+        List<String> after = names(splitter.split("filters", rules(300, 150)));
+
+        List<String> changed = new ArrayList<>(after);
+        changed.removeAll(before);
+        assertThat(changed).hasSizeBetween(1, 2);
+        assertThat(after).hasSizeGreaterThan(changed.size() + 2);
+    }
+
+    @Test
+    void shouldNotSplitScriptsUsingVariables() throws ParseException {
+        String script = "require \"variables\";\nset \"a\" \"b\";\nif string \"${a}\" \"b\" {\n    discard;\n}\n";
+
+        ScriptSplitter.Split split = splitter.split("filters", script);
+
+        assertThat(split.getParts()).isEmpty();
+        assertThat(split.getMain().getBody()).isEqualTo(script);
+    }
+
+    @Test
+    void shouldUploadOnlyMissingPartsAndDeleteOldOnes() throws Exception {
+        ScriptSplitter.Split split = splitter.split("filters", rules(300, -1));
+        List<SieveScript> parts = split.getParts();
+        StringBuilder listing = new StringBuilder("\"other\"\r\n\"filters\" ACTIVE\r\n\"filters-0123456789ab\"\r\n");
+        for (int i = 1; i < parts.size(); i++) {
+            listing.append('"').append(parts.get(i).getName()).append("\"\r\n");
+        }
+        serverSays(listing + "OK\r\nOK\r\nOK\r\nOK\r\n");
+
+        ScriptSplitter.Result result = splitter.upload(client, split, false);
+
+        assertThat(result.isComplete()).isTrue();
+        assertThat(result.getStored()).containsOnlyKeys(parts.get(0).getName(), "filters");
+        assertThat(result.getUnchanged()).hasSize(parts.size() - 1);
+        assertThat(result.getDeleted()).containsOnlyKeys("filters-0123456789ab");
+        String sent = out.toString();
+        assertThat(sent.indexOf("PUTSCRIPT \"" + parts.get(0).getName())).isLessThan(sent.indexOf("PUTSCRIPT \"filters\""));
+        assertThat(sent.indexOf("PUTSCRIPT \"filters\"")).isLessThan(sent.indexOf("DELETESCRIPT"));
+        assertThat(sent).doesNotContain("\"other\"");
+    }
+
+    @Test
+    void shouldLeaveMainAloneWhenPartIsRefused() throws Exception {
+        ScriptSplitter.Split split = splitter.split("filters", rules(300, -1));
+        serverSays("OK\r\nNO (QUOTA) \"over quota\"\r\n");
+
+        ScriptSplitter.Result result = splitter.upload(client, split, true);
+
+        assertThat(result.isComplete()).isFalse();
+        assertThat(result.getStored()).hasSize(1);
+        assertThat(out.toString()).doesNotContain("PUTSCRIPT \"filters\"").doesNotContain("SETACTIVE");
+    }
+
+    @Test
+    void shouldUploadWholeScriptWhenServerLacksInclude() throws Exception {
+        String script = rules(300, -1);
+        ScriptSplitter.Split split = splitter.split("filters", script);
+        assertThat(split.getParts()).isNotEmpty();
+        serverSays("fileinto copy", "\"filters\" ACTIVE\r\n\"filters-0123456789ab\"\r\nOK\r\nOK\r\nOK\r\nOK\r\n");
+
+        ScriptSplitter.Result result = splitter.upload(client, split, true);
+
+        assertThat(result.isComplete()).isTrue();
+        assertThat(result.getStored()).containsOnlyKeys("filters");
+        assertThat(result.getDeleted()).containsOnlyKeys("filters-0123456789ab");
+        assertThat(out.toString()).doesNotContain("include")
+                .contains("PUTSCRIPT \"filters\"")
+                .contains("SETACTIVE \"filters\"");
+        assertThat(result.getBytesUploaded()).isEqualTo(UploadPlanner.utf8Length(splitter.getWriter().write(parser.parse(script))));
+    }
+}
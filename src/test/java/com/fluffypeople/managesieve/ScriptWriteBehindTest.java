@@ -0,0 +1,166 @@
+package com.fluffypeople.managesieve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ScriptWriteBehindTest {
+
+    private ManageSieveClient client;
+    private StringWriter out;
+    private ScriptWriteBehind queue;
+    private final List<String> stored = new CopyOnWriteArrayList<>();
+    private final List<ManageSieveResponse> responses = new CopyOnWriteArrayList<>();
+    private final List<Exception> failures = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        client = new ManageSieveClient();
+        out = new StringWriter();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    private void start(String serverInput, long debounceMillis) {
+        start(new StringReader(serverInput), debounceMillis);
+    }
+
+    private void start(Reader serverInput, long debounceMillis) {
+        client.setupForTesting(serverInput, out);
+        queue = new ScriptWriteBehind(client, debounceMillis, TimeUnit.MILLISECONDS);
+        queue.addListener(new ScriptWriteBehind.Listener() {
+            @Override
+            public void stored(String name, String body, ManageSieveResponse response) {
+                stored.add(name + "=" + body);
+                responses.add(response);
+            }
+
+            @Override
+            public void failed(String name, String body, Exception cause) {
+                failures.add(cause);
+            }
+        });
+    }
+
+    private static int count(String haystack, String needle) {
+        int count = 0;
+        for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    private void awaitStored(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stored.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void shouldCoalesceRapidEditsIntoOneUpload() throws Exception {
+        start("OK\r\n", 100);
+
+        for (int i = 0; i < 20; i++) {
+            queue.putscript("main", "keep; # " + i);
+        }
+        awaitStored(1);
+
+        assertThat(stored).containsExactly("main=keep; # 19");
+        assertThat(queue.pendingCount()).isZero();
+        synchronized (client) {
+            assertThat(count(out.toString(), "PUTSCRIPT")).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void shouldKeepLatestBodyPerScript() throws Exception {
+        start("OK\r\nOK\r\n", TimeUnit.HOURS.toMillis(1));
+
+        queue.putscript("a", "keep;");
+        queue.putscript("b", "discard;");
+        queue.putscript("a", "stop;");
+        assertThat(queue.pendingCount()).isEqualTo(2);
+
+        queue.flush();
+
+        assertThat(stored).containsExactlyInAnyOrder("a=stop;", "b=discard;");
+        assertThat(queue.isPending("a")).isFalse();
+    }
+
+    @Test
+    void shouldSurfaceWarningsToListeners() throws Exception {
+        start("OK (WARNINGS) \"line 1: unused variable\"\r\n", TimeUnit.HOURS.toMillis(1));
+
+        queue.putscript("main", "keep;");
+        queue.flush();
+
+        assertThat(responses).hasSize(1);
+        assertThat(responses.get(0).isOk()).isTrue();
+        assertThat(responses.get(0).getCode()).isEqualTo(ManageSieveResponse.Code.WARNINGS);
+        assertThat(responses.get(0).getMessage()).isEqualTo("line 1: unused variable");
+    }
+
+    @Test
+    void shouldSkipUploadWhenBodyMatchesLastStored() throws Exception {
+        start("OK\r\n", TimeUnit.HOURS.toMillis(1));
+
+        queue.putscript("main", "keep;");
+        queue.flush();
+        queue.putscript("main", "discard;");
+        queue.putscript("main", "keep;");
+
+        assertThat(queue.pendingCount()).isZero();
+        assertThat(count(out.toString(), "PUTSCRIPT")).isEqualTo(1);
+    }
+
+    @Test
+    void shouldFlushPendingEditsOnClose() throws Exception {
+        start("OK\r\n", TimeUnit.HOURS.toMillis(1));
+
+        queue.putscript("main", "keep;");
+        queue.close();
+
+        assertThat(stored).containsExactly("main=keep;");
+        assertThatThrownBy(() -> queue.putscript("main", "discard;"))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void shouldKeepEditQueuedWhenUploadFails() throws Exception {
+        // Server closes the connection before answering
+        start("", TimeUnit.HOURS.toMillis(1));
+
+        queue.putscript("main", "keep;");
+
+        assertThatThrownBy(() -> queue.flush()).isInstanceOf(ParseException.class);
+        assertThat(failures).hasSize(1);
+        assertThat(queue.isPending("main")).isTrue();
+
+        client.setupForTesting(new StringReader("OK\r\n"), out);
+        queue.flush();
+        assertThat(stored).containsExactly("main=keep;");
+    }
+
+    @Test
+    void shouldRejectNegativeDebounce() {
+        assertThatThrownBy(() -> new ScriptWriteBehind(client, -1, TimeUnit.MILLISECONDS))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
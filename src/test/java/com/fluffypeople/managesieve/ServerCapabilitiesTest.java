@@ -71,6 +71,13 @@ public class ServerCapabilitiesTest {
         assertTrue(capabilities.hasSieveExtension("envelope"));
     }
 
+    @Test
+    public void testGetSieveExtensions_Sorted() {
+        capabilities.setSieveExtensions("vacation fileinto envelope");
+
+        assertThat(capabilities.getSieveExtensions()).containsExactly("envelope", "fileinto", "vacation");
+    }
+
     @Test
     public void testSetSieveExtensions_Replace() {
         capabilities.setSieveExtensions("fileinto");
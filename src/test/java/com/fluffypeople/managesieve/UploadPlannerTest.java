@@ -0,0 +1,172 @@
+package com.fluffypeople.managesieve;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadPlannerTest {
+
+    private UploadPlanner planner;
+    private ManageSieveClient client;
+    private StringWriter out;
+
+    @BeforeEach
+    void setUp() {
+        planner = new UploadPlanner();
+        client = new ManageSieveClient();
+        out = new StringWriter();
+    }
+
+    private void serverSays(String responses) {
+        out = new StringWriter();
+        client.setupForTesting(new StringReader(responses), out);
+    }
+
+    private static List<SieveScript> scripts(String... nameAndBody) {
+        List<SieveScript> result = new java.util.ArrayList<>();
+        for (int i = 0; i < nameAndBody.length; i += 2) {
+            result.add(new SieveScript(nameAndBody[i], nameAndBody[i + 1], false));
+        }
+        return result;
+    }
+
+    @Test
+    void shouldCountUtf8BytesExactly() {
+        String[] samples = {"", "keep;", "fileinto \"Entwürfe\";", "€", "📧 mail", "bad \uD800 surrogate"};
+        for (String s : samples) {
+            assertThat(UploadPlanner.utf8Length(s)).as(s).isEqualTo(s.getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    @Test
+    void shouldPrecheckBatchBeforeUploading() throws Exception {
+        serverSays("OK\r\nOK\r\nOK\r\nOK\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("a", "keep;", "b", "discard;"), Collections.emptyList());
+
+        assertThat(result.isComplete()).isTrue();
+        assertThat(out.toString()).startsWith("HAVESPACE \"a\" 5\r\nHAVESPACE \"b\" 8\r\n"
+                + "HAVESPACE \"" + UploadPlanner.BATCH_NAME + "\" 13\r\nPUTSCRIPT \"a\"");
+        assertThat(result.getBytesUploaded()).isEqualTo(13);
+        assertThat(planner.getHeadroom("user@host").getScriptFits()).isEqualTo(8);
+        assertThat(planner.getHeadroom("user@host").getFits()).isZero();
+    }
+
+    @Test
+    void shouldNotUploadBatchThatOnlyFitsScriptByScript() throws Exception {
+        serverSays("OK\r\nOK\r\nNO (QUOTA) \"over quota\"\r\n\"other\"\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("a", "keep;", "b", "discard;"), Collections.emptyList());
+
+        assertThat(result.isAbandoned()).isTrue();
+        assertThat(result.isComplete()).isFalse();
+        assertThat(result.getSkipped()).containsExactly("a", "b");
+        assertThat(result.getBytesUploaded()).isZero();
+        assertThat(out.toString()).doesNotContain("PUTSCRIPT");
+        assertThat(planner.getHeadroom("user@host").getDoesNotFit()).isEqualTo(13);
+        // Passing script by script says nothing about the account
+        assertThat(planner.getHeadroom("user@host").getFits()).isEqualTo(-1);
+    }
+
+    @Test
+    void shouldCheckCachedHeadroomAgainstWholeBatch() throws Exception {
+        planner.getHeadroom("user@host").fits(12);
+        planner.getHeadroom("user@host").scriptFits(100);
+        serverSays("NO (QUOTA) \"over quota\"\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("a", "discard;", "b", "discard;"), Collections.emptyList());
+
+        assertThat(result.isAbandoned()).isTrue();
+        assertThat(result.getPrecheck()).containsOnlyKeys(UploadPlanner.BATCH_NAME);
+        assertThat(out.toString()).doesNotContain("PUTSCRIPT");
+    }
+
+    @Test
+    void shouldNotDeleteAnythingWhenDeletesDoNotMakeEnoughRoom() throws Exception {
+        serverSays("OK\r\nNO (QUOTA) \"over quota\"\r\n\"old\"\r\nOK\r\n{2}\r\nx;\r\nOK\r\nNO (QUOTA) \"over quota\"\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("new", "keep;"), List.of("old"));
+
+        assertThat(result.isAbandoned()).isTrue();
+        assertThat(result.getDeleted()).isEmpty();
+        assertThat(out.toString()).doesNotContain("DELETESCRIPT").doesNotContain("PUTSCRIPT")
+                .contains("HAVESPACE \"" + UploadPlanner.BATCH_NAME + "\" 3\r\n");
+    }
+
+    @Test
+    void shouldDeleteFirstWhenDeletesMakeRoom() throws Exception {
+        serverSays("OK\r\nNO (QUOTA) \"over quota\"\r\n\"old\"\r\nOK\r\n{2}\r\nx;\r\nOK\r\nOK\r\nOK\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("new", "keep;"), List.of("old"));
+
+        assertThat(result.isComplete()).isTrue();
+        String sent = out.toString();
+        assertThat(sent.indexOf("DELETESCRIPT \"old\"")).isGreaterThan(sent.lastIndexOf("HAVESPACE"));
+        assertThat(sent.indexOf("DELETESCRIPT")).isLessThan(sent.indexOf("PUTSCRIPT"));
+    }
+
+    @Test
+    void shouldDeleteBeforePutWhenBatchFits() throws Exception {
+        serverSays("OK\r\nOK\r\nOK\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("new", "keep;"), List.of("old"));
+
+        assertThat(result.getDeleted()).containsOnlyKeys("old");
+        assertThat(out.toString().indexOf("DELETESCRIPT")).isLessThan(out.toString().indexOf("PUTSCRIPT"));
+    }
+
+    @Test
+    void shouldCountSpaceFreedByReplacedScripts() throws Exception {
+        serverSays("OK\r\nOK\r\nNO (QUOTA) \"over quota\"\r\n\"a\" ACTIVE\r\nOK\r\n{17}\r\ndiscard; discard;\r\nOK\r\n"
+                + "OK\r\nOK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("b", "keep;", "a", "discard;"), Collections.emptyList());
+
+        assertThat(result.isComplete()).isTrue();
+        String sent = out.toString();
+        // The batch adds 13 bytes and frees 17, so no further check is needed
+        assertThat(sent.split("HAVESPACE", -1)).hasSize(4);
+        // The shrinking replacement goes first
+        assertThat(sent.indexOf("PUTSCRIPT \"a\"")).isLessThan(sent.indexOf("PUTSCRIPT \"b\""));
+    }
+
+    @Test
+    void shouldStopUploadingAfterQuotaFailure() throws Exception {
+        serverSays("OK\r\nOK\r\nOK\r\nOK\r\nOK\r\nNO (QUOTA) \"over quota\"\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host",
+                scripts("a", "keep;", "b", "keep;", "c", "keep;"), Collections.emptyList());
+
+        assertThat(result.getStored()).containsOnlyKeys("a", "b");
+        assertThat(result.getSkipped()).containsExactly("c");
+        assertThat(result.isAbandoned()).isFalse();
+    }
+
+    @Test
+    void shouldSkipHavespaceForSizesKnownToFit() throws Exception {
+        planner.getHeadroom("user@host").fits(100);
+        planner.getHeadroom("user@host").scriptFits(100);
+        serverSays("OK\r\n");
+
+        UploadPlanner.Result result = planner.deploy(client, "user@host", scripts("small", "keep;"), Collections.emptyList());
+
+        assertThat(result.isComplete()).isTrue();
+        assertThat(result.getPrecheck()).isEmpty();
+        assertThat(out.toString()).startsWith("PUTSCRIPT");
+        assertThat(planner.getHeadroom("user@host").getFits()).isEqualTo(95);
+    }
+}
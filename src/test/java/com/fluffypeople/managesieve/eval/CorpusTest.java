@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve.eval;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CorpusTest {
+
+    @Test
+    void shouldSplitMbox(@TempDir final Path dir) throws IOException {
+        Path file = dir.resolve("mbox");
+        Files.write(file, ("From alice@example.org Mon Jan  1 00:00:00 2024\n"
+                + "Subject: one\n"
+                + "Delivered-To: bob@example.com\n"
+                + "\n"
+                + "body\n"
+                + ">From the start\n"
+                + ">>From quoted\n"
+                + "\n"
+                + "From MAILER-DAEMON Mon Jan  1 00:00:01 2024\n"
+                + "Subject: two\n"
+                + "\n"
+                + "last").getBytes(StandardCharsets.UTF_8));
+
+        List<Message> messages;
+        try (Stream<Message> stream = Corpus.mbox(file)) {
+            messages = stream.collect(Collectors.toList());
+        }
+
+        assertThat(messages).hasSize(2);
+        assertThat(messages.get(0).getHeaders("subject")).containsExactly("one");
+        assertThat(messages.get(0).getRawBody()).isEqualTo("body\nFrom the start\n>From quoted\n");
+        assertThat(messages.get(0).getEnvelopeFrom()).isEqualTo("alice@example.org");
+        assertThat(messages.get(0).getEnvelopeTo()).containsExactly("bob@example.com");
+        assertThat(messages.get(1).getRawBody()).isEqualTo("last");
+        assertThat(messages.get(1).getEnvelopeFrom()).isEmpty();
+    }
+
+    @Test
+    void shouldReadMaildir(@TempDir final Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("cur"));
+        Files.createDirectories(dir.resolve("new"));
+        Files.createDirectories(dir.resolve("tmp"));
+        Files.writeString(dir.resolve("cur/1.host:2,S"), "Subject: a\r\nReturn-Path: <x@example.org>\r\n\r\n");
+        Files.writeString(dir.resolve("new/2.host"), "Subject: b\r\n\r\n");
+        Files.writeString(dir.resolve("tmp/3.host"), "Subject: partial\r\n\r\n");
+
+        List<Message> messages;
+        try (Stream<Message> stream = Corpus.maildir(dir)) {
+            messages = stream.collect(Collectors.toList());
+        }
+
+        assertThat(messages).extracting(m -> m.getHeaders("subject").get(0)).containsExactly("a", "b");
+        assertThat(messages.get(0).getEnvelopeFrom()).isEqualTo("x@example.org");
+        assertThat(messages.get(1).getEnvelopeFrom()).isNull();
+    }
+
+    @Test
+    void shouldRunScriptOverMbox(@TempDir final Path dir) throws IOException, ParseException {
+        StringBuilder mbox = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            mbox.append("From sender@example.org Mon Jan  1 00:00:00 2024\n")
+                    .append("Subject: ").append(i % 3 == 0 ? "spam" : "ham").append(' ').append(i).append("\n\n")
+                    .append("body ").append(i).append("\n\n");
+        }
+        Path file = dir.resolve("mbox");
+        Files.writeString(file, mbox);
+        SieveInterpreter interpreter = new SieveInterpreter(new SieveParser().parse(
+                "require \"fileinto\"; if header :contains \"subject\" \"spam\" { fileinto \"Junk\"; }"));
+
+        long junk;
+        try (Stream<Message> messages = Corpus.mbox(file)) {
+            junk = interpreter.evaluateAll(messages)
+                    .filter(r -> !r.isImplicitKeep())
+                    .count();
+        }
+
+        assertThat(junk).isEqualTo(1000);
+    }
+}
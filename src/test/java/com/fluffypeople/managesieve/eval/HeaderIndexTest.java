@@ -0,0 +1,108 @@
+package com.fluffypeople.managesieve.eval;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HeaderIndexTest {
+
+    private final SieveParser parser = new SieveParser();
+
+    @Test
+    void shouldFindOverlappingKeys() {
+        HeaderIndex.Builder builder = new HeaderIndex.Builder(new String[]{ "subject" }, true);
+        int he = builder.add(MatchType.CONTAINS, List.of("he"));
+        int she = builder.add(MatchType.CONTAINS, List.of("SHE"));
+        int his = builder.add(MatchType.CONTAINS, List.of("his"));
+        int hers = builder.add(MatchType.CONTAINS, List.of("x", "hers"));
+        int ushers = builder.add(MatchType.IS, List.of("ushers"));
+        int any = builder.add(MatchType.CONTAINS, List.of(""));
+        HeaderIndex index = builder.build();
+
+        boolean[] hits = index.match(Message.parse("Subject: UsHers\r\n\r\n"));
+
+        assertThat(hits[he]).isTrue();
+        assertThat(hits[she]).isTrue();
+        assertThat(hits[his]).isFalse();
+        assertThat(hits[hers]).isTrue();
+        assertThat(hits[ushers]).isTrue();
+        assertThat(hits[any]).isTrue();
+        assertThat(index.match(Message.parse("From: x\r\n\r\n"))).containsOnly(false);
+    }
+
+    @Test
+    void shouldRespectOctetComparator() {
+        HeaderIndex.Builder builder = new HeaderIndex.Builder(new String[]{ "from" }, false);
+        int lower = builder.add(MatchType.CONTAINS, List.of("spam"));
+        int upper = builder.add(MatchType.IS, List.of("SPAM"));
+        HeaderIndex index = builder.build();
+
+        boolean[] hits = index.match(Message.parse("From: SPAM\r\n\r\n"));
+
+        assertThat(hits[lower]).isFalse();
+        assertThat(hits[upper]).isTrue();
+    }
+
+    @Test
+    void shouldIndexOnlyLargeConstantGroups() throws ParseException {
+        StringBuilder script = new StringBuilder("require [\"fileinto\", \"variables\"];\n");
+        for (int i = 0; i < SieveCompiler.INDEX_MIN_TESTS; i++) {
+            script.append("if header :contains [\"From\", \"sender\"] \"a").append(i).append("\" { stop; }\n");
+            script.append("if header :contains [\"sender\", \"from\"] \"${x}\" { stop; }\n");
+            script.append("if header :matches \"from\" \"a").append(i).append("\" { stop; }\n");
+        }
+        script.append("if header :is \"subject\" \"few\" { stop; }\n");
+
+        assertThat(new SieveInterpreter(parser.parse(script)).getIndexedTests()).isEqualTo(SieveCompiler.INDEX_MIN_TESTS);
+        assertThat(new SieveInterpreter(parser.parse(script), false).getIndexedTests()).isZero();
+    }
+
+    @Test
+    void shouldMatchSequentialEvaluation() throws ParseException {
+        Random random = new Random(47);
+        String[] words = { "spam", "Spam", "offer", "a", "ab", "bab", "", "example.com", "EXAMPLE", "x@example.com" };
+        String[] headers = { "from", "subject", "sender" };
+        for (int round = 0; round < 50; round++) {
+            StringBuilder script = new StringBuilder("require [\"fileinto\"];\n");
+            for (int rule = 0; rule < 40; rule++) {
+                String test = "header " + (random.nextBoolean() ? ":contains " : ":is ")
+                        + (random.nextInt(4) == 0 ? ":comparator \"i;octet\" " : "")
+                        + "\"" + headers[random.nextInt(2)] + "\" "
+                        + "[\"" + words[random.nextInt(words.length)] + "\", \"" + words[random.nextInt(words.length)] + "\"]";
+                switch (random.nextInt(4)) {
+                    case 0:
+                        test = "not " + test;
+                        break;
+                    case 1:
+                        test = "anyof (false, " + test + ")";
+                        break;
+                    default:
+                        break;
+                }
+                script.append(rule > 0 && random.nextInt(3) == 0 ? "elsif " : "if ").append(test)
+                        .append(" { fileinto \"").append(rule).append("\";")
+                        .append(random.nextInt(10) == 0 ? " stop;" : "").append(" }\n");
+            }
+            SieveInterpreter indexed = new SieveInterpreter(parser.parse(script));
+            SieveInterpreter sequential = new SieveInterpreter(parser.parse(script), false);
+            assertThat(indexed.getIndexedTests()).isPositive();
+
+            for (int m = 0; m < 20; m++) {
+                List<String> lines = new ArrayList<>();
+                for (int h = random.nextInt(4); h > 0; h--) {
+                    lines.add(headers[random.nextInt(headers.length)] + ": "
+                            + words[random.nextInt(words.length)] + words[random.nextInt(words.length)]);
+                }
+                Message message = Message.parse(String.join("\r\n", lines) + "\r\n\r\n");
+                assertThat(indexed.evaluate(message).getActions())
+                        .as("%s%s", script, lines)
+                        .isEqualTo(sequential.evaluate(message).getActions());
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.fluffypeople.managesieve.eval;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageTest {
+
+    @Test
+    void shouldUnfoldAndDecodeHeaders() {
+        Message message = Message.parse("Subject: =?UTF-8?B?Y2Fmw6k=?=\r\n =?ISO-8859-1?Q?_na=EFve?= ok\r\n"
+                + "X-Multi: one\nx-multi:two\n"
+                + "X-Bad: =?nosuch?Q?abc?=\n"
+                + "\nbody\n");
+
+        assertThat(message.getHeaders("SUBJECT")).containsExactly("café naïve ok");
+        assertThat(message.getHeaders("x-multi")).containsExactly("one", "two");
+        assertThat(message.getHeaders("x-bad")).containsExactly("=?nosuch?Q?abc?=");
+        assertThat(message.getHeaders("missing")).isEmpty();
+        assertThat(message.getRawBody()).isEqualTo("body\n");
+    }
+
+    @Test
+    void shouldCountOctets() {
+        assertThat(Message.parse("Subject: é\r\n\r\n").getSize()).isEqualTo(15);
+    }
+
+    @Test
+    void shouldTreatSinglePartAsText() {
+        Message message = Message.parse("Subject: x\r\n\r\nHello\r\n");
+
+        assertThat(message.getParts()).hasSize(1);
+        assertThat(message.getParts().get(0).getContentType()).isEqualTo("text/plain");
+        assertThat(message.getParts().get(0).getText()).isEqualTo("Hello\r\n");
+    }
+
+    @Test
+    void shouldSplitMultipart() {
+        Message message = Message.parse("Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+                + "\r\n"
+                + "preamble\r\n"
+                + "--outer\r\n"
+                + "Content-Type: multipart/alternative; boundary=inner\r\n"
+                + "\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/plain; charset=iso-8859-1\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n"
+                + "caf=E9 soft=\r\n"
+                + "break\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/html\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "\r\n"
+                + "PGI+aGk8L2I+\r\n"
+                + "--inner--\r\n"
+                + "--outer\r\n"
+                + "Content-Type: image/png\r\n"
+                + "\r\n"
+                + "xxxx\r\n"
+                + "--outer--\r\n"
+                + "epilogue\r\n");
+
+        List<Message.Part> parts = message.getParts();
+
+        assertThat(parts).extracting(Message.Part::getContentType).containsExactly("text/plain", "text/html", "image/png");
+        assertThat(parts).extracting(Message.Part::getText).containsExactly("café softbreak", "<b>hi</b>", null);
+    }
+
+    @Test
+    void shouldKeepEnvelope() {
+        Message message = Message.parse("\r\n");
+        Message withEnvelope = message.withEnvelope("", List.of("a@example.com"));
+
+        assertThat(message.getEnvelopeFrom()).isNull();
+        assertThat(message.getEnvelopeTo()).isEmpty();
+        assertThat(withEnvelope.getEnvelopeFrom()).isEmpty();
+        assertThat(withEnvelope.getEnvelopeTo()).containsExactly("a@example.com");
+    }
+
+    @Test
+    void shouldParseAddresses() {
+        assertThat(Addresses.parse("\"Smith, J\" <j@example.com>, k@example.org (Kay), undisclosed:;, "
+                + "Team: a@x.com, <b@y.com>; <@relay:c@z.com>"))
+                .containsExactly("j@example.com", "k@example.org", "a@x.com", "b@y.com", "c@z.com");
+        assertThat(Addresses.localPart("a@b@c")).isEqualTo("a@b");
+        assertThat(Addresses.domain("nobody")).isEmpty();
+    }
+}
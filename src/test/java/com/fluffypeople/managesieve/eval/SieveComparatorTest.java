@@ -0,0 +1,67 @@
+package com.fluffypeople.managesieve.eval;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SieveComparatorTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "abc, abc, true",
+        "abc, a*, true",
+        "abc, *c, true",
+        "abc, a?c, true",
+        "abc, ?, false",
+        "abc, *, true",
+        "'', *, true",
+        "'', ?, false",
+        "a*c, a\\*c, true",
+        "abc, a\\*c, false",
+        "ABC, a*, true",
+        "aXbXc, *X*X*, true",
+        "aXb, *X*X*, false",
+    })
+    void shouldMatchWildcards(final String value, final String pattern, final boolean expected) {
+        assertThat(SieveComparator.ASCII_CASEMAP.matches(value, pattern, null)).isEqualTo(expected);
+    }
+
+    @Test
+    void shouldCaptureLeftmostShortest() {
+        List<String> captures = new ArrayList<>();
+
+        assertThat(SieveComparator.OCTET.matches("a-b-c.d", "*-*.?", captures)).isTrue();
+        assertThat(captures).containsExactly("a-b-c.d", "a", "b-c", "d");
+
+        assertThat(SieveComparator.OCTET.matches("x", "y*", captures)).isFalse();
+        assertThat(captures).containsExactly("a-b-c.d", "a", "b-c", "d");
+    }
+
+    @Test
+    void shouldFoldOnlyAscii() {
+        assertThat(SieveComparator.ASCII_CASEMAP.isEqual("Hello", "hELLO")).isTrue();
+        assertThat(SieveComparator.ASCII_CASEMAP.isEqual("É", "é")).isFalse();
+        assertThat(SieveComparator.ASCII_CASEMAP.contains("Hello World", "O w")).isTrue();
+        assertThat(SieveComparator.OCTET.contains("Hello", "h")).isFalse();
+    }
+
+    @Test
+    void shouldCompareNumbers() {
+        assertThat(SieveComparator.ASCII_NUMERIC.isEqual("007", "7")).isTrue();
+        assertThat(SieveComparator.ASCII_NUMERIC.isEqual("12abc", "12")).isTrue();
+        assertThat(SieveComparator.ASCII_NUMERIC.isEqual("abc", "def")).isTrue();
+        assertThat(SieveComparator.ASCII_NUMERIC.isEqual("abc", "0")).isFalse();
+        assertThat(SieveComparator.compareNumeric("99999999999999999999", "100000000000000000000")).isNegative();
+        assertThat(SieveComparator.compareNumeric("x", "5")).isPositive();
+    }
+
+    @Test
+    void shouldFindByName() {
+        assertThat(SieveComparator.forName("I;ASCII-CASEMAP")).isEqualTo(SieveComparator.ASCII_CASEMAP);
+        assertThat(SieveComparator.forName("i;unicode-casemap")).isNull();
+    }
+}
@@ -0,0 +1,28 @@
+package com.fluffypeople.managesieve.eval;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SieveCompilerTest {
+
+    @Test
+    void shouldKeepPlainStringsWhole() {
+        assertThat(SieveCompiler.template("plain")).containsExactly("plain");
+        assertThat(SieveCompiler.template("")).containsExactly("");
+        assertThat(SieveCompiler.template("${bad-name} ${} ${open")).containsExactly("${bad-name} ${} ${open");
+    }
+
+    @Test
+    void shouldSplitReferences() {
+        List<Object> template = SieveCompiler.template("a${1}b${Name.Space}${x}");
+
+        assertThat(template).hasSize(5);
+        assertThat(template.get(0)).isEqualTo("a");
+        assertThat(template.get(1)).isEqualTo(1);
+        assertThat(template.get(2)).isEqualTo("b");
+        assertThat(template.get(3)).isNotInstanceOf(String.class);
+        assertThat(template.get(4)).isNotInstanceOf(String.class);
+    }
+}
@@ -0,0 +1,251 @@
+package com.fluffypeople.managesieve.eval;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveInterpreterTest {
+
+    private static final String MESSAGE = "Return-Path: <alice@example.org>\r\n"
+            + "From: \"Alice Smith\" <Alice@Example.ORG>\r\n"
+            + "To: bob@example.com, \"Carol, C.\" <carol@example.net>\r\n"
+            + "Subject: [acme-users] [fwd] version\r\n"
+            + " 1.0 is out\r\n"
+            + "X-Spam-Score: 0012\r\n"
+            + "Content-Type: text/plain; charset=utf-8\r\n"
+            + "\r\n"
+            + "Hello Bob,\r\n"
+            + "the release is out.\r\n";
+
+    private final SieveParser parser = new SieveParser();
+    private final Message message = Message.parse(MESSAGE).withEnvelope("alice@example.org", List.of("bob+sieve@example.com"));
+
+    private List<Action> run(final String script) throws ParseException {
+        return new SieveInterpreter(parser.parse(script)).evaluate(message).getActions();
+    }
+
+    @Nested
+    @DisplayName("Actions")
+    class Actions {
+
+        @Test
+        void shouldImplicitlyKeep() throws ParseException {
+            SieveInterpreter.Result result = new SieveInterpreter(parser.parse("")).evaluate(message);
+
+            assertThat(result.getActions()).containsExactly(Action.keep());
+            assertThat(result.isImplicitKeep()).isTrue();
+        }
+
+        @Test
+        void shouldCancelImplicitKeep() throws ParseException {
+            assertThat(run("discard;")).containsExactly(Action.discard());
+            assertThat(run("require \"fileinto\"; fileinto \"Junk\";")).containsExactly(Action.fileinto("Junk", false));
+            assertThat(run("redirect \"x@example.com\";")).containsExactly(Action.redirect("x@example.com", false));
+            assertThat(run("require \"reject\"; reject \"no\";")).containsExactly(Action.reject("no"));
+        }
+
+        @Test
+        void shouldKeepWithCopy() throws ParseException {
+            assertThat(run("require [\"fileinto\", \"copy\"]; fileinto :copy \"Archive\";"))
+                    .containsExactly(Action.fileinto("Archive", true), Action.keep());
+        }
+
+        @Test
+        void shouldDropDuplicateActions() throws ParseException {
+            assertThat(run("require \"fileinto\"; fileinto \"A\"; fileinto \"B\"; fileinto \"A\"; keep; keep;"))
+                    .containsExactly(Action.fileinto("A", false), Action.fileinto("B", false), Action.keep());
+        }
+
+        @Test
+        void shouldStop() throws ParseException {
+            assertThat(run("discard; stop; keep;")).containsExactly(Action.discard());
+        }
+
+        @Test
+        void shouldReportVacation() throws ParseException {
+            List<Action> actions = run("require \"vacation\";\n"
+                    + "vacation :days 3 :subject \"Away\" :addresses [\"bob@example.com\"] :handle \"h1\" \"Back soon\";\n"
+                    + "vacation \"again\";");
+
+            assertThat(actions).containsExactly(
+                    Action.vacation("Back soon", 3, "Away", null, List.of("bob@example.com"), false, "h1"),
+                    Action.keep());
+        }
+    }
+
+    @Nested
+    @DisplayName("Control")
+    class Control {
+
+        @Test
+        void shouldFollowIfElsifElse() throws ParseException {
+            String script = "require \"fileinto\";\n"
+                    + "if header :is \"x-none\" \"\" { fileinto \"1\"; }\n"
+                    + "elsif header :contains \"subject\" \"release\" { fileinto \"2\"; }\n"
+                    + "elsif header :contains \"subject\" \"version\" { fileinto \"3\"; }\n"
+                    + "else { fileinto \"4\"; }\n"
+                    + "if false { fileinto \"5\"; } else { fileinto \"6\"; }\n";
+
+            assertThat(run(script)).containsExactly(Action.fileinto("3", false), Action.fileinto("6", false));
+        }
+
+        @Test
+        void shouldCombineTests() throws ParseException {
+            assertThat(run("if allof (true, not false, anyof (false, true)) { discard; }")).containsExactly(Action.discard());
+            assertThat(run("if anyof (false, not true) { discard; }")).containsExactly(Action.keep());
+        }
+    }
+
+    @Nested
+    @DisplayName("Tests")
+    class Tests {
+
+        @ParameterizedTest
+        @ValueSource(strings = {
+            "header :is \"subject\" \"[ACME-users] [fwd] version 1.0 is out\"",
+            "header :contains [\"x-none\", \"Subject\"] \"FWD\"",
+            "header :matches \"subject\" \"*version ?.0*\"",
+            "header :comparator \"i;octet\" :contains \"subject\" \"acme\"",
+            "header :comparator \"i;ascii-numeric\" :is \"x-spam-score\" \"12\"",
+            "address :is \"from\" \"alice@example.org\"",
+            "address :domain :is \"to\" \"example.net\"",
+            "address :localpart :is [\"to\", \"cc\"] \"carol\"",
+            "envelope :all :is \"from\" \"alice@example.org\"",
+            "envelope :localpart :matches \"to\" \"bob+*\"",
+            "exists [\"from\", \"to\"]",
+            "size :over 100",
+            "size :under 1K",
+            "body :contains \"release\"",
+            "body :raw :contains \"Hello Bob,\r\n\"",
+            "body :content \"text\" :contains \"release\"",
+        })
+        void shouldMatch(final String test) throws ParseException {
+            String script = "require [\"envelope\", \"body\", \"comparator-i;ascii-numeric\"];\n"
+                    + "if " + test + " { discard; }";
+
+            assertThat(run(script)).as(test).containsExactly(Action.discard());
+        }
+
+        @ParameterizedTest
+        @ValueSource(strings = {
+            "header :is \"subject\" \"acme\"",
+            "header :contains \"x-none\" \"\"",
+            "header :comparator \"i;octet\" :contains \"subject\" \"ACME\"",
+            "header :comparator \"i;ascii-numeric\" :is \"x-spam-score\" \"13\"",
+            "address :is \"from\" \"Alice Smith\"",
+            "address :domain :is \"from\" \"example.com\"",
+            "envelope :is \"to\" \"bob@example.com\"",
+            "exists [\"from\", \"cc\"]",
+            "size :over 1K",
+            "body :content \"image\" :contains \"release\"",
+        })
+        void shouldNotMatch(final String test) throws ParseException {
+            String script = "require [\"envelope\", \"body\", \"comparator-i;ascii-numeric\"];\n"
+                    + "if " + test + " { discard; }";
+
+            assertThat(run(script)).as(test).containsExactly(Action.keep());
+        }
+    }
+
+    @Nested
+    @DisplayName("Variables")
+    class Variables {
+
+        @Test
+        void shouldExpandMatchVariables() throws ParseException {
+            String script = "require [\"fileinto\", \"variables\"];\n"
+                    + "if header :matches \"subject\" \"[*] *\" { fileinto \"lists.${1}\"; fileinto \"${2}\"; }";
+
+            assertThat(run(script)).containsExactly(
+                    Action.fileinto("lists.acme-users", false),
+                    Action.fileinto("[fwd] version 1.0 is out", false));
+        }
+
+        @Test
+        void shouldSetWithModifiers() throws ParseException {
+            String script = "require [\"fileinto\", \"variables\"];\n"
+                    + "set :upperfirst :lower \"folder\" \"ARCHIVE\";\n"
+                    + "set :length \"n\" \"${folder}\";\n"
+                    + "set :quotewildcard \"q\" \"a*b\";\n"
+                    + "if string :is \"${n}\" \"7\" { fileinto \"${FOLDER}/${q}/${unset}/${1}/${bad-name}\"; }";
+
+            assertThat(run(script)).containsExactly(Action.fileinto("Archive/a\\*b///${bad-name}", false));
+        }
+
+        @Test
+        void shouldMatchVariableKeys() throws ParseException {
+            String script = "require [\"fileinto\", \"variables\"];\n"
+                    + "set \"k\" \"ACME\";\n"
+                    + "set \"h\" \"subject\";\n"
+                    + "if header :contains \"${h}\" \"${k}-users\" { fileinto \"a\"; }\n"
+                    + "if header :matches \"subject\" \"[${k}-*]*\" { fileinto \"b-${1}\"; }\n"
+                    + "if string :is \"${k}\" \"acme\" { fileinto \"c\"; }";
+
+            assertThat(run(script)).containsExactly(
+                    Action.fileinto("a", false), Action.fileinto("b-users", false), Action.fileinto("c", false));
+        }
+
+        @Test
+        void shouldNotExpandWithoutRequire() throws ParseException {
+            assertThat(run("require \"fileinto\"; fileinto \"${x}\";")).containsExactly(Action.fileinto("${x}", false));
+        }
+    }
+
+    @Nested
+    @DisplayName("Checking")
+    class Checking {
+
+        @ParameterizedTest
+        @ValueSource(strings = {
+            "frobnicate;|Unknown command frobnicate at line 1",
+            "if frob { keep; }|Unknown test frob at line 1",
+            "fileinto \"x\";|fileinto needs require \"fileinto\" at line 1",
+            "require \"imap4flags\";|Unsupported extension \"imap4flags\" at line 1",
+            "keep; require \"fileinto\";|require must come before other commands at line 1",
+            "elsif true { keep; }|elsif must follow if or elsif at line 1",
+            "keep \"x\";|Unexpected argument to keep at line 1",
+            "redirect :copy \"x\";|Unexpected tag :copy for redirect at line 1",
+            "if header :is \"a\" { keep; }|header needs 2 arguments at line 1",
+            "if header :comparator \"i;ascii-numeric\" :is \"a\" \"1\" { keep; }|Unsupported comparator \"i;ascii-numeric\" at line 1",
+            "require \"comparator-i;ascii-numeric\"; if header :comparator \"i;ascii-numeric\" :contains \"a\" \"1\" { keep; }"
+                    + "|i;ascii-numeric can't be used with :contains at line 1",
+            "require \"variables\"; set \"1x\" \"y\";|Invalid variable name \"1x\" at line 1",
+            "if not true keep;|if needs a block at line 1",
+        })
+        void shouldRejectUnsupportedScripts(final String row) throws ParseException {
+            String[] parts = row.split("\\|");
+            parser.setAllowTrailingInput(false);
+
+            assertThatThrownBy(() -> new SieveInterpreter(parser.parse(parts[0])))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessage(parts[1]);
+        }
+    }
+
+    @Test
+    void shouldEvaluateInParallel() throws ParseException {
+        SieveInterpreter interpreter = new SieveInterpreter(parser.parse(
+                "require [\"fileinto\", \"variables\"];\n"
+                + "if header :matches \"subject\" \"msg *\" { fileinto \"${1}\"; }"));
+
+        List<String> folders = interpreter.evaluateAll(Stream.iterate(0, i -> i + 1).limit(5000)
+                .map(i -> Message.parse("Subject: msg " + i + "\r\n\r\n")))
+                .map(r -> r.getActions().get(0).getValue())
+                .collect(Collectors.toList());
+
+        assertThat(folders).hasSize(5000);
+        for (int i = 0; i < folders.size(); i++) {
+            assertThat(folders.get(i)).isEqualTo(Integer.toString(i));
+        }
+    }
+}
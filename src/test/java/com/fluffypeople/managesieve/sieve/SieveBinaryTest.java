@@ -0,0 +1,192 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.xml.SieveToXML;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveBinaryTest {
+
+    private static final String SCRIPT = "require [\"fileinto\", \"vacation\"];\r\n"
+            + "# comment\r\n"
+            + "if anyof (header :contains [\"subject\", \"X-Spam\"] \"spam\", size :over 100K) {\r\n"
+            + "    fileinto \"Junk\";\r\n"
+            + "    stop;\r\n"
+            + "} elsif not exists \"from\" {\r\n"
+            + "    vacation :days 7 text:\r\n"
+            + "Away, café ☃\r\n"
+            + "..\r\n"
+            + ".\r\n"
+            + ";\r\n"
+            + "} else {\r\n"
+            + "    keep;\r\n"
+            + "}\r\n";
+
+    private final SieveParser parser = new SieveParser();
+
+    @Test
+    void shouldRoundTripTreeAndSpans() throws ParseException {
+        ScriptNode script = parser.parse(SCRIPT);
+
+        ScriptNode decoded = SieveBinary.decode(SieveBinary.encode(script, false));
+
+        assertThat(decoded).isEqualTo(script);
+        assertThat(decoded.getSource()).isNull();
+        assertSpans(decoded.getCommands(), script.getCommands());
+    }
+
+    @Test
+    void shouldRoundTripTextStringsInLists() throws ParseException {
+        ScriptNode script = parser.parse("if header :is \"subject\" [\"a\", text:\r\nb\r\n.\r\n, \"c\"] { keep; }\r\n");
+
+        ScriptNode decoded = SieveBinary.decode(SieveBinary.encode(script, false));
+
+        StringListNode list = (StringListNode) decoded.getCommands().get(0).getTests().get(0).getArguments().get(2);
+        assertThat(list.getStrings()).extracting(StringNode::isMultiline).containsExactly(false, true, false);
+        assertThat(decoded).isEqualTo(script);
+    }
+
+    @Test
+    void shouldMatchXMLOutput() throws ParseException {
+        ScriptNode script = parser.parse(SCRIPT);
+
+        ScriptNode decoded = SieveBinary.decode(SieveBinary.encode(script, false));
+
+        assertThat(SieveToXML.toXML(decoded).toString()).isEqualTo(SieveToXML.toXML(script).toString());
+    }
+
+    @Test
+    void shouldKeepSourceForReparse() throws ParseException {
+        ScriptNode script = parser.parse(SCRIPT);
+
+        ScriptNode decoded = SieveBinary.decode(SieveBinary.encode(script, true));
+
+        assertThat(decoded.getSource()).isEqualTo(SCRIPT);
+        int at = SCRIPT.indexOf("\"Junk\"") + 1;
+        ScriptNode edited = parser.reparse(decoded, at, 4, "Spam");
+        assertThat(edited).isEqualTo(parser.parse(SCRIPT.replace("\"Junk\"", "\"Spam\"")));
+    }
+
+    @Test
+    void shouldRoundTripNodesBuiltInCode() throws ParseException {
+        List<ArgumentNode> arguments = new ArrayList<>();
+        arguments.add(new TagNode("copy"));
+        arguments.add(new NumberNode(Long.MAX_VALUE));
+        arguments.add(new StringNode("INBOX"));
+        ScriptNode script = new ScriptNode(List.of(new CommandNode("fileinto", arguments, List.of(), false, null)));
+
+        ScriptNode decoded = SieveBinary.decode(SieveBinary.encode(script, true));
+
+        assertThat(decoded).isEqualTo(script);
+        CommandNode command = decoded.getCommands().get(0);
+        assertThat(command.getStart()).isEqualTo(-1);
+        assertThat(command.getEnd()).isEqualTo(-1);
+        assertThat(command.getLine()).isEqualTo(-1);
+    }
+
+    @Test
+    void shouldStoreEachStringOnce() throws ParseException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("if header :contains \"subject\" \"a rather long value to repeat\" { fileinto \"Junk\"; }\r\n");
+        }
+        ScriptNode script = parser.parse(sb);
+
+        ByteBuffer encoded = SieveBinary.encode(script, false);
+
+        String bytes = new String(encoded.array(), 0, encoded.remaining(), StandardCharsets.ISO_8859_1);
+        assertThat(bytes.split("a rather long value to repeat", -1)).hasSize(2);
+        assertThat(encoded.remaining()).isLessThan(sb.length());
+        assertThat(SieveBinary.decode(encoded)).isEqualTo(script);
+    }
+
+    @Test
+    void shouldReadScriptsBackToBack() throws ParseException {
+        ScriptNode first = parser.parse("keep;");
+        ScriptNode second = parser.parse(SCRIPT);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        SieveBinary.encode(first, true, buffer);
+        SieveBinary.encode(second, true, buffer);
+        buffer.flip();
+
+        assertThat(SieveBinary.decode(buffer)).isEqualTo(first);
+        ScriptNode decoded = SieveBinary.decode(buffer);
+        assertThat(decoded).isEqualTo(second);
+        assertThat(decoded.getSource()).isEqualTo(SCRIPT);
+        assertThat(buffer.hasRemaining()).isFalse();
+    }
+
+    @Test
+    void shouldLoadMappedFile(@TempDir final Path dir) throws IOException, ParseException {
+        List<ScriptNode> scripts = List.of(parser.parse(SCRIPT), parser.parse("discard;"), parser.parse(""));
+        Path file = dir.resolve("scripts.bin");
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (ScriptNode script : scripts) {
+            SieveBinary.encode(script, false, buffer);
+        }
+        Files.write(file, Arrays.copyOf(buffer.array(), buffer.position()));
+
+        assertThat(SieveBinary.load(file)).isEqualTo(scripts);
+    }
+
+    @Test
+    void shouldRejectBadInput() throws ParseException {
+        ByteBuffer encoded = SieveBinary.encode(parser.parse(SCRIPT), false);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        assertThatThrownBy(() -> SieveBinary.decode(ByteBuffer.wrap("require".getBytes())))
+                .isInstanceOf(ParseException.class)
+                .hasMessage("Not an encoded Sieve script");
+
+        byte[] version = bytes.clone();
+        version[3] = 3;
+        assertThatThrownBy(() -> SieveBinary.decode(ByteBuffer.wrap(version)))
+                .isInstanceOf(ParseException.class)
+                .hasMessage("Unsupported encoding version 3");
+
+        assertThatThrownBy(() -> SieveBinary.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1)))
+                .isInstanceOf(ParseException.class)
+                .hasMessage("Encoded script truncated");
+    }
+
+    private static void assertSpans(final List<? extends CallNode> actual, final List<? extends CallNode> expected) {
+        for (int i = 0; i < expected.size(); i++) {
+            CallNode a = actual.get(i);
+            CallNode e = expected.get(i);
+            assertSpan(a, e);
+            for (int j = 0; j < e.getArguments().size(); j++) {
+                assertSpan(a.getArguments().get(j), e.getArguments().get(j));
+            }
+            assertSpans(a.getTests(), e.getTests());
+            if (e instanceof CommandNode) {
+                assertSpans(((CommandNode) a).getBlock(), ((CommandNode) e).getBlock());
+            }
+        }
+    }
+
+    private static void assertSpan(final SieveNode actual, final SieveNode expected) {
+        assertThat(actual.getStart()).isEqualTo(expected.getStart());
+        assertThat(actual.getEnd()).isEqualTo(expected.getEnd());
+        assertThat(actual.getLine()).isEqualTo(expected.getLine());
+        assertThat(actual.getColumn()).isEqualTo(expected.getColumn());
+        if (expected instanceof StringListNode) {
+            List<StringNode> a = ((StringListNode) actual).getStrings();
+            List<StringNode> e = ((StringListNode) expected).getStrings();
+            for (int i = 0; i < e.size(); i++) {
+                assertSpan(a.get(i), e.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class SieveCostEstimatorTest {
+
+    private final SieveCostEstimator estimator = new SieveCostEstimator();
+
+    @Test
+    void shouldCostEachRule() throws ParseException {
+        SieveCostEstimator.Estimate estimate = estimator.estimate("require \"fileinto\";\n"
+                + "if header :is \"from\" \"a\" { discard; }\n"
+                + "if header :contains [\"from\", \"sender\"] [\"a\", \"b\", \"c\"] { fileinto \"x\"; }\n");
+
+        assertThat(estimate.getRules()).extracting(SieveCostEstimator.Rule::getName)
+                .containsExactly("require", "if", "if");
+        assertThat(estimate.getRules()).extracting(SieveCostEstimator.Rule::getLine)
+                .containsExactly(1, 2, 3);
+        // header 1 + is 1 x 1 key x 1 header, plus discard 1 nested once
+        assertThat(estimate.getRules().get(1).getCost()).isCloseTo(4.0, within(1e-9));
+        // header 1 + contains 2 x 3 keys x 2 headers, plus fileinto 1 nested once
+        assertThat(estimate.getRules().get(2).getCost()).isCloseTo(15.0, within(1e-9));
+        assertThat(estimate.getTotal()).isCloseTo(19.0, within(1e-9));
+        assertThat(estimate.getLargestList()).isEqualTo(3);
+        assertThat(estimate.getMaxDepth()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldFlagRegexAndBody() throws ParseException {
+        SieveCostEstimator.Estimate estimate = estimator.estimate("require [\"body\", \"regex\"];\n"
+                + "if anyof (header :regex \"subject\" \"^a\", body :regex \"b\", not body :contains \"c\") { discard; }\n");
+
+        assertThat(estimate.getRegexTests()).isEqualTo(2);
+        assertThat(estimate.getBodyTests()).isEqualTo(2);
+        assertThat(estimate.getMaxDepth()).isEqualTo(3);
+        // header 1 + 25, body 20 + 25 x 10, body 20 + 2 x 10, discard 2
+        assertThat(estimate.getTotal()).isCloseTo(338.0, within(1e-9));
+    }
+
+    @Test
+    void shouldIgnoreTagValues() throws ParseException {
+        SieveCostEstimator.Estimate estimate = estimator.estimate(
+                "if header :comparator \"i;octet\" :is \"from\" [\"a\", \"b\"] { keep; }\n");
+
+        assertThat(estimate.getTotal()).isCloseTo(5.0, within(1e-9));
+    }
+
+    @Test
+    void shouldUseConfiguredCosts() throws ParseException {
+        estimator.setMatchCost("regex", 100);
+        estimator.setTestCost("header", 0);
+        estimator.setDefaultCommandCost(0);
+        estimator.setDepthCost(0);
+
+        assertThat(estimator.estimate("if header :regex \"subject\" [\"a\", \"b\"] { discard; }\n").getTotal())
+                .isCloseTo(200.0, within(1e-9));
+    }
+
+    @Test
+    void shouldCountNesting() throws ParseException {
+        SieveCostEstimator.Estimate estimate = estimator.estimate(
+                "if true { if true { if true { keep; } } }\n");
+
+        assertThat(estimate.getMaxDepth()).isEqualTo(3);
+        // if at depths 0, 1 and 2, keep at depth 3
+        assertThat(estimate.getTotal()).isCloseTo(0 + 1 + 2 + 1 + 3, within(1e-9));
+    }
+}
@@ -0,0 +1,226 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveToken.Kind;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveLexerTest {
+
+    private static List<SieveToken> lex(String script) throws ParseException {
+        SieveLexer lexer = new SieveLexer(script);
+        List<SieveToken> result = new ArrayList<>();
+        SieveToken t;
+        do {
+            t = lexer.next();
+            result.add(t);
+        } while (!t.is(Kind.EOF));
+        return result;
+    }
+
+    private static List<Kind> kinds(String script) throws ParseException {
+        List<Kind> result = new ArrayList<>();
+        for (SieveToken t : lex(script)) {
+            result.add(t.getKind());
+        }
+        return result;
+    }
+
+    private static SieveToken first(String script) throws ParseException {
+        return new SieveLexer(script).next();
+    }
+
+    @Nested
+    @DisplayName("Token kinds")
+    class KindTests {
+
+        @Test
+        void shouldLexPunctuation() throws Exception {
+            assertThat(kinds("[](){},;")).containsExactly(
+                    Kind.LEFT_BRACKET, Kind.RIGHT_BRACKET, Kind.LEFT_PAREN, Kind.RIGHT_PAREN,
+                    Kind.LEFT_BRACE, Kind.RIGHT_BRACE, Kind.COMMA, Kind.SEMICOLON, Kind.EOF);
+        }
+
+        @Test
+        void shouldLexCommand() throws Exception {
+            List<SieveToken> tokens = lex("fileinto :copy \"INBOX\";");
+            assertThat(tokens).extracting(SieveToken::getKind).containsExactly(
+                    Kind.IDENTIFIER, Kind.TAG, Kind.STRING, Kind.SEMICOLON, Kind.EOF);
+            assertThat(tokens.get(0).getText()).isEqualTo("fileinto");
+            assertThat(tokens.get(1).getText()).isEqualTo("copy");
+            assertThat(tokens.get(2).getText()).isEqualTo("INBOX");
+        }
+
+        @Test
+        void shouldLexIdentifierWithDigitsAndUnderscore() throws Exception {
+            assertThat(first("_foo_1").getText()).isEqualTo("_foo_1");
+        }
+
+        @Test
+        void shouldReturnEofRepeatedly() throws Exception {
+            SieveLexer lexer = new SieveLexer("");
+            assertThat(lexer.next().is(Kind.EOF)).isTrue();
+            assertThat(lexer.next().is(Kind.EOF)).isTrue();
+        }
+
+        @Test
+        void shouldPeekWithoutConsuming() throws Exception {
+            SieveLexer lexer = new SieveLexer("keep;");
+            assertThat(lexer.peek().getText()).isEqualTo("keep");
+            assertThat(lexer.next().getText()).isEqualTo("keep");
+            assertThat(lexer.next().is(Kind.SEMICOLON)).isTrue();
+        }
+    }
+
+    @Nested
+    @DisplayName("Numbers")
+    class NumberTests {
+
+        @Test
+        void shouldLexPlainNumber() throws Exception {
+            assertThat(first("365").getNumber()).isEqualTo(365);
+        }
+
+        @Test
+        void shouldApplyQuantifiers() throws Exception {
+            assertThat(first("3K").getNumber()).isEqualTo(3072);
+            assertThat(first("3k").getNumber()).isEqualTo(3072);
+            assertThat(first("2M").getNumber()).isEqualTo(2097152);
+            assertThat(first("1G").getNumber()).isEqualTo(1073741824);
+        }
+
+        @Test
+        void shouldNotTreatIdentifierAsQuantifier() throws Exception {
+            assertThat(lex("3Kb")).extracting(SieveToken::getKind)
+                    .containsExactly(Kind.NUMBER, Kind.IDENTIFIER, Kind.EOF);
+        }
+
+        @Test
+        void shouldRejectHugeNumber() {
+            assertThatThrownBy(() -> first("99999999999999999999"))
+                    .isInstanceOf(ParseException.class);
+        }
+    }
+
+    @Nested
+    @DisplayName("Strings")
+    class StringTests {
+
+        @Test
+        void shouldUnescapeQuotedString() throws Exception {
+            assertThat(first("\"a\\\"b\\\\c\"").getText()).isEqualTo("a\"b\\c");
+        }
+
+        @Test
+        void shouldDropBackslashFromUnknownEscape() throws Exception {
+            assertThat(first("\"\\a\\n\"").getText()).isEqualTo("an");
+        }
+
+        @Test
+        void shouldAllowNewlineInQuotedString() throws Exception {
+            SieveLexer lexer = new SieveLexer("\"a\nb\" keep");
+            assertThat(lexer.next().getText()).isEqualTo("a\nb");
+            assertThat(lexer.next().getLine()).isEqualTo(2);
+        }
+
+        @Test
+        void shouldLexMultiLineString() throws Exception {
+            SieveToken t = first("text:\r\nhello\r\n..dot\r\n.\r\n");
+            assertThat(t.getKind()).isEqualTo(Kind.MULTILINE);
+            assertThat(t.getText()).isEqualTo("hello\r\n.dot\r\n");
+        }
+
+        @Test
+        void shouldAllowCommentAfterTextColon() throws Exception {
+            SieveToken t = first("text: # comment\nhello\n.\n");
+            assertThat(t.getText()).isEqualTo("hello\r\n");
+        }
+
+        @Test
+        void shouldKeepHashInsideMultiLineString() throws Exception {
+            assertThat(first("text:\n# not a comment\n.\n").getText()).isEqualTo("# not a comment\r\n");
+        }
+
+        @Test
+        void shouldAcceptTerminatorAtEndOfInput() throws Exception {
+            assertThat(first("text:\nhi\n.").getText()).isEqualTo("hi\r\n");
+        }
+
+        @Test
+        void shouldRejectUnterminatedString() {
+            assertThatThrownBy(() -> first("\"abc"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Unterminated string");
+        }
+
+        @Test
+        void shouldRejectUnterminatedMultiLineString() {
+            assertThatThrownBy(() -> first("text:\nabc\n"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Unterminated multi-line string");
+        }
+
+        @Test
+        void shouldRejectTextOnSameLine() {
+            assertThatThrownBy(() -> first("text: abc\n.\n"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Expecting EOL");
+        }
+    }
+
+    @Nested
+    @DisplayName("Comments and positions")
+    class CommentTests {
+
+        @Test
+        void shouldSkipComments() throws Exception {
+            assertThat(kinds("# one\n/* two\n three */ keep /**/;")).containsExactly(
+                    Kind.IDENTIFIER, Kind.SEMICOLON, Kind.EOF);
+        }
+
+        @Test
+        void shouldRejectUnterminatedComment() {
+            assertThatThrownBy(() -> lex("keep; /* oops"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Unterminated comment");
+        }
+
+        @Test
+        void shouldTrackOffsetsLinesAndColumns() throws Exception {
+            List<SieveToken> tokens = lex("keep;\n  # c\n  stop;");
+            SieveToken stop = tokens.get(2);
+            assertThat(stop.getText()).isEqualTo("stop");
+            assertThat(stop.getStart()).isEqualTo(14);
+            assertThat(stop.getEnd()).isEqualTo(18);
+            assertThat(stop.getLine()).isEqualTo(3);
+            assertThat(stop.getColumn()).isEqualTo(3);
+        }
+
+        @Test
+        void shouldRejectUnexpectedCharacter() {
+            assertThatThrownBy(() -> lex("keep; @"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Unexpected character '@' at line 1 column 7");
+        }
+
+        @Test
+        void shouldRejectTagWithoutName() {
+            assertThatThrownBy(() -> lex(": is"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageContaining("Expecting identifier");
+        }
+
+        @Test
+        void shouldReadFromReader() throws Exception {
+            assertThat(SieveLexer.readFully(new StringReader("keep;")).toString()).isEqualTo("keep;");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SieveMinifierTest {
+
+    private final SieveParser parser = new SieveParser();
+    private SieveMinifier minifier;
+
+    @BeforeEach
+    void setUp() {
+        minifier = new SieveMinifier();
+        minifier.setVerify(true);
+    }
+
+    @Test
+    void shouldStripCommentsAndLayout() throws ParseException {
+        String script = "# Generated rules\r\n/* header\r\n block */\r\n"
+                + "require [\"fileinto\", \"reject\"];\r\n"
+                + "if header :contains \"subject\" \"spam\" {\r\n"
+                + "    fileinto \"Junk\";   # move it\r\n"
+                + "    stop;\r\n"
+                + "} elsif anyof (size :over 1024, not exists \"from\") {\r\n"
+                + "    discard;\r\n"
+                + "} else {\r\n"
+                + "}\r\n";
+
+        assertThat(minifier.minify(script)).isEqualTo("require[\"fileinto\",\"reject\"];"
+                + "if header:contains\"subject\"\"spam\"{fileinto\"Junk\";stop;}"
+                + "elsif anyof(size:over 1K,not exists\"from\"){discard;}else{}");
+    }
+
+    @Test
+    void shouldKeepBareLineFeedsInQuotedStrings() throws ParseException {
+        String script = "require \"vacation\";\nvacation :days 7 \"Hello\n\nI am away.\";\n";
+
+        String minified = minifier.minify(script);
+
+        assertThat(minified).isEqualTo("require\"vacation\";vacation:days 7\"Hello\n\nI am away.\";");
+        assertThat(parser.parse(minified)).isEqualTo(parser.parse(script));
+    }
+
+    @Test
+    void shouldPickShortestNumberSpelling() {
+        assertThat(SieveMinifier.number(0)).isEqualTo("0");
+        assertThat(SieveMinifier.number(1024)).isEqualTo("1K");
+        assertThat(SieveMinifier.number(2048 * 1024)).isEqualTo("2M");
+        assertThat(SieveMinifier.number(3L << 30)).isEqualTo("3G");
+        assertThat(SieveMinifier.number(1000)).isEqualTo("1000");
+        assertThat(SieveMinifier.number(1024 * 1000)).isEqualTo("1000K");
+    }
+
+    @Test
+    void shouldPreferQuotedFormForTextBlocks() throws ParseException {
+        String script = "reject text:\r\nGo away.\r\n.\r\n;";
+
+        assertThat(minifier.minify(script)).isEqualTo("reject\"Go away.\r\n\";");
+    }
+
+    @Test
+    void shouldKeepTextFormWhenShorter() throws ParseException {
+        String body = "\\\"\\\"\\\"\\\"\\\"\\\"\\\"\\\"\\\"\\\"\\\"\\\"\r\n";
+        String script = "reject text:\r\n" + body + ".\r\n;";
+
+        String result = minifier.minify(script);
+
+        assertThat(result).startsWith("reject text:\r\n").endsWith(".\r\n;");
+    }
+
+    @Test
+    void shouldUnwrapSingleEntryLists() throws ParseException {
+        assertThat(minifier.minify("require [\"fileinto\"];")).isEqualTo("require\"fileinto\";");
+    }
+
+    @Test
+    void shouldSeparateTokensThatWouldMerge() throws ParseException {
+        assertThat(minifier.minify("if size :over 10 { keep; }")).isEqualTo("if size:over 10{keep;}");
+        assertThat(minifier.minify("text :is \"a\";")).isEqualTo("text :is\"a\";");
+        assertThat(minifier.minify("if not true { keep; }")).isEqualTo("if not true{keep;}");
+    }
+
+    @Test
+    void shouldBeIdempotentAndEquivalent() throws ParseException {
+        String script = "require [\"vacation\", \"fileinto\"];\n"
+                + "if address :all :comparator \"i;ascii-casemap\" :is [\"from\", \"sender\"] \"a@b.c\" {\n"
+                + "  vacation :days 7 :subject \"Away\" text:\n"
+                + "..leading dot\n"
+                + "I'm \"away\" \\ out\n"
+                + ".\n"
+                + ";\n"
+                + "}\n";
+
+        String once = minifier.minify(script);
+
+        assertThat(minifier.minify(once)).isEqualTo(once);
+        assertThat(once.length()).isLessThan(script.length());
+        assertThat(SieveMinifier.isEquivalent(parser.parse(script), parser.parse(once))).isTrue();
+    }
+
+    @Test
+    void shouldDetectDifferentScripts() throws ParseException {
+        assertThat(SieveMinifier.isEquivalent(parser.parse("keep;"), parser.parse("discard;"))).isFalse();
+        assertThat(SieveMinifier.isEquivalent(parser.parse("require [\"a\"];"), parser.parse("require \"a\";"))).isTrue();
+    }
+}
@@ -0,0 +1,164 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.eval.Message;
+import com.fluffypeople.managesieve.eval.SieveInterpreter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SieveOptimizerTest {
+
+    private final SieveParser parser = new SieveParser();
+    private SieveOptimizer optimizer;
+
+    @BeforeEach
+    void setUp() {
+        optimizer = new SieveOptimizer();
+        optimizer.getWriter().setLineSeparator("\n");
+    }
+
+    @Test
+    void shouldDropCommandsAfterStop() throws ParseException {
+        assertThat(optimizer.optimize("if true { discard; stop; keep; }\nkeep;\nstop;\nkeep;\ndiscard;\n"))
+                .isEqualTo("if true {\n    discard;\n    stop;\n}\nkeep;\nstop;\n");
+    }
+
+    @Test
+    void shouldFlattenAndMerge() throws ParseException {
+        String script = "if anyof (header :contains \"from\" \"a\", anyof (header :contains \"from\" [\"b\", \"a\"],"
+                + " header :contains \"sender\" [\"a\", \"b\"]), allof (true)) { discard; }\n";
+
+        assertThat(optimizer.optimize(script))
+                .isEqualTo("if anyof (header :contains [\"from\", \"sender\"] [\"a\", \"b\"], true) {\n    discard;\n}\n");
+    }
+
+    @Test
+    void shouldNotMergeDifferentTags() throws ParseException {
+        String script = "if anyof (header :is \"from\" \"a\", header :contains \"from\" \"b\") { discard; }\n";
+
+        assertThat(optimizer.optimize(script))
+                .isEqualTo("if anyof (header :is \"from\" \"a\", header :contains \"from\" \"b\") {\n    discard;\n}\n");
+    }
+
+    @Test
+    void shouldNotMergeInAllof() throws ParseException {
+        String script = "if allof (header :is \"from\" \"a\", header :is \"from\" \"b\") { discard; }\n";
+
+        assertThat(optimizer.optimize(script))
+                .isEqualTo("if allof (header :is \"from\" \"a\", header :is \"from\" \"b\") {\n    discard;\n}\n");
+    }
+
+    @Test
+    void shouldHoistCheapTests() throws ParseException {
+        String script = "require \"body\";\n"
+                + "if allof (body :contains \"x\", not exists \"list-id\", anyof (body :raw :contains \"y\", size :over 1M)) { discard; }\n";
+
+        assertThat(optimizer.optimize(script)).isEqualTo("require \"body\";\n"
+                + "if allof (not exists \"list-id\", body :contains \"x\", anyof (size :over 1048576, body :raw :contains \"y\")) {\n"
+                + "    discard;\n}\n");
+    }
+
+    @Test
+    void shouldMergeBlocklistRules() throws ParseException {
+        String script = "require \"fileinto\";\n"
+                + "if header :contains \"from\" \"a@x\" { discard; stop; }\n"
+                + "if header :contains \"from\" \"b@x\" { discard; stop; }\n"
+                + "if header :contains \"from\" \"c@x\" { discard; stop; }\n"
+                + "if header :contains \"from\" \"d@x\" { fileinto \"d\"; }\n"
+                + "if header :contains \"from\" \"e@x\" { fileinto \"d\"; }\n";
+
+        assertThat(optimizer.optimize(script)).isEqualTo("require \"fileinto\";\n"
+                + "if header :contains \"from\" [\"a@x\", \"b@x\", \"c@x\"] {\n    discard;\n    stop;\n}\n"
+                + "if header :contains \"from\" \"d@x\" {\n    fileinto \"d\";\n}\n"
+                + "if header :contains \"from\" \"e@x\" {\n    fileinto \"d\";\n}\n");
+    }
+
+    @Test
+    void shouldKeepMatchesInPlaceWithVariables() throws ParseException {
+        String script = "require [\"variables\", \"body\"];\n"
+                + "if anyof (body :contains \"x\", header :matches \"subject\" \"*\", header :matches \"subject\" \"a*\") { keep; }\n";
+
+        assertThat(optimizer.optimize(script)).isEqualTo("require [\"variables\", \"body\"];\n"
+                + "if anyof (body :contains \"x\", header :matches \"subject\" \"*\", header :matches \"subject\" \"a*\") {\n"
+                + "    keep;\n}\n");
+    }
+
+    @Test
+    void shouldNotChangeResults() throws ParseException {
+        Random random = new Random(48);
+        String[] words = { "spam", "offer", "a", "b", "" };
+        String[] headers = { "from", "subject" };
+        for (int round = 0; round < 100; round++) {
+            StringBuilder script = new StringBuilder("require [\"fileinto\", \"body\", \"variables\"];\n");
+            for (int rule = 0; rule < 8; rule++) {
+                script.append(rule > 0 && random.nextInt(4) == 0 ? "elsif " : "if ")
+                        .append(randomTest(random, words, headers, 2))
+                        .append(" { ");
+                switch (random.nextInt(4)) {
+                    case 0:
+                        script.append("discard; stop; keep; ");
+                        break;
+                    case 1:
+                        script.append("fileinto \"f${1}\"; ");
+                        break;
+                    case 2:
+                        script.append("keep; ");
+                        break;
+                    default:
+                        script.append("fileinto \"f").append(rule).append("\"; ");
+                        break;
+                }
+                script.append("}\n");
+            }
+            script.append("fileinto \"last-${1}\";\n");
+
+            ScriptNode original = parser.parse(script);
+            ScriptNode optimized = new SieveOptimizer().optimize(original);
+            SieveInterpreter before = new SieveInterpreter(original);
+            SieveInterpreter after = new SieveInterpreter(parser.parse(new SieveWriter().write(optimized)));
+
+            for (int m = 0; m < 20; m++) {
+                List<String> lines = new ArrayList<>();
+                for (int h = random.nextInt(3); h > 0; h--) {
+                    lines.add(headers[random.nextInt(headers.length)] + ": "
+                            + words[random.nextInt(words.length)] + words[random.nextInt(words.length)]);
+                }
+                Message message = Message.parse(String.join("\r\n", lines) + "\r\n\r\n"
+                        + words[random.nextInt(words.length)]);
+                assertThat(after.evaluate(message).getActions())
+                        .as("%s%s", script, lines)
+                        .isEqualTo(before.evaluate(message).getActions());
+            }
+        }
+    }
+
+    private static String randomTest(final Random random, final String[] words, final String[] headers, final int depth) {
+        int kind = random.nextInt(depth > 0 ? 7 : 4);
+        String key = "\"" + words[random.nextInt(words.length)] + "\"";
+        String header = "\"" + headers[random.nextInt(headers.length)] + "\"";
+        switch (kind) {
+            case 0:
+                return "header :contains " + header + " " + key;
+            case 1:
+                return "header :matches " + header + " \"*" + words[random.nextInt(words.length)] + "*\"";
+            case 2:
+                return "body :contains " + key;
+            case 3:
+                return "header :is " + header + " " + key;
+            case 4:
+                return "not " + randomTest(random, words, headers, depth - 1);
+            default: {
+                StringBuilder sb = new StringBuilder(kind == 5 ? "anyof (" : "allof (");
+                for (int i = random.nextInt(3) + 1; i > 0; i--) {
+                    sb.append(randomTest(random, words, headers, depth - 1)).append(i > 1 ? ", " : ")");
+                }
+                return sb.toString();
+            }
+        }
+    }
+}
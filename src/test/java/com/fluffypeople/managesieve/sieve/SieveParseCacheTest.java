@@ -0,0 +1,122 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveParseCacheTest {
+
+    @Test
+    void shouldReturnSameTreeOnHit() throws ParseException {
+        SieveParseCache cache = new SieveParseCache(1 << 20);
+
+        ScriptNode first = cache.parse("keep;");
+        ScriptNode second = cache.parse(new String("keep;".toCharArray()));
+
+        assertThat(second).isSameAs(first);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getWeight()).isEqualTo(SieveParseCache.weigh(first, "keep;"));
+    }
+
+    @Test
+    void shouldNotCacheFailures() {
+        SieveParseCache cache = new SieveParseCache(1 << 20);
+
+        assertThatThrownBy(() -> cache.parse("keep")).isInstanceOf(ParseException.class);
+        assertThatThrownBy(() -> cache.parse("keep")).isInstanceOf(ParseException.class);
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedToStayUnderWeight() throws ParseException {
+        long max = 16 * 2000;
+        SieveParseCache cache = new SieveParseCache(max);
+
+        for (int i = 0; i < 500; i++) {
+            cache.parse("fileinto \"folder" + i + "\";");
+        }
+
+        assertThat(cache.getWeight()).isLessThanOrEqualTo(max);
+        assertThat(cache.getEvictionCount()).isPositive();
+        assertThat(cache.size() + cache.getEvictionCount()).isEqualTo(500);
+        // The newest entry is always still there
+        long hits = cache.getHitCount();
+        cache.parse("fileinto \"folder499\";");
+        assertThat(cache.getHitCount()).isEqualTo(hits + 1);
+    }
+
+    @Test
+    void shouldKeepRecentlyUsedEntries() throws ParseException {
+        // Each segment has room for "keep;" and one other small script
+        SieveParseCache cache = new SieveParseCache(16 * 400);
+        String keep = "keep;";
+        cache.parse(keep);
+
+        for (int i = 0; i < 200; i++) {
+            cache.parse(keep);
+            cache.parse("fileinto \"f" + i + "\";");
+        }
+
+        assertThat(cache.getHitCount()).isEqualTo(200);
+    }
+
+    @Test
+    void shouldSkipScriptsTooLargeToCache() throws ParseException {
+        SieveParseCache cache = new SieveParseCache(16 * 100);
+
+        cache.parse("fileinto \"a very long folder name that will not fit in the cache at all, not even close\";");
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void shouldInvalidateAndClear() throws ParseException {
+        SieveParseCache cache = new SieveParseCache(1 << 20);
+        cache.parse("keep;");
+        cache.parse("stop;");
+
+        cache.invalidate("keep;");
+        assertThat(cache.size()).isEqualTo(1);
+        cache.clear();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getWeight()).isZero();
+    }
+
+    @Test
+    void shouldBeSafeForConcurrentUse() throws Exception {
+        SieveParseCache cache = new SieveParseCache(1 << 16);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        String script = "fileinto \"f" + (i % 300) + "\";";
+                        ScriptNode tree = cache.parse(script);
+                        assertThat(tree.getSource()).isEqualTo(script);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(cache.getHitCount() + cache.getMissCount()).isEqualTo(16000);
+        assertThat(cache.getWeight()).isLessThanOrEqualTo(1 << 16);
+    }
+}
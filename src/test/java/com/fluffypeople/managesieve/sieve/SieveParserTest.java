@@ -0,0 +1,402 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveParserTest {
+
+    private final SieveParser parser = new SieveParser();
+
+    @Nested
+    @DisplayName("Tree shape")
+    class ShapeTests {
+
+        @Test
+        void shouldParseCommandWithBlock() throws ParseException {
+            ScriptNode script = parser.parse("require \"fileinto\";\nif header :contains \"subject\" [\"a\", \"b\"] { fileinto \"x\"; stop; }");
+
+            assertThat(script.getCommands()).hasSize(2);
+            CommandNode require = script.getCommands().get(0);
+            assertThat(require.getName()).isEqualTo("require");
+            assertThat(require.isControl()).isTrue();
+            assertThat(require.hasBlock()).isFalse();
+            assertThat(require.getArguments()).containsExactly(new StringNode("fileinto"));
+
+            CommandNode ifCommand = script.getCommands().get(1);
+            assertThat(ifCommand.hasBlock()).isTrue();
+            assertThat(ifCommand.getBlock()).extracting(CommandNode::getName).containsExactly("fileinto", "stop");
+            assertThat(ifCommand.getBlock().get(0).isControl()).isFalse();
+
+            TestNode header = ifCommand.getTests().get(0);
+            assertThat(header.getName()).isEqualTo("header");
+            assertThat(header.hasTag("contains")).isTrue();
+            assertThat(header.getArguments()).hasSize(3);
+            assertThat(((StringListNode) header.getArguments().get(2)).getValues()).containsExactly("a", "b");
+        }
+
+        @Test
+        void shouldDistinguishSingleTestFromTestList() throws ParseException {
+            ScriptNode script = parser.parse("if anyof (true) { keep; } if not false { keep; }");
+
+            TestNode anyof = script.getCommands().get(0).getTests().get(0);
+            assertThat(anyof.isTestList()).isTrue();
+            assertThat(anyof.getTests()).hasSize(1);
+
+            TestNode not = script.getCommands().get(1).getTests().get(0);
+            assertThat(not.isTestList()).isFalse();
+            assertThat(not.getTests()).extracting(TestNode::getName).containsExactly("false");
+        }
+
+        @Test
+        void shouldParseNumbersAndMultilineStrings() throws ParseException {
+            ScriptNode script = parser.parse("if size :over 10K { reject text:\nno\n.\n; }");
+
+            TestNode size = script.getCommands().get(0).getTests().get(0);
+            assertThat(size.getArguments().get(1)).isEqualTo(new NumberNode(10240));
+            StringNode reason = (StringNode) script.getCommands().get(0).getBlock().get(0).getArguments().get(0);
+            assertThat(reason.isMultiline()).isTrue();
+            assertThat(reason.getValue()).isEqualTo("no\r\n");
+        }
+
+        @Test
+        void shouldCompareStructurallyIgnoringLayout() throws ParseException {
+            ScriptNode a = parser.parse("if true {keep;}");
+            ScriptNode b = parser.parse("# comment\nif   true\n{\n  keep ;\n}\n");
+            ScriptNode built = new ScriptNode(List.of(new CommandNode("if", List.of(),
+                    List.of(new TestNode("true", List.of(), List.of(), false)), false,
+                    List.of(new CommandNode("keep", List.of(), List.of(), false, null)))));
+
+            assertThat(a).isEqualTo(b).isEqualTo(built);
+            assertThat(a.hashCode()).isEqualTo(b.hashCode());
+        }
+
+        @Test
+        void shouldReturnUnmodifiableLists() throws ParseException {
+            ScriptNode script = parser.parse("keep;");
+
+            assertThatThrownBy(() -> script.getCommands().clear())
+                    .isInstanceOf(UnsupportedOperationException.class);
+        }
+    }
+
+    @Nested
+    @DisplayName("Source spans")
+    class SpanTests {
+
+        @Test
+        void shouldRecordCommandSpan() throws ParseException {
+            String text = "keep;\n  if true { stop; }\n";
+            ScriptNode script = parser.parse(text);
+
+            CommandNode ifCommand = script.getCommands().get(1);
+            assertThat(text.substring(ifCommand.getStart(), ifCommand.getEnd())).isEqualTo("if true { stop; }");
+            assertThat(ifCommand.getLine()).isEqualTo(2);
+            assertThat(ifCommand.getColumn()).isEqualTo(3);
+            assertThat(script.getEnd()).isEqualTo(text.length());
+        }
+
+        @Test
+        void shouldRecordTestAndArgumentSpans() throws ParseException {
+            String text = "if header :is [\"to\", \"cc\"] \"me\" { keep; }";
+            TestNode header = parser.parse(text).getCommands().get(0).getTests().get(0);
+
+            assertThat(text.substring(header.getStart(), header.getEnd())).isEqualTo("header :is [\"to\", \"cc\"] \"me\"");
+            ArgumentNode list = header.getArguments().get(1);
+            assertThat(text.substring(list.getStart(), list.getEnd())).isEqualTo("[\"to\", \"cc\"]");
+            assertThat(list.getColumn()).isEqualTo(15);
+        }
+
+        @Test
+        void shouldMarkBuiltNodesAsUnplaced() {
+            assertThat(new TagNode("is").getStart()).isEqualTo(-1);
+            assertThat(new TagNode("is").getLine()).isEqualTo(-1);
+        }
+    }
+
+    @Nested
+    @DisplayName("Errors")
+    class ErrorTests {
+
+        @Test
+        void shouldRejectTrailingInputByDefault() {
+            assertThatThrownBy(() -> parser.parse("keep; }"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessage("Expecting command but got } at line 1");
+        }
+
+        @Test
+        void shouldIgnoreTrailingInputWhenAllowed() throws ParseException {
+            parser.setAllowTrailingInput(true);
+
+            assertThat(parser.parse("keep; }").getCommands()).hasSize(1);
+        }
+
+        @Test
+        void shouldReportMissingSemicolon() {
+            assertThatThrownBy(() -> parser.parse("keep \"x\"\n]"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Expecting { or ;")
+                    .hasMessageEndingWith("at line 2");
+        }
+    }
+
+    @Nested
+    @DisplayName("Incremental reparse")
+    class ReparseTests {
+
+        private static final String SCRIPT = "require [\"fileinto\"];\n"
+                + "# spam rules\n"
+                + "if header :contains \"subject\" \"spam\" {\n"
+                + "    fileinto \"Junk\";\n"
+                + "    stop;\n"
+                + "} elsif size :over 1M {\n"
+                + "    if true {\n"
+                + "        discard;\n"
+                + "    }\n"
+                + "}\n"
+                + "/* a\n   comment */\n"
+                + "reject text:\nsorry\n.\n;\n"
+                + "keep;\n";
+
+        private void assertSameSpans(SieveNode expected, SieveNode actual) {
+            assertThat(actual.getStart()).as("start of %s", expected).isEqualTo(expected.getStart());
+            assertThat(actual.getEnd()).as("end of %s", expected).isEqualTo(expected.getEnd());
+            assertThat(actual.getLine()).as("line of %s", expected).isEqualTo(expected.getLine());
+            assertThat(actual.getColumn()).as("column of %s", expected).isEqualTo(expected.getColumn());
+            if (expected instanceof ScriptNode) {
+                assertSameSpans(((ScriptNode) expected).getCommands(), ((ScriptNode) actual).getCommands());
+            } else if (expected instanceof CallNode) {
+                assertSameSpans(((CallNode) expected).getArguments(), ((CallNode) actual).getArguments());
+                assertSameSpans(((CallNode) expected).getTests(), ((CallNode) actual).getTests());
+                if (expected instanceof CommandNode) {
+                    assertSameSpans(((CommandNode) expected).getBlock(), ((CommandNode) actual).getBlock());
+                }
+            } else if (expected instanceof StringListNode) {
+                assertSameSpans(((StringListNode) expected).getStrings(), ((StringListNode) actual).getStrings());
+            }
+        }
+
+        private void assertSameSpans(List<? extends SieveNode> expected, List<? extends SieveNode> actual) {
+            assertThat(actual).hasSameSizeAs(expected);
+            for (int i = 0; i < expected.size(); i++) {
+                assertSameSpans(expected.get(i), actual.get(i));
+            }
+        }
+
+        private void assertReparse(String text, int offset, int removed, String inserted) throws ParseException {
+            ScriptNode previous = parser.parse(text);
+            String edited = text.substring(0, offset) + inserted + text.substring(offset + removed);
+
+            ParseException expectedError = null;
+            ScriptNode expected = null;
+            try {
+                expected = parser.parse(edited);
+            } catch (ParseException ex) {
+                expectedError = ex;
+            }
+
+            if (expectedError != null) {
+                assertThatThrownBy(() -> parser.reparse(previous, offset, removed, inserted))
+                        .isInstanceOf(ParseException.class)
+                        .hasMessage(expectedError.getMessage());
+            } else {
+                ScriptNode actual = parser.reparse(previous, offset, removed, inserted);
+                assertThat(actual.getSource()).isEqualTo(edited);
+                assertThat(actual).isEqualTo(expected);
+                assertSameSpans(expected, actual);
+            }
+        }
+
+        @Test
+        void shouldReuseUntouchedCommands() throws ParseException {
+            ScriptNode previous = parser.parse(SCRIPT);
+            int offset = SCRIPT.indexOf("Junk");
+
+            ScriptNode next = parser.reparse(previous, offset, 4, "Spam");
+
+            assertThat(next.getCommands().get(0)).isSameAs(previous.getCommands().get(0));
+            assertThat(((StringNode) next.getCommands().get(1).getBlock().get(0).getArguments().get(0)).getValue()).isEqualTo("Spam");
+            // Same length edit, so later commands needn't move
+            assertThat(next.getCommands().get(4)).isSameAs(previous.getCommands().get(4));
+        }
+
+        @Test
+        void shouldMatchFullParseForEditsInsideBlocks() throws ParseException {
+            assertReparse(SCRIPT, SCRIPT.indexOf("discard"), 7, "keep");
+            assertReparse(SCRIPT, SCRIPT.indexOf("stop"), 0, "keep;\n    ");
+            assertReparse(SCRIPT, SCRIPT.indexOf("stop;") + 5, 0, "\n    redirect \"a@b\";");
+        }
+
+        @Test
+        void shouldMatchFullParseForEditsThatChangeStructure() throws ParseException {
+            assertReparse(SCRIPT, SCRIPT.indexOf("# spam"), 0, "/* ");
+            assertReparse(SCRIPT, SCRIPT.indexOf("/* a"), 2, "");
+            assertReparse(SCRIPT, SCRIPT.indexOf("} elsif"), 1, "");
+            assertReparse(SCRIPT, SCRIPT.indexOf("sorry"), 0, ".\n");
+            assertReparse(SCRIPT, SCRIPT.length(), 0, "stop;");
+            assertReparse(SCRIPT, 0, SCRIPT.length(), "");
+            assertReparse(SCRIPT, 0, 0, "keep;");
+        }
+
+        @Test
+        void shouldMatchFullParseForEveryInsertion() throws ParseException {
+            String[] inserts = { "x", " ", "\n", ";", "}", "{", "\"", "#", "keep; ", "if true { stop; }\n" };
+            for (int offset = 0; offset <= SCRIPT.length(); offset++) {
+                for (String insert : inserts) {
+                    assertReparse(SCRIPT, offset, 0, insert);
+                }
+            }
+        }
+
+        @Test
+        void shouldMatchFullParseForEveryDeletion() throws ParseException {
+            for (int offset = 0; offset < SCRIPT.length(); offset++) {
+                assertReparse(SCRIPT, offset, 1, "");
+                if (offset + 6 <= SCRIPT.length()) {
+                    assertReparse(SCRIPT, offset, 6, "");
+                }
+            }
+        }
+
+        @Test
+        void shouldMoveSiblingsOnTheSameLineAsAnEdit() throws ParseException {
+            String line = "if true { discard; } keep; if false { if true { stop; } keep; } discard;\nkeep;\n";
+            assertReparse(line, 10, 0, "stop; ");
+            String[] inserts = { "x", " ", "\n", ";", "stop; ", "\"a\" " };
+            for (int offset = 0; offset <= line.length(); offset++) {
+                for (String insert : inserts) {
+                    assertReparse(line, offset, 0, insert);
+                }
+                if (offset < line.length()) {
+                    assertReparse(line, offset, 1, "");
+                }
+            }
+        }
+
+        @Test
+        void shouldRejectTreeWithoutSource() {
+            assertThatThrownBy(() -> parser.reparse(new ScriptNode(List.of()), 0, 0, "keep;"))
+                    .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Nested
+    @DisplayName("Error recovery")
+    class RecoveryTests {
+
+        @Test
+        void shouldReportNothingForValidScript() {
+            SieveParser.Result result = parser.parseRecovering("if true { keep; }");
+
+            assertThat(result.isValid()).isTrue();
+            assertThat(result.getScript().getCommands()).hasSize(1);
+        }
+
+        @Test
+        void shouldCollectErrorsFromSeveralCommands() {
+            String text = "keep \"a\" ]\n"
+                    + "fileinto \"ok\";\n"
+                    + "if anyof (true, ) { discard; }\n"
+                    + "stop;\n";
+
+            SieveParser.Result result = parser.parseRecovering(text);
+
+            assertThat(result.getDiagnostics()).extracting(SieveDiagnostic::getMessage)
+                    .containsExactly("Expecting { or ; but got ]", "Expecting test but got )");
+            assertThat(result.getScript().getCommands()).extracting(CommandNode::getName)
+                    .containsExactly("fileinto", "stop");
+
+            SieveDiagnostic second = result.getDiagnostics().get(1);
+            assertThat(second.getLine()).isEqualTo(3);
+            assertThat(second.getColumn()).isEqualTo(17);
+            assertThat(text.substring(second.getStart(), second.getEnd())).isEqualTo(")");
+        }
+
+        @Test
+        void shouldSerializeDiagnosticWithException() throws Exception {
+            SieveParseException ex = new SieveParseException("bad", new SieveDiagnostic("bad", 3, 5, 2, 1));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(ex);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                SieveParseException copy = (SieveParseException) in.readObject();
+                assertThat(copy.getDiagnostic().getLine()).isEqualTo(2);
+                assertThat(copy.getDiagnostic().getEnd()).isEqualTo(5);
+            }
+        }
+
+        @Test
+        void shouldKeepCommandWhenErrorIsInsideItsBlock() {
+            SieveParser.Result result = parser.parseRecovering("if true {\n  fileinto;;\n  bogus ] ;\n  stop;\n}\nkeep;");
+
+            assertThat(result.getDiagnostics()).extracting(SieveDiagnostic::getLine).containsExactly(2, 3);
+            CommandNode ifCommand = result.getScript().getCommands().get(0);
+            assertThat(ifCommand.getBlock()).extracting(CommandNode::getName).containsExactly("fileinto", "stop");
+            assertThat(result.getScript().getCommands()).extracting(CommandNode::getName).containsExactly("if", "keep");
+        }
+
+        @Test
+        void shouldReportLexerErrorsAndCarryOn() {
+            SieveParser.Result result = parser.parseRecovering("keep @;\nfileinto \"x\";\nstop ~;");
+
+            assertThat(result.getDiagnostics()).extracting(SieveDiagnostic::getMessage)
+                    .containsExactly("Unexpected character '@'", "Unexpected character '~'");
+            assertThat(result.getDiagnostics().get(1).getLine()).isEqualTo(3);
+            assertThat(result.getScript().getCommands()).extracting(CommandNode::getName).containsExactly("fileinto");
+        }
+
+        @Test
+        void shouldReportUnclosedBlockAtEnd() {
+            SieveParser.Result result = parser.parseRecovering("if true { keep;");
+
+            assertThat(result.getDiagnostics()).extracting(SieveDiagnostic::getMessage)
+                    .containsExactly("Expecting } but got EOF");
+            assertThat(result.getScript().getCommands().get(0).getBlock()).hasSize(1);
+        }
+
+        @Test
+        void shouldReportStrayTokens() {
+            SieveParser.Result result = parser.parseRecovering("} keep; ] \"x\" stop;");
+
+            assertThat(result.getDiagnostics()).extracting(SieveDiagnostic::getColumn).containsExactly(1, 9, 11);
+            assertThat(result.getScript().getCommands()).extracting(CommandNode::getName).containsExactly("keep", "stop");
+        }
+
+        @Test
+        void shouldReportUnterminatedString() {
+            SieveParser.Result result = parser.parseRecovering("keep;\nfileinto \"oops;\n");
+
+            assertThat(result.getDiagnostics()).hasSize(1);
+            SieveDiagnostic d = result.getDiagnostics().get(0);
+            assertThat(d.getMessage()).isEqualTo("Unterminated string");
+            assertThat(d.getLine()).isEqualTo(2);
+            assertThat(d.getColumn()).isEqualTo(10);
+            assertThat(d.toString()).isEqualTo("line 2 column 10: Unterminated string");
+        }
+
+        @Test
+        void shouldCarryPositionInStrictModeExceptions() {
+            assertThatThrownBy(() -> parser.parse("keep;\n  stop ]"))
+                    .isInstanceOf(SieveParseException.class)
+                    .hasMessage("Expecting { or ; but got ] at line 2")
+                    .satisfies(ex -> {
+                        SieveDiagnostic d = ((SieveParseException) ex).getDiagnostic();
+                        assertThat(d.getColumn()).isEqualTo(8);
+                        assertThat(d.getStart()).isEqualTo(13);
+                    });
+        }
+    }
+}
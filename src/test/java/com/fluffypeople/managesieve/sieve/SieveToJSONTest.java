@@ -0,0 +1,75 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SieveToJSONTest {
+
+    private final SieveToJSON converter = new SieveToJSON();
+
+    @Test
+    void shouldMirrorXMLStructure() throws ParseException {
+        String script = "require [\"fileinto\"];\r\n"
+                + "if anyof (header :contains \"subject\" \"spam\", size :over 1K) {\r\n"
+                + "    fileinto \"Junk\";\r\n"
+                + "} else {\r\n"
+                + "}\r\n"
+                + "keep;\r\n";
+
+        assertThat(converter.convert(script)).isEqualTo("{\"sieve\":["
+                + "{\"control\":\"require\",\"arguments\":[{\"list\":[\"fileinto\"]}],\"tests\":[]},"
+                + "{\"control\":\"if\",\"arguments\":[],\"tests\":["
+                + "{\"test\":\"anyof\",\"arguments\":[],\"tests\":["
+                + "{\"test\":\"header\",\"arguments\":[{\"tag\":\"contains\"},{\"str\":\"subject\"},{\"str\":\"spam\"}],\"tests\":[]},"
+                + "{\"test\":\"size\",\"arguments\":[{\"tag\":\"over\"},{\"num\":1024}],\"tests\":[]}]}],"
+                + "\"commands\":[{\"action\":\"fileinto\",\"arguments\":[{\"str\":\"Junk\"}],\"tests\":[]}]},"
+                + "{\"control\":\"else\",\"arguments\":[],\"tests\":[],\"commands\":[]},"
+                + "{\"action\":\"keep\",\"arguments\":[],\"tests\":[]}]}");
+    }
+
+    @Test
+    void shouldWriteEmptyScript() throws ParseException {
+        assertThat(converter.convert("# nothing\r\n")).isEqualTo("{\"sieve\":[]}");
+    }
+
+    @Test
+    void shouldEscapeStrings() throws ParseException {
+        String script = "vacation text:\r\nSay \"hi\"\tC:\\ \u0001 \u2028 café 😀\r\n.\r\n;";
+
+        assertThat(converter.convert(script)).isEqualTo("{\"sieve\":[{\"action\":\"vacation\",\"arguments\":["
+                + "{\"str\":\"Say \\\"hi\\\"\\tC:\\\\ \\u0001 \\u2028 café 😀\\r\\n\"}],\"tests\":[]}]}");
+    }
+
+    @Test
+    void shouldEscapeUnpairedSurrogates() throws IOException {
+        StringWriter out = new StringWriter();
+
+        SieveToJSON.string("a\ud800b\udc00", out);
+
+        assertThat(out.toString()).isEqualTo("\"a\\ud800b\\udc00\"");
+    }
+
+    @Test
+    void shouldStreamToWriter() throws IOException, ParseException {
+        StringWriter out = new StringWriter();
+
+        converter.convert(new StringReader("discard;"), out);
+
+        assertThat(out.toString()).isEqualTo("{\"sieve\":[{\"action\":\"discard\",\"arguments\":[],\"tests\":[]}]}");
+    }
+
+    @Test
+    void shouldWriteNothingForInvalidScript() {
+        StringWriter out = new StringWriter();
+
+        assertThatThrownBy(() -> converter.convert(new StringReader("if {"), out))
+                .isInstanceOf(ParseException.class);
+        assertThat(out.toString()).isEmpty();
+    }
+}
@@ -0,0 +1,156 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ManageSieveClient;
+import com.fluffypeople.managesieve.ManageSieveResponse;
+import com.fluffypeople.managesieve.ServerCapabilities;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+class SieveValidatorTest {
+
+    private SieveValidator validator;
+
+    @BeforeEach
+    void setUp() {
+        ServerCapabilities cap = new ServerCapabilities();
+        cap.setSieveExtensions("fileinto copy envelope");
+        validator = new SieveValidator(cap);
+    }
+
+    private static SieveValidator ihaveValidator() {
+        ServerCapabilities cap = new ServerCapabilities();
+        cap.setSieveExtensions("fileinto ihave");
+        return new SieveValidator(cap);
+    }
+
+    @Nested
+    @DisplayName("Local checks")
+    class LocalTests {
+
+        @Test
+        void shouldAcceptValidScript() {
+            SieveValidator.Result result = validator.validate(
+                    "require [\"fileinto\", \"copy\"];\nif header :contains \"subject\" \"x\" { fileinto :copy \"X\"; }");
+
+            assertThat(result.isValid()).isTrue();
+            assertThat(result.getErrors()).isEmpty();
+            assertThat(result.getServerResponse()).isNull();
+        }
+
+        @Test
+        void shouldRejectSyntaxError() {
+            SieveValidator.Result result = validator.validate("fileinto \"INBOX\"");
+
+            assertThat(result.isValid()).isFalse();
+            assertThat(result.isRejectedLocally()).isTrue();
+            assertThat(result.getErrors()).singleElement().asString().contains("Expecting");
+        }
+
+        @Test
+        void shouldRejectUnsupportedExtension() {
+            SieveValidator.Result result = validator.validate("require \"vacation\";");
+
+            assertThat(result.getErrors()).containsExactly("Extension \"vacation\" is not supported by the server");
+        }
+
+        @Test
+        void shouldRejectCommandWithoutRequire() {
+            SieveValidator.Result result = validator.validate("fileinto \"INBOX\";");
+
+            assertThat(result.getErrors()).containsExactly("\"fileinto\" needs require \"fileinto\"");
+        }
+
+        @Test
+        void shouldRejectTestAndTagWithoutRequire() {
+            SieveValidator.Result result = validator.validate(
+                    "require \"fileinto\";\nif envelope :is \"from\" \"a@b\" { fileinto :copy \"X\"; }");
+
+            assertThat(result.getErrors()).containsExactly(
+                    "\"envelope\" needs require \"envelope\"",
+                    "\"copy\" needs require \"copy\"");
+        }
+
+        @Test
+        void shouldRejectLateRequire() {
+            SieveValidator.Result result = validator.validate("keep;\nrequire \"fileinto\";");
+
+            assertThat(result.getErrors()).containsExactly("require must come before any other command");
+        }
+
+        @Test
+        void shouldRejectRequireInsideBlock() {
+            SieveValidator.Result result = validator.validate("if true { require \"fileinto\"; }");
+
+            assertThat(result.getErrors()).contains("require is not allowed inside a block");
+        }
+
+        @Test
+        void shouldOnlyCheckSyntaxWithoutCapabilities() {
+            SieveValidator.Result result = new SieveValidator(null).validate("require \"vacation\";");
+
+            assertThat(result.isValid()).isTrue();
+        }
+
+        @Test
+        void shouldRejectTrailingGarbage() {
+            SieveValidator.Result result = new SieveValidator(null).validate("keep; }}} garbage");
+
+            assertThat(result.isValid()).isFalse();
+            assertThat(result.getErrors()).hasSize(1);
+        }
+
+        @Test
+        void shouldAllowExtensionsTestedWithIhave() {
+            SieveValidator.Result result = ihaveValidator().validate("require [\"ihave\", \"fileinto\"];\n"
+                    + "if allof (ihave \"vacation\", true) { vacation \"away\"; }\n"
+                    + "else { error \"no vacation\"; }");
+
+            assertThat(result.getErrors()).isEmpty();
+        }
+
+        @Test
+        void shouldOnlyAllowIhaveExtensionsInsideTheBlock() {
+            SieveValidator.Result result = ihaveValidator().validate("require [\"ihave\", \"fileinto\"];\n"
+                    + "if anyof (ihave \"vacation\", true) { vacation \"away\"; }\n"
+                    + "if ihave \"vacation\" { keep; }\nvacation \"away\";");
+
+            assertThat(result.getErrors()).containsExactly("\"vacation\" needs require \"vacation\"",
+                    "\"vacation\" needs require \"vacation\"");
+        }
+    }
+
+    @Nested
+    @DisplayName("Server confirmation")
+    class ServerTests {
+
+        @Test
+        void shouldNotContactServerWhenLocalCheckFails() throws Exception {
+            ManageSieveClient client = mock(ManageSieveClient.class);
+
+            SieveValidator.Result result = validator.validate(client, "fileinto;");
+
+            assertThat(result.isRejectedLocally()).isTrue();
+            verifyNoInteractions(client);
+        }
+
+        @Test
+        void shouldConfirmWithServerWhenLocalCheckPasses() throws Exception {
+            ManageSieveClient client = mock(ManageSieveClient.class);
+            ManageSieveResponse no = mock(ManageSieveResponse.class);
+            when(no.isOk()).thenReturn(false);
+            when(client.checkscript("frobnicate;")).thenReturn(no);
+
+            SieveValidator.Result result = validator.validate(client, "frobnicate;");
+
+            assertThat(result.isRejectedLocally()).isFalse();
+            assertThat(result.isValid()).isFalse();
+            assertThat(result.getServerResponse()).isSameAs(no);
+            verify(client).checkscript("frobnicate;");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.fluffypeople.managesieve.sieve;
+
+import com.fluffypeople.managesieve.ParseException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SieveWriterTest {
+
+    private final SieveParser parser = new SieveParser();
+    private final SieveWriter writer = new SieveWriter();
+
+    @BeforeEach
+    void setUp() {
+        writer.setLineSeparator("\n");
+    }
+
+    @Test
+    void shouldLayOutBlocksAndChains() throws ParseException {
+        String text = writer.write(parser.parse(
+                "require \"fileinto\"; if header :is \"to\" \"a\" {fileinto \"a\";} elsif true {stop;} else {} keep;"));
+
+        assertThat(text).isEqualTo("require \"fileinto\";\n"
+                + "if header :is \"to\" \"a\" {\n"
+                + "    fileinto \"a\";\n"
+                + "} elsif true {\n"
+                + "    stop;\n"
+                + "} else {}\n"
+                + "keep;\n");
+    }
+
+    @Test
+    void shouldWriteTestListsAndStringLists() throws ParseException {
+        String text = writer.write(parser.parse("if anyof (not exists [\"a\",\"b\"], size :over 10K) { keep; }"));
+
+        assertThat(text).startsWith("if anyof (not exists [\"a\", \"b\"], size :over 10240) {");
+    }
+
+    @Test
+    void shouldKeepSingleEntryTestList() throws ParseException {
+        ScriptNode script = parser.parse("if allof (true) { keep; }");
+
+        assertThat(writer.write(script)).startsWith("if allof (true) {");
+    }
+
+    @Test
+    void shouldEscapeQuotedStrings() {
+        ScriptNode script = new ScriptNode(List.of(new CommandNode("fileinto",
+                List.of(new StringNode("a\"b\\c")), List.of(), false, null)));
+
+        assertThat(writer.write(script)).isEqualTo("fileinto \"a\\\"b\\\\c\";\n");
+    }
+
+    @Test
+    void shouldDotStuffMultilineStrings() {
+        ScriptNode script = new ScriptNode(List.of(new CommandNode("reject",
+                List.of(new StringNode(".\r\n..x\r\nend\r\n")), List.of(), false, null)));
+
+        assertThat(writer.write(script)).isEqualTo("reject text:\r\n..\r\n...x\r\nend\r\n.\r\n;\n");
+    }
+
+    @Test
+    void shouldQuoteStringsWithBareLineFeeds() {
+        assertThat(SieveWriter.canBeMultiline("a\r\n")).isTrue();
+        assertThat(SieveWriter.canBeMultiline("a\nb\r\n")).isFalse();
+        assertThat(SieveWriter.canBeMultiline("a\rb\r\n")).isFalse();
+        assertThat(SieveWriter.canBeMultiline("a\r\nb")).isFalse();
+    }
+
+    @Test
+    void shouldWriteLoneLineBreaksAsCRLF() {
+        ScriptNode script = new ScriptNode(List.of(
+                new CommandNode("reject", List.of(new StringNode("one\ntwo\n")), List.of(), false, null),
+                new CommandNode("fileinto", List.of(new StringNode("a\nb\rc\r\nd")), List.of(), false, null)));
+
+        assertThat(writer.write(script))
+                .isEqualTo("reject text:\r\none\r\ntwo\r\n.\r\n;\nfileinto \"a\r\nb\r\nc\r\nd\";\n");
+    }
+
+    @Test
+    void shouldRoundTrip() throws ParseException {
+        String original = "# comment\r\nrequire [\"vacation\",\"fileinto\"];\r\n"
+                + "if header :matches \"subject\" \"*\\\"x\\\\*\" { vacation :days 3 text:\r\n.hi\r\nthere\r\n.\r\n; }\r\n"
+                + "elsif address :all :is \"from\" \"me\" { discard; } else { fileinto \"INBOX.a\"; stop; }\r\n";
+        ScriptNode first = parser.parse(original);
+
+        assertThat(parser.parse(writer.write(first))).isEqualTo(first);
+        writer.setLineSeparator("\r\n");
+        assertThat(parser.parse(writer.write(first))).isEqualTo(first);
+    }
+}
@@ -1,14 +1,27 @@
 package com.fluffypeople.managesieve.xml;
 
 import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.SieveParseListener;
+import com.fluffypeople.managesieve.sieve.SieveToken;
 import org.junit.jupiter.api.*;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -260,6 +273,13 @@ class SieveToXMLTest {
             assertThat(xml).contains("<str>folder123</str>");
         }
 
+        @Test
+        void shouldUnescapeQuotedString() throws Exception {
+            Document doc = convertDoc("fileinto \"a\\\"b\\\\c\\d\";");
+            Element str = firstByTag(doc.getDocumentElement(), "str");
+            assertThat(str.getTextContent()).isEqualTo("a\"b\\cd");
+        }
+
         @Test
         void shouldConvertStringList() throws Exception {
             Document doc = convertDoc("require [\"fileinto\", \"vacation\", \"copy\"];");
@@ -567,6 +587,71 @@ class SieveToXMLTest {
         }
     }
 
+    @Nested
+    @DisplayName("Parse tracing")
+    class TraceTests {
+
+        @Test
+        void shouldReportRulesToTraceListener() throws Exception {
+            List<String> events = new ArrayList<>();
+            converter.setTraceListener(new SieveParseListener() {
+                @Override
+                public void enter(Rule rule, SieveToken next) {
+                    events.add("+" + rule);
+                }
+
+                @Override
+                public void exit(Rule rule) {
+                    events.add("-" + rule);
+                }
+            });
+
+            converter.convert("fileinto \"INBOX\";");
+
+            assertThat(events).containsExactly(
+                    "+COMMANDS", "+COMMAND", "+ARGUMENTS", "+STRING", "-STRING",
+                    "-ARGUMENTS", "-COMMAND", "-COMMANDS");
+        }
+
+        @Test
+        void shouldReportConsumedTokens() throws Exception {
+            List<String> tokens = new ArrayList<>();
+            converter.setTraceListener(new SieveParseListener() {
+                @Override
+                public void token(SieveToken token) {
+                    tokens.add(token.toString());
+                }
+            });
+
+            converter.convert("if size :over 1K { stop; }");
+
+            assertThat(tokens).containsExactly("if", "size", ":over", "1024", "{", "stop", ";", "}");
+        }
+
+        @Test
+        void shouldStopTracingWhenListenerCleared() throws Exception {
+            List<String> events = new ArrayList<>();
+            converter.setTraceListener(new SieveParseListener() {
+                @Override
+                public void exit(Rule rule) {
+                    events.add(rule.toString());
+                }
+            });
+            converter.setTraceListener(null);
+
+            converter.convert("keep;");
+
+            assertThat(events).isEmpty();
+        }
+
+        @Test
+        void shouldProvideLoggingListener() throws Exception {
+            converter.setTraceListener(SieveParseListener.logging(java.util.logging.Logger.getLogger("test")));
+
+            assertThat(converter.convert("keep;").getDocument()).isNotNull();
+        }
+    }
+
     @Nested
     @DisplayName("Complex scripts")
     class ComplexScriptTests {
@@ -595,4 +680,158 @@ class SieveToXMLTest {
             assertThat(children.get(2).getAttribute("name")).isEqualTo("redirect");
         }
     }
+
+    @Nested
+    @DisplayName("Streaming output")
+    class StreamingTests {
+
+        private Document parseStreamed(String script) throws Exception {
+            StringWriter out = new StringWriter();
+            converter.convert(new StringReader(script), out);
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(new InputSource(new StringReader(out.toString())));
+        }
+
+        @Test
+        void shouldMatchDomOutput() throws Exception {
+            String script = "require [\"fileinto\", \"vacation\"];\n"
+                    + "if anyof (header :contains \"subject\" \"a<b&c\", size :over 1K) {\n"
+                    + "  fileinto \"x\";\n"
+                    + "} elsif not exists \"to\" { vacation text:\nline one\n..dot\n.\n; }\n"
+                    + "else { stop; }\n";
+
+            Document streamed = parseStreamed(script);
+            Document dom = convertDoc(script);
+
+            assertThat(streamed.getDocumentElement().isEqualNode(dom.getDocumentElement())).isTrue();
+        }
+
+        @Test
+        void shouldKeepCarriageReturnsInMultilineStrings() throws Exception {
+            Document streamed = parseStreamed("reject text:\nfirst\nsecond\n.\n;");
+
+            assertThat(streamed.getElementsByTagName("str").item(0).getTextContent())
+                    .isEqualTo("first\r\nsecond\r\n");
+        }
+
+        @Test
+        void shouldKeepCarriageReturnsInDomOutput() throws Exception {
+            String script = "reject text:\nfirst\nsecond\n.\n;";
+
+            Element str = (Element) convertDoc(script).getElementsByTagName("str").item(0);
+            assertThat(str.getChildNodes().getLength()).isEqualTo(1);
+            assertThat(str.getTextContent()).isEqualTo("first\r\nsecond\r\n");
+            assertThat(xmlString(script)).contains("<str>first&#13;\nsecond&#13;\n</str>");
+        }
+
+        @Test
+        void shouldWriteIntoCallerOwnedStreamWriter() throws Exception {
+            StringWriter out = new StringWriter();
+            XMLStreamWriter xml = XMLOutputFactory.newFactory().createXMLStreamWriter(out);
+            xml.writeStartElement("scripts");
+            converter.convert(new StringReader("keep;"), xml);
+            converter.convert(new StringReader("discard;"), xml);
+            xml.writeEndElement();
+            xml.flush();
+
+            assertThat(out.toString()).isEqualTo("<scripts>"
+                    + "<sieve xmlns=\"urn:ietf:params:xml:ns:sieve\"><action name=\"keep\"></action></sieve>"
+                    + "<sieve xmlns=\"urn:ietf:params:xml:ns:sieve\"><action name=\"discard\"></action></sieve>"
+                    + "</scripts>");
+        }
+
+        @Test
+        void shouldWriteNothingForInvalidScript() {
+            StringWriter out = new StringWriter();
+
+            assertThatThrownBy(() -> converter.convert(new StringReader("keep"), out))
+                    .isInstanceOf(ParseException.class);
+            assertThat(out.toString()).isEmpty();
+        }
+    }
+
+    @Nested
+    @DisplayName("Batch conversion")
+    class BatchTests {
+
+        @Test
+        void shouldConvertBatchInOrderWithPerItemErrors() {
+            List<String> scripts = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                scripts.add(i % 10 == 3 ? "fileinto \"unterminated" : "fileinto \"folder" + i + "\";");
+            }
+
+            List<SieveToXML.Result> results = converter.convertAll(scripts, new ForkJoinPool(4));
+
+            assertThat(results).hasSize(200);
+            for (int i = 0; i < 200; i++) {
+                SieveToXML.Result r = results.get(i);
+                assertThat(r.getIndex()).isEqualTo(i);
+                if (i % 10 == 3) {
+                    assertThat(r.isOk()).isFalse();
+                    assertThat(r.getError()).isInstanceOf(ParseException.class);
+                    assertThat(r.getXML()).isNull();
+                } else {
+                    assertThat(r.isOk()).isTrue();
+                    assertThat(r.getXML().getDocument().getElementsByTagName("str").item(0).getTextContent())
+                            .isEqualTo("folder" + i);
+                }
+            }
+        }
+
+        @Test
+        void shouldConvertStream() {
+            List<SieveToXML.Result> results = converter.convertAll(Stream.of("keep;", "discard;", "bogus"))
+                    .collect(Collectors.toList());
+
+            assertThat(results).extracting(SieveToXML.Result::isOk).containsExactly(true, true, false);
+        }
+
+        @Test
+        void shouldShareConverterAcrossThreads() throws Exception {
+            String script = "if header :contains \"subject\" \"x\" { fileinto \"a\"; } else { keep; }";
+            String expected = converter.convert(script).toString();
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<String>> futures = new ArrayList<>();
+                for (int i = 0; i < 64; i++) {
+                    futures.add(pool.submit(() -> converter.convert(script).toString()));
+                }
+                for (Future<String> f : futures) {
+                    assertThat(f.get()).isEqualTo(expected);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    @Nested
+    @DisplayName("Parse cache")
+    class CacheTests {
+
+        @Test
+        void shouldBeOffByDefault() {
+            assertThat(converter.getCache()).isNull();
+        }
+
+        @Test
+        void shouldReuseParseButReturnFreshDocuments() throws Exception {
+            converter.setCacheSize(1 << 20);
+
+            XML first = converter.convert("fileinto \"a\";");
+            first.getDocument().getDocumentElement().setAttribute("changed", "yes");
+            XML second = converter.convert("fileinto \"a\";");
+
+            assertThat(converter.getCache().getHitCount()).isEqualTo(1);
+            assertThat(second.getDocument().getDocumentElement().hasAttribute("changed")).isFalse();
+        }
+
+        @Test
+        void shouldKeepLenientParsing() throws Exception {
+            converter.setCacheSize(1 << 20);
+
+            assertThat(converter.convert("keep; }").getDocument().getElementsByTagName("action").getLength()).isEqualTo(1);
+        }
+    }
 }
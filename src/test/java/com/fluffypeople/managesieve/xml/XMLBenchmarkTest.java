@@ -0,0 +1,93 @@
+package com.fluffypeople.managesieve.xml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Rough per-document cost of building and serialising small XML documents,
+ * comparing a factory lookup per call with the cached builders in XML.
+ *
+ * Skipped by default. Run with:
+ * mvn test -Dtest=XMLBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class XMLBenchmarkTest {
+
+    private static final int WARMUP = 20_000;
+    private static final int RUNS = 50_000;
+
+    private static String uncached() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        doc.setXmlStandalone(true);
+        doc.appendChild(doc.createElement("sieve")).appendChild(doc.createElement("action")).setTextContent("keep");
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        StringWriter out = new StringWriter();
+        transformer.transform(new DOMSource(doc), new StreamResult(out));
+        return out.toString();
+    }
+
+    private static String cached() {
+        XML xml = new XML();
+        xml.start("sieve").add("action", "keep").end();
+        return xml.toString();
+    }
+
+    private interface Run {
+        String run() throws Exception;
+    }
+
+    private static double nanosPerDocument(Run run) throws Exception {
+        int length = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            length += run.run().length();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            length += run.run().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertThat(length).isPositive();
+        return (double) elapsed / RUNS;
+    }
+
+    @Test
+    void compareFactoryLookupWithCachedBuilders() throws Exception {
+        double before = nanosPerDocument(XMLBenchmarkTest::uncached);
+        double after = nanosPerDocument(XMLBenchmarkTest::cached);
+
+        System.out.printf("XML per document: lookup each time %.1f us, cached %.1f us (%.1fx)%n",
+                before / 1000, after / 1000, before / after);
+        assertThat(after).isLessThan(before);
+    }
+
+    @Test
+    void compareTransformerWithHandWrittenSerialiser() throws Exception {
+        XML xml = new SieveToXML().convert("require \"fileinto\";\n"
+                + "if header :contains \"subject\" \"spam\" { fileinto \"Junk\"; stop; }\n"
+                + "elsif address :is \"from\" \"boss@example.com\" { keep; }\n");
+
+        double transformer = nanosPerDocument(xml::toString);
+        double handWritten = nanosPerDocument(() -> {
+            StringWriter out = new StringWriter();
+            xml.writeTo(out);
+            return out.toString();
+        });
+
+        System.out.printf("XML serialise: Transformer %.1f us, writeTo %.1f us (%.1fx)%n",
+                transformer / 1000, handWritten / 1000, transformer / handWritten);
+        assertThat(handWritten).isLessThan(transformer);
+    }
+}
@@ -10,6 +10,10 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.ProcessingInstruction;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -432,4 +436,98 @@ class XMLTest {
                     .isInstanceOf(DOMException.class);
         }
     }
+
+    @Nested
+    @DisplayName("Cached builders")
+    class CachingTests {
+
+        @Test
+        @DisplayName("should not carry output settings from one call to the next")
+        void shouldResetTransformerBetweenCalls() {
+            xml.start("root").add("code", "a<b").end();
+            xml.addCdata("code");
+            String first = xml.toString();
+
+            XML other = new XML();
+            other.start("root").add("code", "a<b").end();
+            String embedded = other.toString(true, false);
+            String plain = other.toString();
+
+            assertThat(first).contains("<![CDATA[a<b]]>");
+            assertThat(embedded).doesNotContain("<?xml").doesNotContain("CDATA");
+            assertThat(plain).startsWith("<?xml").doesNotContain("CDATA");
+            assertThat(xml.toString()).isEqualTo(first);
+        }
+
+        @Test
+        @DisplayName("should give each new document its own tree")
+        void shouldCreateIndependentDocuments() {
+            Document a = XML.newDocument();
+            Document b = XML.newDocument();
+
+            a.appendChild(a.createElement("a"));
+
+            assertThat(a).isNotSameAs(b);
+            assertThat(b.getDocumentElement()).isNull();
+        }
+    }
+
+    @Nested
+    @DisplayName("Writing to streams")
+    class WriteToTests {
+
+        private String written(XML doc, boolean embed, boolean indent) throws IOException {
+            StringWriter out = new StringWriter();
+            doc.writeTo(out, embed, indent);
+            return out.toString();
+        }
+
+        private XML sieveDocument() throws Exception {
+            return new SieveToXML().convert("require \"fileinto\";\n"
+                    + "if header :contains \"subject\" \"a<b&\\\"c'>\" { fileinto \"x\"; } else { stop; }\n"
+                    + "reject text:\nline\n.\n;");
+        }
+
+        @Test
+        @DisplayName("should match toString for a converted script in every mode")
+        void shouldMatchTransformerOutputForSieveDocument() throws Exception {
+            XML doc = sieveDocument();
+
+            assertThat(written(doc, false, true)).isEqualTo(doc.toString(false, true));
+            assertThat(written(doc, false, false)).isEqualTo(doc.toString(false, false));
+            assertThat(written(doc, true, false)).isEqualTo(doc.toString(true, false));
+        }
+
+        @Test
+        @DisplayName("should match toString with CDATA, attributes and stylesheet")
+        void shouldMatchTransformerOutputWithCdataAndAttributes() throws IOException {
+            XML doc = new XML("style.xsl");
+            doc.start("r", "a", "x\"<&>\n\t").add("c", "t<]]>").add("e").add("n", 42).end();
+            doc.addCdata("c");
+
+            assertThat(written(doc, false, true)).isEqualTo(doc.toString());
+            assertThat(written(doc, false, false)).isEqualTo(doc.toString(false, false));
+        }
+
+        @Test
+        @DisplayName("should write UTF-8 to an OutputStream")
+        void shouldWriteUtf8ToOutputStream() throws IOException {
+            xml.start("r").add("s", "caf\u00e9 \u2603").end();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            xml.writeTo(out);
+
+            assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo(xml.toString());
+        }
+
+        @Test
+        @DisplayName("should write an empty document as just the declaration")
+        void shouldWriteEmptyDocument() throws IOException {
+            StringWriter out = new StringWriter();
+
+            xml.writeTo(out);
+
+            assertThat(out.toString()).isEqualTo("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        }
+    }
 }
@@ -0,0 +1,187 @@
+package com.fluffypeople.managesieve.xml;
+
+import com.fluffypeople.managesieve.ParseException;
+import com.fluffypeople.managesieve.sieve.ScriptNode;
+import com.fluffypeople.managesieve.sieve.SieveParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class XMLToSieveTest {
+
+    private static final String HEAD = "<sieve xmlns=\"urn:ietf:params:xml:ns:sieve\">";
+
+    private XMLToSieve converter;
+
+    @BeforeEach
+    void setUp() {
+        converter = new XMLToSieve();
+        converter.getWriter().setLineSeparator("\n");
+    }
+
+    private String convert(String xml) throws Exception {
+        return converter.convert(new StringReader(xml));
+    }
+
+    @Nested
+    @DisplayName("Conversion")
+    class ConversionTests {
+
+        @Test
+        void shouldConvertCommandsAndTests() throws Exception {
+            String xml = HEAD
+                    + "<control name=\"require\"><str>fileinto</str></control>"
+                    + "<control name=\"if\"><test name=\"header\"><tag>contains</tag>"
+                    + "<list><str>subject</str><str>from</str></list><str>x</str></test>"
+                    + "<action name=\"fileinto\"><str>a</str></action></control>"
+                    + "<control name=\"else\"><action name=\"keep\"/></control>"
+                    + "</sieve>";
+
+            assertThat(convert(xml)).isEqualTo("require \"fileinto\";\n"
+                    + "if header :contains [\"subject\", \"from\"] \"x\" {\n"
+                    + "    fileinto \"a\";\n"
+                    + "} else {\n"
+                    + "    keep;\n"
+                    + "}\n");
+        }
+
+        @Test
+        void shouldAlwaysParenthesiseAnyofAndAllof() throws Exception {
+            String xml = HEAD + "<control name=\"if\"><test name=\"anyof\"><test name=\"true\"/></test></control></sieve>";
+
+            assertThat(convert(xml)).isEqualTo("if anyof (true) {}\n");
+        }
+
+        @Test
+        void shouldEscapeAndDotStuff() throws Exception {
+            String xml = HEAD + "<action name=\"fileinto\"><str>a\"b\\c</str></action>"
+                    + "<action name=\"reject\"><str>.line&#13;\nnext&#13;\n</str></action></sieve>";
+
+            assertThat(convert(xml)).isEqualTo("fileinto \"a\\\"b\\\\c\";\n"
+                    + "reject text:\r\n..line\r\nnext\r\n.\r\n;\n");
+        }
+
+        @Test
+        void shouldSkipForeignElementsAndComments() throws Exception {
+            String xml = HEAD + "<!-- hello --><ui:note xmlns:ui=\"urn:example\"><ui:x/>text</ui:note>"
+                    + "<action name=\"keep\"/></sieve>";
+
+            assertThat(convert(xml)).isEqualTo("keep;\n");
+        }
+
+        @Test
+        void shouldSkipDisplayDataAndComments() throws Exception {
+            String xml = HEAD + "<comment>top</comment><displaydata><ui:x xmlns:ui=\"urn:example\"/></displaydata>"
+                    + "<control name=\"if\"><preamble><comment>pre</comment><displaydata/></preamble>"
+                    + "<test name=\"size\"><comment>t</comment><tag>over</tag><displaydata/><num>100</num></test>"
+                    + "<action name=\"discard\"/><postamble><comment>post</comment></postamble></control>"
+                    + "</sieve>";
+
+            assertThat(convert(xml)).isEqualTo("if size :over 100 {\n"
+                    + "    discard;\n"
+                    + "}\n");
+        }
+
+        @Test
+        void shouldTreatDisplayBlocksAsTransparent() throws Exception {
+            String xml = HEAD + "<displayblock group=\"spam\"><comment>rules</comment>"
+                    + "<control name=\"if\"><test name=\"true\"/>"
+                    + "<displayblock><action name=\"fileinto\"><str>a</str></action>"
+                    + "<displayblock><action name=\"stop\"/></displayblock></displayblock></control>"
+                    + "<control name=\"else\"><action name=\"keep\"/></control>"
+                    + "</displayblock><displayblock/></sieve>";
+
+            assertThat(convert(xml)).isEqualTo("if true {\n"
+                    + "    fileinto \"a\";\n"
+                    + "    stop;\n"
+                    + "} else {\n"
+                    + "    keep;\n"
+                    + "}\n");
+        }
+
+        @Test
+        void shouldRoundTripThroughSieveToXML() throws Exception {
+            String script = "require [\"fileinto\", \"vacation\"];\n"
+                    + "if anyof (header :contains \"subject\" \"a<b&c\", size :over 1K) { fileinto \"x\"; }\n"
+                    + "elsif not exists \"to\" { vacation :days 2 text:\n..dot\nline\n.\n; }\n"
+                    + "else { stop; }\n";
+            SieveParser parser = new SieveParser();
+            StringWriter xml = new StringWriter();
+            new SieveToXML().convert(new StringReader(script), xml);
+
+            ScriptNode back = parser.parse(convert(xml.toString()));
+
+            assertThat(back).isEqualTo(parser.parse(script));
+        }
+
+        @Test
+        void shouldReadDomOutput() throws Exception {
+            String script = "if true { keep; }";
+            String xml = new SieveToXML().convert(script).toString();
+
+            assertThat(convert(xml)).isEqualTo("if true {\n    keep;\n}\n");
+        }
+    }
+
+    @Nested
+    @DisplayName("Errors")
+    class ErrorTests {
+
+        @Test
+        void shouldRejectWrongRoot() {
+            assertThatThrownBy(() -> convert("<script/>"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessage("Expecting <sieve> at line 1");
+        }
+
+        @Test
+        void shouldRejectUnknownElement() {
+            assertThatThrownBy(() -> convert(HEAD + "<action name=\"keep\"><bogus/></action></sieve>"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Unexpected element <bogus>");
+        }
+
+        @Test
+        void shouldRejectArgumentsInDisplayBlock() {
+            assertThatThrownBy(() -> convert(HEAD + "<displayblock><str>x</str></displayblock></sieve>"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Expecting <control> or <action> but got <str>");
+        }
+
+        @Test
+        void shouldRejectBadNumber() {
+            assertThatThrownBy(() -> convert(HEAD + "<control name=\"if\"><test name=\"size\"><tag>over</tag><num>-1</num></test></control></sieve>"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Invalid number \"-1\"");
+        }
+
+        @Test
+        void shouldRejectArgumentsAfterTests() {
+            assertThatThrownBy(() -> convert(HEAD + "<control name=\"if\"><test name=\"true\"/><str>x</str></control></sieve>"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Expecting <test> but got <str>");
+        }
+
+        @Test
+        void shouldRejectMalformedXml() {
+            assertThatThrownBy(() -> convert(HEAD + "<action name=\"keep\">"))
+                    .isInstanceOf(ParseException.class)
+                    .hasMessageStartingWith("Invalid XML");
+        }
+
+        @Test
+        void shouldNotResolveExternalEntities() {
+            String xml = "<!DOCTYPE sieve [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>"
+                    + HEAD + "<action name=\"fileinto\"><str>&x;</str></action></sieve>";
+
+            assertThatThrownBy(() -> convert(xml)).isInstanceOf(ParseException.class);
+        }
+    }
+}